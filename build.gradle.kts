@@ -3,6 +3,8 @@ plugins {
     id("com.gradleup.shadow") version "8.3.5"
     // QuPath Gradle extension convention plugin
     id("qupath-conventions")
+    // Microbenchmarks, run with ./gradlew jmh
+    id("me.champeau.jmh") version "0.7.2"
 }
 
 qupathExtension {
@@ -13,6 +15,10 @@ qupathExtension {
     automaticModule = "io.github.qupath.extension.snapshots"
 }
 
+// Headless glass platform for JavaFX, which must implement the glass API of the JavaFX version used by QuPath;
+// if it doesn't, the JavaFX tests fail when run headless - use e.g. -PmonocleVersion=21.0.2 to choose another
+val monocle = "org.testfx:openjfx-monocle:" + providers.gradleProperty("monocleVersion").getOrElse("21.0.2")
+
 dependencies {
 
     // Main dependencies for most QuPath extensions
@@ -23,5 +29,170 @@ dependencies {
     // For testing
     testImplementation(libs.bundles.qupath)
     testImplementation(libs.junit)
+    testImplementation(monocle)
+
+    // For benchmarking
+    jmhImplementation(libs.bundles.qupath)
+    jmhImplementation(libs.bundles.logging)
+    jmhImplementation(libs.qupath.fxtras)
+    jmhImplementation(monocle)
+
+}
+
+// Tests and benchmarks that need JavaFX run headless with Monocle by default; use -Pheadless=false for a display
+val headless = providers.gradleProperty("headless").map { it.toBoolean() }.orElse(true).get()
+val headlessProperties = if (headless) mapOf(
+    "testfx.headless" to "true",
+    "glass.platform" to "Monocle",
+    "monocle.platform" to "Headless",
+    "prism.order" to "sw",
+    "java.awt.headless" to "true"
+) else mapOf()
+
+// Run a short subset of the capture benchmarks, and check them against the baselines as part of the build
+val jmhCi = providers.gradleProperty("jmhCi").isPresent
+
+tasks.test {
+    useJUnitPlatform()
+    systemProperties(headlessProperties)
+}
+
+jmh {
+    // Synthetic image sizes can be overridden, e.g. ./gradlew jmh -PjmhMegapixels=1,500
+    val megapixels = providers.gradleProperty("jmhMegapixels")
+    if (megapixels.isPresent)
+        benchmarkParameters.put("megapixels", project.objects.listProperty(String::class.java).value(megapixels.get().split(",")))
+    // Optionally run a subset of benchmarks, e.g. ./gradlew jmh -PjmhIncludes=Encoding
+    val includesPattern = providers.gradleProperty("jmhIncludes")
+    if (includesPattern.isPresent)
+        includes.add(includesPattern.get())
+    if (jmhCi) {
+        // Small scenes and short iterations, so that every format can be checked in a few minutes
+        includes.add("CaptureBenchmark")
+        benchmarkParameters.put("megapixels", project.objects.listProperty(String::class.java).value(listOf("1")))
+        benchmarkParameters.put("nNodes", project.objects.listProperty(String::class.java).value(listOf("100")))
+        warmupIterations = 1
+        warmup = "1s"
+        iterations = 3
+        timeOnIteration = "2s"
+        jvmArgsAppend.add("-Xmx2g")
+    } else {
+        // The largest images need a lot of memory
+        jvmArgsAppend.add("-Xmx16g")
+    }
+    jvmArgsAppend.addAll(headlessProperties.map { "-D${it.key}=${it.value}" })
+    // Record the peak heap usage of every benchmark, so that it can be compared with the baselines
+    profilers.add("qupath.ext.snapshots.ui.PeakHeapProfiler")
+    resultFormat = "JSON"
+}
+
+// Stored JMH results, used to detect regressions
+val jmhResults = layout.buildDirectory.file("results/jmh/results.json")
+val jmhBaselines = layout.projectDirectory.file("src/jmh/baselines.json")
+
+/**
+ * Get a key identifying a JMH result, including its mode and parameters.
+ */
+fun jmhKey(result: Map<*, *>): String {
+    val params = (result["params"] as Map<*, *>?)?.entries
+        ?.sortedBy { it.key.toString() }
+        ?.joinToString(", ") { "${it.key}=${it.value}" } ?: ""
+    return "${result["benchmark"]} [${result["mode"]}] $params".trim()
+}
+
+/**
+ * Get the metrics of a JMH result that are compared with the baselines:
+ * the score, percentiles for sampled times, and the peak heap usage.
+ */
+fun jmhMetrics(result: Map<*, *>): Map<String, Double> {
+    val primary = result["primaryMetric"] as Map<*, *>
+    val metrics = sortedMapOf("score" to (primary["score"] as Number).toDouble())
+    val percentiles = primary["scorePercentiles"] as Map<*, *>?
+    if (result["mode"] == "sample" && percentiles != null) {
+        metrics["p50"] = (percentiles["50.0"] as Number).toDouble()
+        metrics["p99"] = (percentiles["99.0"] as Number).toDouble()
+    }
+    val heap = (result["secondaryMetrics"] as Map<*, *>?)?.get("peak.heap") as Map<*, *>?
+    if (heap != null)
+        metrics["peak.heap"] = (heap["score"] as Number).toDouble()
+    return metrics
+}
+
+@Suppress("UNCHECKED_CAST")
+fun readJmhResults(file: File): List<Map<*, *>> = groovy.json.JsonSlurper().parse(file) as List<Map<*, *>>
+
+tasks.register("jmhUpdateBaselines") {
+    group = "benchmark"
+    description = "Store the latest JMH results as the baselines used by jmhCheckBaselines, e.g. ./gradlew jmh jmhUpdateBaselines -PjmhCi"
+    mustRunAfter("jmh")
+    doLast {
+        val baselines = sortedMapOf<String, Map<String, Double>>()
+        val file = jmhBaselines.asFile
+        if (file.exists()) {
+            @Suppress("UNCHECKED_CAST")
+            baselines.putAll(groovy.json.JsonSlurper().parse(file) as Map<String, Map<String, Double>>)
+        }
+        // Only the benchmarks that were run are replaced
+        for (result in readJmhResults(jmhResults.get().asFile))
+            baselines[jmhKey(result)] = jmhMetrics(result)
+        file.writeText(groovy.json.JsonOutput.prettyPrint(groovy.json.JsonOutput.toJson(baselines)) + "\n")
+        logger.lifecycle("Stored ${baselines.size} baselines in $file")
+    }
+}
+
+val jmhCheckBaselines by tasks.registering {
+    group = "verification"
+    description = "Run the benchmarks and fail if the results are worse than the stored baselines, e.g. ./gradlew jmhCheckBaselines -PjmhCi -PjmhTolerance=0.3"
+    dependsOn("jmh")
+    // Benchmarks are noisy, so results can be this fraction worse than the baseline before failing
+    val tolerance = providers.gradleProperty("jmhTolerance").map { it.toDouble() }.orElse(0.2)
+    doLast {
+        val file = jmhBaselines.asFile
+        if (!file.exists())
+            throw GradleException("No JMH baselines found at $file - run ./gradlew jmh jmhUpdateBaselines to create them")
+        val resultsFile = jmhResults.get().asFile
+        if (!resultsFile.exists())
+            throw GradleException("No JMH results found at $resultsFile")
+        @Suppress("UNCHECKED_CAST")
+        val baselines = groovy.json.JsonSlurper().parse(file) as Map<String, Map<String, Number>>
+        val tol = tolerance.get()
+        val failures = mutableListOf<String>()
+        var nCompared = 0
+        for (result in readJmhResults(resultsFile)) {
+            val key = jmhKey(result)
+            val baseline = baselines[key] ?: continue
+            nCompared++
+            val metrics = jmhMetrics(result)
+            for ((metric, expectedValue) in baseline) {
+                val expected = expectedValue.toDouble()
+                val value = metrics[metric]
+                if (value == null) {
+                    failures.add("$key $metric: missing (baseline %.3f)".format(expected))
+                    continue
+                }
+                // Throughput is the only metric where higher is better
+                val worse = if (metric == "score" && result["mode"] == "thrpt")
+                    value < expected * (1 - tol)
+                else
+                    value > expected * (1 + tol)
+                if (worse)
+                    failures.add("$key $metric: %.3f (baseline %.3f)".format(value, expected))
+            }
+        }
+        // Benchmarks that were renamed, or parameters that changed, would otherwise pass without being checked
+        if (nCompared == 0)
+            throw GradleException("None of the JMH results match a baseline in $file")
+        if (failures.isNotEmpty())
+            throw GradleException("${failures.size} JMH result(s) worse than baseline by more than ${tol * 100}%:\n" +
+                    failures.joinToString("\n"))
+        logger.lifecycle("$nCompared JMH result(s) within ${tol * 100}% of baseline")
+    }
+}
 
+// Baselines are only meaningful if measured on the machine that checks them, so the check is only added to the
+// CI build once baselines from the CI runner have been committed (see .github/workflows/benchmark.yml)
+if (jmhCi && jmhBaselines.asFile.exists()) {
+    tasks.named("check") {
+        dependsOn(jmhCheckBaselines)
+    }
 }
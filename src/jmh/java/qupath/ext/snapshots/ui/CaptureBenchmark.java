@@ -0,0 +1,153 @@
+package qupath.ext.snapshots.ui;
+
+import javafx.application.Platform;
+import javafx.embed.swing.SwingFXUtils;
+import javafx.scene.Parent;
+import javafx.scene.image.ImageView;
+import javafx.scene.layout.Pane;
+import javafx.scene.paint.Color;
+import javafx.scene.shape.Rectangle;
+import javafx.scene.text.Text;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.Random;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+
+/**
+ * End-to-end benchmarks for the capture path used by the snapshot window: render a scene on the JavaFX
+ * application thread, read back the pixels, then encode and write a file with a unique name.
+ * <p>
+ * Scenes contain a synthetic background image with many shapes and labels on top, so that the cost of rendering
+ * depends upon both the size and the number of nodes.
+ * Results are recorded as sampled times, to give percentiles as well as the mean, and are compared with the
+ * stored baselines by {@code ./gradlew jmhCheckBaselines}.
+ * These need JavaFX, which runs headless with Monocle unless the build is run with {@code -Pheadless=false}.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2, time = 2)
+@Measurement(iterations = 3, time = 5)
+@Fork(1)
+public class CaptureBenchmark {
+
+    @Param({"1", "16"})
+    public int megapixels;
+
+    @Param({"100", "10000"})
+    public int nNodes;
+
+    @Param({"PNG", "JPEG_HIGH", "JPEG_MEDIUM", "JPEG_LOW", "QOI", "TIFF_LZW", "TIFF_DEFLATE"})
+    public SnapshotFormat format;
+
+    private Parent scene;
+    private Path dir;
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        try {
+            Platform.startup(() -> {});
+        } catch (IllegalStateException e) {
+            // Already started
+        }
+        int width = SyntheticImages.width(megapixels);
+        int height = SyntheticImages.height(megapixels);
+        scene = callOnFxThread(() -> createScene(width, height, nNodes));
+        dir = Files.createTempDirectory("snapshot-capture-benchmark");
+    }
+
+    /**
+     * Remove the files written during each iteration, so that the directory doesn't grow without limit.
+     */
+    @TearDown(Level.Iteration)
+    public void deleteFiles() throws IOException {
+        try (var stream = Files.list(dir)) {
+            stream.forEach(p -> p.toFile().delete());
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        try (var stream = Files.walk(dir)) {
+            stream.sorted(Comparator.reverseOrder()).forEach(p -> p.toFile().delete());
+        }
+    }
+
+    @Benchmark
+    public File snapshot() throws IOException {
+        return captureAndWrite(1.0);
+    }
+
+    @Benchmark
+    public File scaledSnapshot() throws IOException {
+        return captureAndWrite(2.0);
+    }
+
+    private File captureAndWrite(double scale) throws IOException {
+        BufferedImage img = callOnFxThread(() -> {
+            var captured = WindowCapture.snapshot(scene, scale);
+            try {
+                return captured.readPixels();
+            } finally {
+                captured.recycle();
+            }
+        });
+        try {
+            return SnapshotWriter.write(img, dir.resolve("snapshot").toFile(), format, true);
+        } finally {
+            PixelBufferPool.release(img);
+        }
+    }
+
+    /**
+     * Create a scene with a synthetic background image, and randomly-placed shapes and labels on top.
+     */
+    private static Parent createScene(int width, int height, int nNodes) {
+        var background = new ImageView(SwingFXUtils.toFXImage(SyntheticImages.createImage(width, height), null));
+        var pane = new Pane(background);
+        var random = new Random(42L);
+        for (int i = 0; i < nNodes; i++) {
+            double x = random.nextDouble() * width;
+            double y = random.nextDouble() * height;
+            if (i % 4 == 0) {
+                var text = new Text(x, y, "Label " + i);
+                text.setFill(Color.BLACK);
+                pane.getChildren().add(text);
+            } else {
+                var rect = new Rectangle(x, y, 5 + random.nextDouble() * 50, 5 + random.nextDouble() * 50);
+                rect.setFill(Color.hsb(random.nextDouble() * 360, 0.8, 0.9, 0.5));
+                rect.setStroke(Color.BLACK);
+                pane.getChildren().add(rect);
+            }
+        }
+        pane.resize(width, height);
+        pane.applyCss();
+        pane.layout();
+        return pane;
+    }
+
+    private static <T> T callOnFxThread(Supplier<T> supplier) {
+        return CompletableFuture.supplyAsync(supplier, Platform::runLater).join();
+    }
+
+}
@@ -0,0 +1,91 @@
+package qupath.ext.snapshots.ui;
+
+import javafx.application.Platform;
+import javafx.embed.swing.SwingFXUtils;
+import javafx.scene.image.PixelFormat;
+import javafx.scene.image.WritableImage;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import qupath.lib.awt.common.BufferedImageTools;
+
+import java.awt.image.BufferedImage;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmarks for converting captured images between JavaFX and AWT representations.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@Fork(1)
+public class ConversionBenchmark {
+
+    @Param({"1", "16", "100"})
+    public int megapixels;
+
+    private WritableImage fxImage;
+    private BufferedImage img;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        try {
+            Platform.startup(() -> {});
+        } catch (IllegalStateException e) {
+            // Already started
+        }
+        int width = SyntheticImages.width(megapixels);
+        int height = SyntheticImages.height(megapixels);
+        fxImage = new WritableImage(width, height);
+        fxImage.getPixelWriter().setPixels(0, 0, width, height, PixelFormat.getIntArgbInstance(),
+                SyntheticImages.createPixels(width, height, false), 0, width);
+        img = SyntheticImages.createImage(width, height);
+    }
+
+    @Benchmark
+    public BufferedImage fromFXImage() {
+        return SwingFXUtils.fromFXImage(fxImage, null);
+    }
+
+    @Benchmark
+    public BufferedImage capturedImageToBufferedImage() {
+        return CapturedImage.of(fxImage).getBufferedImage();
+    }
+
+    @Benchmark
+    public WritableImage toFXImage() {
+        return SwingFXUtils.toFXImage(img, null);
+    }
+
+    @Benchmark
+    public BufferedImage ensureBufferedImageTypeRGB() {
+        return BufferedImageTools.ensureBufferedImageType(img, BufferedImage.TYPE_INT_RGB);
+    }
+
+    @Benchmark
+    public BufferedImage jpegEncoderToRGB() {
+        return JpegEncoder.toRGB(img);
+    }
+
+    @Benchmark
+    public BufferedImage downsampleHalf() {
+        return Downsampler.downsample(img, 2);
+    }
+
+    @Benchmark
+    public BufferedImage downsampleFractional() {
+        return Downsampler.downsample(img, 3.5);
+    }
+
+}
@@ -0,0 +1,114 @@
+package qupath.ext.snapshots.ui;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import qupath.lib.awt.common.BufferedImageTools;
+
+import javax.imageio.IIOImage;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageWriteParam;
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmarks for encoding snapshots as PNG and JPEG.
+ * <p>
+ * PNG encoders write to a null stream, so only encoding is measured.
+ * JPEG encoders write to a temporary file, since {@link JpegEncoder} writes via a temporary file and a move.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@Fork(1)
+public class EncodingBenchmark {
+
+    @Param({"1", "16", "100"})
+    public int megapixels;
+
+    private BufferedImage img;
+    private Path dir;
+    private Path jpegFile;
+    private JpegEncoder jpegEncoder;
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        img = SyntheticImages.createImage(SyntheticImages.width(megapixels), SyntheticImages.height(megapixels));
+        dir = Files.createTempDirectory("snapshot-benchmark");
+        jpegFile = dir.resolve("snapshot.jpg");
+        jpegEncoder = new JpegEncoder();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        jpegEncoder.clear();
+        Files.deleteIfExists(jpegFile);
+        Files.deleteIfExists(dir);
+    }
+
+    @Benchmark
+    public void pngImageIO() throws IOException {
+        ImageIO.write(img, "PNG", OutputStream.nullOutputStream());
+    }
+
+    @Benchmark
+    public void pngParallel() throws IOException {
+        new ParallelPngWriter(6, ParallelPngWriter.Strategy.DEFAULT).write(img, OutputStream.nullOutputStream());
+    }
+
+    @Benchmark
+    public void pngParallelFast() throws IOException {
+        new ParallelPngWriter(1, ParallelPngWriter.Strategy.DEFAULT).write(img, OutputStream.nullOutputStream());
+    }
+
+    /**
+     * The original approach: look up a new writer and convert to RGB for every image.
+     */
+    /**
+     * JPEG quality levels, which only apply to the JPEG benchmarks.
+     */
+    @State(Scope.Benchmark)
+    public static class JpegQuality {
+
+        @Param({"JPEG_HIGH", "JPEG_MEDIUM", "JPEG_LOW"})
+        public SnapshotFormat format;
+
+    }
+
+    @Benchmark
+    public void jpegImageIO(JpegQuality quality) throws IOException {
+        var jpegWriter = ImageIO.getImageWritersByFormatName("jpeg").next();
+        var param = jpegWriter.getDefaultWriteParam();
+        param.setCompressionMode(ImageWriteParam.MODE_EXPLICIT);
+        param.setCompressionQuality(quality.format.getJpegQuality());
+        try (var stream = ImageIO.createImageOutputStream(jpegFile.toFile())) {
+            jpegWriter.setOutput(stream);
+            var rgb = BufferedImageTools.ensureBufferedImageType(img, BufferedImage.TYPE_INT_RGB);
+            jpegWriter.write(null, new IIOImage(rgb, null, null), param);
+        } finally {
+            jpegWriter.dispose();
+        }
+    }
+
+    @Benchmark
+    public void jpegEncoder(JpegQuality quality) throws IOException {
+        jpegEncoder.write(img, jpegFile, quality.format.getJpegQuality());
+    }
+
+}
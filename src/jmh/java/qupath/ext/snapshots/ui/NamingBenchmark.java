@@ -0,0 +1,84 @@
+package qupath.ext.snapshots.ui;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmarks for choosing a unique output file name in a directory that already contains many snapshots.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@Fork(1)
+public class NamingBenchmark {
+
+    @Param({"100", "1000", "10000"})
+    public int nExistingFiles;
+
+    private Path dir;
+    private File requested;
+    private FileNameIndex index;
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        dir = Files.createTempDirectory("snapshot-naming-benchmark");
+        Files.createFile(dir.resolve("snapshot.png"));
+        for (int i = 1; i <= nExistingFiles; i++)
+            Files.createFile(dir.resolve("snapshot-" + i + ".png"));
+        requested = dir.resolve("snapshot.png").toFile();
+        index = new FileNameIndex();
+        // Build the index outside the measurement
+        index.release(index.reserve(requested, true), false);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        try (var stream = Files.walk(dir)) {
+            stream.sorted(Comparator.reverseOrder()).forEach(p -> p.toFile().delete());
+        }
+    }
+
+    /**
+     * The original approach: probe the file system until a free name is found.
+     */
+    @Benchmark
+    public File probeExists() {
+        var root = "snapshot";
+        var ext = ".png";
+        var file = requested;
+        int ind = 0;
+        while (file.exists()) {
+            ind++;
+            file = new File(requested.getParent(), root + "-" + ind + ext);
+        }
+        return file;
+    }
+
+    @Benchmark
+    public File nameIndex() {
+        var file = index.reserve(requested, true);
+        index.release(file, false);
+        return file;
+    }
+
+}
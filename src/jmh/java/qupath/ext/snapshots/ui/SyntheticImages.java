@@ -0,0 +1,87 @@
+package qupath.ext.snapshots.ui;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+
+/**
+ * Create synthetic images for benchmarking.
+ * <p>
+ * Images contain smooth gradients, flat regions and high-frequency detail, so that they compress roughly like
+ * real screenshots of a viewer (rather than like pure noise or a single color).
+ */
+final class SyntheticImages {
+
+    private SyntheticImages() {
+        throw new AssertionError("Cannot instantiate this class");
+    }
+
+    /**
+     * Get the width of a 4:3 image with approximately the specified number of megapixels.
+     * @param megapixels the number of megapixels
+     * @return the image width
+     */
+    static int width(int megapixels) {
+        return (int)Math.round(Math.sqrt(megapixels * 1_000_000.0 * 4 / 3));
+    }
+
+    /**
+     * Get the height of a 4:3 image with approximately the specified number of megapixels.
+     * @param megapixels the number of megapixels
+     * @return the image height
+     */
+    static int height(int megapixels) {
+        return (int)Math.round(width(megapixels) * 3.0 / 4.0);
+    }
+
+    /**
+     * Create packed ARGB pixels for a synthetic image.
+     * @param width the image width
+     * @param height the image height
+     * @param alpha if true, include a semi-transparent region
+     * @return the pixels
+     */
+    static int[] createPixels(int width, int height, boolean alpha) {
+        int[] argb = new int[width * height];
+        long seed = 42L;
+        for (int y = 0; y < height; y++) {
+            int offset = y * width;
+            for (int x = 0; x < width; x++) {
+                int r, g, b;
+                if (x < width / 3) {
+                    // Smooth gradient
+                    r = x * 255 / width;
+                    g = y * 255 / height;
+                    b = 128;
+                } else if (y < height / 2) {
+                    // Flat 'UI' blocks
+                    int block = ((x / 64) + (y / 64)) % 3;
+                    r = g = b = 200 + block * 20;
+                } else {
+                    // Textured 'tissue'
+                    seed = seed * 6364136223846793005L + 1442695040888963407L;
+                    int noise = (int)(seed >>> 58);
+                    r = 200 - ((x ^ y) & 0x3f) - noise;
+                    g = 120 + ((x * y) & 0x1f) + noise;
+                    b = 180 - noise;
+                }
+                int a = alpha && x > width * 3 / 4 && y < height / 4 ? 0x80 : 0xff;
+                argb[offset + x] = (a << 24) | (r << 16) | (g << 8) | b;
+            }
+        }
+        return argb;
+    }
+
+    /**
+     * Create a synthetic ARGB image.
+     * @param width the image width
+     * @param height the image height
+     * @return the image
+     */
+    static BufferedImage createImage(int width, int height) {
+        var img = new BufferedImage(width, height, BufferedImage.TYPE_INT_ARGB);
+        int[] data = ((DataBufferInt)img.getRaster().getDataBuffer()).getData();
+        System.arraycopy(createPixels(width, height, false), 0, data, 0, data.length);
+        return img;
+    }
+
+}
@@ -0,0 +1,236 @@
+package qupath.ext.snapshots.ui;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.zip.Deflater;
+
+/**
+ * Streaming writer for animated PNG (APNG) files, using delta frames.
+ * <p>
+ * Each new frame is compared with the previous one, and only the bounding rectangle of the pixels that have
+ * changed is encoded. Frames that are identical to the previous frame are not encoded at all; instead, the
+ * display duration of the previous frame is extended.
+ * This keeps both the file size and the encoding time roughly proportional to how much of the image changes.
+ * <p>
+ * All frames must have the same size as the first frame; larger frames are cropped, and smaller frames
+ * are padded with transparent pixels.
+ * This class is not thread-safe.
+ */
+class ApngWriter implements Closeable {
+
+    private static final int DISPOSE_OP_NONE = 0;
+    private static final int BLEND_OP_SOURCE = 0;
+
+    private final FileChannel channel;
+    private final OutputStream stream;
+    private final int width;
+    private final int height;
+    private final boolean alpha;
+    private final int compressionLevel;
+
+    private final long acTLOffset;
+
+    // Content of the canvas after the last frame has been written
+    private final int[] canvas;
+    // Scratch buffer used if a frame doesn't match the canvas size
+    private int[] resized;
+
+    private PendingFrame pending;
+    private long lastFrameDurationMillis = 100;
+
+    private int nFrames = 0;
+    private int sequenceNumber = 0;
+    private boolean closed = false;
+
+    /**
+     * Create a new writer, opening (and replacing) the output file.
+     * @param path the output file
+     * @param width the animation width
+     * @param height the animation height
+     * @param alpha whether to include an alpha channel
+     * @param compressionLevel the deflate compression level to use for frames
+     * @throws IOException if the file could not be opened
+     */
+    ApngWriter(Path path, int width, int height, boolean alpha, int compressionLevel) throws IOException {
+        this.width = width;
+        this.height = height;
+        this.alpha = alpha;
+        this.compressionLevel = compressionLevel;
+        this.canvas = new int[width * height];
+        this.channel = FileChannel.open(path,
+                StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+        this.stream = new BufferedOutputStream(Channels.newOutputStream(channel), 256 * 1024);
+        stream.write(PngEncoding.SIGNATURE);
+        PngEncoding.writeChunk(stream, "IHDR", PngEncoding.createHeader(width, height, alpha));
+        stream.flush();
+        // Placeholder; the number of frames is only known on closing
+        acTLOffset = channel.position();
+        PngEncoding.writeChunk(stream, "acTL", createAnimationControl(0));
+    }
+
+    /**
+     * Add a frame.
+     * @param argb packed ARGB pixels; these are not retained, and so can be reused after this method returns
+     * @param frameWidth the frame width
+     * @param frameHeight the frame height
+     * @param timestampMillis the time at which the frame was captured, in milliseconds
+     * @return true if the frame contained changes, false if it was identical to the previous frame
+     * @throws IOException if an earlier frame could not be written
+     */
+    boolean addFrame(int[] argb, int frameWidth, int frameHeight, long timestampMillis) throws IOException {
+        if (closed)
+            throw new IOException("APNG writer has already been closed");
+        if (frameWidth != width || frameHeight != height) {
+            argb = resizeFrame(argb, frameWidth, frameHeight);
+        }
+        var bounds = pending == null ? new int[]{0, 0, width, height} : findChangedBounds(argb);
+        if (bounds == null)
+            return false;
+        if (pending != null) {
+            lastFrameDurationMillis = Math.max(1, timestampMillis - pending.timestamp);
+            writeFrame(pending, lastFrameDurationMillis);
+        }
+        int x = bounds[0], y = bounds[1], w = bounds[2], h = bounds[3];
+        for (int yy = y; yy < y + h; yy++)
+            System.arraycopy(argb, yy * width + x, canvas, yy * width + x, w);
+        // Encode the region now, so that we don't need to retain the pixels
+        var data = PngEncoding.compressRegion(canvas, x, y, w, h, width, alpha, compressionLevel);
+        pending = new PendingFrame(x, y, w, h, data, timestampMillis);
+        return true;
+    }
+
+    /**
+     * Get the number of distinct frames added so far.
+     * @return the number of frames
+     */
+    int nFrames() {
+        return nFrames + (pending == null ? 0 : 1);
+    }
+
+    private int[] resizeFrame(int[] argb, int frameWidth, int frameHeight) {
+        if (resized == null)
+            resized = new int[width * height];
+        else
+            Arrays.fill(resized, 0);
+        int w = Math.min(width, frameWidth);
+        for (int y = 0; y < Math.min(height, frameHeight); y++)
+            System.arraycopy(argb, y * frameWidth, resized, y * width, w);
+        return resized;
+    }
+
+    /**
+     * Find the bounding box of pixels that differ from the canvas.
+     * @return the bounds as [x, y, width, height], or null if there are no changes
+     */
+    private int[] findChangedBounds(int[] argb) {
+        int minX = width, minY = -1, maxX = -1, maxY = -1;
+        for (int y = 0; y < height; y++) {
+            int offset = y * width;
+            int first = Arrays.mismatch(argb, offset, offset + width, canvas, offset, offset + width);
+            if (first < 0)
+                continue;
+            if (minY < 0)
+                minY = y;
+            maxY = y;
+            minX = Math.min(minX, first);
+            // Search backwards for the last difference
+            int last = width - 1;
+            while (last > maxX && argb[offset + last] == canvas[offset + last])
+                last--;
+            maxX = Math.max(maxX, last);
+        }
+        if (minY < 0)
+            return null;
+        return new int[]{minX, minY, maxX - minX + 1, maxY - minY + 1};
+    }
+
+    private void writeFrame(PendingFrame frame, long durationMillis) throws IOException {
+        var fcTL = ByteBuffer.allocate(26);
+        fcTL.putInt(sequenceNumber++);
+        fcTL.putInt(frame.width);
+        fcTL.putInt(frame.height);
+        fcTL.putInt(frame.x);
+        fcTL.putInt(frame.y);
+        if (durationMillis <= 0xFFFF) {
+            fcTL.putShort((short)durationMillis);
+            fcTL.putShort((short)1000);
+        } else {
+            fcTL.putShort((short)Math.min(0xFFFF, durationMillis / 100));
+            fcTL.putShort((short)10);
+        }
+        fcTL.put((byte)DISPOSE_OP_NONE);
+        fcTL.put((byte)BLEND_OP_SOURCE);
+        PngEncoding.writeChunk(stream, "fcTL", fcTL.array());
+        if (nFrames == 0) {
+            // The first frame is also the default image
+            PngEncoding.writeChunk(stream, "IDAT", frame.data);
+        } else {
+            var fdAT = new byte[frame.data.length + 4];
+            ByteBuffer.wrap(fdAT).putInt(sequenceNumber++);
+            System.arraycopy(frame.data, 0, fdAT, 4, frame.data.length);
+            PngEncoding.writeChunk(stream, "fdAT", fdAT);
+        }
+        nFrames++;
+    }
+
+    private static byte[] createAnimationControl(int nFrames) {
+        var buffer = ByteBuffer.allocate(8);
+        buffer.putInt(nFrames);
+        buffer.putInt(0); // Loop forever
+        return buffer.array();
+    }
+
+    /**
+     * Write the last frame and finish the file, using the duration of the previous frame for the last frame.
+     * If no frames were added, a single transparent frame is written so that the file is still valid.
+     * @throws IOException if the file could not be completed
+     */
+    @Override
+    public void close() throws IOException {
+        close(-1L);
+    }
+
+    /**
+     * Write the last frame and finish the file.
+     * If no frames were added, a single transparent frame is written so that the file is still valid.
+     * @param endTimestampMillis the time at which the recording ended, used to determine the duration of the
+     *                           last frame; if this is negative, the duration of the previous frame is used
+     * @throws IOException if the file could not be completed
+     */
+    void close(long endTimestampMillis) throws IOException {
+        if (closed)
+            return;
+        closed = true;
+        try (channel) {
+            if (pending == null) {
+                var data = PngEncoding.compressRegion(canvas, 0, 0, width, height, width, alpha, Deflater.BEST_SPEED);
+                pending = new PendingFrame(0, 0, width, height, data, 0L);
+            }
+            long duration = endTimestampMillis < 0 ? lastFrameDurationMillis :
+                    Math.max(1, endTimestampMillis - pending.timestamp);
+            writeFrame(pending, duration);
+            pending = null;
+            PngEncoding.writeChunk(stream, "IEND", new byte[0]);
+            stream.flush();
+            // Update the number of frames
+            var bytes = new ByteArrayOutputStream(20);
+            PngEncoding.writeChunk(bytes, "acTL", createAnimationControl(nFrames));
+            var buffer = ByteBuffer.wrap(bytes.toByteArray());
+            long pos = acTLOffset;
+            while (buffer.hasRemaining())
+                pos += channel.write(buffer, pos);
+        }
+    }
+
+    private record PendingFrame(int x, int y, int width, int height, byte[] data, long timestamp) {}
+
+}
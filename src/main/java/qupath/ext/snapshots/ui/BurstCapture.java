@@ -0,0 +1,304 @@
+package qupath.ext.snapshots.ui;
+
+import javafx.animation.Animation;
+import javafx.animation.KeyFrame;
+import javafx.animation.Timeline;
+import javafx.application.Platform;
+import javafx.beans.property.ReadOnlyBooleanProperty;
+import javafx.beans.property.ReadOnlyBooleanWrapper;
+import javafx.beans.property.ReadOnlyIntegerProperty;
+import javafx.beans.property.ReadOnlyIntegerWrapper;
+import javafx.scene.image.PixelFormat;
+import javafx.scene.image.WritableImage;
+import javafx.stage.Window;
+import javafx.util.Duration;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * Capture a window repeatedly at a fixed interval, either for a specified number of frames or until stopped.
+ * <p>
+ * Frames are rendered into a single reusable {@link WritableImage}, and their pixels are read back on the JavaFX
+ * application thread into a buffer from the {@link PixelBufferPool} - so the render target can be reused for the
+ * next frame immediately.
+ * Each buffer is handed to a {@link CapturePipeline} for encoding, and returned to the pool once the frame has been
+ * encoded - so several frames can be encoded in parallel.
+ * If too many frames are already being encoded when a frame is due (because encoding can't keep up), the frame
+ * is dropped.
+ * <p>
+ * Optionally, a {@link ChangeDetector} can be used to watch a window: frames are still captured at a fixed
+ * interval, but those that haven't changed since the last written frame are discarded on the JavaFX application
+ * thread as soon as their pixels have been read (so frames are always compared in the order they were captured),
+ * and are never submitted for encoding.
+ * In this case, the maximum number of frames refers to the number of frames written.
+ * <p>
+ * Frames may be written to storage after their pipeline task has completed (see {@link FileSink}), so that slow
+ * storage doesn't limit the frame rate; capturing is only complete once all frames have been written.
+ */
+class BurstCapture {
+
+    private static final Logger logger = LoggerFactory.getLogger(BurstCapture.class);
+
+    /**
+     * Write a single frame.
+     */
+    @FunctionalInterface
+    interface FrameWriter {
+
+        /**
+         * Write a frame.
+         * This is called from a background thread.
+         * The image is reused once this returns, so it must not be retained - but the file may be written later.
+         * @param img the frame image
+         * @param frame the frame number, starting at 1
+         * @return a future that completes with the file once it has been written
+         * @throws IOException if the frame could not be encoded
+         */
+        CompletableFuture<File> write(BufferedImage img, int frame) throws IOException;
+
+    }
+
+    private final Window window;
+    private final boolean doScreenshot;
+    private final double scale;
+    private final Duration interval;
+    private final int maxFrames;
+    private final CapturePipeline pipeline;
+    private final FrameWriter writer;
+    private final ChangeDetector changeDetector;
+
+    private final int maxPending;
+    private WritableImage image;
+
+    private Timeline timeline;
+
+    private final ReadOnlyBooleanWrapper running = new ReadOnlyBooleanWrapper(false);
+    private final ReadOnlyIntegerWrapper nCaptured = new ReadOnlyIntegerWrapper(0);
+    private final ReadOnlyIntegerWrapper nWritten = new ReadOnlyIntegerWrapper(0);
+    private final ReadOnlyIntegerWrapper nDropped = new ReadOnlyIntegerWrapper(0);
+    private final ReadOnlyIntegerWrapper nFailed = new ReadOnlyIntegerWrapper(0);
+    private final ReadOnlyIntegerWrapper nUnchanged = new ReadOnlyIntegerWrapper(0);
+
+    private int nPending = 0;
+    private boolean stopRequested = false;
+
+    private final CompletableFuture<BurstCapture> future = new CompletableFuture<>();
+
+    /**
+     * Create a new burst capture.
+     * @param window the window to capture
+     * @param doScreenshot if true, capture screenshots; otherwise, render snapshots
+     * @param scale the scale to use for snapshots
+     * @param interval the interval between frames
+     * @param maxFrames the maximum number of frames to capture, or 0 to continue until stopped
+     * @param nBuffers the maximum number of frames that may be encoded at the same time
+     * @param pipeline the pipeline used to write frames
+     * @param writer the writer for each frame
+     */
+    BurstCapture(Window window, boolean doScreenshot, double scale, Duration interval, int maxFrames,
+                 int nBuffers, CapturePipeline pipeline, FrameWriter writer) {
+        this(window, doScreenshot, scale, interval, maxFrames, nBuffers, pipeline, writer, null);
+    }
+
+    /**
+     * Create a new burst capture that only writes frames that have changed.
+     * @param window the window to capture
+     * @param doScreenshot if true, capture screenshots; otherwise, render snapshots
+     * @param scale the scale to use for snapshots
+     * @param interval the interval between frames
+     * @param maxFrames the maximum number of frames to write, or 0 to continue until stopped
+     * @param nBuffers the maximum number of frames that may be encoded at the same time
+     * @param pipeline the pipeline used to write frames
+     * @param writer the writer for each frame
+     * @param changeDetector detector used to discard unchanged frames, or null if all frames should be written
+     */
+    BurstCapture(Window window, boolean doScreenshot, double scale, Duration interval, int maxFrames,
+                 int nBuffers, CapturePipeline pipeline, FrameWriter writer, ChangeDetector changeDetector) {
+        if (nBuffers < 1)
+            throw new IllegalArgumentException("At least one frame buffer is required");
+        this.window = window;
+        this.doScreenshot = doScreenshot;
+        this.scale = scale;
+        this.interval = interval;
+        this.maxFrames = Math.max(0, maxFrames);
+        this.pipeline = pipeline;
+        this.writer = writer;
+        this.maxPending = nBuffers;
+        this.changeDetector = changeDetector;
+    }
+
+    /**
+     * Start capturing.
+     * This must be called from the JavaFX application thread.
+     * @return a future that completes when capturing has stopped and all frames have been written
+     */
+    CompletableFuture<BurstCapture> start() {
+        if (timeline != null)
+            throw new IllegalStateException("Burst capture has already been started");
+        running.set(true);
+        timeline = new Timeline(new KeyFrame(interval, e -> captureFrame()));
+        // When watching for changes, we don't know how many frames will be needed
+        timeline.setCycleCount(maxFrames > 0 && changeDetector == null ? maxFrames : Animation.INDEFINITE);
+        timeline.setOnFinished(e -> stop());
+        // Capture the first frame immediately
+        captureFrame();
+        if (maxFrames == 1)
+            stop();
+        else
+            timeline.play();
+        return future;
+    }
+
+    /**
+     * Stop capturing new frames.
+     * Frames that have already been captured will still be written.
+     */
+    void stop() {
+        stopRequested = true;
+        if (timeline != null)
+            timeline.stop();
+        maybeComplete();
+    }
+
+    ReadOnlyBooleanProperty runningProperty() {
+        return running.getReadOnlyProperty();
+    }
+
+    ReadOnlyIntegerProperty capturedProperty() {
+        return nCaptured.getReadOnlyProperty();
+    }
+
+    ReadOnlyIntegerProperty writtenProperty() {
+        return nWritten.getReadOnlyProperty();
+    }
+
+    ReadOnlyIntegerProperty droppedProperty() {
+        return nDropped.getReadOnlyProperty();
+    }
+
+    ReadOnlyIntegerProperty failedProperty() {
+        return nFailed.getReadOnlyProperty();
+    }
+
+    /**
+     * Number of frames that were discarded because they had not changed.
+     * This is always 0 if no change detector is used.
+     */
+    ReadOnlyIntegerProperty unchangedProperty() {
+        return nUnchanged.getReadOnlyProperty();
+    }
+
+    /**
+     * Check whether only changed frames are written.
+     * @return true if a change detector is used
+     */
+    boolean isWatching() {
+        return changeDetector != null;
+    }
+
+    private void captureFrame() {
+        if (stopRequested)
+            return;
+        if (!window.isShowing()) {
+            logger.warn("Window closed - stopping burst capture");
+            stop();
+            return;
+        }
+        if (maxFrames > 0 && changeDetector == null && nCaptured.get() + nDropped.get() >= maxFrames) {
+            stop();
+            return;
+        }
+        // When watching, wait to see if pending frames are written before capturing more than we might need
+        if (maxFrames > 0 && changeDetector != null && nWritten.get() + nPending >= maxFrames)
+            return;
+        if (nPending >= maxPending || pipeline.saturatedProperty().get()) {
+            logger.debug("Unable to keep up with encoding - dropping frame");
+            nDropped.set(nDropped.get() + 1);
+            return;
+        }
+        image = doScreenshot ?
+                WindowCapture.screenshot(window, image) :
+                WindowCapture.snapshot(window, scale, image);
+        // Read the pixels here, while we are on the FX thread, so the render target can be reused
+        var img = readPixels(image);
+        nCaptured.set(nCaptured.get() + 1);
+        // Compare frames here, in the order they were captured, and only submit those that have changed
+        if (changeDetector != null) {
+            int[] data = ((DataBufferInt)img.getRaster().getDataBuffer()).getData();
+            if (!changeDetector.update(data, img.getWidth(), img.getHeight())) {
+                nUnchanged.set(nUnchanged.get() + 1);
+                PixelBufferPool.release(img);
+                return;
+            }
+        }
+        int frame = nCaptured.get();
+        nPending++;
+        try {
+            pipeline.submit(() -> writeFrame(img, frame))
+                    .thenCompose(written -> written)
+                    .whenComplete((file, throwable) -> Platform.runLater(() -> {
+                        if (throwable == null) {
+                            nWritten.set(nWritten.get() + 1);
+                            if (maxFrames > 0 && changeDetector != null && nWritten.get() >= maxFrames)
+                                stop();
+                        } else {
+                            nFailed.set(nFailed.get() + 1);
+                            logger.error("Unable to write frame {}", frame, throwable);
+                        }
+                        nPending--;
+                        maybeComplete();
+                    }));
+        } catch (RejectedExecutionException e) {
+            logger.debug("Pipeline saturated - dropping frame {}", frame);
+            nPending--;
+            nCaptured.set(nCaptured.get() - 1);
+            nDropped.set(nDropped.get() + 1);
+            PixelBufferPool.release(img);
+            // The dropped frame became the reference, so make sure the next frame is written
+            if (changeDetector != null)
+                changeDetector.reset();
+        }
+    }
+
+    /**
+     * Read the pixels of a rendered frame into a pooled buffer.
+     * This must be called from the JavaFX application thread.
+     */
+    private static BufferedImage readPixels(WritableImage image) {
+        int width = (int)image.getWidth();
+        int height = (int)image.getHeight();
+        var img = PixelBufferPool.acquireBufferedImage(width, height);
+        int[] data = ((DataBufferInt)img.getRaster().getDataBuffer()).getData();
+        image.getPixelReader().getPixels(0, 0, width, height, PixelFormat.getIntArgbInstance(), data, 0, width);
+        return img;
+    }
+
+    /**
+     * Write a frame, returning its buffer to the pool once it has been encoded.
+     * @return a future that completes with the file once written
+     */
+    private CompletableFuture<File> writeFrame(BufferedImage img, int frame) throws IOException {
+        try {
+            return writer.write(img, frame);
+        } finally {
+            PixelBufferPool.release(img);
+        }
+    }
+
+    private void maybeComplete() {
+        if (stopRequested && nPending == 0 && !future.isDone()) {
+            PixelBufferPool.release(image);
+            image = null;
+            running.set(false);
+            future.complete(this);
+        }
+    }
+
+}
@@ -0,0 +1,153 @@
+package qupath.ext.snapshots.ui;
+
+import javafx.application.Platform;
+import javafx.beans.property.ReadOnlyBooleanProperty;
+import javafx.beans.property.ReadOnlyBooleanWrapper;
+import javafx.beans.property.ReadOnlyIntegerProperty;
+import javafx.beans.property.ReadOnlyIntegerWrapper;
+import qupath.lib.common.ThreadTools;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Bounded background pipeline for the expensive parts of a capture (image conversion, encoding and file writing).
+ * <p>
+ * Rendering and pixel readback need to happen on the JavaFX application thread, but everything that follows
+ * can be submitted here so that the UI remains responsive.
+ * The number of tasks that may be pending at any time is limited; once this limit is reached, the pipeline
+ * reports itself as saturated and further submissions are rejected until earlier tasks complete.
+ */
+class CapturePipeline {
+
+    private final int maxPending;
+
+    private final ThreadPoolExecutor pool;
+
+    private final AtomicInteger pendingCount = new AtomicInteger();
+
+    private final ReadOnlyIntegerWrapper pending = new ReadOnlyIntegerWrapper(0);
+
+    private final ReadOnlyBooleanWrapper saturated = new ReadOnlyBooleanWrapper(false);
+
+    /**
+     * Create a new pipeline.
+     * @param nThreads the number of worker threads
+     * @param maxPending the maximum number of tasks that may be queued or running at any time
+     */
+    CapturePipeline(int nThreads, int maxPending) {
+        if (nThreads < 1)
+            throw new IllegalArgumentException("Number of threads must be at least 1");
+        if (maxPending < nThreads)
+            throw new IllegalArgumentException("Maximum pending tasks must be at least the number of threads");
+        this.maxPending = maxPending;
+        this.pool = new ThreadPoolExecutor(nThreads, nThreads,
+                30L, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<>(maxPending),
+                ThreadTools.createThreadFactory("snapshot-writer-", true));
+        this.pool.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * Create a pipeline using a default number of threads, based upon the available processors.
+     * @return a new pipeline
+     */
+    static CapturePipeline createDefault() {
+        int nThreads = Math.max(1, Math.min(4, Runtime.getRuntime().availableProcessors() / 2));
+        return new CapturePipeline(nThreads, nThreads * 2);
+    }
+
+    /**
+     * Submit a task to the pipeline.
+     * @param task the task to run
+     * @return a future that completes when the task has finished
+     * @param <T> the result type
+     * @throws RejectedExecutionException if the pipeline is saturated or has been shut down
+     */
+    <T> CompletableFuture<T> submit(Callable<T> task) throws RejectedExecutionException {
+        int n = pendingCount.incrementAndGet();
+        if (n > maxPending) {
+            decrementPending();
+            throw new RejectedExecutionException("Capture pipeline is saturated (" + maxPending + " pending tasks)");
+        }
+        updateProperties(n);
+        var future = new CompletableFuture<T>();
+        try {
+            pool.execute(() -> {
+                try {
+                    future.complete(task.call());
+                } catch (Throwable t) {
+                    future.completeExceptionally(t);
+                } finally {
+                    decrementPending();
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            decrementPending();
+            throw e;
+        }
+        return future;
+    }
+
+    /**
+     * Wait until the pipeline is able to accept another task.
+     * This must not be called from the JavaFX application thread.
+     * Note that another thread may still submit a task first, so a subsequent submission may be rejected.
+     * @throws InterruptedException if the thread is interrupted while waiting
+     */
+    void awaitCapacity() throws InterruptedException {
+        if (Platform.isFxApplicationThread())
+            throw new IllegalStateException("Cannot wait for the capture pipeline on the JavaFX application thread");
+        synchronized (pendingCount) {
+            while (pendingCount.get() >= maxPending)
+                pendingCount.wait();
+        }
+    }
+
+    /**
+     * Number of tasks currently queued or running.
+     * This property is only updated on the JavaFX application thread.
+     * @return the pending task count
+     */
+    ReadOnlyIntegerProperty pendingProperty() {
+        return pending.getReadOnlyProperty();
+    }
+
+    /**
+     * Whether the pipeline is currently unable to accept further tasks.
+     * This property is only updated on the JavaFX application thread.
+     * @return true if the maximum number of pending tasks has been reached
+     */
+    ReadOnlyBooleanProperty saturatedProperty() {
+        return saturated.getReadOnlyProperty();
+    }
+
+    /**
+     * Stop accepting new tasks, allowing any pending tasks to complete.
+     */
+    void shutdown() {
+        pool.shutdown();
+    }
+
+    private void decrementPending() {
+        updateProperties(pendingCount.decrementAndGet());
+        synchronized (pendingCount) {
+            pendingCount.notifyAll();
+        }
+    }
+
+    private void updateProperties(int n) {
+        if (Platform.isFxApplicationThread()) {
+            pending.set(n);
+            saturated.set(n >= maxPending);
+        } else {
+            Platform.runLater(() -> updateProperties(pendingCount.get()));
+        }
+    }
+
+}
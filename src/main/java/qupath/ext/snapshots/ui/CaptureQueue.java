@@ -0,0 +1,265 @@
+package qupath.ext.snapshots.ui;
+
+import javafx.animation.Animation;
+import javafx.animation.KeyFrame;
+import javafx.animation.PauseTransition;
+import javafx.animation.Timeline;
+import javafx.application.Platform;
+import javafx.beans.property.ReadOnlyBooleanProperty;
+import javafx.beans.property.ReadOnlyBooleanWrapper;
+import javafx.beans.property.ReadOnlyDoubleProperty;
+import javafx.beans.property.ReadOnlyDoubleWrapper;
+import javafx.beans.property.ReadOnlyLongProperty;
+import javafx.beans.property.ReadOnlyLongWrapper;
+import javafx.beans.property.ReadOnlyObjectProperty;
+import javafx.beans.property.ReadOnlyObjectWrapper;
+import javafx.collections.FXCollections;
+import javafx.collections.ObservableList;
+import javafx.util.Duration;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Comparator;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.DoubleConsumer;
+import java.util.function.Function;
+
+/**
+ * Queue of delayed captures, so that several captures (e.g. of different windows, with different delays and
+ * formats) can be pending at the same time and cancelled individually.
+ * <p>
+ * Each job counts down on the JavaFX application thread, and then runs its capture when it is due.
+ * Rendering and readback happen on the JavaFX application thread, but encoding and writing happen in the
+ * background - so a job that has been rendered doesn't hold up the next one, and each job tracks its own
+ * progress (as reported by its capture function) until its output has been written.
+ * <p>
+ * All methods must be called from the JavaFX application thread.
+ */
+class CaptureQueue {
+
+    private static final Logger logger = LoggerFactory.getLogger(CaptureQueue.class);
+
+    /**
+     * Interval between updates of the countdown.
+     */
+    private static final Duration TICK = Duration.millis(100);
+
+    /**
+     * Time before a job that requires it is due to hide the snapshot window, so that the change has been
+     * rendered before a screenshot is taken.
+     */
+    private static final long HIDE_BEFORE_MILLIS = 300L;
+
+    /**
+     * Time for which finished jobs remain in the queue, so that the user can see the outcome.
+     */
+    private static final Duration KEEP_FINISHED = Duration.seconds(2);
+
+    /**
+     * The state of a job.
+     */
+    enum State {
+        /**
+         * Waiting for the delay to elapse.
+         */
+        WAITING,
+        /**
+         * Encoding and writing in the background.
+         */
+        WRITING,
+        /**
+         * Complete.
+         */
+        DONE,
+        /**
+         * Capturing or writing failed.
+         */
+        FAILED,
+        /**
+         * Cancelled before the capture was made.
+         */
+        CANCELLED
+    }
+
+    private final ObservableList<CaptureJob> jobs = FXCollections.observableArrayList();
+    private final ReadOnlyBooleanWrapper hideWindow = new ReadOnlyBooleanWrapper(false);
+    private final Timeline timeline = new Timeline(new KeyFrame(TICK, e -> update()));
+
+    /**
+     * Create a new, empty queue.
+     */
+    CaptureQueue() {
+        timeline.setCycleCount(Animation.INDEFINITE);
+    }
+
+    /**
+     * Add a capture to the queue.
+     * @param description a description of the capture, shown to the user
+     * @param delayMillis the delay before capturing, in milliseconds
+     * @param hideWindow whether the snapshot window should be hidden when the capture is made
+     *                   (e.g. because it may overlap a screenshot)
+     * @param capture function that makes the capture, and returns a future that completes once the output has
+     *                been written; this is called on the JavaFX application thread, with a consumer that may be
+     *                called from any thread to report the fraction of the capture that is complete
+     * @return the queued job
+     */
+    CaptureJob submit(String description, long delayMillis, boolean hideWindow,
+                      Function<DoubleConsumer, CompletableFuture<?>> capture) {
+        var job = new CaptureJob(description, Math.max(0, delayMillis), hideWindow, capture);
+        jobs.add(job);
+        if (timeline.getStatus() != Animation.Status.RUNNING)
+            timeline.play();
+        update();
+        return job;
+    }
+
+    /**
+     * Cancel a job, if it hasn't yet been captured.
+     * @param job the job
+     * @return true if the job was cancelled, false if it was already captured
+     */
+    boolean cancel(CaptureJob job) {
+        if (job.getState() != State.WAITING)
+            return false;
+        job.state.set(State.CANCELLED);
+        jobs.remove(job);
+        update();
+        return true;
+    }
+
+    /**
+     * Get the jobs in the queue, including those that are still writing or have recently finished.
+     * @return an unmodifiable list of jobs
+     */
+    ObservableList<CaptureJob> getJobs() {
+        return FXCollections.unmodifiableObservableList(jobs);
+    }
+
+    /**
+     * Get a property that is true while the snapshot window should be hidden, because a job that requires this
+     * is about to be captured.
+     * @return the property
+     */
+    ReadOnlyBooleanProperty hideWindowProperty() {
+        return hideWindow.getReadOnlyProperty();
+    }
+
+    private void update() {
+        long now = System.currentTimeMillis();
+        boolean hide = false;
+        var waiting = jobs.stream()
+                .filter(j -> j.getState() == State.WAITING)
+                .sorted(Comparator.comparingLong(j -> j.dueMillis))
+                .toList();
+        for (var job : waiting) {
+            long remaining = job.dueMillis - now;
+            job.remainingMillis.set(Math.max(0, remaining));
+            job.progress.set(job.delayMillis == 0 ? 1.0 : 1.0 - Math.max(0, remaining) / (double)job.delayMillis);
+            if (job.hideWindow && remaining <= HIDE_BEFORE_MILLIS)
+                hide = true;
+        }
+        hideWindow.set(hide);
+        for (var job : waiting) {
+            if (job.dueMillis <= now)
+                run(job);
+        }
+        if (waiting.stream().noneMatch(j -> j.getState() == State.WAITING)) {
+            timeline.stop();
+            hideWindow.set(false);
+        }
+    }
+
+    private void run(CaptureJob job) {
+        job.state.set(State.WRITING);
+        job.progress.set(0);
+        CompletableFuture<?> future;
+        try {
+            future = job.capture.apply(job::reportProgress);
+        } catch (RuntimeException e) {
+            logger.error("Unable to capture {}", job.getDescription(), e);
+            future = CompletableFuture.failedFuture(e);
+        }
+        if (future == null)
+            future = CompletableFuture.completedFuture(null);
+        future.whenComplete((result, throwable) -> Platform.runLater(() -> finish(job, throwable == null)));
+    }
+
+    private void finish(CaptureJob job, boolean success) {
+        job.state.set(success ? State.DONE : State.FAILED);
+        job.progress.set(1.0);
+        var pause = new PauseTransition(KEEP_FINISHED);
+        pause.setOnFinished(e -> jobs.remove(job));
+        pause.play();
+    }
+
+
+    /**
+     * A single capture in the queue.
+     */
+    static class CaptureJob {
+
+        private final String description;
+        private final long delayMillis;
+        private final long dueMillis;
+        private final boolean hideWindow;
+        private final Function<DoubleConsumer, CompletableFuture<?>> capture;
+
+        private final ReadOnlyObjectWrapper<State> state = new ReadOnlyObjectWrapper<>(State.WAITING);
+        private final ReadOnlyDoubleWrapper progress = new ReadOnlyDoubleWrapper(0);
+        private final ReadOnlyLongWrapper remainingMillis = new ReadOnlyLongWrapper();
+
+        private CaptureJob(String description, long delayMillis, boolean hideWindow,
+                           Function<DoubleConsumer, CompletableFuture<?>> capture) {
+            this.description = description;
+            this.delayMillis = delayMillis;
+            this.dueMillis = System.currentTimeMillis() + delayMillis;
+            this.hideWindow = hideWindow;
+            this.capture = capture;
+            this.remainingMillis.set(delayMillis);
+        }
+
+        String getDescription() {
+            return description;
+        }
+
+        State getState() {
+            return state.get();
+        }
+
+        ReadOnlyObjectProperty<State> stateProperty() {
+            return state.getReadOnlyProperty();
+        }
+
+        /**
+         * Report the fraction of the capture that is complete while writing.
+         * This may be called from any thread; progress never goes backwards, and is ignored once the job has finished.
+         */
+        private void reportProgress(double fraction) {
+            if (!Platform.isFxApplicationThread()) {
+                Platform.runLater(() -> reportProgress(fraction));
+                return;
+            }
+            if (getState() == State.WRITING && fraction > progress.get())
+                progress.set(Math.min(1.0, fraction));
+        }
+
+        /**
+         * Get the progress of the job: the fraction of the delay that has elapsed while waiting, or the fraction of
+         * the capture that is complete while writing.
+         * @return the progress property
+         */
+        ReadOnlyDoubleProperty progressProperty() {
+            return progress.getReadOnlyProperty();
+        }
+
+        /**
+         * Get the time remaining until the capture is made.
+         * @return the remaining time, in milliseconds
+         */
+        ReadOnlyLongProperty remainingMillisProperty() {
+            return remainingMillis.getReadOnlyProperty();
+        }
+
+    }
+
+}
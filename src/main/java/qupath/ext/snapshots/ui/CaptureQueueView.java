@@ -0,0 +1,100 @@
+package qupath.ext.snapshots.ui;
+
+import javafx.beans.binding.Bindings;
+import javafx.geometry.Pos;
+import javafx.scene.control.Button;
+import javafx.scene.control.Label;
+import javafx.scene.control.ListCell;
+import javafx.scene.control.ListView;
+import javafx.scene.control.ProgressBar;
+import javafx.scene.layout.HBox;
+import javafx.scene.layout.Priority;
+
+import java.text.MessageFormat;
+import java.util.ResourceBundle;
+
+/**
+ * List of the jobs in a {@link CaptureQueue}, showing a countdown and progress bar for each job, with a button
+ * to cancel jobs that are still waiting.
+ * The list is only visible while the queue contains jobs.
+ */
+class CaptureQueueView extends ListView<CaptureQueue.CaptureJob> {
+
+    private static final ResourceBundle resources = ResourceBundle.getBundle("qupath.ext.snapshots.ui.strings");
+
+    /**
+     * Preferred height of the list, in pixels; this is enough for a few jobs before scrolling.
+     */
+    private static final double PREF_HEIGHT = 90;
+
+    private final CaptureQueue queue;
+
+    /**
+     * Create a view of a queue.
+     * @param queue the queue
+     */
+    CaptureQueueView(CaptureQueue queue) {
+        super(queue.getJobs());
+        this.queue = queue;
+        setPrefHeight(PREF_HEIGHT);
+        setFocusTraversable(false);
+        setCellFactory(v -> new JobCell());
+        visibleProperty().bind(Bindings.isNotEmpty(getItems()));
+        managedProperty().bind(visibleProperty());
+    }
+
+    private static String getStatus(CaptureQueue.CaptureJob job) {
+        var status = switch (job.getState()) {
+            case WAITING -> MessageFormat.format(resources.getString("queue.waiting"),
+                    (long)Math.ceil(job.remainingMillisProperty().get() / 1000.0));
+            case WRITING -> resources.getString("queue.writing");
+            case DONE -> resources.getString("queue.done");
+            case FAILED -> resources.getString("queue.failed");
+            case CANCELLED -> resources.getString("queue.cancelled");
+        };
+        return job.getDescription() + " - " + status;
+    }
+
+
+    private class JobCell extends ListCell<CaptureQueue.CaptureJob> {
+
+        private final Label label = new Label();
+        private final ProgressBar progress = new ProgressBar();
+        private final Button btnCancel = new Button(resources.getString("queue.cancel"));
+        private final HBox pane = new HBox(5.0, label, progress, btnCancel);
+
+        private JobCell() {
+            label.setMaxWidth(Double.MAX_VALUE);
+            HBox.setHgrow(label, Priority.ALWAYS);
+            progress.setPrefWidth(80);
+            pane.setAlignment(Pos.CENTER_LEFT);
+            btnCancel.setOnAction(e -> {
+                var job = getItem();
+                if (job != null)
+                    queue.cancel(job);
+            });
+        }
+
+        @Override
+        protected void updateItem(CaptureQueue.CaptureJob item, boolean empty) {
+            super.updateItem(item, empty);
+            // The cell may have been reused for a different job
+            label.textProperty().unbind();
+            progress.progressProperty().unbind();
+            btnCancel.disableProperty().unbind();
+            if (empty || item == null) {
+                setText(null);
+                setGraphic(null);
+                return;
+            }
+            label.textProperty().bind(Bindings.createStringBinding(
+                    () -> getStatus(item), item.stateProperty(), item.remainingMillisProperty()));
+            progress.progressProperty().bind(item.progressProperty());
+            btnCancel.disableProperty().bind(item.stateProperty().isNotEqualTo(CaptureQueue.State.WAITING));
+            setText(null);
+            setGraphic(pane);
+        }
+
+    }
+
+}
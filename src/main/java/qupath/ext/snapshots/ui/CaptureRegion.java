@@ -0,0 +1,108 @@
+package qupath.ext.snapshots.ui;
+
+import javafx.geometry.Rectangle2D;
+import javafx.scene.Node;
+import javafx.stage.Window;
+
+/**
+ * A part of a window to capture: either a node (and its descendants), or a rectangle within the scene.
+ * <p>
+ * Capturing a region rather than the whole window means that fewer pixels need to be rendered, converted
+ * and encoded.
+ * @param window the window containing the region
+ * @param node the node to capture, or null if a rectangle should be captured
+ * @param rectangle the rectangle to capture in scene coordinates, or null if a node should be captured
+ */
+record CaptureRegion(Window window, Node node, Rectangle2D rectangle) {
+
+    /**
+     * Create a region that captures a node and its descendants.
+     * @param node the node
+     * @return the region
+     */
+    static CaptureRegion ofNode(Node node) {
+        var scene = node.getScene();
+        if (scene == null || scene.getWindow() == null)
+            throw new IllegalArgumentException("Node must be part of a showing scene");
+        return new CaptureRegion(scene.getWindow(), node, null);
+    }
+
+    /**
+     * Create a region that captures a rectangle within the scene of a window.
+     * @param window the window
+     * @param rectangle the rectangle, in scene coordinates
+     * @return the region
+     */
+    static CaptureRegion ofRectangle(Window window, Rectangle2D rectangle) {
+        return new CaptureRegion(window, null, rectangle);
+    }
+
+    /**
+     * Check whether the region can still be captured, i.e. the window is showing and any node is still part
+     * of the window's scene.
+     * @return true if the region is valid
+     */
+    boolean isValid() {
+        if (!window.isShowing() || window.getScene() == null)
+            return false;
+        if (node != null)
+            return node.getScene() == window.getScene() && node.isVisible();
+        return true;
+    }
+
+    /**
+     * Get the node to render: either the selected node, or the scene root for a rectangle.
+     * @return the node to render
+     */
+    Node getRenderNode() {
+        return node == null ? window.getScene().getRoot() : node;
+    }
+
+    /**
+     * Get the bounds of the region in the parent coordinates of {@link #getRenderNode()}, as required for
+     * a snapshot viewport.
+     * @return the bounds
+     */
+    Rectangle2D getRenderBounds() {
+        if (rectangle != null)
+            return rectangle;
+        var bounds = node.getBoundsInParent();
+        return new Rectangle2D(bounds.getMinX(), bounds.getMinY(), bounds.getWidth(), bounds.getHeight());
+    }
+
+    /**
+     * Get the bounds of the region in screen coordinates.
+     * @return the screen bounds
+     */
+    Rectangle2D getScreenBounds() {
+        double x, y, width, height;
+        if (node != null) {
+            var bounds = node.localToScreen(node.getBoundsInLocal());
+            x = bounds.getMinX();
+            y = bounds.getMinY();
+            width = bounds.getWidth();
+            height = bounds.getHeight();
+        } else {
+            var scene = window.getScene();
+            x = window.getX() + scene.getX() + rectangle.getMinX();
+            y = window.getY() + scene.getY() + rectangle.getMinY();
+            width = rectangle.getWidth();
+            height = rectangle.getHeight();
+        }
+        return new Rectangle2D(x, y, width, height);
+    }
+
+    /**
+     * Get a short description of the region, suitable for display.
+     * @return the description
+     */
+    String getDescription() {
+        var bounds = getRenderBounds();
+        var size = Math.round(bounds.getWidth()) + " x " + Math.round(bounds.getHeight());
+        if (node == null)
+            return size;
+        var name = node.getId() == null ? node.getClass().getSimpleName() : node.getId();
+        return name + " (" + size + ")";
+    }
+
+}
@@ -0,0 +1,519 @@
+package qupath.ext.snapshots.ui;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import javafx.animation.PauseTransition;
+import javafx.application.Platform;
+import javafx.stage.Stage;
+import javafx.stage.Window;
+import javafx.util.Duration;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import qupath.fx.dialogs.Dialogs;
+import qupath.lib.common.ThreadTools;
+import qupath.lib.io.GsonTools;
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.ResourceBundle;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Optional HTTP server that captures windows on request, for automated checks and demos.
+ * <p>
+ * The server is only bound to the loopback address, and requests are rejected unless their {@code Host} header
+ * also refers to the local machine (so that a web page can't reach the server by rebinding its own domain name).
+ * The endpoints are:
+ * <ul>
+ *     <li>{@code GET /windows} - the windows that can be captured, as JSON</li>
+ *     <li>{@code GET /capture?window=<title>&scale=1&format=png&screenshot=false} - capture a window, and
+ *     return the encoded image; if no title is given, the last focused window is used</li>
+ *     <li>{@code GET /stream?window=<title>&scale=1&fps=5&format=jpeg_medium&screenshot=false} - a live MJPEG
+ *     stream of a window, which can be shown directly by a web browser</li>
+ * </ul>
+ * Captures use the same rendering and encoding as the snapshot window, with pooled buffers.
+ * Streams only capture a new frame once the previous one has been encoded and sent, so frames are dropped
+ * (rather than queued) when the encoder or the client can't keep up; the frame rate then adapts to whichever
+ * is slower.
+ */
+class CaptureServer {
+
+    private static final Logger logger = LoggerFactory.getLogger(CaptureServer.class);
+
+    private static final ResourceBundle resources = ResourceBundle.getBundle("qupath.ext.snapshots.ui.strings");
+
+    /**
+     * Maximum number of requests handled at the same time, including streams.
+     */
+    private static final int MAX_CONNECTIONS = 8;
+
+    /**
+     * Maximum number of streams at the same time, so that other requests can still be handled.
+     */
+    private static final int MAX_STREAMS = 4;
+
+    /**
+     * Maximum frame rate for a stream.
+     */
+    private static final double MAX_FPS = 30;
+
+    /**
+     * Maximum time to wait for the JavaFX application thread to capture an image.
+     */
+    private static final long CAPTURE_TIMEOUT_MILLIS = 10_000L;
+
+    /**
+     * Time to wait after the port preference changes before restarting the server, so that it isn't restarted
+     * for every key typed.
+     */
+    private static final Duration RESTART_DELAY = Duration.seconds(1);
+
+    private static final String BOUNDARY = "snapshot-frame";
+
+    private static CaptureServer current;
+
+    private final HttpServer server;
+    private final ExecutorService executor = Executors.newFixedThreadPool(MAX_CONNECTIONS,
+            ThreadTools.createThreadFactory("snapshot-server-", true));
+    private final Semaphore streams = new Semaphore(MAX_STREAMS);
+    private final WindowFocusListener windowListener;
+
+    private volatile boolean stopped = false;
+
+    /**
+     * Create and start a new server.
+     * This must be called from the JavaFX application thread.
+     * @param port the port, or 0 to use any free port
+     * @throws IOException if the server could not be started (e.g. because the port is in use)
+     */
+    CaptureServer(int port) throws IOException {
+        if (port < 0 || port > 65535)
+            throw new IllegalArgumentException("Port must be between 0 and 65535");
+        server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+        windowListener = new WindowFocusListener(CaptureServer::isCapturable);
+        server.createContext("/windows", handler(this::handleWindows));
+        server.createContext("/capture", handler(this::handleCapture));
+        server.createContext("/stream", handler(this::handleStream));
+        server.createContext("/", handler(exchange -> sendText(exchange, 404, "Unknown endpoint")));
+        server.setExecutor(executor);
+        server.start();
+        logger.info("Capture server listening on http://{}:{}/", getAddress().getHostString(), getAddress().getPort());
+    }
+
+    /**
+     * Start or stop the server according to the preferences, and whenever they change.
+     * This must be called from the JavaFX application thread.
+     */
+    static void install() {
+        var restart = new PauseTransition(RESTART_DELAY);
+        restart.setOnFinished(e -> update());
+        SnapshotPreferences.serverEnabledProperty().addListener((v, o, n) -> {
+            restart.stop();
+            update();
+        });
+        SnapshotPreferences.serverPortProperty().addListener((v, o, n) -> restart.playFromStart());
+        update();
+    }
+
+    private static void update() {
+        boolean enabled = SnapshotPreferences.serverEnabledProperty().get();
+        int port = SnapshotPreferences.serverPortProperty().get();
+        if (enabled && (port < 0 || port > 65535)) {
+            // Keep any running server until the port is valid
+            logger.warn("Invalid capture server port {}", port);
+            return;
+        }
+        if (current != null) {
+            if (enabled && current.getAddress().getPort() == port)
+                return;
+            current.stop();
+            current = null;
+        }
+        if (!enabled)
+            return;
+        try {
+            current = new CaptureServer(port);
+        } catch (IOException | IllegalArgumentException e) {
+            Dialogs.showErrorNotification(resources.getString("server.error"), e.getLocalizedMessage());
+            logger.error("Unable to start capture server on port {}", port, e);
+        }
+    }
+
+    /**
+     * Get the address the server is bound to.
+     * @return the address, including the port
+     */
+    InetSocketAddress getAddress() {
+        return server.getAddress();
+    }
+
+    /**
+     * Stop the server, ending any streams.
+     * This should be called from the JavaFX application thread.
+     */
+    void stop() {
+        stopped = true;
+        server.stop(0);
+        executor.shutdownNow();
+        windowListener.dispose();
+        logger.info("Capture server stopped");
+    }
+
+    private static boolean isCapturable(Window window) {
+        return window instanceof Stage stage && stage.getTitle() != null && !stage.getTitle().isBlank();
+    }
+
+    private void handleWindows(HttpExchange exchange) throws IOException {
+        var windows = callOnFxThread(() -> {
+            var focused = windowListener.focusedWindow().get();
+            var list = new ArrayList<Map<String, Object>>();
+            for (var window : windowListener.getTrackedWindows()) {
+                var map = new LinkedHashMap<String, Object>();
+                map.put("title", ((Stage)window).getTitle());
+                map.put("width", window.getWidth());
+                map.put("height", window.getHeight());
+                map.put("focused", window == focused);
+                list.add(map);
+            }
+            return list;
+        });
+        var bytes = GsonTools.getInstance().toJson(windows).getBytes(StandardCharsets.UTF_8);
+        send(exchange, 200, "application/json; charset=utf-8", bytes);
+    }
+
+    private void handleCapture(HttpExchange exchange) throws IOException {
+        var params = parseQuery(exchange);
+        var request = CaptureRequest.parse(params, SnapshotFormat.PNG);
+        var window = findWindow(params.get("window"));
+        var description = (request.screenshot ? "Screenshot of " : "Snapshot of ") + ((Stage)window).getTitle() + " (server)";
+        var stats = new CaptureStats(description);
+        var img = capture(window, request, stats);
+        var bytes = new ByteArrayOutputStream();
+        try (var timer = stats.start(CaptureStats.Stage.ENCODE)) {
+            SnapshotWriter.encode(img, request.format, bytes);
+        } finally {
+            PixelBufferPool.release(img);
+        }
+        stats.addOutputBytes(bytes.size());
+        send(exchange, 200, getContentType(request.format), bytes.toByteArray());
+        stats.complete();
+    }
+
+    private void handleStream(HttpExchange exchange) throws IOException {
+        var params = parseQuery(exchange);
+        var request = CaptureRequest.parse(params, SnapshotFormat.JPEG_MEDIUM);
+        if (request.format.getJpegQuality() < 0)
+            throw new BadRequestException("Streams must use a JPEG format");
+        double fps = parseDouble(params, "fps", 5, 0.1, MAX_FPS);
+        var window = findWindow(params.get("window"));
+        if (!streams.tryAcquire()) {
+            sendText(exchange, 503, "Too many streams");
+            return;
+        }
+        try {
+            exchange.getResponseHeaders().set("Content-Type", "multipart/x-mixed-replace; boundary=" + BOUNDARY);
+            exchange.getResponseHeaders().set("Cache-Control", "no-cache, no-store");
+            exchange.sendResponseHeaders(200, 0);
+            stream(exchange.getResponseBody(), window, request, fps);
+        } finally {
+            streams.release();
+        }
+    }
+
+    /**
+     * Write frames until the client disconnects, the window is closed or the server is stopped.
+     */
+    private void stream(OutputStream output, Window window, CaptureRequest request, double fps) throws IOException {
+        long intervalNanos = (long)(1e9 / fps);
+        long next = System.nanoTime();
+        long nFrames = 0;
+        long nDropped = 0;
+        var bytes = new ByteArrayOutputStream();
+        try (output) {
+            while (!stopped && !Thread.currentThread().isInterrupted()) {
+                BufferedImage img;
+                try {
+                    img = capture(window, request, null);
+                } catch (NotFoundException e) {
+                    logger.debug("Window closed - ending stream");
+                    // Close the multipart body, so the client knows the stream ended normally
+                    output.write(("--" + BOUNDARY + "--\r\n").getBytes(StandardCharsets.US_ASCII));
+                    break;
+                }
+                bytes.reset();
+                try {
+                    SnapshotWriter.encode(img, request.format, bytes);
+                } finally {
+                    PixelBufferPool.release(img);
+                }
+                var header = "--" + BOUNDARY + "\r\nContent-Type: image/jpeg\r\nContent-Length: " + bytes.size() + "\r\n\r\n";
+                output.write(header.getBytes(StandardCharsets.US_ASCII));
+                bytes.writeTo(output);
+                output.write("\r\n".getBytes(StandardCharsets.US_ASCII));
+                output.flush();
+                nFrames++;
+                // Skip any frames that we've fallen behind on, rather than trying to catch up
+                next += intervalNanos;
+                long now = System.nanoTime();
+                if (now > next) {
+                    nDropped += (now - next) / intervalNanos;
+                    next = now;
+                } else {
+                    TimeUnit.NANOSECONDS.sleep(next - now);
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (IOException e) {
+            // Expected when the client disconnects
+            logger.debug("Stream ended: {}", e.getMessage());
+        }
+        logger.debug("Streamed {} frames ({} dropped)", nFrames, nDropped);
+    }
+
+    /**
+     * Capture a window on the JavaFX application thread, returning an image that should be released to the
+     * {@link PixelBufferPool} when it is no longer needed.
+     */
+    private static BufferedImage capture(Window window, CaptureRequest request, CaptureStats stats) throws IOException {
+        return callOnFxThread(() -> {
+            if (!window.isShowing())
+                throw new NotFoundException("Window is no longer showing");
+            CapturedImage captured;
+            try (var timer = stats == null ? null : stats.start(CaptureStats.Stage.RENDER)) {
+                captured = request.screenshot ? WindowCapture.screenshot(window) : WindowCapture.snapshot(window, request.scale);
+            }
+            try (var timer = stats == null ? null : stats.start(CaptureStats.Stage.READBACK)) {
+                return captured.readPixels();
+            } finally {
+                captured.recycle();
+            }
+        });
+    }
+
+    /**
+     * Find a window by its title, or the last focused window if no title is given.
+     */
+    private Window findWindow(String title) throws IOException {
+        var window = callOnFxThread(() -> {
+            if (title == null || title.isEmpty())
+                return windowListener.focusedWindow().get();
+            for (var w : windowListener.getTrackedWindows()) {
+                if (title.equals(((Stage)w).getTitle()))
+                    return w;
+            }
+            return null;
+        });
+        if (window == null)
+            throw new NotFoundException(title == null ? "No focused window" : "No window found with title '" + title + "'");
+        return window;
+    }
+
+    private static String getContentType(SnapshotFormat format) {
+        return switch (format.getExtension()) {
+            case ".png" -> "image/png";
+            case ".jpg" -> "image/jpeg";
+            case ".tif" -> "image/tiff";
+            default -> "application/octet-stream";
+        };
+    }
+
+    private static <T> T callOnFxThread(FxCall<T> call) throws IOException {
+        var future = new CompletableFuture<T>();
+        Platform.runLater(() -> {
+            try {
+                future.complete(call.call());
+            } catch (Throwable t) {
+                future.completeExceptionally(t);
+            }
+        });
+        try {
+            return future.get(CAPTURE_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException ioe)
+                throw ioe;
+            if (e.getCause() instanceof RuntimeException re)
+                throw re;
+            throw new IOException(e.getCause());
+        } catch (TimeoutException e) {
+            throw new IOException("Timed out waiting for the JavaFX application thread");
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while waiting for the JavaFX application thread");
+        }
+    }
+
+    private static Map<String, String> parseQuery(HttpExchange exchange) throws BadRequestException {
+        var query = exchange.getRequestURI().getRawQuery();
+        var params = new HashMap<String, String>();
+        if (query == null || query.isEmpty())
+            return params;
+        for (var item : query.split("&")) {
+            int ind = item.indexOf('=');
+            var key = decode(ind < 0 ? item : item.substring(0, ind));
+            var value = ind < 0 ? "" : decode(item.substring(ind + 1));
+            params.put(key, value);
+        }
+        return params;
+    }
+
+    private static String decode(String value) throws BadRequestException {
+        try {
+            return URLDecoder.decode(value, StandardCharsets.UTF_8);
+        } catch (IllegalArgumentException e) {
+            // Thrown for an incomplete or invalid escape, e.g. '%' or '%zz'
+            throw new BadRequestException("Invalid query parameter '" + value + "'");
+        }
+    }
+
+    private static double parseDouble(Map<String, String> params, String key, double defaultValue,
+                                       double min, double max) throws BadRequestException {
+        var value = params.get(key);
+        if (value == null || value.isEmpty())
+            return defaultValue;
+        try {
+            double val = Double.parseDouble(value);
+            if (val >= min && val <= max)
+                return val;
+        } catch (NumberFormatException e) {
+            // Handled below
+        }
+        throw new BadRequestException("'" + key + "' must be a number between " + min + " and " + max);
+    }
+
+    /**
+     * Check that the request is a GET for the local machine, and convert exceptions to error responses.
+     */
+    private static HttpHandler handler(HttpHandler handler) {
+        return exchange -> {
+            try {
+                if (!isLocalHost(exchange.getRequestHeaders().getFirst("Host"))) {
+                    sendText(exchange, 403, "Forbidden");
+                    return;
+                }
+                if (!"GET".equals(exchange.getRequestMethod())) {
+                    exchange.getResponseHeaders().set("Allow", "GET");
+                    sendText(exchange, 405, "Only GET is supported");
+                    return;
+                }
+                handler.handle(exchange);
+            } catch (BadRequestException e) {
+                sendText(exchange, 400, e.getMessage());
+            } catch (NotFoundException e) {
+                sendText(exchange, 404, e.getMessage());
+            } catch (IOException | RuntimeException e) {
+                logger.warn("Unable to handle {}: {}", exchange.getRequestURI(), e.getMessage());
+                logger.debug(e.getMessage(), e);
+                sendText(exchange, 500, e.getMessage());
+            } finally {
+                exchange.close();
+            }
+        };
+    }
+
+    private static boolean isLocalHost(String host) {
+        if (host == null)
+            return false;
+        host = host.toLowerCase(Locale.ROOT);
+        if (host.startsWith("[::1]"))
+            return true;
+        int ind = host.lastIndexOf(':');
+        if (ind >= 0)
+            host = host.substring(0, ind);
+        return host.equals("localhost") || host.equals("127.0.0.1");
+    }
+
+    private static void sendText(HttpExchange exchange, int status, String text) {
+        try {
+            send(exchange, status, "text/plain; charset=utf-8", String.valueOf(text).getBytes(StandardCharsets.UTF_8));
+        } catch (IOException e) {
+            // The response may already have been started, or the client may have disconnected
+            logger.debug("Unable to send response: {}", e.getMessage());
+        }
+    }
+
+    private static void send(HttpExchange exchange, int status, String contentType, byte[] bytes) throws IOException {
+        exchange.getResponseHeaders().set("Content-Type", contentType);
+        exchange.getResponseHeaders().set("Cache-Control", "no-cache, no-store");
+        exchange.sendResponseHeaders(status, bytes.length == 0 ? -1 : bytes.length);
+        if (bytes.length > 0) {
+            try (var stream = exchange.getResponseBody()) {
+                stream.write(bytes);
+            }
+        }
+    }
+
+    @FunctionalInterface
+    private interface FxCall<T> {
+
+        T call() throws IOException;
+
+    }
+
+    /**
+     * Parameters shared by captures and streams.
+     */
+    private record CaptureRequest(double scale, SnapshotFormat format, boolean screenshot) {
+
+        private static CaptureRequest parse(Map<String, String> params, SnapshotFormat defaultFormat) throws BadRequestException {
+            double scale = parseDouble(params, "scale", 1.0, 0.25, 16);
+            var format = parseFormat(params.get("format"), defaultFormat);
+            boolean screenshot = Boolean.parseBoolean(params.get("screenshot"));
+            return new CaptureRequest(scale, format, screenshot);
+        }
+
+        private static SnapshotFormat parseFormat(String value, SnapshotFormat defaultFormat) throws BadRequestException {
+            if (value == null || value.isEmpty())
+                return defaultFormat;
+            var name = value.toUpperCase(Locale.ROOT);
+            switch (name) {
+                case "JPG", "JPEG":
+                    return SnapshotFormat.JPEG_HIGH;
+                case "TIF", "TIFF":
+                    return SnapshotFormat.TIFF_DEFLATE;
+                default:
+                    try {
+                        return SnapshotFormat.valueOf(name);
+                    } catch (IllegalArgumentException e) {
+                        throw new BadRequestException("Unknown format '" + value + "'");
+                    }
+            }
+        }
+
+    }
+
+    private static class BadRequestException extends IOException {
+
+        private BadRequestException(String message) {
+            super(message);
+        }
+
+    }
+
+    private static class NotFoundException extends IOException {
+
+        private NotFoundException(String message) {
+            super(message);
+        }
+
+    }
+
+}
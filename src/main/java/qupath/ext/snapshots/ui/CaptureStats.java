@@ -0,0 +1,436 @@
+package qupath.ext.snapshots.ui;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import qupath.lib.common.GeneralTools;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Consumer;
+import java.util.function.DoubleConsumer;
+import java.util.stream.Collectors;
+
+/**
+ * Timing and memory statistics for a single capture, split into stages.
+ * <p>
+ * Stages may run on different threads (e.g. rendering on the JavaFX application thread and encoding in the
+ * background), and the bytes allocated are measured on the thread that runs each stage.
+ * Work delegated to other threads (e.g. parallel PNG compression) is included in the time, but not in
+ * the allocated bytes.
+ * Stages may be nested, e.g. writing to the output file happens during encoding; the time and allocated bytes
+ * for each stage exclude those recorded for stages nested within it on the same thread (stages running
+ * concurrently on other threads don't affect each other).
+ * <p>
+ * Completed captures are logged at debug level and kept in a rolling history, which can be queried from
+ * scripts using {@link #getHistory()}.
+ */
+public class CaptureStats {
+
+    private static final Logger logger = LoggerFactory.getLogger(CaptureStats.class);
+
+    /**
+     * Maximum number of captures retained in the history.
+     */
+    public static final int MAX_HISTORY = 100;
+
+    private static final Deque<CaptureStats> history = new ArrayDeque<>();
+
+    /**
+     * Stages of a capture.
+     */
+    public enum Stage {
+        /**
+         * Rendering the scene, or grabbing pixels from the screen.
+         */
+        RENDER,
+        /**
+         * Reading pixels back from the rendered image.
+         */
+        READBACK,
+        /**
+         * Converting between image representations.
+         */
+        CONVERT,
+        /**
+         * Encoding the image, excluding time spent writing to the file.
+         */
+        ENCODE,
+        /**
+         * Writing encoded bytes to the file.
+         */
+        WRITE,
+        /**
+         * Copying the image to the system clipboard.
+         */
+        CLIPBOARD;
+
+        @Override
+        public String toString() {
+            return name().toLowerCase();
+        }
+    }
+
+    /**
+     * Statistics for a single stage.
+     * @param stage the stage
+     * @param nanos the time spent in the stage, in nanoseconds
+     * @param allocatedBytes the bytes allocated during the stage, or -1 if this could not be measured
+     */
+    public record StageStats(Stage stage, long nanos, long allocatedBytes) {}
+
+    private final String description;
+    private final long startTimeMillis = System.currentTimeMillis();
+    private final Map<Stage, long[]> stages = new EnumMap<>(Stage.class);
+    private long outputBytes = 0;
+    private boolean completed = false;
+    private volatile Consumer<Stage> stageListener;
+    private volatile DoubleConsumer encodeProgressListener;
+    private double lastEncodeProgress = 0;
+
+    // Timers that are open on each thread, innermost last, so that nested stages can be excluded from the
+    // stage that encloses them
+    private final ThreadLocal<Deque<Timer>> openTimers = ThreadLocal.withInitial(ArrayDeque::new);
+
+    /**
+     * Create statistics for a new capture.
+     * @param description a short description of the capture, e.g. the window title
+     */
+    CaptureStats(String description) {
+        this.description = description;
+    }
+
+    /**
+     * Get the description of the capture.
+     * @return the description
+     */
+    public String getDescription() {
+        return description;
+    }
+
+    /**
+     * Get the time at which the capture started.
+     * @return the start time, in milliseconds since the epoch
+     */
+    public long getStartTimeMillis() {
+        return startTimeMillis;
+    }
+
+    /**
+     * Get the statistics for all stages that were recorded, in the order they are defined.
+     * @return the stage statistics
+     */
+    public synchronized List<StageStats> getStages() {
+        List<StageStats> list = new ArrayList<>();
+        for (var entry : stages.entrySet())
+            list.add(new StageStats(entry.getKey(), entry.getValue()[0], entry.getValue()[1]));
+        return list;
+    }
+
+    /**
+     * Get the total time spent in all stages.
+     * @return the total time, in nanoseconds
+     */
+    public synchronized long getTotalNanos() {
+        return stages.values().stream().mapToLong(v -> v[0]).sum();
+    }
+
+    /**
+     * Get the number of bytes written to the output file, or the total for all output files if a capture is written
+     * more than once (e.g. at several scales).
+     * @return the output size, or 0 if nothing was written
+     */
+    public synchronized long getOutputBytes() {
+        return outputBytes;
+    }
+
+    /**
+     * Start timing a stage.
+     * The returned timer should be closed when the stage is complete, on the same thread.
+     * @param stage the stage
+     * @return a timer for the stage
+     */
+    Timer start(Stage stage) {
+        var timer = new Timer(stage);
+        openTimers.get().addLast(timer);
+        return timer;
+    }
+
+    /**
+     * Set a listener that is notified each time a timed stage finishes, e.g. to show the progress of the capture.
+     * The listener is called on the thread that ran the stage.
+     * @param listener the listener, or null to remove it
+     */
+    void setStageListener(Consumer<Stage> listener) {
+        this.stageListener = listener;
+    }
+
+    /**
+     * Set a listener that is notified of the fraction of encoding that is complete, for encoders that can
+     * measure it.
+     * The listener may be called from any thread.
+     * @param listener the listener, or null to remove it
+     */
+    void setEncodeProgressListener(DoubleConsumer listener) {
+        this.encodeProgressListener = listener;
+    }
+
+    /**
+     * Report the fraction of encoding that is complete (e.g. the number of PNG blocks or TIFF tiles written).
+     * Updates of less than 1% are dropped, so this can be called often and from any thread.
+     * @param fraction the fraction complete, between 0 and 1
+     */
+    void reportEncodeProgress(double fraction) {
+        var listener = encodeProgressListener;
+        if (listener == null)
+            return;
+        synchronized (this) {
+            if (fraction < 1.0 && fraction < lastEncodeProgress + 0.01)
+                return;
+            lastEncodeProgress = fraction;
+        }
+        listener.accept(fraction);
+    }
+
+    /**
+     * Wrap an output stream so that the time spent writing and the number of bytes written are recorded
+     * as {@link Stage#WRITE}.
+     * @param stream the stream to wrap
+     * @return the wrapped stream
+     */
+    OutputStream wrap(OutputStream stream) {
+        return new WriteTimingOutputStream(stream);
+    }
+
+    /**
+     * Add to the output size explicitly, for writers that don't use {@link #wrap(OutputStream)}.
+     * This should be called once for each output, so that the sizes of outputs written concurrently are combined.
+     * @param bytes the number of bytes written
+     */
+    synchronized void addOutputBytes(long bytes) {
+        this.outputBytes += bytes;
+    }
+
+    /**
+     * Record time and allocated bytes for a nested stage with the innermost stage open on the current thread,
+     * so that they can be excluded from it.
+     */
+    private void addToEnclosing(long nanos, long allocatedBytes) {
+        var timers = openTimers.get();
+        var enclosing = timers.peekLast();
+        if (enclosing == null) {
+            openTimers.remove();
+            return;
+        }
+        enclosing.nestedNanos += nanos;
+        if (allocatedBytes > 0)
+            enclosing.nestedAllocated += allocatedBytes;
+    }
+
+    private synchronized void add(Stage stage, long nanos, long allocatedBytes) {
+        var values = stages.computeIfAbsent(stage, s -> new long[]{0L, 0L});
+        values[0] += nanos;
+        if (allocatedBytes < 0 || values[1] < 0)
+            values[1] = -1;
+        else
+            values[1] += allocatedBytes;
+    }
+
+    /**
+     * Mark the capture as complete, logging the statistics and adding them to the history.
+     * Calling this more than once has no effect.
+     */
+    void complete() {
+        synchronized (this) {
+            if (completed)
+                return;
+            completed = true;
+        }
+        logger.debug("Capture stats for {}: {}", description, toSummaryString());
+        synchronized (history) {
+            history.addLast(this);
+            while (history.size() > MAX_HISTORY)
+                history.removeFirst();
+        }
+    }
+
+    /**
+     * Get a compact, single-line summary of the statistics.
+     * @return the summary
+     */
+    public String toSummaryString() {
+        var sb = new StringBuilder();
+        sb.append(getStages().stream()
+                .map(s -> s.stage() + " " + formatMillis(s.nanos()))
+                .collect(Collectors.joining(", ")));
+        sb.append(" (total ").append(formatMillis(getTotalNanos())).append(")");
+        long bytes = getOutputBytes();
+        if (bytes > 0)
+            sb.append(", ").append(formatBytes(bytes));
+        return sb.toString();
+    }
+
+    /**
+     * Get a multi-line description of the statistics, including allocated memory.
+     * @return the details
+     */
+    public String toDetailedString() {
+        var sb = new StringBuilder(description);
+        for (var s : getStages()) {
+            sb.append("\n").append(s.stage()).append(": ").append(formatMillis(s.nanos()));
+            if (s.allocatedBytes() >= 0)
+                sb.append(", ").append(formatBytes(s.allocatedBytes())).append(" allocated");
+        }
+        long bytes = getOutputBytes();
+        if (bytes > 0)
+            sb.append("\noutput: ").append(formatBytes(bytes));
+        return sb.toString();
+    }
+
+    @Override
+    public String toString() {
+        return description + ": " + toSummaryString();
+    }
+
+    /**
+     * Get the statistics for recent captures.
+     * @return a snapshot of the history, oldest first
+     */
+    public static List<CaptureStats> getHistory() {
+        synchronized (history) {
+            return List.copyOf(history);
+        }
+    }
+
+    /**
+     * Get the statistics for the most recent capture.
+     * @return the most recent statistics, or null if no capture has completed
+     */
+    public static CaptureStats getLatest() {
+        synchronized (history) {
+            return history.peekLast();
+        }
+    }
+
+    /**
+     * Remove all captures from the history.
+     */
+    public static void clearHistory() {
+        synchronized (history) {
+            history.clear();
+        }
+    }
+
+    private static String formatMillis(long nanos) {
+        return GeneralTools.formatNumber(nanos / 1e6, 1) + " ms";
+    }
+
+    private static String formatBytes(long bytes) {
+        if (bytes < 1024)
+            return bytes + " B";
+        if (bytes < 1024 * 1024)
+            return GeneralTools.formatNumber(bytes / 1024.0, 1) + " KB";
+        return GeneralTools.formatNumber(bytes / (1024.0 * 1024.0), 1) + " MB";
+    }
+
+    private static long currentThreadAllocatedBytes() {
+        if (ManagementFactory.getThreadMXBean() instanceof com.sun.management.ThreadMXBean bean &&
+                bean.isThreadAllocatedMemoryEnabled()) {
+            return bean.getCurrentThreadAllocatedBytes();
+        }
+        return -1L;
+    }
+
+
+    /**
+     * Timer for a single stage.
+     */
+    class Timer implements AutoCloseable {
+
+        private final Stage stage;
+        private final long startNanos = System.nanoTime();
+        private final long startAllocated = currentThreadAllocatedBytes();
+        private long nestedNanos = 0L;
+        private long nestedAllocated = 0L;
+        private boolean stopped = false;
+
+        private Timer(Stage stage) {
+            this.stage = stage;
+        }
+
+        @Override
+        public void close() {
+            if (stopped)
+                return;
+            stopped = true;
+            long nanos = System.nanoTime() - startNanos;
+            long allocated = startAllocated < 0 ? -1L : currentThreadAllocatedBytes() - startAllocated;
+            openTimers.get().removeLastOccurrence(this);
+            // Exclude nested stages from this one, and include this one in any stage that encloses it
+            addToEnclosing(nanos, allocated);
+            add(stage, Math.max(0, nanos - nestedNanos), allocated < 0 ? -1L : Math.max(0, allocated - nestedAllocated));
+            var listener = stageListener;
+            if (listener != null)
+                listener.accept(stage);
+        }
+
+    }
+
+    private class WriteTimingOutputStream extends FilterOutputStream {
+
+        private WriteTimingOutputStream(OutputStream out) {
+            super(out);
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            long start = System.nanoTime();
+            long startAllocated = currentThreadAllocatedBytes();
+            out.write(b);
+            record(start, startAllocated, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            long start = System.nanoTime();
+            long startAllocated = currentThreadAllocatedBytes();
+            out.write(b, off, len);
+            record(start, startAllocated, len);
+        }
+
+        @Override
+        public void flush() throws IOException {
+            long start = System.nanoTime();
+            long startAllocated = currentThreadAllocatedBytes();
+            out.flush();
+            record(start, startAllocated, 0);
+        }
+
+        @Override
+        public void close() throws IOException {
+            long start = System.nanoTime();
+            long startAllocated = currentThreadAllocatedBytes();
+            out.close();
+            record(start, startAllocated, 0);
+        }
+
+        private void record(long startNanos, long startAllocated, long bytes) {
+            long nanos = System.nanoTime() - startNanos;
+            long allocated = startAllocated < 0 ? -1L : currentThreadAllocatedBytes() - startAllocated;
+            add(Stage.WRITE, nanos, allocated);
+            addToEnclosing(nanos, allocated);
+            synchronized (CaptureStats.this) {
+                outputBytes += bytes;
+            }
+        }
+
+    }
+
+}
@@ -0,0 +1,136 @@
+package qupath.ext.snapshots.ui;
+
+import javafx.embed.swing.SwingFXUtils;
+import javafx.scene.image.Image;
+import javafx.scene.image.PixelFormat;
+import javafx.scene.image.WritableImage;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.util.Objects;
+
+/**
+ * An image produced by a capture, which may be backed by either a JavaFX {@link Image} or an AWT
+ * {@link BufferedImage}.
+ * <p>
+ * Only the representation that was captured is stored initially, and the other is created lazily if (and only if)
+ * it is requested. This avoids a full-frame conversion when (for example) an image is only needed for the clipboard.
+ */
+class CapturedImage {
+
+    private final int width;
+    private final int height;
+
+    private Image image;
+    private BufferedImage img;
+
+    // True if the JavaFX image has been handed out, and so cannot be reused
+    private boolean exported = false;
+
+    private CapturedImage(Image image, BufferedImage img) {
+        this.image = image;
+        this.img = img;
+        if (img != null) {
+            this.width = img.getWidth();
+            this.height = img.getHeight();
+        } else {
+            this.width = (int)image.getWidth();
+            this.height = (int)image.getHeight();
+        }
+    }
+
+    /**
+     * Create a captured image from a JavaFX image.
+     * @param image the JavaFX image
+     * @return a new captured image
+     */
+    static CapturedImage of(Image image) {
+        Objects.requireNonNull(image, "Image must not be null");
+        return new CapturedImage(image, null);
+    }
+
+    /**
+     * Create a captured image from an AWT image.
+     * @param img the AWT image
+     * @return a new captured image
+     */
+    static CapturedImage of(BufferedImage img) {
+        Objects.requireNonNull(img, "BufferedImage must not be null");
+        return new CapturedImage(null, img);
+    }
+
+    int getWidth() {
+        return width;
+    }
+
+    int getHeight() {
+        return height;
+    }
+
+    /**
+     * Get a JavaFX image, converting from the AWT image if necessary.
+     * @return the JavaFX image
+     */
+    synchronized Image getFXImage() {
+        if (image == null)
+            image = SwingFXUtils.toFXImage(img, null);
+        exported = true;
+        return image;
+    }
+
+    /**
+     * Get an AWT image, reading the pixels from the JavaFX image if necessary.
+     * <p>
+     * When reading from a JavaFX image, pixels are transferred directly into the raster of a new
+     * {@code TYPE_INT_ARGB} image without any intermediate copy.
+     * The reference to the JavaFX image is then dropped, so that only one full-size representation
+     * needs to be retained (unless {@link #getFXImage()} is called again).
+     * <p>
+     * When called for a JavaFX image, this should be called from the JavaFX application thread.
+     * @return the AWT image
+     */
+    synchronized BufferedImage getBufferedImage() {
+        if (img == null) {
+            var imgARGB = new BufferedImage(width, height, BufferedImage.TYPE_INT_ARGB);
+            int[] data = ((DataBufferInt)imgARGB.getRaster().getDataBuffer()).getData();
+            image.getPixelReader().getPixels(0, 0, width, height, PixelFormat.getIntArgbInstance(), data, 0, width);
+            img = imgARGB;
+            image = null;
+        }
+        return img;
+    }
+
+    /**
+     * Get a copy of the pixels as an AWT image, using a buffer from the {@link PixelBufferPool} if possible.
+     * <p>
+     * Unlike {@link #getBufferedImage()}, this doesn't change the captured image, and the result is always a copy
+     * that the caller owns (even if this captured image is backed by an AWT image, e.g. a screenshot) - so the
+     * caller should return the result to the pool with {@link PixelBufferPool#release(BufferedImage)} once it is no
+     * longer needed.
+     * <p>
+     * When called for a JavaFX image, this should be called from the JavaFX application thread.
+     * @return the AWT image
+     */
+    synchronized BufferedImage readPixels() {
+        var imgARGB = PixelBufferPool.acquireBufferedImage(width, height);
+        int[] data = ((DataBufferInt)imgARGB.getRaster().getDataBuffer()).getData();
+        if (img != null)
+            img.getRGB(0, 0, width, height, data, 0, width);
+        else
+            image.getPixelReader().getPixels(0, 0, width, height, PixelFormat.getIntArgbInstance(), data, 0, width);
+        return imgARGB;
+    }
+
+    /**
+     * Return the JavaFX image to the {@link PixelBufferPool} if it has never been handed out by
+     * {@link #getFXImage()}.
+     * This should only be called once this captured image is no longer needed, and any AWT image obtained from
+     * {@link #readPixels()} should be released separately.
+     */
+    synchronized void recycle() {
+        if (!exported && image instanceof WritableImage writable)
+            PixelBufferPool.release(writable);
+        image = null;
+    }
+
+}
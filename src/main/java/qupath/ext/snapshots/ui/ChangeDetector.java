@@ -0,0 +1,109 @@
+package qupath.ext.snapshots.ui;
+
+import java.util.Arrays;
+
+/**
+ * Detect whether a frame differs from the last frame that was kept, using a checksum for each tile.
+ * <p>
+ * This is much cheaper than encoding a frame, so it can be used to discard unchanged frames before they are
+ * converted or written.
+ * A frame is considered to have changed if its size differs, or if the fraction of tiles with a different
+ * checksum exceeds a threshold - so that small changes (e.g. a blinking cursor) can optionally be ignored.
+ * <p>
+ * Instances are thread-safe, but frames should be passed in the order they were captured.
+ */
+class ChangeDetector {
+
+    /**
+     * Default width and height of each tile, in pixels.
+     */
+    static final int DEFAULT_TILE_SIZE = 32;
+
+    private final int tileSize;
+    private final double threshold;
+
+    private int width = -1;
+    private int height = -1;
+    private long[] checksums;
+
+    /**
+     * Create a change detector using the default tile size.
+     * @param threshold the fraction of tiles that must change for a frame to be considered changed (0-1);
+     *                  if 0, any change is detected
+     */
+    ChangeDetector(double threshold) {
+        this(DEFAULT_TILE_SIZE, threshold);
+    }
+
+    /**
+     * Create a change detector.
+     * @param tileSize the width and height of each tile, in pixels
+     * @param threshold the fraction of tiles that must change for a frame to be considered changed (0-1);
+     *                  if 0, any change is detected
+     */
+    ChangeDetector(int tileSize, double threshold) {
+        if (tileSize < 1)
+            throw new IllegalArgumentException("Tile size must be at least 1");
+        this.tileSize = tileSize;
+        this.threshold = Math.max(0, Math.min(1, threshold));
+    }
+
+    /**
+     * Check whether a frame has changed compared to the last frame that was kept.
+     * If it has changed, the frame becomes the new reference.
+     * @param argb packed ARGB pixels, with a stride equal to the width
+     * @param width the frame width
+     * @param height the frame height
+     * @return true if the frame has changed (or is the first frame), false if it can be discarded
+     */
+    synchronized boolean update(int[] argb, int width, int height) {
+        var current = computeChecksums(argb, width, height);
+        if (checksums == null || width != this.width || height != this.height) {
+            setReference(current, width, height);
+            return true;
+        }
+        int nChanged = 0;
+        for (int i = 0; i < current.length; i++) {
+            if (current[i] != checksums[i])
+                nChanged++;
+        }
+        if (nChanged == 0 || nChanged <= threshold * current.length)
+            return false;
+        setReference(current, width, height);
+        return true;
+    }
+
+    /**
+     * Forget the reference frame, so that the next frame is always considered to have changed.
+     */
+    synchronized void reset() {
+        checksums = null;
+    }
+
+    private void setReference(long[] checksums, int width, int height) {
+        this.checksums = checksums;
+        this.width = width;
+        this.height = height;
+    }
+
+    private long[] computeChecksums(int[] argb, int width, int height) {
+        int nx = (width + tileSize - 1) / tileSize;
+        int ny = (height + tileSize - 1) / tileSize;
+        long[] sums = new long[nx * ny];
+        Arrays.fill(sums, 0xcbf29ce484222325L);
+        // Process whole rows for better memory access, updating the checksum for each tile along the row
+        for (int y = 0; y < height; y++) {
+            int rowStart = (y / tileSize) * nx;
+            int ind = y * width;
+            for (int tx = 0; tx < nx; tx++) {
+                int xEnd = Math.min(width, (tx + 1) * tileSize);
+                long h = sums[rowStart + tx];
+                for (int x = tx * tileSize; x < xEnd; x++)
+                    h = (h ^ argb[ind + x]) * 0x100000001b3L;
+                sums[rowStart + tx] = h;
+            }
+        }
+        return sums;
+    }
+
+}
@@ -0,0 +1,189 @@
+package qupath.ext.snapshots.ui;
+
+import javafx.scene.input.Clipboard;
+import javafx.scene.input.DataFormat;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.awt.image.BufferedImage;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.attribute.FileTime;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Copy large images to the system clipboard as a compressed PNG file, rather than as raw pixels.
+ * <p>
+ * Placing hundreds of megabytes of raw pixels on the clipboard can stall or fail on some platforms.
+ * Instead, large images are encoded in the background to a PNG file in a temporary directory, and the clipboard
+ * is given the file (as a file list and URL), along with the PNG bytes for applications that accept them.
+ * <p>
+ * The files must outlive QuPath so that they can still be pasted, so old files are removed whenever
+ * a new one is written.
+ */
+final class ClipboardTransfer {
+
+    private static final Logger logger = LoggerFactory.getLogger(ClipboardTransfer.class);
+
+    private static final String DIRECTORY_NAME = "qupath-snapshots-clipboard";
+
+    private static final String FILE_PREFIX = "snapshot-";
+
+    /**
+     * Files older than this are removed when a new file is written.
+     */
+    private static final Duration MAX_AGE = Duration.ofHours(24);
+
+    /**
+     * Maximum number of files retained, including the newest.
+     */
+    private static final int MAX_FILES = 5;
+
+    /**
+     * Maximum size of PNG data to add to the clipboard directly, in addition to the file.
+     */
+    private static final int MAX_PNG_BYTES = 64 * 1024 * 1024;
+
+    /**
+     * Size of the buffer used when writing the PNG file, in bytes.
+     */
+    private static final int BUFFER_BYTES = 1024 * 1024;
+
+    private static final String PNG_MIME_TYPE = "image/png";
+
+    private ClipboardTransfer() {
+        throw new AssertionError("Cannot instantiate this class");
+    }
+
+    /**
+     * Check whether an image should be copied as a file rather than as raw pixels, according to the preferences.
+     * @param width the image width
+     * @param height the image height
+     * @return true if the image should be copied as a file
+     */
+    static boolean shouldCopyAsFile(int width, int height) {
+        return (long)width * height > SnapshotPreferences.getClipboardFileThreshold();
+    }
+
+    /**
+     * Encode an image as a PNG in the clipboard directory.
+     * This may be called from any thread, and does not change the clipboard.
+     * @param img the image
+     * @param stats statistics to update, or null
+     * @return the encoded content, which can be passed to {@link #setContent(EncodedImage)}
+     * @throws IOException if the image could not be written
+     */
+    static EncodedImage encode(BufferedImage img, CaptureStats stats) throws IOException {
+        var dir = getDirectory();
+        Files.createDirectories(dir);
+        removeStaleFiles(dir);
+        var file = Files.createTempFile(dir, FILE_PREFIX, ".png");
+        // Encode straight to the file, since the PNG may be too large to hold in memory
+        OutputStream fileStream = Files.newOutputStream(file);
+        try (var timer = stats == null ? null : stats.start(CaptureStats.Stage.ENCODE);
+             var stream = new BufferedOutputStream(stats == null ? fileStream : stats.wrap(fileStream), BUFFER_BYTES)) {
+            SnapshotPreferences.createPngWriter().write(img, stream);
+        } catch (IOException | RuntimeException e) {
+            fileStream.close();
+            Files.deleteIfExists(file);
+            throw e;
+        }
+        // Only read the bytes back if they are small enough to add to the clipboard directly
+        byte[] png = null;
+        if (Files.size(file) <= MAX_PNG_BYTES) {
+            try (var timer = stats == null ? null : stats.start(CaptureStats.Stage.CLIPBOARD)) {
+                png = Files.readAllBytes(file);
+            }
+        }
+        return new EncodedImage(file.toFile(), png);
+    }
+
+    /**
+     * Set the clipboard content to an encoded image.
+     * This must be called from the JavaFX application thread.
+     * @param image the encoded image
+     */
+    static void setContent(EncodedImage image) {
+        Map<DataFormat, Object> content = new HashMap<>();
+        content.put(DataFormat.FILES, List.of(image.file()));
+        content.put(DataFormat.URL, image.file().toURI().toString());
+        if (image.png() != null) {
+            var format = getPngFormat();
+            if (format != null)
+                content.put(format, ByteBuffer.wrap(image.png()));
+        }
+        if (!Clipboard.getSystemClipboard().setContent(content)) {
+            // Fall back to only the file, in case the PNG data was rejected
+            Clipboard.getSystemClipboard().setContent(Map.of(DataFormat.FILES, List.of(image.file())));
+        }
+    }
+
+    private static DataFormat getPngFormat() {
+        var format = DataFormat.lookupMimeType(PNG_MIME_TYPE);
+        if (format != null)
+            return format;
+        try {
+            return new DataFormat(PNG_MIME_TYPE);
+        } catch (IllegalArgumentException e) {
+            // Created concurrently
+            return DataFormat.lookupMimeType(PNG_MIME_TYPE);
+        }
+    }
+
+    private static Path getDirectory() {
+        return Paths.get(System.getProperty("java.io.tmpdir"), DIRECTORY_NAME);
+    }
+
+    /**
+     * Remove files that are too old, or that exceed the maximum number of files once a new one is added.
+     */
+    private static void removeStaleFiles(Path dir) {
+        List<Path> files = new ArrayList<>();
+        try (var stream = Files.newDirectoryStream(dir, FILE_PREFIX + "*.png")) {
+            stream.forEach(files::add);
+        } catch (IOException e) {
+            logger.debug("Unable to list clipboard files: {}", e.getMessage());
+            return;
+        }
+        var cutoff = FileTime.from(Instant.now().minus(MAX_AGE));
+        Map<Path, FileTime> times = new HashMap<>();
+        for (var file : files) {
+            try {
+                times.put(file, Files.getLastModifiedTime(file));
+            } catch (IOException e) {
+                times.put(file, FileTime.fromMillis(0L));
+            }
+        }
+        files.sort(Comparator.comparing(times::get, Comparator.reverseOrder()));
+        for (int i = 0; i < files.size(); i++) {
+            var file = files.get(i);
+            if (i >= MAX_FILES - 1 || times.get(file).compareTo(cutoff) < 0) {
+                try {
+                    Files.deleteIfExists(file);
+                } catch (IOException e) {
+                    logger.debug("Unable to delete {}: {}", file, e.getMessage());
+                }
+            }
+        }
+    }
+
+    /**
+     * An image that has been encoded for the clipboard.
+     * @param file the PNG file
+     * @param png the PNG bytes, or null if the image was too large to copy them directly
+     */
+    record EncodedImage(File file, byte[] png) {}
+
+}
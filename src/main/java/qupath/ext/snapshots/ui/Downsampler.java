@@ -0,0 +1,166 @@
+package qupath.ext.snapshots.ui;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.util.Arrays;
+import java.util.stream.IntStream;
+
+/**
+ * Area-averaging downsampler for packed ARGB images, so that several output sizes can be derived from a single
+ * rendered snapshot.
+ * <p>
+ * Each output pixel is the average of the input pixels it covers, weighted by the fraction of each input pixel
+ * that is covered - so any downsample factor (not only integers) gives a result without aliasing, and text and
+ * thin lines remain legible.
+ * Averaging uses premultiplied alpha, so that transparent pixels don't darken their neighbours.
+ * <p>
+ * The output is split into bands of rows that are processed in parallel.
+ */
+final class Downsampler {
+
+    /**
+     * Approximate number of output pixels in each band processed in parallel.
+     */
+    private static final int PIXELS_PER_BAND = 64 * 1024;
+
+    private Downsampler() {
+        throw new AssertionError("Cannot instantiate this class");
+    }
+
+    /**
+     * Downsample an image.
+     * @param img the input image
+     * @param downsample the downsample factor; must be at least 1
+     * @return a new {@code TYPE_INT_ARGB} image from the {@link PixelBufferPool}, which may be released once
+     *         it is no longer needed
+     */
+    static BufferedImage downsample(BufferedImage img, double downsample) {
+        if (downsample < 1)
+            throw new IllegalArgumentException("Downsample must be at least 1, but was " + downsample);
+        int width = img.getWidth();
+        int height = img.getHeight();
+        int outWidth = Math.max(1, (int)Math.round(width / downsample));
+        int outHeight = Math.max(1, (int)Math.round(height / downsample));
+        // Packed RGB pixels don't include alpha, so need to be converted
+        int[] input = img.getType() == BufferedImage.TYPE_INT_ARGB ? PngEncoding.getPackedPixels(img) : null;
+        if (input == null)
+            input = img.getRGB(0, 0, width, height, null, 0, width);
+        var output = PixelBufferPool.acquireBufferedImage(outWidth, outHeight);
+        int[] outputPixels = ((DataBufferInt)output.getRaster().getDataBuffer()).getData();
+        downsample(input, width, height, outputPixels, outWidth, outHeight);
+        return output;
+    }
+
+    /**
+     * Downsample packed ARGB pixels to a specified size.
+     * @param input the input pixels, with a stride equal to the width
+     * @param width the input width
+     * @param height the input height
+     * @param output the output pixels, with a stride equal to the output width
+     * @param outWidth the output width; must not be larger than the input width
+     * @param outHeight the output height; must not be larger than the input height
+     */
+    static void downsample(int[] input, int width, int height, int[] output, int outWidth, int outHeight) {
+        var xWeights = new Weights(width, outWidth);
+        var yWeights = new Weights(height, outHeight);
+        int rowsPerBand = Math.max(1, PIXELS_PER_BAND / outWidth);
+        int nBands = (outHeight + rowsPerBand - 1) / rowsPerBand;
+        IntStream.range(0, nBands).parallel().forEach(band -> {
+            int yStart = band * rowsPerBand;
+            int yEnd = Math.min(outHeight, yStart + rowsPerBand);
+            var row = new float[outWidth * 4];
+            var sum = new float[outWidth * 4];
+            for (int y = yStart; y < yEnd; y++) {
+                Arrays.fill(sum, 0f);
+                int start = yWeights.starts[y];
+                for (int i = 0; i < yWeights.counts[y]; i++) {
+                    float wy = yWeights.weights[yWeights.offsets[y] + i];
+                    resampleRow(input, (start + i) * width, xWeights, row);
+                    for (int x = 0; x < row.length; x++)
+                        sum[x] += row[x] * wy;
+                }
+                int ind = y * outWidth;
+                for (int x = 0; x < outWidth; x++)
+                    output[ind + x] = pack(sum, x * 4);
+            }
+        });
+    }
+
+    /**
+     * Resample a single input row horizontally, giving premultiplied values for each output column.
+     */
+    private static void resampleRow(int[] input, int rowStart, Weights xWeights, float[] row) {
+        int outWidth = xWeights.starts.length;
+        for (int x = 0; x < outWidth; x++) {
+            float a = 0, r = 0, g = 0, b = 0;
+            int start = rowStart + xWeights.starts[x];
+            int offset = xWeights.offsets[x];
+            for (int i = 0; i < xWeights.counts[x]; i++) {
+                int val = input[start + i];
+                float w = xWeights.weights[offset + i];
+                float alpha = (val >>> 24) * w;
+                a += alpha;
+                r += ((val >> 16) & 0xff) * alpha;
+                g += ((val >> 8) & 0xff) * alpha;
+                b += (val & 0xff) * alpha;
+            }
+            int ind = x * 4;
+            row[ind] = a;
+            row[ind + 1] = r;
+            row[ind + 2] = g;
+            row[ind + 3] = b;
+        }
+    }
+
+    private static int pack(float[] sum, int ind) {
+        float a = sum[ind];
+        if (a <= 0f)
+            return 0;
+        // Weights are normalized, so alpha is already an average; colors are premultiplied by (alpha * 255)
+        int alpha = clip(Math.round(a));
+        int r = clip(Math.round(sum[ind + 1] / a));
+        int g = clip(Math.round(sum[ind + 2] / a));
+        int b = clip(Math.round(sum[ind + 3] / a));
+        return (alpha << 24) | (r << 16) | (g << 8) | b;
+    }
+
+    private static int clip(int val) {
+        return val < 0 ? 0 : Math.min(val, 255);
+    }
+
+    /**
+     * Normalized weights of the input pixels that contribute to each output pixel, along one dimension.
+     */
+    private static class Weights {
+
+        private final int[] starts;
+        private final int[] counts;
+        private final int[] offsets;
+        private final float[] weights;
+
+        private Weights(int inLength, int outLength) {
+            double scale = inLength / (double)outLength;
+            starts = new int[outLength];
+            counts = new int[outLength];
+            offsets = new int[outLength];
+            weights = new float[outLength * ((int)Math.ceil(scale) + 1)];
+            int n = 0;
+            for (int i = 0; i < outLength; i++) {
+                double start = i * scale;
+                double end = Math.min(inLength, (i + 1) * scale);
+                int first = (int)Math.floor(start);
+                int last = Math.min(inLength - 1, (int)Math.ceil(end) - 1);
+                starts[i] = first;
+                counts[i] = last - first + 1;
+                offsets[i] = n;
+                double total = end - start;
+                for (int j = first; j <= last; j++) {
+                    double overlap = Math.min(end, j + 1) - Math.max(start, j);
+                    weights[n++] = (float)(overlap / total);
+                }
+            }
+        }
+
+    }
+
+}
@@ -0,0 +1,269 @@
+package qupath.ext.snapshots.ui;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import qupath.lib.common.GeneralTools;
+import qupath.lib.common.ThreadTools;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystem;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Index of the file names in output directories, used to choose unique names without probing the file system.
+ * <p>
+ * Each directory is listed once, the first time it is used, and then kept up to date using a {@link WatchService}
+ * (where the file system supports it) and by recording the names that are reserved for new snapshots.
+ * The next free counter for a name is tracked incrementally, so finding a unique name doesn't depend upon the
+ * number of files in the directory.
+ * Because the watch service may miss changes on some network file systems, a chosen name is still checked once
+ * before it is returned.
+ * <p>
+ * Names may contain the {@link #COUNTER} placeholder to control where the counter is inserted;
+ * otherwise, the counter is appended to the base name only if the name is already taken.
+ */
+class FileNameIndex {
+
+    private static final Logger logger = LoggerFactory.getLogger(FileNameIndex.class);
+
+    /**
+     * Placeholder for a counter within a file name.
+     */
+    static final String COUNTER = "{counter}";
+
+    private final Map<Path, DirectoryIndex> directories = new ConcurrentHashMap<>();
+    private final Map<FileSystem, WatchService> watchServices = new HashMap<>();
+    private final Map<WatchKey, DirectoryIndex> watchKeys = new ConcurrentHashMap<>();
+
+    /**
+     * Reserve an output file.
+     * The file remains reserved until {@link #release(File, boolean)} is called, so concurrent captures will
+     * not be given the same name.
+     * @param file the requested file, optionally containing the {@link #COUNTER} placeholder in its name
+     * @param uniqueName whether an existing file may be overwritten; this is ignored if the name contains
+     *                   a counter placeholder
+     * @return the file to write
+     */
+    File reserve(File file, boolean uniqueName) {
+        var name = file.getName();
+        var dir = getDirectoryIndex(file.getAbsoluteFile().getParentFile().toPath());
+        int ind = name.indexOf(COUNTER);
+        String chosen;
+        if (ind >= 0)
+            chosen = dir.reserveWithCounter(name.substring(0, ind), name.substring(ind + COUNTER.length()));
+        else if (!uniqueName || dir.reserveIfFree(name))
+            // If overwriting is allowed, the name doesn't need to be reserved
+            chosen = name;
+        else {
+            var ext = GeneralTools.getExtension(name).orElse("");
+            var root = name.substring(0, name.length() - ext.length());
+            chosen = dir.reserveWithCounter(root + "-", ext);
+        }
+        return dir.path.resolve(chosen).toFile();
+    }
+
+    /**
+     * Release a file previously returned by {@link #reserve(File, boolean)}.
+     * @param file the file
+     * @param written true if the file was written, false if writing failed and the name may be reused
+     */
+    void release(File file, boolean written) {
+        var dir = directories.get(file.getAbsoluteFile().getParentFile().toPath());
+        if (dir != null)
+            dir.release(file.getName(), written);
+    }
+
+    private DirectoryIndex getDirectoryIndex(Path path) {
+        return directories.computeIfAbsent(path, p -> {
+            var dir = new DirectoryIndex(p);
+            // Start watching before listing, so that no changes are missed in between
+            watch(dir);
+            dir.rebuild();
+            return dir;
+        });
+    }
+
+    private synchronized void watch(DirectoryIndex dir) {
+        try {
+            var fileSystem = dir.path.getFileSystem();
+            var watchService = watchServices.get(fileSystem);
+            if (watchService == null) {
+                watchService = fileSystem.newWatchService();
+                watchServices.put(fileSystem, watchService);
+                var service = watchService;
+                ThreadTools.createThreadFactory("snapshot-name-index-", true)
+                        .newThread(() -> processEvents(service))
+                        .start();
+            }
+            var key = dir.path.register(watchService,
+                    StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_DELETE);
+            watchKeys.put(key, dir);
+        } catch (IOException | UnsupportedOperationException e) {
+            logger.debug("Unable to watch {} for changes: {}", dir.path, e.getMessage());
+        }
+    }
+
+    private void processEvents(WatchService watchService) {
+        while (true) {
+            WatchKey key;
+            try {
+                key = watchService.take();
+            } catch (InterruptedException | ClosedWatchServiceException e) {
+                return;
+            }
+            var dir = watchKeys.get(key);
+            if (dir != null) {
+                for (var event : key.pollEvents()) {
+                    if (event.kind() == StandardWatchEventKinds.OVERFLOW)
+                        dir.rebuild();
+                    else if (event.context() instanceof Path path) {
+                        if (event.kind() == StandardWatchEventKinds.ENTRY_CREATE)
+                            dir.add(path.getFileName().toString());
+                        else
+                            dir.remove(path.getFileName().toString());
+                    }
+                }
+            }
+            if (!key.reset() && dir != null) {
+                // The directory is no longer accessible; list it again when it is next used
+                watchKeys.remove(key);
+                directories.remove(dir.path, dir);
+            }
+        }
+    }
+
+
+    /**
+     * Names in a single directory, along with those reserved for files that are still being written.
+     */
+    private static class DirectoryIndex {
+
+        private final Path path;
+        private final Set<String> names = new HashSet<>();
+        private final Set<String> reserved = new HashSet<>();
+        private final Map<Counter, Integer> maxCounters = new HashMap<>();
+
+        private DirectoryIndex(Path path) {
+            this.path = path;
+        }
+
+        private synchronized void rebuild() {
+            names.clear();
+            maxCounters.clear();
+            try (var stream = Files.list(path)) {
+                stream.forEach(p -> names.add(p.getFileName().toString()));
+            } catch (IOException e) {
+                logger.debug("Unable to list {}: {}", path, e.getMessage());
+            }
+            logger.debug("Indexed {} file names in {}", names.size(), path);
+        }
+
+        private synchronized void add(String name) {
+            if (names.add(name))
+                updateCounters(name);
+        }
+
+        private synchronized void remove(String name) {
+            // Counters aren't decreased, since there's no harm in leaving a gap
+            names.remove(name);
+        }
+
+        private synchronized void release(String name, boolean written) {
+            reserved.remove(name);
+            if (written)
+                add(name);
+        }
+
+        private boolean isTaken(String name) {
+            return names.contains(name) || reserved.contains(name);
+        }
+
+        private void reserve(String name) {
+            if (reserved.add(name))
+                updateCounters(name);
+        }
+
+        private void updateCounters(String name) {
+            for (var entry : maxCounters.entrySet()) {
+                int counter = entry.getKey().parse(name);
+                if (counter > entry.getValue())
+                    entry.setValue(counter);
+            }
+        }
+
+        private synchronized boolean reserveIfFree(String name) {
+            if (isTaken(name))
+                return false;
+            // Check the file system once, in case a change was missed
+            if (Files.exists(path.resolve(name))) {
+                add(name);
+                return false;
+            }
+            reserve(name);
+            return true;
+        }
+
+        private synchronized String reserveWithCounter(String prefix, String suffix) {
+            var counter = new Counter(prefix, suffix);
+            int next = maxCounters.computeIfAbsent(counter, this::findMaxCounter) + 1;
+            while (true) {
+                var name = prefix + next + suffix;
+                if (!isTaken(name)) {
+                    if (!Files.exists(path.resolve(name))) {
+                        reserve(name);
+                        return name;
+                    }
+                    add(name);
+                }
+                next++;
+            }
+        }
+
+        /**
+         * Find the highest counter currently in use; this is only needed the first time a name is used.
+         */
+        private int findMaxCounter(Counter counter) {
+            int max = 0;
+            for (var name : names)
+                max = Math.max(max, counter.parse(name));
+            for (var name : reserved)
+                max = Math.max(max, counter.parse(name));
+            return max;
+        }
+
+    }
+
+    private record Counter(String prefix, String suffix) {
+
+        /**
+         * Get the counter value of a name, or -1 if the name doesn't match.
+         */
+        private int parse(String name) {
+            int start = prefix.length();
+            int end = name.length() - suffix.length();
+            if (end <= start || end - start > 9 || !name.startsWith(prefix) || !name.endsWith(suffix))
+                return -1;
+            int value = 0;
+            for (int i = start; i < end; i++) {
+                char c = name.charAt(i);
+                if (c < '0' || c > '9')
+                    return -1;
+                value = value * 10 + (c - '0');
+            }
+            return value;
+        }
+
+    }
+
+}
@@ -0,0 +1,461 @@
+package qupath.ext.snapshots.ui;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import qupath.lib.common.GeneralTools;
+import qupath.lib.common.ThreadTools;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.function.BooleanSupplier;
+
+/**
+ * Write-behind sink for output files, so that the time taken to capture and encode an image doesn't depend
+ * upon the speed of the storage.
+ * <p>
+ * Images are encoded into in-memory buffers on the calling thread, and then written by a single background
+ * thread to a hidden temporary file in the target directory, which is renamed to the target once complete.
+ * This means that a partially-written file is never visible under the target name, even if QuPath crashes or
+ * the storage is slow (e.g. a network share).
+ * Very large outputs aren't buffered in full: once the encoded size exceeds a limit, the rest is streamed to the
+ * temporary file on the calling thread, and only the rename happens in the background.
+ * <p>
+ * If files should be synced to the storage device before they become visible, consecutive writes are grouped
+ * so that a burst of files can be synced together: files are only renamed once the queue is empty, or the
+ * maximum group size has been reached.
+ * <p>
+ * The total size of the buffers waiting to be written is limited; callers block when it is exceeded, so that
+ * memory use remains bounded if the storage can't keep up.
+ */
+class FileSink {
+
+    private static final Logger logger = LoggerFactory.getLogger(FileSink.class);
+
+    /**
+     * Maximum number of idle buffers retained for reuse.
+     */
+    private static final int MAX_IDLE_BUFFERS = 4;
+
+    /**
+     * Maximum capacity of a buffer that will be retained for reuse, in bytes.
+     */
+    private static final int MAX_IDLE_BUFFER_BYTES = 64 * 1024 * 1024;
+
+    /**
+     * Maximum size of encoded content to buffer in memory, in bytes; larger content is streamed to a temporary file.
+     */
+    private static final int MAX_BUFFER_BYTES = MAX_IDLE_BUFFER_BYTES;
+
+    /**
+     * Size of the buffer used when streaming large content to a temporary file, in bytes.
+     */
+    private static final int STREAM_BUFFER_BYTES = 1024 * 1024;
+
+    /**
+     * Encode an image (or other content) to an output stream.
+     */
+    @FunctionalInterface
+    interface Encoder {
+
+        /**
+         * Write the content.
+         * @param stream the stream to write to; this should not be closed
+         * @throws IOException if the content could not be written
+         */
+        void encode(OutputStream stream) throws IOException;
+
+    }
+
+    private final long maxPendingBytes;
+    private final int maxGroupSize;
+    private final BooleanSupplier sync;
+
+    private final BlockingQueue<Request> queue = new LinkedBlockingQueue<>();
+    private final Deque<Buffer> idleBuffers = new ArrayDeque<>();
+
+    private long pendingBytes = 0L;
+
+    /**
+     * Create a new sink.
+     * @param maxPendingBytes the maximum total size of buffers waiting to be written, in bytes;
+     *                        a single write may exceed this, but only if nothing else is pending
+     * @param maxGroupSize the maximum number of files that may be synced together
+     * @param sync supplier that is queried for each file to determine whether it should be synced to the storage
+     *             device before it is renamed
+     */
+    FileSink(long maxPendingBytes, int maxGroupSize, BooleanSupplier sync) {
+        if (maxGroupSize < 1)
+            throw new IllegalArgumentException("Maximum group size must be at least 1");
+        this.maxPendingBytes = maxPendingBytes;
+        this.maxGroupSize = maxGroupSize;
+        this.sync = sync;
+        var thread = ThreadTools.createThreadFactory("snapshot-sink-", true).newThread(this::run);
+        thread.start();
+    }
+
+    /**
+     * Encode content into memory, and queue it to be written to a file.
+     * This blocks if too many bytes are already waiting to be written.
+     * If the content is too large to buffer, it is written to a temporary file on the current thread instead,
+     * which is then queued to be renamed.
+     * @param target the target file, which is replaced if it already exists
+     * @param encoder the encoder, which is called on the current thread
+     * @param stats statistics to update with the time spent writing and the output size; may be null
+     * @return a future that completes when the target file has been written
+     * @throws IOException if the content could not be encoded
+     * @throws InterruptedException if interrupted while waiting for earlier writes to complete
+     */
+    CompletableFuture<Path> write(Path target, Encoder encoder, CaptureStats stats) throws IOException, InterruptedException {
+        var buffer = acquireBuffer();
+        var stream = new SpillingStream(target, buffer, stats);
+        try {
+            encoder.encode(stream);
+            stream.close();
+        } catch (IOException | RuntimeException e) {
+            stream.discard();
+            releaseBuffer(buffer);
+            throw e;
+        }
+        if (stream.temp != null) {
+            releaseBuffer(buffer);
+            return commit(stream.temp, target, stats);
+        }
+        awaitCapacity(buffer.size());
+        var request = new Request(target, buffer, null, stats);
+        queue.add(request);
+        return request.future;
+    }
+
+    /**
+     * Create a hidden temporary file in the same directory as a target file, for writers that need random
+     * access to a file.
+     * The file should be passed to {@link #commit(Path, Path, CaptureStats)} once it is complete.
+     * @param target the target file
+     * @return the temporary file, which has the same extension as the target
+     * @throws IOException if the file could not be created
+     */
+    Path createTempFile(Path target) throws IOException {
+        var ext = GeneralTools.getExtension(target.getFileName().toString()).orElse("");
+        return Files.createTempFile(target.toAbsolutePath().getParent(), "." + target.getFileName() + "-", ".tmp" + ext);
+    }
+
+    /**
+     * Queue a complete temporary file to be renamed to its target, after any earlier writes.
+     * @param temp the temporary file, created with {@link #createTempFile(Path)}
+     * @param target the target file, which is replaced if it already exists
+     * @param stats statistics to update with the time spent syncing and renaming the file; may be null
+     * @return a future that completes when the target file has been written
+     */
+    CompletableFuture<Path> commit(Path temp, Path target, CaptureStats stats) {
+        var request = new Request(target, null, temp, stats);
+        queue.add(request);
+        return request.future;
+    }
+
+    private void run() {
+        var group = new ArrayList<PendingFile>();
+        while (true) {
+            Request request = null;
+            try {
+                request = group.isEmpty() ? queue.take() : queue.poll();
+                if (request != null) {
+                    var pending = writeTemp(request);
+                    if (pending != null) {
+                        if (pending.sync)
+                            group.add(pending);
+                        else
+                            commitGroup(List.of(pending));
+                    }
+                }
+                // Commit once there is nothing else waiting, so that a burst of files can be synced together
+                if (!group.isEmpty() && (request == null || group.size() >= maxGroupSize)) {
+                    commitGroup(group);
+                    group.clear();
+                }
+            } catch (InterruptedException e) {
+                logger.debug("File sink interrupted");
+                return;
+            } catch (Throwable t) {
+                // Fail anything in progress so that callers aren't left waiting, but keep the sink running
+                logger.error("Unexpected error in file sink", t);
+                for (var pending : group) {
+                    closeQuietly(pending.channel);
+                    deleteQuietly(pending.temp);
+                    pending.request.future.completeExceptionally(t);
+                }
+                group.clear();
+                if (request != null)
+                    request.future.completeExceptionally(t);
+            }
+        }
+    }
+
+    /**
+     * Write a request to a temporary file, which remains open if it needs to be synced.
+     * @return the file to be committed, or null if writing failed
+     */
+    private PendingFile writeTemp(Request request) {
+        var timer = request.stats == null ? null : request.stats.start(CaptureStats.Stage.WRITE);
+        Path temp = request.temp;
+        FileChannel channel = null;
+        try {
+            boolean doSync = sync.getAsBoolean();
+            if (request.buffer != null) {
+                temp = createTempFile(request.target);
+                channel = FileChannel.open(temp, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+                var bytes = request.buffer.toByteBuffer();
+                while (bytes.hasRemaining())
+                    channel.write(bytes);
+                if (request.stats != null)
+                    request.stats.addOutputBytes(channel.size());
+            } else if (doSync) {
+                channel = FileChannel.open(temp, StandardOpenOption.WRITE);
+            }
+            if (!doSync && channel != null) {
+                channel.close();
+                channel = null;
+            }
+            return new PendingFile(request, temp, channel, doSync);
+        } catch (Throwable t) {
+            if (!(t instanceof IOException))
+                logger.error("Unexpected error writing {}", request.target, t);
+            closeQuietly(channel);
+            deleteQuietly(temp);
+            request.future.completeExceptionally(t);
+            return null;
+        } finally {
+            if (timer != null)
+                timer.close();
+            if (request.buffer != null) {
+                var buffer = request.buffer;
+                releasePending(buffer.size());
+                releaseBuffer(buffer);
+            }
+        }
+    }
+
+    /**
+     * Sync (if required) and rename a group of temporary files.
+     */
+    private void commitGroup(List<PendingFile> group) {
+        var directories = new LinkedHashSet<Path>();
+        var committed = new ArrayList<PendingFile>();
+        for (var pending : group) {
+            try {
+                if (pending.channel != null) {
+                    pending.channel.force(true);
+                    pending.channel.close();
+                }
+                moveReplacing(pending.temp, pending.request.target);
+                if (pending.sync)
+                    directories.add(pending.request.target.toAbsolutePath().getParent());
+                committed.add(pending);
+            } catch (IOException e) {
+                closeQuietly(pending.channel);
+                deleteQuietly(pending.temp);
+                pending.request.future.completeExceptionally(e);
+            }
+        }
+        // Sync the directories as well, so that the renames are durable
+        for (var dir : directories)
+            syncDirectory(dir);
+        for (var pending : committed)
+            pending.request.future.complete(pending.request.target);
+        if (group.size() > 1)
+            logger.debug("Synced {} files together", group.size());
+    }
+
+    private synchronized Buffer acquireBuffer() {
+        var buffer = idleBuffers.poll();
+        return buffer == null ? new Buffer() : buffer;
+    }
+
+    private synchronized void releaseBuffer(Buffer buffer) {
+        if (idleBuffers.size() < MAX_IDLE_BUFFERS && buffer.capacity() <= MAX_IDLE_BUFFER_BYTES) {
+            buffer.reset();
+            idleBuffers.push(buffer);
+        }
+    }
+
+    private synchronized void awaitCapacity(long bytes) throws InterruptedException {
+        while (pendingBytes > 0 && pendingBytes + bytes > maxPendingBytes)
+            wait();
+        pendingBytes += bytes;
+    }
+
+    private synchronized void releasePending(long bytes) {
+        pendingBytes -= bytes;
+        notifyAll();
+    }
+
+    private static void moveReplacing(Path source, Path target) throws IOException {
+        try {
+            Files.move(source, target, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(source, target, StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
+    private static void syncDirectory(Path dir) {
+        // This isn't supported on all platforms (e.g. Windows), where renames are durable anyway
+        try (var channel = FileChannel.open(dir, StandardOpenOption.READ)) {
+            channel.force(true);
+        } catch (IOException e) {
+            logger.trace("Unable to sync directory {}: {}", dir, e.getMessage());
+        }
+    }
+
+    private static void closeQuietly(FileChannel channel) {
+        if (channel == null)
+            return;
+        try {
+            channel.close();
+        } catch (IOException e) {
+            logger.debug("Unable to close {}: {}", channel, e.getMessage());
+        }
+    }
+
+    private static void deleteQuietly(Path path) {
+        if (path == null)
+            return;
+        try {
+            Files.deleteIfExists(path);
+        } catch (IOException e) {
+            logger.warn("Unable to delete temporary file {}: {}", path, e.getMessage());
+        }
+    }
+
+    /**
+     * Byte array stream that exposes its contents without copying.
+     */
+    private static class Buffer extends ByteArrayOutputStream {
+
+        private Buffer() {
+            super(1024 * 1024);
+        }
+
+        private int capacity() {
+            return buf.length;
+        }
+
+        private ByteBuffer toByteBuffer() {
+            return ByteBuffer.wrap(buf, 0, count);
+        }
+
+    }
+
+    /**
+     * Stream that buffers content in memory, unless it becomes too large - in which case it is streamed to
+     * a temporary file instead.
+     */
+    private class SpillingStream extends OutputStream {
+
+        private final Path target;
+        private final Buffer buffer;
+        private final CaptureStats stats;
+
+        private Path temp;
+        private OutputStream fileStream;
+
+        private SpillingStream(Path target, Buffer buffer, CaptureStats stats) {
+            this.target = target;
+            this.buffer = buffer;
+            this.stats = stats;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            if (fileStream == null && buffer.size() >= MAX_BUFFER_BYTES)
+                spill();
+            if (fileStream == null)
+                buffer.write(b);
+            else
+                fileStream.write(b);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            if (fileStream == null && buffer.size() + (long)len > MAX_BUFFER_BYTES)
+                spill();
+            if (fileStream == null)
+                buffer.write(b, off, len);
+            else
+                fileStream.write(b, off, len);
+        }
+
+        @Override
+        public void flush() throws IOException {
+            if (fileStream != null)
+                fileStream.flush();
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (fileStream != null)
+                fileStream.close();
+        }
+
+        /**
+         * Move the buffered content to a temporary file, and write everything else directly to the file.
+         */
+        private void spill() throws IOException {
+            temp = createTempFile(target);
+            var stream = Files.newOutputStream(temp);
+            fileStream = new BufferedOutputStream(stats == null ? stream : stats.wrap(stream), STREAM_BUFFER_BYTES);
+            buffer.writeTo(fileStream);
+            buffer.reset();
+        }
+
+        /**
+         * Close and delete any temporary file, after encoding failed.
+         */
+        private void discard() {
+            if (fileStream != null) {
+                try {
+                    fileStream.close();
+                } catch (IOException e) {
+                    logger.debug("Unable to close {}: {}", temp, e.getMessage());
+                }
+            }
+            deleteQuietly(temp);
+        }
+
+    }
+
+    private static class Request {
+
+        private final Path target;
+        private final Buffer buffer;
+        private final Path temp;
+        private final CaptureStats stats;
+        private final CompletableFuture<Path> future = new CompletableFuture<>();
+
+        private Request(Path target, Buffer buffer, Path temp, CaptureStats stats) {
+            this.target = target;
+            this.buffer = buffer;
+            this.temp = temp;
+            this.stats = stats;
+        }
+
+    }
+
+    private record PendingFile(Request request, Path temp, FileChannel channel, boolean sync) {}
+
+}
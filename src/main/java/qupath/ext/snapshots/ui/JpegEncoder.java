@@ -0,0 +1,184 @@
+package qupath.ext.snapshots.ui;
+
+import javax.imageio.IIOImage;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageWriteParam;
+import javax.imageio.ImageWriter;
+import javax.imageio.event.IIOWriteProgressListener;
+import javax.imageio.stream.MemoryCacheImageOutputStream;
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.awt.image.DirectColorModel;
+import java.awt.image.Raster;
+import java.awt.image.SinglePixelPackedSampleModel;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Deque;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.function.DoubleConsumer;
+
+/**
+ * Thread-safe JPEG encoder that reuses configured ImageIO writers.
+ * <p>
+ * Looking up a JPEG writer and configuring its parameters has a noticeable cost when many images are written
+ * (e.g. during a burst), so idle writers are kept in a small pool for each quality level.
+ * Images with packed integer pixels are passed to the writer as RGB views of the same pixel data, rather than
+ * being copied to remove the alpha channel.
+ */
+class JpegEncoder {
+
+    private static final DirectColorModel RGB_COLOR_MODEL = new DirectColorModel(24, 0xff0000, 0x00ff00, 0x0000ff);
+
+    private final int maxIdleWriters;
+    private final Map<Float, Deque<PooledWriter>> pool = new ConcurrentHashMap<>();
+
+    /**
+     * Create a new encoder, keeping up to one idle writer per available processor for each quality level.
+     */
+    JpegEncoder() {
+        this(Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * Create a new encoder.
+     * @param maxIdleWriters the maximum number of idle writers to retain for each quality level
+     */
+    JpegEncoder(int maxIdleWriters) {
+        this.maxIdleWriters = Math.max(1, maxIdleWriters);
+    }
+
+    /**
+     * Write an image as a JPEG.
+     * Any alpha channel is ignored.
+     * @param img the image
+     * @param stream the output stream; this is not closed
+     * @param quality the compression quality, between 0 and 1
+     * @throws IOException if the image could not be written
+     */
+    void write(BufferedImage img, OutputStream stream, float quality) throws IOException {
+        write(img, stream, quality, null);
+    }
+
+    /**
+     * Write an image as a JPEG, reporting progress as the writer encodes rows.
+     * Any alpha channel is ignored.
+     * @param img the image
+     * @param stream the output stream; this is not closed
+     * @param quality the compression quality, between 0 and 1
+     * @param progress consumer to report the fraction of the image encoded, on the calling thread; may be null
+     * @throws IOException if the image could not be written
+     */
+    void write(BufferedImage img, OutputStream stream, float quality, DoubleConsumer progress) throws IOException {
+        var rgb = toRGB(img);
+        var writer = borrowWriter(quality);
+        boolean success = false;
+        try (var imageStream = new MemoryCacheImageOutputStream(stream)) {
+            if (progress != null)
+                writer.writer.addIIOWriteProgressListener(new ProgressListener(progress));
+            writer.writer.setOutput(imageStream);
+            writer.writer.write(null, new IIOImage(rgb, null, null), writer.param);
+            success = true;
+        } finally {
+            writer.writer.removeAllIIOWriteProgressListeners();
+            writer.writer.setOutput(null);
+            if (success)
+                returnWriter(quality, writer);
+            else {
+                // Don't reuse a writer that may be in an inconsistent state
+                writer.writer.dispose();
+            }
+        }
+    }
+
+    /**
+     * Dispose all idle writers.
+     */
+    void clear() {
+        for (var writers : pool.values()) {
+            PooledWriter writer;
+            while ((writer = writers.poll()) != null)
+                writer.writer.dispose();
+        }
+    }
+
+    private PooledWriter borrowWriter(float quality) {
+        var writers = pool.get(quality);
+        var writer = writers == null ? null : writers.poll();
+        if (writer != null)
+            return writer;
+        var imageWriter = ImageIO.getImageWritersByFormatName("jpeg").next();
+        var param = imageWriter.getDefaultWriteParam();
+        param.setCompressionMode(ImageWriteParam.MODE_EXPLICIT);
+        param.setCompressionQuality(quality);
+        return new PooledWriter(imageWriter, param);
+    }
+
+    private void returnWriter(float quality, PooledWriter writer) {
+        var writers = pool.computeIfAbsent(quality, q -> new ConcurrentLinkedDeque<>());
+        // The size check isn't atomic, but occasionally retaining an extra writer is harmless
+        if (writers.size() < maxIdleWriters)
+            writers.push(writer);
+        else
+            writer.writer.dispose();
+    }
+
+    /**
+     * Get an RGB image with the same pixels as the input.
+     * For packed integer images this is a view that shares the input's pixel data, ignoring alpha;
+     * otherwise, the image is drawn onto a new RGB image.
+     */
+    static BufferedImage toRGB(BufferedImage img) {
+        int type = img.getType();
+        if (type == BufferedImage.TYPE_INT_RGB)
+            return img;
+        if (type == BufferedImage.TYPE_INT_ARGB &&
+                img.getRaster().getDataBuffer() instanceof DataBufferInt buffer &&
+                img.getRaster().getSampleModel() instanceof SinglePixelPackedSampleModel sampleModel &&
+                img.getRaster().getSampleModelTranslateX() == 0 && img.getRaster().getSampleModelTranslateY() == 0) {
+            var raster = Raster.createPackedRaster(buffer, img.getWidth(), img.getHeight(),
+                    sampleModel.getScanlineStride(), RGB_COLOR_MODEL.getMasks(), null);
+            return new BufferedImage(RGB_COLOR_MODEL, raster, false, null);
+        }
+        var rgb = new BufferedImage(img.getWidth(), img.getHeight(), BufferedImage.TYPE_INT_RGB);
+        Graphics2D g2d = rgb.createGraphics();
+        g2d.drawImage(img, 0, 0, null);
+        g2d.dispose();
+        return rgb;
+    }
+
+    private record PooledWriter(ImageWriter writer, ImageWriteParam param) {}
+
+    /**
+     * Forward the percentage reported by an ImageIO writer as a fraction.
+     */
+    private record ProgressListener(DoubleConsumer progress) implements IIOWriteProgressListener {
+
+        @Override
+        public void imageStarted(ImageWriter source, int imageIndex) {}
+
+        @Override
+        public void imageProgress(ImageWriter source, float percentageDone) {
+            progress.accept(percentageDone / 100.0);
+        }
+
+        @Override
+        public void imageComplete(ImageWriter source) {}
+
+        @Override
+        public void thumbnailStarted(ImageWriter source, int imageIndex, int thumbnailIndex) {}
+
+        @Override
+        public void thumbnailProgress(ImageWriter source, float percentageDone) {}
+
+        @Override
+        public void thumbnailComplete(ImageWriter source) {}
+
+        @Override
+        public void writeAborted(ImageWriter source) {}
+
+    }
+
+}
@@ -0,0 +1,138 @@
+package qupath.ext.snapshots.ui;
+
+import java.util.Arrays;
+
+/**
+ * LZW compression as used by TIFF (compression type 5).
+ * <p>
+ * This follows the same conventions as libtiff: codes are written most-significant bit first, starting at 9 bits,
+ * and the code length increases one code 'early' compared to GIF.
+ * The table is reset with a clear code whenever it becomes full.
+ */
+final class LzwEncoder {
+
+    private static final int CLEAR = 256;
+    private static final int EOI = 257;
+    private static final int FIRST_CODE = 258;
+    private static final int MIN_BITS = 9;
+    private static final int MAX_BITS = 12;
+    private static final int MAX_CODE = (1 << MAX_BITS) - 1;
+
+    /**
+     * Size of the hash table used to look up strings; must be a power of 2 larger than the number of codes.
+     */
+    private static final int HASH_SIZE = 1 << 13;
+
+    private final int[] hashKeys = new int[HASH_SIZE];
+    private final short[] hashCodes = new short[HASH_SIZE];
+
+    private byte[] output;
+    private int outputLength;
+    private long bitBuffer;
+    private int nBits;
+
+    /**
+     * Create a new encoder.
+     * Instances are not thread-safe, but may be reused for multiple calls to {@link #encode(byte[], int, int)}.
+     */
+    LzwEncoder() {}
+
+    /**
+     * Compress bytes.
+     * @param data the bytes to compress
+     * @param offset the offset of the first byte
+     * @param length the number of bytes to compress
+     * @return the compressed data, starting with a clear code and ending with an end-of-information code
+     */
+    byte[] encode(byte[] data, int offset, int length) {
+        output = new byte[Math.max(64, length / 2)];
+        outputLength = 0;
+        bitBuffer = 0L;
+        nBits = 0;
+
+        int codeBits = MIN_BITS;
+        int maxCode = (1 << codeBits) - 1;
+        int nextCode = FIRST_CODE;
+        resetTable();
+        putCode(CLEAR, codeBits);
+        if (length == 0) {
+            putCode(EOI, codeBits);
+            return finish();
+        }
+
+        int current = data[offset] & 0xff;
+        for (int i = offset + 1; i < offset + length; i++) {
+            int c = data[i] & 0xff;
+            // Keys are offset by 1, so that 0 can mark an empty slot
+            int key = ((current << 8) | c) + 1;
+            int slot = hash(key);
+            while (hashKeys[slot] != 0 && hashKeys[slot] != key)
+                slot = (slot + 1) & (HASH_SIZE - 1);
+            if (hashKeys[slot] == key) {
+                current = hashCodes[slot];
+                continue;
+            }
+            putCode(current, codeBits);
+            current = c;
+            hashKeys[slot] = key;
+            hashCodes[slot] = (short)nextCode++;
+            if (nextCode == MAX_CODE - 1) {
+                // Table is full - reset it
+                putCode(CLEAR, codeBits);
+                resetTable();
+                nextCode = FIRST_CODE;
+                codeBits = MIN_BITS;
+                maxCode = (1 << codeBits) - 1;
+            } else if (nextCode > maxCode) {
+                codeBits++;
+                maxCode = (1 << codeBits) - 1;
+            }
+        }
+        putCode(current, codeBits);
+        // The decoder will add a table entry for the last code, which may fill the table or change the code length
+        nextCode++;
+        if (nextCode == MAX_CODE - 1) {
+            // Decoders expect a clear code as soon as the table is full, even if no more codes follow
+            putCode(CLEAR, codeBits);
+            codeBits = MIN_BITS;
+        } else if (nextCode > maxCode) {
+            codeBits++;
+        }
+        putCode(EOI, codeBits);
+        return finish();
+    }
+
+    private static int hash(int key) {
+        int h = key * 0x9E3779B1;
+        return (h ^ (h >>> 16)) & (HASH_SIZE - 1);
+    }
+
+    private void resetTable() {
+        Arrays.fill(hashKeys, 0);
+    }
+
+    private void putCode(int code, int codeBits) {
+        bitBuffer = (bitBuffer << codeBits) | code;
+        nBits += codeBits;
+        while (nBits >= 8) {
+            nBits -= 8;
+            putByte((int)(bitBuffer >>> nBits));
+        }
+    }
+
+    private void putByte(int b) {
+        if (outputLength == output.length)
+            output = Arrays.copyOf(output, output.length * 2);
+        output[outputLength++] = (byte)b;
+    }
+
+    private byte[] finish() {
+        if (nBits > 0)
+            putByte((int)(bitBuffer << (8 - nBits)));
+        nBits = 0;
+        var result = Arrays.copyOf(output, outputLength);
+        output = null;
+        return result;
+    }
+
+}
@@ -0,0 +1,105 @@
+package qupath.ext.snapshots.ui;
+
+import javafx.stage.Stage;
+import javafx.stage.Window;
+
+import java.awt.Color;
+import java.awt.image.BufferedImage;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Static methods to capture several windows at once, and to combine the results into a single image.
+ * <p>
+ * All windows are captured together on the JavaFX application thread, so that they show a consistent state;
+ * the returned images can then be encoded and written concurrently in the background.
+ */
+class MultiWindowCapture {
+
+    /**
+     * Default spacing between images in a contact sheet, in pixels.
+     */
+    static final int DEFAULT_GAP = 10;
+
+    /**
+     * A captured window.
+     * @param title the window title, or a placeholder if the window has no title
+     * @param image the captured image
+     */
+    record CapturedWindow(String title, CapturedImage image) {}
+
+    private MultiWindowCapture() {
+        throw new AssertionError("Cannot instantiate this class");
+    }
+
+    /**
+     * Capture several windows.
+     * This must be called from the JavaFX application thread.
+     * Windows that are not showing are skipped.
+     * @param windows the windows to capture
+     * @param doScreenshot if true, capture screenshots; otherwise, render snapshots
+     * @param scale the scale to use for snapshots
+     * @return the captured windows, in the same order as the input
+     */
+    static List<CapturedWindow> captureAll(List<? extends Window> windows, boolean doScreenshot, double scale) {
+        List<CapturedWindow> captured = new ArrayList<>();
+        for (var window : windows) {
+            if (!window.isShowing())
+                continue;
+            var image = doScreenshot ? WindowCapture.screenshot(window) : WindowCapture.snapshot(window, scale);
+            captured.add(new CapturedWindow(getTitle(window), image));
+        }
+        return captured;
+    }
+
+    private static String getTitle(Window window) {
+        if (window instanceof Stage stage && stage.getTitle() != null && !stage.getTitle().isBlank())
+            return stage.getTitle();
+        return "window";
+    }
+
+    /**
+     * Combine images into a single contact sheet, arranged in a grid that is roughly square.
+     * Each row is as tall as its tallest image, and each column as wide as its widest image.
+     * @param images the images to combine
+     * @param gap the spacing between images, in pixels
+     * @return a new image containing all the input images
+     */
+    static BufferedImage createContactSheet(List<BufferedImage> images, int gap) {
+        if (images.isEmpty())
+            throw new IllegalArgumentException("At least one image is required for a contact sheet");
+        int n = images.size();
+        int nCols = (int)Math.ceil(Math.sqrt(n));
+        int nRows = (n + nCols - 1) / nCols;
+        int[] colWidths = new int[nCols];
+        int[] rowHeights = new int[nRows];
+        for (int i = 0; i < n; i++) {
+            var img = images.get(i);
+            colWidths[i % nCols] = Math.max(colWidths[i % nCols], img.getWidth());
+            rowHeights[i / nCols] = Math.max(rowHeights[i / nCols], img.getHeight());
+        }
+        int width = gap * (nCols - 1);
+        for (int w : colWidths)
+            width += w;
+        int height = gap * (nRows - 1);
+        for (int h : rowHeights)
+            height += h;
+
+        var sheet = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+        var g2d = sheet.createGraphics();
+        g2d.setColor(Color.WHITE);
+        g2d.fillRect(0, 0, width, height);
+        int y = 0;
+        for (int r = 0; r < nRows; r++) {
+            int x = 0;
+            for (int c = 0; c < nCols && r * nCols + c < n; c++) {
+                g2d.drawImage(images.get(r * nCols + c), x, y, null);
+                x += colWidths[c] + gap;
+            }
+            y += rowHeights[r] + gap;
+        }
+        g2d.dispose();
+        return sheet;
+    }
+
+}
@@ -0,0 +1,91 @@
+package qupath.ext.snapshots.ui;
+
+import javafx.stage.Stage;
+import javafx.stage.Window;
+import qupath.lib.common.GeneralTools;
+import qupath.lib.gui.QuPathGUI;
+
+import java.time.LocalDateTime;
+import java.time.format.DateTimeFormatter;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Expand placeholders in snapshot file names.
+ * <p>
+ * Supported placeholders are
+ * <ul>
+ *     <li>{@code {timestamp}} - the current date and time</li>
+ *     <li>{@code {date}} - the current date</li>
+ *     <li>{@code {time}} - the current time</li>
+ *     <li>{@code {window}} - the title of the window being captured</li>
+ *     <li>{@code {image}} - the name of the current image in QuPath, without any extension</li>
+ *     <li>{@code {counter}} - a counter, which is left unchanged here and filled in by {@link FileNameIndex}</li>
+ * </ul>
+ * Unknown placeholders are left unchanged.
+ */
+final class NamePattern {
+
+    private static final Pattern PLACEHOLDER = Pattern.compile("\\{(\\w+)}");
+
+    private static final DateTimeFormatter TIMESTAMP = DateTimeFormatter.ofPattern("yyyyMMdd-HHmmss");
+    private static final DateTimeFormatter DATE = DateTimeFormatter.ofPattern("yyyyMMdd");
+    private static final DateTimeFormatter TIME = DateTimeFormatter.ofPattern("HHmmss");
+
+    private NamePattern() {
+        throw new AssertionError("Cannot instantiate this class");
+    }
+
+    /**
+     * Expand the placeholders in a file name.
+     * This should be called from the JavaFX application thread.
+     * @param name the name, possibly containing placeholders
+     * @param window the window being captured
+     * @return the expanded name
+     */
+    static String expand(String name, Window window) {
+        if (name.indexOf('{') < 0)
+            return name;
+        var now = LocalDateTime.now();
+        return PLACEHOLDER.matcher(name).replaceAll(match -> {
+            var value = switch (match.group(1)) {
+                case "timestamp" -> TIMESTAMP.format(now);
+                case "date" -> DATE.format(now);
+                case "time" -> TIME.format(now);
+                case "window" -> window instanceof Stage stage ? stage.getTitle() : null;
+                case "image" -> {
+                    // Image names usually end with the extension of the original file (e.g. '.svs')
+                    var imageName = getImageName();
+                    yield imageName == null ? null : GeneralTools.stripExtension(imageName);
+                }
+                default -> match.group();
+            };
+            if (value == null || value.isBlank())
+                value = "untitled";
+            return Matcher.quoteReplacement(sanitize(value));
+        });
+    }
+
+    /**
+     * Get the name of the image currently open in QuPath.
+     * This should be called from the JavaFX application thread.
+     * @return the image name, or null if no image is open
+     */
+    static String getImageName() {
+        var qupath = QuPathGUI.getInstance();
+        var imageData = qupath == null ? null : qupath.getImageData();
+        if (imageData == null)
+            return null;
+        return imageData.getServerMetadata().getName();
+    }
+
+    /**
+     * Replace characters that aren't valid in file names on common platforms.
+     * @param value the input text
+     * @return the text with any invalid characters replaced by underscores
+     */
+    static String sanitize(String value) {
+        return value.replaceAll("[\\\\/:*?\"<>|\\p{Cntrl}]", "_").strip();
+    }
+
+}
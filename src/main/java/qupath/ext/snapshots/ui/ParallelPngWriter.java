@@ -0,0 +1,333 @@
+package qupath.ext.snapshots.ui;
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+import java.util.function.DoubleConsumer;
+import java.util.zip.Adler32;
+import java.util.zip.Deflater;
+
+/**
+ * PNG writer that filters and compresses blocks of rows in parallel.
+ * <p>
+ * This uses the same approach as <a href="https://zlib.net/pigz/">pigz</a>: each block is compressed independently
+ * as raw deflate data (using the end of the previous block as a preset dictionary, so that little compression
+ * is lost), flushed to a byte boundary and then concatenated into a single zlib stream.
+ * The checksums of the blocks are combined, so the result is a standard PNG file.
+ * <p>
+ * Opaque images are written as RGB, while images with any transparency are written as RGBA.
+ */
+class ParallelPngWriter {
+
+    /**
+     * Deflate compression strategies.
+     */
+    enum Strategy {
+        DEFAULT(Deflater.DEFAULT_STRATEGY), FILTERED(Deflater.FILTERED), HUFFMAN_ONLY(Deflater.HUFFMAN_ONLY);
+
+        private final int deflaterStrategy;
+
+        Strategy(int deflaterStrategy) {
+            this.deflaterStrategy = deflaterStrategy;
+        }
+
+        @Override
+        public String toString() {
+            return switch (this) {
+                case DEFAULT -> "Default";
+                case FILTERED -> "Filtered";
+                case HUFFMAN_ONLY -> "Huffman only";
+            };
+        }
+    }
+
+    private static final int DICTIONARY_SIZE = 32 * 1024;
+
+    /**
+     * Target number of uncompressed bytes per block.
+     */
+    private static final int BLOCK_BYTES = 512 * 1024;
+
+    /**
+     * Maximum length of an IDAT chunk.
+     */
+    private static final int MAX_CHUNK_LENGTH = 1024 * 1024;
+
+    private final int level;
+    private final Strategy strategy;
+    private final Executor executor;
+    private final int maxBlocksInFlight;
+
+    /**
+     * Create a new writer using the common fork-join pool.
+     * @param level the compression level (0-9)
+     * @param strategy the compression strategy
+     */
+    ParallelPngWriter(int level, Strategy strategy) {
+        this(level, strategy, ForkJoinPool.commonPool(), ForkJoinPool.getCommonPoolParallelism());
+    }
+
+    /**
+     * Create a new writer.
+     * @param level the compression level (0-9)
+     * @param strategy the compression strategy
+     * @param executor the executor used to compress blocks
+     * @param parallelism the number of blocks that should be compressed concurrently
+     */
+    ParallelPngWriter(int level, Strategy strategy, Executor executor, int parallelism) {
+        this.level = Math.max(0, Math.min(9, level));
+        this.strategy = strategy == null ? Strategy.DEFAULT : strategy;
+        this.executor = executor;
+        this.maxBlocksInFlight = Math.max(1, parallelism) * 2;
+    }
+
+    /**
+     * Write an image as a PNG.
+     * @param img the image
+     * @param stream the output stream; this is not closed
+     * @throws IOException if the image could not be written
+     */
+    void write(BufferedImage img, OutputStream stream) throws IOException {
+        write(img, stream, null);
+    }
+
+    /**
+     * Write an image as a PNG, reporting progress as each block is written.
+     * @param img the image
+     * @param stream the output stream; this is not closed
+     * @param progress consumer to report the fraction of blocks written, on the calling thread; may be null
+     * @throws IOException if the image could not be written
+     */
+    void write(BufferedImage img, OutputStream stream, DoubleConsumer progress) throws IOException {
+        int width = img.getWidth();
+        int height = img.getHeight();
+        boolean mayHaveAlpha = img.getColorModel().hasAlpha();
+        int[] argb = PngEncoding.getPackedPixels(img);
+        if (argb == null)
+            argb = img.getRGB(0, 0, width, height, null, 0, width);
+        write(argb, width, height, mayHaveAlpha, stream, progress);
+    }
+
+    /**
+     * Write packed pixels as a PNG.
+     * @param argb packed (A)RGB pixels, with a stride equal to the width
+     * @param width the image width
+     * @param height the image height
+     * @param mayHaveAlpha if false, any alpha values are ignored and the image is written as RGB
+     * @param stream the output stream; this is not closed
+     * @throws IOException if the image could not be written
+     */
+    void write(int[] argb, int width, int height, boolean mayHaveAlpha, OutputStream stream) throws IOException {
+        write(argb, width, height, mayHaveAlpha, stream, null);
+    }
+
+    /**
+     * Write packed pixels as a PNG, reporting progress as each block is written.
+     * @param argb packed (A)RGB pixels, with a stride equal to the width
+     * @param width the image width
+     * @param height the image height
+     * @param mayHaveAlpha if false, any alpha values are ignored and the image is written as RGB
+     * @param stream the output stream; this is not closed
+     * @param progress consumer to report the fraction of blocks written, on the calling thread; may be null
+     * @throws IOException if the image could not be written
+     */
+    void write(int[] argb, int width, int height, boolean mayHaveAlpha, OutputStream stream,
+               DoubleConsumer progress) throws IOException {
+        boolean alpha = mayHaveAlpha && PngEncoding.hasAlpha(argb, 0, 0, width, height, width);
+        int rowBytes = width * PngEncoding.bytesPerPixel(alpha) + 1;
+        int rowsPerBlock = Math.max(1, BLOCK_BYTES / rowBytes);
+        int nBlocks = (height + rowsPerBlock - 1) / rowsPerBlock;
+
+        stream.write(PngEncoding.SIGNATURE);
+        PngEncoding.writeChunk(stream, "IHDR", PngEncoding.createHeader(width, height, alpha));
+
+        var idat = new ChunkedOutput(stream);
+        idat.write(createZlibHeader(level));
+
+        Deque<CompletableFuture<Block>> inFlight = new ArrayDeque<>();
+        long adler = 1L;
+        int nextBlock = 0;
+        int nWritten = 0;
+        while (nextBlock < nBlocks || !inFlight.isEmpty()) {
+            while (nextBlock < nBlocks && inFlight.size() < maxBlocksInFlight) {
+                int yStart = nextBlock * rowsPerBlock;
+                int yEnd = Math.min(height, yStart + rowsPerBlock);
+                boolean last = nextBlock == nBlocks - 1;
+                inFlight.add(CompletableFuture.supplyAsync(
+                        () -> compressBlock(argb, width, yStart, yEnd, alpha, last), executor));
+                nextBlock++;
+            }
+            Block block;
+            try {
+                block = inFlight.removeFirst().join();
+            } catch (CompletionException e) {
+                inFlight.forEach(f -> f.cancel(true));
+                throw new IOException("Unable to compress PNG data", e.getCause());
+            }
+            idat.write(block.data);
+            adler = combineAdler32(adler, block.adler, block.length);
+            nWritten++;
+            if (progress != null)
+                progress.accept(nWritten / (double)nBlocks);
+        }
+        idat.write(new byte[]{
+                (byte)(adler >>> 24), (byte)(adler >>> 16), (byte)(adler >>> 8), (byte)adler
+        });
+        idat.close();
+        PngEncoding.writeChunk(stream, "IEND", new byte[0]);
+        stream.flush();
+    }
+
+    private Block compressBlock(int[] argb, int width, int yStart, int yEnd, boolean alpha, boolean last) {
+        int bpp = PngEncoding.bytesPerPixel(alpha);
+        byte[] row = new byte[width * bpp];
+        byte[] previous = new byte[width * bpp];
+        byte[] filtered = new byte[width * bpp + 1];
+
+        var deflater = new Deflater(level, true);
+        deflater.setStrategy(strategy.deflaterStrategy);
+        try {
+            // Use the filtered rows at the end of the previous block as a dictionary
+            if (yStart > 0) {
+                int nDictRows = Math.min(yStart, (DICTIONARY_SIZE + filtered.length - 1) / filtered.length);
+                var dictionary = new byte[nDictRows * filtered.length];
+                int y = yStart - nDictRows;
+                if (y > 0)
+                    PngEncoding.convertRow(argb, (y - 1) * width, width, alpha, previous);
+                for (int i = 0; i < nDictRows; i++, y++) {
+                    PngEncoding.convertRow(argb, y * width, width, alpha, row);
+                    PngEncoding.filterRow(row, y == 0 ? null : previous, bpp, filtered);
+                    System.arraycopy(filtered, 0, dictionary, i * filtered.length, filtered.length);
+                    var temp = previous;
+                    previous = row;
+                    row = temp;
+                }
+                int dictStart = Math.max(0, dictionary.length - DICTIONARY_SIZE);
+                deflater.setDictionary(dictionary, dictStart, dictionary.length - dictStart);
+            }
+
+            var adler = new Adler32();
+            var output = new ByteArrayOutputStream((yEnd - yStart) * filtered.length / 4 + 64);
+            byte[] buffer = new byte[64 * 1024];
+            for (int y = yStart; y < yEnd; y++) {
+                PngEncoding.convertRow(argb, y * width, width, alpha, row);
+                PngEncoding.filterRow(row, y == 0 ? null : previous, bpp, filtered);
+                adler.update(filtered);
+                deflater.setInput(filtered);
+                while (!deflater.needsInput()) {
+                    int n = deflater.deflate(buffer, 0, buffer.length, Deflater.NO_FLUSH);
+                    output.write(buffer, 0, n);
+                }
+                var temp = previous;
+                previous = row;
+                row = temp;
+            }
+            if (last) {
+                deflater.finish();
+                while (!deflater.finished()) {
+                    int n = deflater.deflate(buffer);
+                    output.write(buffer, 0, n);
+                }
+            } else {
+                // Flush to a byte boundary, so that the blocks can be concatenated
+                int n;
+                do {
+                    n = deflater.deflate(buffer, 0, buffer.length, Deflater.SYNC_FLUSH);
+                    output.write(buffer, 0, n);
+                } while (n == buffer.length);
+            }
+            long length = (long)(yEnd - yStart) * filtered.length;
+            return new Block(output.toByteArray(), adler.getValue(), length);
+        } finally {
+            deflater.end();
+        }
+    }
+
+    private static byte[] createZlibHeader(int level) {
+        int cmf = 0x78; // Deflate with 32K window
+        int flevel;
+        if (level < 2)
+            flevel = 0;
+        else if (level < 6)
+            flevel = 1;
+        else if (level == 6)
+            flevel = 2;
+        else
+            flevel = 3;
+        int flg = flevel << 6;
+        flg += 31 - ((cmf << 8) + flg) % 31;
+        return new byte[]{(byte)cmf, (byte)flg};
+    }
+
+    /**
+     * Combine two Adler-32 checksums, as in zlib's {@code adler32_combine}.
+     * @param adler1 checksum of the first sequence
+     * @param adler2 checksum of the second sequence
+     * @param length2 length of the second sequence
+     * @return the checksum of the concatenated sequences
+     */
+    static long combineAdler32(long adler1, long adler2, long length2) {
+        final long base = 65521L;
+        long rem = length2 % base;
+        long sum1 = adler1 & 0xffff;
+        long sum2 = (rem * sum1) % base;
+        sum1 += (adler2 & 0xffff) + base - 1;
+        sum2 += ((adler1 >>> 16) & 0xffff) + ((adler2 >>> 16) & 0xffff) + base - rem;
+        if (sum1 >= base)
+            sum1 -= base;
+        if (sum1 >= base)
+            sum1 -= base;
+        if (sum2 >= (base << 1))
+            sum2 -= (base << 1);
+        if (sum2 >= base)
+            sum2 -= base;
+        return sum1 | (sum2 << 16);
+    }
+
+    private record Block(byte[] data, long adler, long length) {}
+
+    /**
+     * Output stream that writes everything it receives as a sequence of IDAT chunks.
+     */
+    private static class ChunkedOutput {
+
+        private final OutputStream stream;
+        private final byte[] buffer = new byte[MAX_CHUNK_LENGTH];
+        private int length = 0;
+
+        private ChunkedOutput(OutputStream stream) {
+            this.stream = stream;
+        }
+
+        private void write(byte[] bytes) throws IOException {
+            int offset = 0;
+            while (offset < bytes.length) {
+                int n = Math.min(bytes.length - offset, buffer.length - length);
+                System.arraycopy(bytes, offset, buffer, length, n);
+                length += n;
+                offset += n;
+                if (length == buffer.length)
+                    flushChunk();
+            }
+        }
+
+        private void flushChunk() throws IOException {
+            if (length > 0)
+                PngEncoding.writeChunk(stream, "IDAT", buffer, 0, length);
+            length = 0;
+        }
+
+        private void close() throws IOException {
+            flushChunk();
+        }
+
+    }
+
+}
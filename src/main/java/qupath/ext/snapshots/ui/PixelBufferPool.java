@@ -0,0 +1,167 @@
+package qupath.ext.snapshots.ui;
+
+import javafx.scene.image.WritableImage;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.awt.image.SinglePixelPackedSampleModel;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Pool of reusable full-frame pixel buffers, shared by all capture paths.
+ * <p>
+ * Capturing a large window repeatedly would otherwise allocate several full-frame arrays for every capture
+ * (the rendered image and the pixels read back from it), which puts pressure on a heap that QuPath already uses
+ * heavily for image tiles.
+ * Two kinds of buffer are pooled, keyed by size: JavaFX {@link WritableImage} targets for rendering and screen
+ * capture, and {@code TYPE_INT_ARGB} {@link BufferedImage} targets for readback, which encoders can use directly.
+ * <p>
+ * Buffers must only be released once nothing else refers to them.
+ * The pool retains a limited number of buffers for each size, and a limited number of bytes in total, discarding
+ * the least recently used sizes first.
+ * All methods are thread-safe, although {@link WritableImage} buffers should only be written on the JavaFX
+ * application thread.
+ */
+final class PixelBufferPool {
+
+    /**
+     * Maximum number of buffers of each kind retained for each size.
+     */
+    static final int MAX_BUFFERS_PER_SIZE = 4;
+
+    /**
+     * Maximum total size of the buffers retained, in bytes.
+     */
+    static final long MAX_BYTES = 512L * 1024 * 1024;
+
+    private static final Map<Key, Deque<Object>> pool = new LinkedHashMap<>(16, 0.75f, true);
+
+    private static long totalBytes = 0L;
+
+    private PixelBufferPool() {
+        throw new AssertionError("Cannot instantiate this class");
+    }
+
+    /**
+     * Get an image that can be used as a target for rendering or screen capture.
+     * @param width the required width
+     * @param height the required height
+     * @return a pooled image with the required size, or null if none is available (in which case the caller
+     *         should allow a new image to be created)
+     */
+    static WritableImage acquireImage(int width, int height) {
+        return (WritableImage)acquire(new Key(width, height, true));
+    }
+
+    /**
+     * Get a {@code TYPE_INT_ARGB} image backed by a single int array, reusing a pooled image if possible.
+     * The contents of the image are undefined.
+     * @param width the required width
+     * @param height the required height
+     * @return an image with the required size
+     */
+    static BufferedImage acquireBufferedImage(int width, int height) {
+        var img = (BufferedImage)acquire(new Key(width, height, false));
+        return img == null ? new BufferedImage(width, height, BufferedImage.TYPE_INT_ARGB) : img;
+    }
+
+    /**
+     * Return a JavaFX image to the pool.
+     * This may be called with null, or with an image that didn't come from the pool.
+     * @param image the image, which must not be used again by the caller
+     */
+    static void release(WritableImage image) {
+        if (image == null)
+            return;
+        double width = image.getWidth();
+        double height = image.getHeight();
+        if (width != Math.rint(width) || height != Math.rint(height))
+            return;
+        release(new Key((int)width, (int)height, true), image);
+    }
+
+    /**
+     * Return an AWT image to the pool.
+     * This may be called with null, or with an image that didn't come from the pool; images that aren't
+     * {@code TYPE_INT_ARGB} with a packed int array are ignored.
+     * @param img the image, which must not be used again by the caller
+     */
+    static void release(BufferedImage img) {
+        if (img == null || !isPackedARGB(img))
+            return;
+        release(new Key(img.getWidth(), img.getHeight(), false), img);
+    }
+
+    /**
+     * Remove all buffers from the pool.
+     */
+    static synchronized void clear() {
+        pool.clear();
+        totalBytes = 0L;
+    }
+
+    private static boolean isPackedARGB(BufferedImage img) {
+        var raster = img.getRaster();
+        return img.getType() == BufferedImage.TYPE_INT_ARGB &&
+                raster.getDataBuffer() instanceof DataBufferInt buffer &&
+                raster.getSampleModel() instanceof SinglePixelPackedSampleModel sampleModel &&
+                sampleModel.getScanlineStride() == img.getWidth() &&
+                buffer.getOffset() == 0 &&
+                buffer.getData().length == img.getWidth() * img.getHeight() &&
+                raster.getSampleModelTranslateX() == 0 && raster.getSampleModelTranslateY() == 0;
+    }
+
+    private static synchronized Object acquire(Key key) {
+        var buffers = pool.get(key);
+        if (buffers == null || buffers.isEmpty())
+            return null;
+        totalBytes -= key.bytes();
+        return buffers.pop();
+    }
+
+    private static synchronized void release(Key key, Object buffer) {
+        long bytes = key.bytes();
+        if (bytes > MAX_BYTES)
+            return;
+        var buffers = pool.computeIfAbsent(key, k -> new ArrayDeque<>());
+        for (var b : buffers) {
+            if (b == buffer)
+                return;
+        }
+        if (buffers.size() >= MAX_BUFFERS_PER_SIZE)
+            return;
+        buffers.push(buffer);
+        totalBytes += bytes;
+        trim();
+    }
+
+    /**
+     * Discard buffers from the least recently used sizes until the pool is within its size limit.
+     */
+    private static void trim() {
+        Iterator<Map.Entry<Key, Deque<Object>>> iterator = pool.entrySet().iterator();
+        while (totalBytes > MAX_BYTES && iterator.hasNext()) {
+            var entry = iterator.next();
+            var buffers = entry.getValue();
+            while (totalBytes > MAX_BYTES && !buffers.isEmpty()) {
+                buffers.pop();
+                totalBytes -= entry.getKey().bytes();
+            }
+            if (buffers.isEmpty())
+                iterator.remove();
+        }
+    }
+
+    private record Key(int width, int height, boolean fx) {
+
+        private long bytes() {
+            return (long)width * height * Integer.BYTES;
+        }
+
+    }
+
+}
@@ -0,0 +1,281 @@
+package qupath.ext.snapshots.ui;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.awt.image.SinglePixelPackedSampleModel;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+
+/**
+ * Low-level helper methods for writing PNG (and APNG) files from packed ARGB pixels.
+ * <p>
+ * These are used by encoders that need more control than ImageIO provides, e.g. to write animation chunks
+ * or to encode parts of an image independently.
+ */
+final class PngEncoding {
+
+    /**
+     * The 8-byte signature that must begin every PNG file.
+     */
+    static final byte[] SIGNATURE = {(byte)137, 80, 78, 71, 13, 10, 26, 10};
+
+    private static final int COLOR_TYPE_RGB = 2;
+    private static final int COLOR_TYPE_RGBA = 6;
+
+    private PngEncoding() {
+        throw new AssertionError("Cannot instantiate this class");
+    }
+
+    /**
+     * Write a chunk, including its length and CRC.
+     * @param stream the output stream
+     * @param type the 4-character chunk type
+     * @param data the chunk data
+     * @param offset the offset of the chunk data in the array
+     * @param length the length of the chunk data
+     * @throws IOException if the chunk could not be written
+     */
+    static void writeChunk(OutputStream stream, String type, byte[] data, int offset, int length) throws IOException {
+        var typeBytes = type.getBytes(StandardCharsets.US_ASCII);
+        var crc = new CRC32();
+        crc.update(typeBytes);
+        crc.update(data, offset, length);
+        var buffer = ByteBuffer.allocate(8);
+        buffer.putInt(length);
+        buffer.put(typeBytes);
+        stream.write(buffer.array());
+        stream.write(data, offset, length);
+        buffer.clear();
+        buffer.putInt((int)crc.getValue());
+        stream.write(buffer.array(), 0, 4);
+    }
+
+    /**
+     * Write a chunk, including its length and CRC.
+     * @param stream the output stream
+     * @param type the 4-character chunk type
+     * @param data the chunk data
+     * @throws IOException if the chunk could not be written
+     */
+    static void writeChunk(OutputStream stream, String type, byte[] data) throws IOException {
+        writeChunk(stream, type, data, 0, data.length);
+    }
+
+    /**
+     * Create the data for an 8-bit RGB or RGBA IHDR chunk.
+     * @param width the image width
+     * @param height the image height
+     * @param alpha whether to include an alpha channel
+     * @return the chunk data
+     */
+    static byte[] createHeader(int width, int height, boolean alpha) {
+        var buffer = ByteBuffer.allocate(13);
+        buffer.putInt(width);
+        buffer.putInt(height);
+        buffer.put((byte)8);
+        buffer.put((byte)(alpha ? COLOR_TYPE_RGBA : COLOR_TYPE_RGB));
+        buffer.put((byte)0); // Deflate compression
+        buffer.put((byte)0); // Adaptive filtering
+        buffer.put((byte)0); // No interlacing
+        return buffer.array();
+    }
+
+    /**
+     * Get the number of bytes per pixel for 8-bit RGB or RGBA.
+     * @param alpha whether an alpha channel is included
+     * @return the number of bytes per pixel
+     */
+    static int bytesPerPixel(boolean alpha) {
+        return alpha ? 4 : 3;
+    }
+
+    /**
+     * Get the packed pixels of an image directly from its raster, if this is possible without conversion.
+     * @param img the image
+     * @return the packed (A)RGB pixels with a stride equal to the width, or null if the image doesn't store
+     *         its pixels in this way
+     */
+    static int[] getPackedPixels(BufferedImage img) {
+        int type = img.getType();
+        if (type != BufferedImage.TYPE_INT_ARGB && type != BufferedImage.TYPE_INT_RGB)
+            return null;
+        var raster = img.getRaster();
+        if (!(raster.getDataBuffer() instanceof DataBufferInt buffer) ||
+                !(raster.getSampleModel() instanceof SinglePixelPackedSampleModel sampleModel) ||
+                sampleModel.getScanlineStride() != img.getWidth() ||
+                buffer.getOffset() != 0 || raster.getSampleModelTranslateX() != 0 || raster.getSampleModelTranslateY() != 0)
+            return null;
+        return buffer.getData();
+    }
+
+    /**
+     * Check whether any pixel in a region is not fully opaque.
+     * @param argb packed ARGB pixels
+     * @param x the region x coordinate
+     * @param y the region y coordinate
+     * @param width the region width
+     * @param height the region height
+     * @param stride the number of pixels per row in the array
+     * @return true if an alpha channel is needed to represent the region
+     */
+    static boolean hasAlpha(int[] argb, int x, int y, int width, int height, int stride) {
+        for (int yy = y; yy < y + height; yy++) {
+            int ind = yy * stride + x;
+            for (int xx = 0; xx < width; xx++) {
+                if ((argb[ind++] >>> 24) != 0xff)
+                    return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Convert a row of packed ARGB pixels to interleaved 8-bit RGB or RGBA bytes.
+     * @param argb the packed pixels
+     * @param offset the offset of the first pixel in the row
+     * @param width the number of pixels in the row
+     * @param alpha whether to include the alpha channel
+     * @param row the output array, with length at least width * bytesPerPixel
+     */
+    static void convertRow(int[] argb, int offset, int width, boolean alpha, byte[] row) {
+        int j = 0;
+        for (int i = offset; i < offset + width; i++) {
+            int val = argb[i];
+            row[j++] = (byte)(val >> 16);
+            row[j++] = (byte)(val >> 8);
+            row[j++] = (byte)val;
+            if (alpha)
+                row[j++] = (byte)(val >>> 24);
+        }
+    }
+
+    /**
+     * Filter a row using the PNG filter type that gives the lowest sum of absolute differences.
+     * @param row the current (unfiltered) row
+     * @param previous the previous (unfiltered) row, or null if this is the first row
+     * @param bpp the number of bytes per pixel
+     * @param output array to store the filter type followed by the filtered row; length must be row.length + 1
+     */
+    static void filterRow(byte[] row, byte[] previous, int bpp, byte[] output) {
+        int n = row.length;
+        // Treat a missing previous row as zeros, as the decoder will
+        byte[] prev = previous == null ? new byte[n] : previous;
+        // Compute the sums for all filter types in a single pass
+        long sumNone = 0, sumSub = 0, sumUp = 0, sumAvg = 0, sumPaeth = 0;
+        for (int i = 0; i < n; i++) {
+            int x = row[i] & 0xff;
+            int a = 0, c = 0;
+            if (i >= bpp) {
+                a = row[i - bpp] & 0xff;
+                c = prev[i - bpp] & 0xff;
+            }
+            int b = prev[i] & 0xff;
+            sumNone += Math.abs((byte)x);
+            sumSub += Math.abs((byte)(x - a));
+            sumUp += Math.abs((byte)(x - b));
+            sumAvg += Math.abs((byte)(x - ((a + b) >> 1)));
+            sumPaeth += Math.abs((byte)(x - paeth(a, b, c)));
+        }
+        int bestType = 0;
+        long bestSum = sumNone;
+        if (sumSub < bestSum) {
+            bestType = 1;
+            bestSum = sumSub;
+        }
+        if (sumUp < bestSum) {
+            bestType = 2;
+            bestSum = sumUp;
+        }
+        if (sumAvg < bestSum) {
+            bestType = 3;
+            bestSum = sumAvg;
+        }
+        if (sumPaeth < bestSum) {
+            bestType = 4;
+        }
+        output[0] = (byte)bestType;
+        switch (bestType) {
+            case 1 -> {
+                for (int i = 0; i < n; i++)
+                    output[i + 1] = (byte)(row[i] - (i >= bpp ? row[i - bpp] : 0));
+            }
+            case 2 -> {
+                for (int i = 0; i < n; i++)
+                    output[i + 1] = (byte)(row[i] - prev[i]);
+            }
+            case 3 -> {
+                for (int i = 0; i < n; i++) {
+                    int a = i >= bpp ? row[i - bpp] & 0xff : 0;
+                    output[i + 1] = (byte)(row[i] - ((a + (prev[i] & 0xff)) >> 1));
+                }
+            }
+            case 4 -> {
+                for (int i = 0; i < n; i++) {
+                    int a = 0, c = 0;
+                    if (i >= bpp) {
+                        a = row[i - bpp] & 0xff;
+                        c = prev[i - bpp] & 0xff;
+                    }
+                    output[i + 1] = (byte)(row[i] - paeth(a, prev[i] & 0xff, c));
+                }
+            }
+            default -> System.arraycopy(row, 0, output, 1, n);
+        }
+    }
+
+    private static int paeth(int a, int b, int c) {
+        int p = a + b - c;
+        int pa = Math.abs(p - a);
+        int pb = Math.abs(p - b);
+        int pc = Math.abs(p - c);
+        if (pa <= pb && pa <= pc)
+            return a;
+        if (pb <= pc)
+            return b;
+        return c;
+    }
+
+    /**
+     * Filter and compress a region of an image, creating a complete zlib stream suitable for IDAT or fdAT chunks.
+     * @param argb packed ARGB pixels
+     * @param x the region x coordinate
+     * @param y the region y coordinate
+     * @param width the region width
+     * @param height the region height
+     * @param stride the number of pixels per row in the array
+     * @param alpha whether to include an alpha channel
+     * @param level the deflate compression level
+     * @return the compressed image data
+     */
+    static byte[] compressRegion(int[] argb, int x, int y, int width, int height, int stride, boolean alpha, int level) {
+        int bpp = bytesPerPixel(alpha);
+        byte[] row = new byte[width * bpp];
+        byte[] previous = new byte[width * bpp];
+        byte[] filtered = new byte[width * bpp + 1];
+        var bytes = new ByteArrayOutputStream(width * height * bpp / 4 + 64);
+        var deflater = new Deflater(level);
+        try (var stream = new DeflaterOutputStream(bytes, deflater, 64 * 1024)) {
+            for (int yy = 0; yy < height; yy++) {
+                convertRow(argb, (y + yy) * stride + x, width, alpha, row);
+                filterRow(row, yy == 0 ? null : previous, bpp, filtered);
+                stream.write(filtered);
+                var temp = previous;
+                previous = row;
+                row = temp;
+            }
+        } catch (IOException e) {
+            // Shouldn't happen, since we're writing to memory
+            throw new RuntimeException(e);
+        } finally {
+            deflater.end();
+        }
+        return bytes.toByteArray();
+    }
+
+}
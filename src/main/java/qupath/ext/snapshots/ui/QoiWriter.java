@@ -0,0 +1,196 @@
+package qupath.ext.snapshots.ui;
+
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.function.DoubleConsumer;
+
+/**
+ * Writer for the <a href="https://qoiformat.org/">Quite OK Image format</a> (QOI).
+ * <p>
+ * QOI is lossless, like PNG, but encodes in a single pass without entropy coding - so it is many times faster to
+ * write, at the cost of larger files.
+ * This makes it useful for high-frequency or very large captures, where encoding time is the bottleneck.
+ * Opaque images are written with 3 channels, while images with any transparency are written with 4.
+ */
+final class QoiWriter {
+
+    private static final int OP_INDEX = 0x00;
+    private static final int OP_DIFF = 0x40;
+    private static final int OP_LUMA = 0x80;
+    private static final int OP_RUN = 0xc0;
+    private static final int OP_RGB = 0xfe;
+    private static final int OP_RGBA = 0xff;
+
+    private static final byte[] END_MARKER = {0, 0, 0, 0, 0, 0, 0, 1};
+
+    private static final int BUFFER_SIZE = 256 * 1024;
+
+    private QoiWriter() {
+        throw new AssertionError("Cannot instantiate this class");
+    }
+
+    /**
+     * Write an image as QOI.
+     * @param img the image
+     * @param stream the output stream; this is not closed
+     * @throws IOException if the image could not be written
+     */
+    static void write(BufferedImage img, OutputStream stream) throws IOException {
+        write(img, stream, null);
+    }
+
+    /**
+     * Write an image as QOI, reporting progress as pixels are encoded.
+     * @param img the image
+     * @param stream the output stream; this is not closed
+     * @param progress consumer to report the fraction of pixels encoded, on the calling thread; may be null
+     * @throws IOException if the image could not be written
+     */
+    static void write(BufferedImage img, OutputStream stream, DoubleConsumer progress) throws IOException {
+        int width = img.getWidth();
+        int height = img.getHeight();
+        int[] argb = PngEncoding.getPackedPixels(img);
+        if (argb == null)
+            argb = img.getRGB(0, 0, width, height, null, 0, width);
+        write(argb, width, height, img.getColorModel().hasAlpha(), stream, progress);
+    }
+
+    /**
+     * Write packed pixels as QOI.
+     * @param argb packed (A)RGB pixels, with a stride equal to the width
+     * @param width the image width
+     * @param height the image height
+     * @param mayHaveAlpha if false, any alpha values are ignored and the image is written with 3 channels
+     * @param stream the output stream; this is not closed
+     * @throws IOException if the image could not be written
+     */
+    static void write(int[] argb, int width, int height, boolean mayHaveAlpha, OutputStream stream) throws IOException {
+        write(argb, width, height, mayHaveAlpha, stream, null);
+    }
+
+    /**
+     * Write packed pixels as QOI, reporting progress as pixels are encoded.
+     * @param argb packed (A)RGB pixels, with a stride equal to the width
+     * @param width the image width
+     * @param height the image height
+     * @param mayHaveAlpha if false, any alpha values are ignored and the image is written with 3 channels
+     * @param stream the output stream; this is not closed
+     * @param progress consumer to report the fraction of pixels encoded, on the calling thread; may be null
+     * @throws IOException if the image could not be written
+     */
+    static void write(int[] argb, int width, int height, boolean mayHaveAlpha, OutputStream stream,
+                      DoubleConsumer progress) throws IOException {
+        boolean alpha = mayHaveAlpha && PngEncoding.hasAlpha(argb, 0, 0, width, height, width);
+        var out = new Output(stream);
+        out.putInt(0x716f6966); // "qoif"
+        out.putInt(width);
+        out.putInt(height);
+        out.put(alpha ? 4 : 3);
+        out.put(0); // sRGB with linear alpha
+
+        int[] index = new int[64];
+        int previous = 0xff000000;
+        int run = 0;
+        int n = width * height;
+        // Report progress in steps of about 1%, rather than checking for every pixel
+        int progressStep = Math.max(1, n / 100);
+        int nextProgress = progress == null ? n : progressStep;
+        for (int i = 0; i < n; i++) {
+            if (i == nextProgress) {
+                progress.accept(i / (double)n);
+                nextProgress += progressStep;
+            }
+            int px = alpha ? argb[i] : argb[i] | 0xff000000;
+            if (px == previous) {
+                run++;
+                if (run == 62 || i == n - 1) {
+                    out.put(OP_RUN | (run - 1));
+                    run = 0;
+                }
+                continue;
+            }
+            if (run > 0) {
+                out.put(OP_RUN | (run - 1));
+                run = 0;
+            }
+            int a = px >>> 24;
+            int r = (px >> 16) & 0xff;
+            int g = (px >> 8) & 0xff;
+            int b = px & 0xff;
+            int hash = (r * 3 + g * 5 + b * 7 + a * 11) & 63;
+            if (index[hash] == px) {
+                out.put(OP_INDEX | hash);
+            } else {
+                index[hash] = px;
+                if (a == previous >>> 24) {
+                    // Wrap differences to the range -128..127
+                    int dr = (byte)(r - ((previous >> 16) & 0xff));
+                    int dg = (byte)(g - ((previous >> 8) & 0xff));
+                    int db = (byte)(b - (previous & 0xff));
+                    int drg = dr - dg;
+                    int dbg = db - dg;
+                    if (dr >= -2 && dr <= 1 && dg >= -2 && dg <= 1 && db >= -2 && db <= 1) {
+                        out.put(OP_DIFF | (dr + 2) << 4 | (dg + 2) << 2 | (db + 2));
+                    } else if (dg >= -32 && dg <= 31 && drg >= -8 && drg <= 7 && dbg >= -8 && dbg <= 7) {
+                        out.put(OP_LUMA | (dg + 32));
+                        out.put((drg + 8) << 4 | (dbg + 8));
+                    } else {
+                        out.put(OP_RGB);
+                        out.put(r);
+                        out.put(g);
+                        out.put(b);
+                    }
+                } else {
+                    out.put(OP_RGBA);
+                    out.put(r);
+                    out.put(g);
+                    out.put(b);
+                    out.put(a);
+                }
+            }
+            previous = px;
+        }
+        out.write(END_MARKER);
+        out.flush();
+    }
+
+    /**
+     * Simple unsynchronized buffer, since writing single bytes to a BufferedOutputStream is comparatively slow.
+     */
+    private static class Output {
+
+        private final OutputStream stream;
+        private final byte[] buffer = new byte[BUFFER_SIZE];
+        private int length = 0;
+
+        private Output(OutputStream stream) {
+            this.stream = stream;
+        }
+
+        private void put(int b) throws IOException {
+            if (length == buffer.length)
+                flush();
+            buffer[length++] = (byte)b;
+        }
+
+        private void putInt(int val) throws IOException {
+            put(val >>> 24);
+            put(val >>> 16);
+            put(val >>> 8);
+            put(val);
+        }
+
+        private void write(byte[] bytes) throws IOException {
+            for (byte b : bytes)
+                put(b);
+        }
+
+        private void flush() throws IOException {
+            stream.write(buffer, 0, length);
+            length = 0;
+        }
+
+    }
+
+}
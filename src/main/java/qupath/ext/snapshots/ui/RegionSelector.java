@@ -0,0 +1,247 @@
+package qupath.ext.snapshots.ui;
+
+import javafx.geometry.Point2D;
+import javafx.geometry.Rectangle2D;
+import javafx.scene.Cursor;
+import javafx.scene.Node;
+import javafx.scene.Parent;
+import javafx.scene.Scene;
+import javafx.scene.input.KeyCode;
+import javafx.scene.input.MouseButton;
+import javafx.scene.input.MouseEvent;
+import javafx.scene.input.ScrollEvent;
+import javafx.scene.layout.Pane;
+import javafx.scene.paint.Color;
+import javafx.scene.shape.Rectangle;
+import javafx.stage.Stage;
+import javafx.stage.StageStyle;
+import javafx.stage.Window;
+
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Interactively select part of a window to capture.
+ * <p>
+ * A transparent overlay is shown on top of the window's scene, so that selecting a region doesn't trigger any
+ * actions in the window itself.
+ * A node can be picked by clicking on it (scrolling selects the parent of the highlighted node), or a rectangle
+ * can be dragged. Pressing Escape cancels the selection.
+ */
+class RegionSelector {
+
+    /**
+     * Property key set on the overlay window, so that it can be excluded from focus tracking.
+     */
+    static final String OVERLAY_KEY = "snapshots.regionSelector";
+
+    private static final Color HIGHLIGHT_FILL = Color.rgb(0, 120, 215, 0.2);
+    private static final Color HIGHLIGHT_STROKE = Color.rgb(0, 120, 215);
+
+    private final Window window;
+    private final boolean pickNode;
+    private final CompletableFuture<CaptureRegion> future = new CompletableFuture<>();
+
+    private final Rectangle highlight = new Rectangle();
+    private Stage overlay;
+
+    private Node highlightedNode;
+    private Point2D dragStart;
+
+    private RegionSelector(Window window, boolean pickNode) {
+        this.window = window;
+        this.pickNode = pickNode;
+    }
+
+    /**
+     * Prompt the user to pick a node within a window.
+     * This must be called from the JavaFX application thread.
+     * @param window the window
+     * @return a future that completes with the selected region, or is cancelled if the user cancels
+     */
+    static CompletableFuture<CaptureRegion> selectNode(Window window) {
+        return new RegionSelector(window, true).show();
+    }
+
+    /**
+     * Prompt the user to drag a rectangle within a window.
+     * This must be called from the JavaFX application thread.
+     * @param window the window
+     * @return a future that completes with the selected region, or is cancelled if the user cancels
+     */
+    static CompletableFuture<CaptureRegion> selectRectangle(Window window) {
+        return new RegionSelector(window, false).show();
+    }
+
+    /**
+     * Check whether a window is an overlay used for region selection.
+     * @param window the window
+     * @return true if the window is an overlay
+     */
+    static boolean isOverlay(Window window) {
+        return window != null && window.getProperties().containsKey(OVERLAY_KEY);
+    }
+
+    private CompletableFuture<CaptureRegion> show() {
+        var scene = window.getScene();
+        if (scene == null || !window.isShowing()) {
+            future.completeExceptionally(new IllegalArgumentException("Window must be showing"));
+            return future;
+        }
+        highlight.setFill(HIGHLIGHT_FILL);
+        highlight.setStroke(HIGHLIGHT_STROKE);
+        highlight.setManaged(false);
+        highlight.setMouseTransparent(true);
+        highlight.setVisible(false);
+
+        var pane = new Pane(highlight);
+        // A fully transparent fill would not receive mouse events on all platforms
+        pane.setStyle("-fx-background-color: rgba(0, 0, 0, 0.01);");
+        pane.setCursor(pickNode ? Cursor.HAND : Cursor.CROSSHAIR);
+        pane.setOnMouseMoved(this::handleMouseMoved);
+        pane.setOnMousePressed(this::handleMousePressed);
+        pane.setOnMouseDragged(this::handleMouseDragged);
+        pane.setOnMouseReleased(this::handleMouseReleased);
+        pane.setOnScroll(this::handleScroll);
+
+        var overlayScene = new Scene(pane, scene.getWidth(), scene.getHeight(), Color.TRANSPARENT);
+        overlayScene.setOnKeyPressed(e -> {
+            if (e.getCode() == KeyCode.ESCAPE)
+                finish(null);
+        });
+
+        overlay = new Stage(StageStyle.TRANSPARENT);
+        overlay.initOwner(window);
+        overlay.getProperties().put(OVERLAY_KEY, Boolean.TRUE);
+        overlay.setScene(overlayScene);
+        overlay.setX(window.getX() + scene.getX());
+        overlay.setY(window.getY() + scene.getY());
+        overlay.focusedProperty().addListener((v, o, n) -> {
+            if (!n)
+                finish(null);
+        });
+        overlay.setOnHidden(e -> future.cancel(false));
+        overlay.show();
+        overlay.requestFocus();
+        return future;
+    }
+
+    private void handleMouseMoved(MouseEvent event) {
+        if (!pickNode)
+            return;
+        setHighlightedNode(pick(window.getScene().getRoot(), event.getX(), event.getY()));
+    }
+
+    private void handleScroll(ScrollEvent event) {
+        if (!pickNode || highlightedNode == null)
+            return;
+        // Scrolling up selects the parent, scrolling down returns to the node under the cursor
+        if (event.getDeltaY() > 0) {
+            var parent = highlightedNode.getParent();
+            if (parent != null)
+                setHighlightedNode(parent);
+        } else if (event.getDeltaY() < 0) {
+            setHighlightedNode(pick(window.getScene().getRoot(), event.getX(), event.getY()));
+        }
+        event.consume();
+    }
+
+    private void handleMousePressed(MouseEvent event) {
+        if (event.getButton() != MouseButton.PRIMARY) {
+            finish(null);
+            return;
+        }
+        if (!pickNode) {
+            dragStart = new Point2D(event.getX(), event.getY());
+            updateHighlight(new Rectangle2D(event.getX(), event.getY(), 0, 0));
+        }
+    }
+
+    private void handleMouseDragged(MouseEvent event) {
+        if (pickNode || dragStart == null)
+            return;
+        updateHighlight(createRectangle(dragStart, event.getX(), event.getY()));
+    }
+
+    private void handleMouseReleased(MouseEvent event) {
+        if (event.getButton() != MouseButton.PRIMARY)
+            return;
+        if (pickNode) {
+            finish(highlightedNode == null ? null : CaptureRegion.ofNode(highlightedNode));
+        } else if (dragStart != null) {
+            var rect = createRectangle(dragStart, event.getX(), event.getY());
+            dragStart = null;
+            if (rect.getWidth() >= 1 && rect.getHeight() >= 1)
+                finish(CaptureRegion.ofRectangle(window, rect));
+            else
+                highlight.setVisible(false);
+        }
+    }
+
+    private Rectangle2D createRectangle(Point2D start, double x, double y) {
+        var scene = window.getScene();
+        double x1 = clamp(Math.min(start.getX(), x), scene.getWidth());
+        double y1 = clamp(Math.min(start.getY(), y), scene.getHeight());
+        double x2 = clamp(Math.max(start.getX(), x), scene.getWidth());
+        double y2 = clamp(Math.max(start.getY(), y), scene.getHeight());
+        // Round to whole pixels, so that the output has the expected size
+        x1 = Math.floor(x1);
+        y1 = Math.floor(y1);
+        return new Rectangle2D(x1, y1, Math.ceil(x2 - x1), Math.ceil(y2 - y1));
+    }
+
+    private static double clamp(double value, double max) {
+        return Math.max(0, Math.min(max, value));
+    }
+
+    private void setHighlightedNode(Node node) {
+        highlightedNode = node;
+        if (node == null) {
+            highlight.setVisible(false);
+            return;
+        }
+        var bounds = node.localToScene(node.getBoundsInLocal());
+        updateHighlight(new Rectangle2D(bounds.getMinX(), bounds.getMinY(), bounds.getWidth(), bounds.getHeight()));
+    }
+
+    private void updateHighlight(Rectangle2D rect) {
+        highlight.setX(rect.getMinX());
+        highlight.setY(rect.getMinY());
+        highlight.setWidth(rect.getWidth());
+        highlight.setHeight(rect.getHeight());
+        highlight.setVisible(true);
+    }
+
+    /**
+     * Find the deepest visible node that contains a point in scene coordinates.
+     * Children are checked in reverse order, so that nodes drawn on top are found first.
+     */
+    private static Node pick(Node node, double sceneX, double sceneY) {
+        if (!node.isVisible())
+            return null;
+        var local = node.sceneToLocal(sceneX, sceneY);
+        if (local == null || !node.getBoundsInLocal().contains(local))
+            return null;
+        if (node instanceof Parent parent) {
+            var children = parent.getChildrenUnmodifiable();
+            for (int i = children.size() - 1; i >= 0; i--) {
+                var picked = pick(children.get(i), sceneX, sceneY);
+                if (picked != null)
+                    return picked;
+            }
+        }
+        return node;
+    }
+
+    private void finish(CaptureRegion region) {
+        if (future.isDone())
+            return;
+        if (region == null)
+            future.completeExceptionally(new CancellationException("Region selection cancelled"));
+        else
+            future.complete(region);
+        if (overlay != null)
+            overlay.hide();
+    }
+
+}
@@ -0,0 +1,468 @@
+package qupath.ext.snapshots.ui;
+
+import com.google.gson.JsonParseException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import qupath.lib.common.GeneralTools;
+import qupath.lib.io.GsonTools;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Archive that snapshots can be appended to, so that batch and burst workflows produce a single file rather than
+ * thousands of small ones.
+ * <p>
+ * The archive is a standard (POSIX) tar file, so it can be opened with common tools.
+ * Entries are stored uncompressed, since the snapshots have already been encoded.
+ * Each entry is preceded by an extended header containing metadata about the capture (e.g. the window title),
+ * using keys with a {@link #METADATA_PREFIX}.
+ * These are stored as user extended attributes, which tar ignores by default, but can restore with the
+ * {@code --xattrs} option.
+ * <p>
+ * An index is written alongside the archive, with one JSON object per line giving the name, offset, size and
+ * metadata of each entry - so that entries can be found without reading the whole archive.
+ * The index is also used to recover if writing was interrupted: when an archive is opened, anything after the
+ * last entry in the index is discarded.
+ * <p>
+ * The archive is always kept valid after each entry is appended, and the file isn't kept open between entries.
+ * An entry that fails part-way through encoding is removed again.
+ */
+class SnapshotArchive {
+
+    private static final Logger logger = LoggerFactory.getLogger(SnapshotArchive.class);
+
+    /**
+     * Default file name for an archive.
+     */
+    static final String DEFAULT_NAME = "snapshots.tar";
+
+    /**
+     * Suffix appended to the archive file name to give the name of the index file.
+     */
+    static final String INDEX_SUFFIX = ".index.jsonl";
+
+    /**
+     * Prefix for metadata keys in the extended header of each entry.
+     */
+    static final String METADATA_PREFIX = "SCHILY.xattr.user.qupath.";
+
+    private static final int BLOCK_SIZE = 512;
+
+    private static final byte[] END_OF_ARCHIVE = new byte[BLOCK_SIZE * 2];
+
+    /**
+     * Largest entry size that fits in the 11 octal digits of a tar header.
+     */
+    private static final long MAX_ENTRY_SIZE = 077777777777L;
+
+    private static final int STREAM_BUFFER_BYTES = 1024 * 1024;
+
+    private static final Map<Path, SnapshotArchive> archives = new ConcurrentHashMap<>();
+
+    private final Path path;
+    private final Path indexPath;
+
+    private final List<Entry> entries = new ArrayList<>();
+    private final Set<String> names = new HashSet<>();
+    private final Map<String, Integer> counters = new HashMap<>();
+
+    /**
+     * Offset at which the next entry will be written, or -1 if the archive hasn't been read yet.
+     */
+    private long end = -1;
+
+    /**
+     * Entry in the archive.
+     * @param name the entry name
+     * @param headerOffset the offset of the first header for the entry
+     * @param offset the offset of the entry data
+     * @param size the size of the entry data, in bytes
+     * @param timestamp the time the entry was added, in milliseconds since the epoch
+     * @param metadata metadata for the entry
+     */
+    record Entry(String name, long headerOffset, long offset, long size, long timestamp, Map<String, String> metadata) {}
+
+    private SnapshotArchive(Path path) {
+        this.path = path;
+        this.indexPath = path.resolveSibling(path.getFileName() + INDEX_SUFFIX);
+    }
+
+    /**
+     * Get the archive for a file, which is created when the first entry is appended if it doesn't already exist.
+     * The same instance is returned for the same file, so that concurrent appends are serialized.
+     * @param path the archive file
+     * @return the archive
+     */
+    static SnapshotArchive get(Path path) {
+        return archives.computeIfAbsent(path.toAbsolutePath().normalize(), SnapshotArchive::new);
+    }
+
+    /**
+     * Get the archive file.
+     * @return the path to the archive
+     */
+    Path getPath() {
+        return path;
+    }
+
+    /**
+     * Encode content and append it to the archive as a new entry.
+     * The content is streamed directly into the archive, with the entry size filled in afterwards, so that large
+     * snapshots never need to be held in memory. This means that appends to the same archive are serialized,
+     * including the encoding.
+     * @param name the requested entry name, optionally containing the {@link FileNameIndex#COUNTER} placeholder
+     * @param uniqueName whether the name must be unique; if false, the archive may contain several entries with
+     *                   the same name (the last one is used when the archive is extracted)
+     * @param encoder the encoder for the entry content
+     * @param metadata metadata to store with the entry; keys should be valid tar header keywords
+     * @param stats statistics to update with the time spent writing and the output size; may be null
+     * @return the entry that was written
+     * @throws IOException if the content could not be encoded or written
+     */
+    synchronized Entry append(String name, boolean uniqueName, FileSink.Encoder encoder, Map<String, String> metadata,
+                              CaptureStats stats) throws IOException {
+        ensureLoaded();
+        var entryName = chooseName(name, uniqueName);
+        long timestamp = System.currentTimeMillis();
+        var pax = new LinkedHashMap<String, String>();
+        pax.put("path", entryName);
+        pax.put("mtime", String.format(Locale.ROOT, "%d.%03d", timestamp / 1000, timestamp % 1000));
+        var values = new LinkedHashMap<String, String>();
+        for (var e : metadata.entrySet()) {
+            if (e.getValue() != null) {
+                values.put(e.getKey(), e.getValue());
+                pax.put(METADATA_PREFIX + e.getKey(), e.getValue());
+            }
+        }
+        var paxData = createPaxData(pax);
+        long headerOffset = end;
+        long dataHeaderOffset = headerOffset + BLOCK_SIZE + padded(paxData.length);
+        long offset = dataHeaderOffset + BLOCK_SIZE;
+
+        long size;
+        try (var channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.WRITE)) {
+            try {
+                channel.position(headerOffset);
+                // The extended header applies to the following entry, and contains the full name and metadata
+                writeFully(channel, createHeader("PaxHeaders/" + entryName, paxData.length, timestamp, 'x'));
+                writeFully(channel, ByteBuffer.wrap(paxData));
+                writePadding(channel, paxData.length);
+                // The size isn't known yet, so the entry header is written again once the content is complete
+                writeFully(channel, createHeader(entryName, 0, timestamp, '0'));
+                var stream = new EntryStream(channel);
+                encoder.encode(stream);
+                stream.flush();
+                size = channel.position() - offset;
+                if (size > MAX_ENTRY_SIZE)
+                    throw new IOException("Entry " + entryName + " is too large for the archive (" + size + " bytes)");
+                try (var timer = stats == null ? null : stats.start(CaptureStats.Stage.WRITE)) {
+                    writePadding(channel, size);
+                    // Keep the archive valid, although the end marker will be overwritten by the next entry
+                    writeFully(channel, ByteBuffer.wrap(END_OF_ARCHIVE));
+                    channel.truncate(channel.position());
+                    channel.position(dataHeaderOffset);
+                    writeFully(channel, createHeader(entryName, size, timestamp, '0'));
+                }
+            } catch (IOException | RuntimeException e) {
+                discardFrom(channel, headerOffset);
+                throw e;
+            }
+        }
+        var entry = new Entry(entryName, headerOffset, offset, size, timestamp, Collections.unmodifiableMap(values));
+        end = offset + padded(size);
+        entries.add(entry);
+        names.add(entryName);
+        Files.writeString(indexPath, GsonTools.getInstance().toJson(entry) + "\n", StandardCharsets.UTF_8,
+                StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+        if (stats != null)
+            stats.addOutputBytes(size);
+        logger.debug("Appended {} ({} bytes) to {}", entryName, size, path);
+        return entry;
+    }
+
+    /**
+     * Get the entries in the archive, in the order they were written.
+     * @return the entries
+     * @throws IOException if the archive could not be read
+     */
+    synchronized List<Entry> getEntries() throws IOException {
+        ensureLoaded();
+        return List.copyOf(entries);
+    }
+
+    /**
+     * Open a stream to read the content of an entry.
+     * @param entry the entry
+     * @return a stream containing only the entry data
+     * @throws IOException if the archive could not be read
+     */
+    InputStream openStream(Entry entry) throws IOException {
+        var channel = FileChannel.open(path, StandardOpenOption.READ);
+        channel.position(entry.offset());
+        var stream = Channels.newInputStream(channel);
+        return new InputStream() {
+
+            private long remaining = entry.size();
+
+            @Override
+            public int read() throws IOException {
+                if (remaining <= 0)
+                    return -1;
+                remaining--;
+                return stream.read();
+            }
+
+            @Override
+            public int read(byte[] b, int off, int len) throws IOException {
+                if (remaining <= 0)
+                    return -1;
+                int n = stream.read(b, off, (int)Math.min(len, remaining));
+                if (n > 0)
+                    remaining -= n;
+                return n;
+            }
+
+            @Override
+            public void close() throws IOException {
+                stream.close();
+            }
+
+        };
+    }
+
+    /**
+     * Remove a partially-written entry, so that the archive ends with the previous entry again.
+     * If this fails, the archive is recovered from the index the next time it is used.
+     */
+    private void discardFrom(FileChannel channel, long headerOffset) {
+        try {
+            channel.position(headerOffset);
+            writeFully(channel, ByteBuffer.wrap(END_OF_ARCHIVE));
+            channel.truncate(channel.position());
+        } catch (IOException e) {
+            logger.warn("Unable to remove incomplete entry from {}: {}", path, e.getMessage());
+            end = -1;
+        }
+    }
+
+    /**
+     * Read the index (if needed), discarding any entries that were not completely written.
+     * The index is read again if the archive has changed since it was last written here, e.g. because it was
+     * truncated or deleted.
+     */
+    private void ensureLoaded() throws IOException {
+        long length = Files.exists(path) ? Files.size(path) : 0L;
+        if (end >= 0 && (length == end + END_OF_ARCHIVE.length || (end == 0 && length == 0)))
+            return;
+        entries.clear();
+        names.clear();
+        counters.clear();
+        boolean incomplete = false;
+        if (Files.exists(indexPath)) {
+            var gson = GsonTools.getInstance();
+            for (var line : Files.readAllLines(indexPath, StandardCharsets.UTF_8)) {
+                if (line.isBlank())
+                    continue;
+                try {
+                    var entry = gson.fromJson(line, Entry.class);
+                    if (entry.offset() + entry.size() > length) {
+                        incomplete = true;
+                        break;
+                    }
+                    entries.add(entry);
+                    names.add(entry.name());
+                } catch (JsonParseException e) {
+                    logger.warn("Unable to read archive index entry: {}", e.getMessage());
+                    incomplete = true;
+                    break;
+                }
+            }
+        }
+        if (!Files.exists(indexPath)) {
+            // Don't append to a file that we didn't create
+            if (length > 0)
+                throw new IOException(path + " exists, but is not a snapshot archive");
+            Files.createDirectories(indexPath.toAbsolutePath().getParent());
+            Files.createFile(indexPath);
+        }
+        end = entries.isEmpty() ? 0L : entries.get(entries.size() - 1).offset() + padded(entries.get(entries.size() - 1).size());
+        if (incomplete || (length > 0 && end + END_OF_ARCHIVE.length != length)) {
+            logger.warn("Recovering {} from its index ({} entries)", path, entries.size());
+            rewriteIndex();
+            if (length > 0) {
+                // Discard anything after the last complete entry, so the archive is valid again
+                try (var channel = FileChannel.open(path, StandardOpenOption.WRITE)) {
+                    channel.position(end);
+                    writeFully(channel, ByteBuffer.wrap(END_OF_ARCHIVE));
+                    channel.truncate(channel.position());
+                }
+            }
+        }
+    }
+
+    private void rewriteIndex() throws IOException {
+        var gson = GsonTools.getInstance();
+        var sb = new StringBuilder();
+        for (var entry : entries)
+            sb.append(gson.toJson(entry)).append("\n");
+        Files.writeString(indexPath, sb.toString(), StandardCharsets.UTF_8);
+    }
+
+    private String chooseName(String name, boolean uniqueName) {
+        int ind = name.indexOf(FileNameIndex.COUNTER);
+        String prefix, suffix;
+        if (ind >= 0) {
+            prefix = name.substring(0, ind);
+            suffix = name.substring(ind + FileNameIndex.COUNTER.length());
+        } else if (!uniqueName || !names.contains(name)) {
+            return name;
+        } else {
+            suffix = GeneralTools.getExtension(name).orElse("");
+            prefix = name.substring(0, name.length() - suffix.length()) + "-";
+        }
+        int next = counters.getOrDefault(prefix + "\n" + suffix, 0) + 1;
+        while (names.contains(prefix + next + suffix))
+            next++;
+        counters.put(prefix + "\n" + suffix, next);
+        return prefix + next + suffix;
+    }
+
+    private static byte[] createPaxData(Map<String, String> values) {
+        var sb = new StringBuilder();
+        for (var e : values.entrySet()) {
+            // Each record starts with its own length in bytes, including the length itself
+            var record = " " + e.getKey() + "=" + e.getValue() + "\n";
+            int recordLength = record.getBytes(StandardCharsets.UTF_8).length;
+            int length = recordLength + Integer.toString(recordLength).length();
+            if (Integer.toString(length).length() != Integer.toString(recordLength).length())
+                length++;
+            sb.append(length).append(record);
+        }
+        return sb.toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static ByteBuffer createHeader(String name, long size, long timestamp, char type) {
+        var header = new byte[BLOCK_SIZE];
+        // The real name is in the extended header, so this only needs to be a reasonable fallback
+        putString(header, 0, 100, toAscii(name));
+        putOctal(header, 100, 8, 0644);
+        putOctal(header, 108, 8, 0);
+        putOctal(header, 116, 8, 0);
+        putOctal(header, 124, 12, size);
+        putOctal(header, 136, 12, timestamp / 1000);
+        header[156] = (byte)type;
+        putString(header, 257, 6, "ustar");
+        putString(header, 263, 2, "00");
+        // The checksum is calculated with the checksum field filled with spaces
+        for (int i = 148; i < 156; i++)
+            header[i] = ' ';
+        long checksum = 0;
+        for (byte b : header)
+            checksum += b & 0xff;
+        putOctal(header, 148, 7, checksum);
+        return ByteBuffer.wrap(header);
+    }
+
+    private static String toAscii(String name) {
+        var sb = new StringBuilder();
+        for (int i = 0; i < name.length() && sb.length() < 99; i++) {
+            char c = name.charAt(i);
+            sb.append(c >= 32 && c < 127 ? c : '_');
+        }
+        return sb.toString();
+    }
+
+    private static void putString(byte[] header, int offset, int length, String value) {
+        var bytes = value.getBytes(StandardCharsets.US_ASCII);
+        System.arraycopy(bytes, 0, header, offset, Math.min(length, bytes.length));
+    }
+
+    private static void putOctal(byte[] header, int offset, int length, long value) {
+        // Octal digits followed by a NUL terminator
+        var s = Long.toOctalString(value);
+        var padded = "0".repeat(Math.max(0, length - 1 - s.length())) + s;
+        putString(header, offset, length - 1, padded);
+        header[offset + length - 1] = 0;
+    }
+
+    private static long padded(long size) {
+        return (size + BLOCK_SIZE - 1) / BLOCK_SIZE * BLOCK_SIZE;
+    }
+
+    private static void writePadding(FileChannel channel, long size) throws IOException {
+        int n = (int)(padded(size) - size);
+        if (n > 0)
+            writeFully(channel, ByteBuffer.allocate(n));
+    }
+
+    private static void writeFully(FileChannel channel, ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining())
+            channel.write(buffer);
+    }
+
+    /**
+     * Buffered stream that writes to the archive channel, but leaves it open when closed, since the entry still
+     * needs to be completed after encoding.
+     */
+    private static class EntryStream extends OutputStream {
+
+        private final FileChannel channel;
+        private final ByteBuffer buffer = ByteBuffer.allocate(STREAM_BUFFER_BYTES);
+
+        private EntryStream(FileChannel channel) {
+            this.channel = channel;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            if (!buffer.hasRemaining())
+                flush();
+            buffer.put((byte)b);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            if (len >= buffer.capacity()) {
+                flush();
+                writeFully(channel, ByteBuffer.wrap(b, off, len));
+                return;
+            }
+            if (len > buffer.remaining())
+                flush();
+            buffer.put(b, off, len);
+        }
+
+        @Override
+        public void flush() throws IOException {
+            buffer.flip();
+            writeFully(channel, buffer);
+            buffer.clear();
+        }
+
+        @Override
+        public void close() throws IOException {
+            flush();
+        }
+
+    }
+
+}
@@ -1,5 +1,7 @@
 package qupath.ext.snapshots.ui;
 
+import javafx.animation.Animation;
+import javafx.animation.PauseTransition;
 import javafx.application.Platform;
 import javafx.beans.binding.Bindings;
 import javafx.beans.property.BooleanProperty;
@@ -8,10 +10,8 @@ import javafx.beans.property.SimpleBooleanProperty;
 import javafx.beans.property.SimpleObjectProperty;
 import javafx.beans.property.StringProperty;
 import javafx.beans.value.ObservableValue;
-import javafx.embed.swing.SwingFXUtils;
 import javafx.fxml.FXML;
 import javafx.fxml.FXMLLoader;
-import javafx.scene.SnapshotParameters;
 import javafx.scene.control.Button;
 import javafx.scene.control.ButtonType;
 import javafx.scene.control.CheckBox;
@@ -19,45 +19,49 @@ import javafx.scene.control.ComboBox;
 import javafx.scene.control.ContentDisplay;
 import javafx.scene.control.Label;
 import javafx.scene.control.ProgressBar;
+import javafx.scene.control.Separator;
 import javafx.scene.control.Spinner;
 import javafx.scene.control.SpinnerValueFactory;
 import javafx.scene.control.TextField;
+import javafx.scene.control.TitledPane;
 import javafx.scene.image.Image;
 import javafx.scene.input.Clipboard;
 import javafx.scene.input.DataFormat;
 import javafx.scene.layout.BorderPane;
-import javafx.scene.transform.Scale;
+import javafx.scene.layout.VBox;
 import javafx.stage.PopupWindow;
 import javafx.stage.Stage;
 import javafx.stage.Window;
+import javafx.util.Duration;
 import org.controlsfx.glyphfont.FontAwesome;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import qupath.fx.dialogs.Dialogs;
 import qupath.fx.dialogs.FileChoosers;
 import qupath.fx.utils.FXUtils;
-import qupath.lib.awt.common.BufferedImageTools;
 import qupath.lib.common.GeneralTools;
 import qupath.lib.gui.dialogs.ParameterPanelFX;
 import qupath.lib.gui.prefs.PathPrefs;
 import qupath.lib.gui.tools.IconFactory;
-import qupath.lib.images.writers.ImageWriterTools;
 import qupath.lib.plugins.parameters.ParameterList;
 
-import javax.imageio.IIOImage;
-import javax.imageio.ImageIO;
-import javax.imageio.ImageWriteParam;
-import java.awt.AWTException;
-import java.awt.Robot;
-import java.awt.geom.Rectangle2D;
 import java.awt.image.BufferedImage;
 import java.io.File;
 import java.io.IOException;
+import java.nio.file.InvalidPathException;
+import java.nio.file.Path;
 import java.text.MessageFormat;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.ResourceBundle;
 import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.TimeUnit;
+import java.util.function.DoubleConsumer;
+import java.util.function.Function;
 
 /**
  * Controller for UI pane contained in snapshot-controller.fxml
@@ -72,45 +76,13 @@ public class SnapshotController extends BorderPane {
     private static final StringProperty nameProperty = PathPrefs.createPersistentPreference("ext.snapshots.name", "");
     private static final BooleanProperty copyProperty = PathPrefs.createPersistentPreference("ext.snapshots.copyToClipboard", true);
     private static final BooleanProperty uniqueNamesProperty = PathPrefs.createPersistentPreference("ext.snapshots.uniqueNames", true);
-    private static final ObjectProperty<Format> formatProperty = PathPrefs.createPersistentPreference("ext.snapshots.format", Format.PNG, Format.class);
-
-    private enum Format {
-        PNG, JPEG_HIGH, JPEG_MEDIUM, JPEG_LOW;
-
-        public String getFormatName() {
-            if (this == PNG)
-                return "PNG";
-            else
-                return "JPEG";
-        }
-
-        public String getExtension() {
-            if (this == PNG)
-                return ".png";
-            else
-                return ".jpg";
-        }
-
-        public float getJpegQuality() {
-            return switch(this) {
-                case JPEG_HIGH -> 0.9f;
-                case JPEG_MEDIUM -> 0.75f;
-                case JPEG_LOW -> 0.5f;
-                default -> -1f;
-            };
-        }
-
-        @Override
-        public String toString() {
-            return switch(this) {
-                case PNG -> "PNG";
-                case JPEG_HIGH -> "JPEG (high)";
-                case JPEG_MEDIUM -> "JPEG (medium)";
-                case JPEG_LOW -> "JPEG (low)";
-            };
-        }
-
-    }
+    private static final BooleanProperty tiledProperty = PathPrefs.createPersistentPreference("ext.snapshots.tiled", false);
+    private static final BooleanProperty pyramidProperty = PathPrefs.createPersistentPreference("ext.snapshots.pyramid", true);
+    private static final BooleanProperty burstChangesOnlyProperty = PathPrefs.createPersistentPreference("ext.snapshots.burstChangesOnly", false);
+    private static final BooleanProperty archiveProperty = PathPrefs.createPersistentPreference("ext.snapshots.archive", false);
+    private static final StringProperty extraScalesProperty = PathPrefs.createPersistentPreference("ext.snapshots.extraScales", "");
+    private static final BooleanProperty contactSheetProperty = PathPrefs.createPersistentPreference("ext.snapshots.contactSheet", false);
+    private static final ObjectProperty<SnapshotFormat> formatProperty = PathPrefs.createPersistentPreference("ext.snapshots.format", SnapshotFormat.PNG, SnapshotFormat.class);
 
     @FXML
     private TextField tfDirectory;
@@ -128,7 +100,16 @@ public class SnapshotController extends BorderPane {
     private CheckBox cbDelayWindow;
 
     @FXML
-    private ComboBox<Format> comboFormat;
+    private CheckBox cbTiled;
+
+    @FXML
+    private CheckBox cbPyramid;
+
+    @FXML
+    private CheckBox cbArchive;
+
+    @FXML
+    private ComboBox<SnapshotFormat> comboFormat;
 
     @FXML
     private Spinner<Integer> spinnerDelay;
@@ -136,12 +117,36 @@ public class SnapshotController extends BorderPane {
     @FXML
     private Spinner<Double> spinnerScale;
 
+    @FXML
+    private TextField tfExtraScales;
+
     @FXML
     private Button btnSnapshot;
 
     @FXML
     private Button btnScreenshot;
 
+    @FXML
+    private Button btnBurst;
+
+    @FXML
+    private Button btnRecord;
+
+    @FXML
+    private Button btnCaptureAll;
+
+    @FXML
+    private Spinner<Integer> spinnerBurstFrames;
+
+    @FXML
+    private Spinner<Double> spinnerBurstInterval;
+
+    @FXML
+    private CheckBox cbBurstScreenshot;
+
+    @FXML
+    private CheckBox cbBurstChangesOnly;
+
     @FXML
     private Button btnDirectory;
 
@@ -152,9 +157,55 @@ public class SnapshotController extends BorderPane {
     private Label labelCurrentWindow;
 
     @FXML
-    private ProgressBar progressDelay;
+    private BorderPane paneQueue;
+
+    @FXML
+    private ProgressBar progressTiled;
+
+    @FXML
+    private Label labelStats;
+
+    @FXML
+    private Label labelRegion;
+
+    @FXML
+    private Button btnPickNode;
+
+    @FXML
+    private Button btnPickRectangle;
+
+    @FXML
+    private Button btnClearRegion;
+
+    @FXML
+    private TitledPane titledGallery;
+
+    private final SnapshotGallery gallery = new SnapshotGallery();
+    private final PauseTransition galleryDelay = new PauseTransition(GALLERY_DELAY);
 
-    private final BooleanProperty processing = new SimpleBooleanProperty(false);
+    private final CaptureQueue captureQueue = new CaptureQueue();
+
+    private final BooleanProperty tiledSnapshotRunning = new SimpleBooleanProperty(false);
+
+    private final ObjectProperty<BurstCapture> burstCapture = new SimpleObjectProperty<>();
+
+    private final ObjectProperty<WindowRecorder> windowRecorder = new SimpleObjectProperty<>();
+
+    private final ObjectProperty<CaptureRegion> captureRegion = new SimpleObjectProperty<>();
+
+    private final CapturePipeline pipeline = CapturePipeline.createDefault();
+
+    /**
+     * Maximum number of burst frames that may be encoded at the same time, each using a pooled buffer.
+     */
+    private static final int BURST_BUFFER_COUNT = 4;
+
+    /**
+     * Time to wait after the output directory is edited before listing it in the gallery.
+     */
+    private static final Duration GALLERY_DELAY = Duration.millis(400);
+
+    private WindowFocusListener windowListener;
 
     private final ObjectProperty<Window> focusedWindow = new SimpleObjectProperty<>();
 
@@ -188,13 +239,18 @@ public class SnapshotController extends BorderPane {
 
     private void init() {
         btnScreenshot.disableProperty().bind(
-                processing.or(
+                tiledSnapshotRunning.or(pipeline.saturatedProperty()).or(
                     cbCopyToClipboard.selectedProperty().not().and(
                             tfDirectory.textProperty().isEmpty()
                                     .or(tfName.textProperty().isEmpty())
                     )
                 ));
         btnSnapshot.disableProperty().bind(btnScreenshot.disableProperty());
+        btnBurst.disableProperty().bind(burstCapture.isNull().and(
+                btnScreenshot.disableProperty().or(cbCopyToClipboard.selectedProperty())));
+        btnRecord.disableProperty().bind(windowRecorder.isNull().and(
+                btnScreenshot.disableProperty().or(cbCopyToClipboard.selectedProperty())));
+        btnCaptureAll.disableProperty().bind(btnScreenshot.disableProperty());
         comboFormat.disableProperty().bind(btnScreenshot.disableProperty());
         cbUniqueName.disableProperty().bind(btnScreenshot.disableProperty());
 
@@ -205,22 +261,45 @@ public class SnapshotController extends BorderPane {
 
         cbCopyToClipboard.selectedProperty().bindBidirectional(copyProperty);
         cbUniqueName.selectedProperty().bindBidirectional(uniqueNamesProperty);
+        cbTiled.selectedProperty().bindBidirectional(tiledProperty);
+        cbPyramid.selectedProperty().bindBidirectional(pyramidProperty);
+        cbTiled.disableProperty().bind(btnScreenshot.disableProperty().or(cbCopyToClipboard.selectedProperty()));
+        cbPyramid.disableProperty().bind(cbTiled.disableProperty().or(cbTiled.selectedProperty().not()));
+        cbArchive.selectedProperty().bindBidirectional(archiveProperty);
+        cbArchive.disableProperty().bind(cbTiled.disableProperty().or(burstCapture.isNotNull()));
 
         // Listen to changes in the focused window, while ignoring this window
-        var listener = new WindowFocusListener(this::isFocusTrackedWindow);
-        focusedWindow.bind(listener.focusedWindow());
+        windowListener = new WindowFocusListener(this::isFocusTrackedWindow);
+        focusedWindow.bind(windowListener.focusedWindow());
 
         spinnerDelay.setValueFactory(new SpinnerValueFactory.IntegerSpinnerValueFactory(0, 100, 0));
         spinnerDelay.getValueFactory().setValue(0);
         FXUtils.resetSpinnerNullToPrevious(spinnerDelay);
 
+        spinnerBurstFrames.setValueFactory(new SpinnerValueFactory.IntegerSpinnerValueFactory(0, 10_000, 10));
+        spinnerBurstFrames.getValueFactory().setValue(10);
+        FXUtils.resetSpinnerNullToPrevious(spinnerBurstFrames);
+
+        spinnerBurstInterval.setValueFactory(new SpinnerValueFactory.DoubleSpinnerValueFactory(0.1, 3600, 1.0, 0.5));
+        spinnerBurstInterval.getValueFactory().setValue(1.0);
+        FXUtils.resetSpinnerNullToPrevious(spinnerBurstInterval);
+
+        var burstOrRecording = burstCapture.isNotNull().or(windowRecorder.isNotNull());
+        spinnerBurstFrames.disableProperty().bind(burstOrRecording);
+        spinnerBurstInterval.disableProperty().bind(burstOrRecording);
+        cbBurstScreenshot.disableProperty().bind(burstOrRecording);
+        cbBurstChangesOnly.disableProperty().bind(burstOrRecording);
+        cbBurstChangesOnly.selectedProperty().bindBidirectional(burstChangesOnlyProperty);
+
         spinnerScale.setValueFactory(new SpinnerValueFactory.DoubleSpinnerValueFactory(0.25, 16, 1.0));
         spinnerScale.getValueFactory().setValue(1.0);
         FXUtils.resetSpinnerNullToPrevious(spinnerScale);
+        tfExtraScales.textProperty().bindBidirectional(extraScalesProperty);
+        tfExtraScales.disableProperty().bind(cbTiled.disableProperty().or(cbTiled.selectedProperty()).or(cbArchive.selectedProperty()));
 
-        comboFormat.getItems().setAll(Format.values());
+        comboFormat.getItems().setAll(SnapshotFormat.values());
         if (!comboFormat.getItems().contains(formatProperty.get()))
-            formatProperty.setValue(Format.PNG);
+            formatProperty.setValue(SnapshotFormat.PNG);
         comboFormat.valueProperty().bindBidirectional(formatProperty);
 
         labelCurrentWindow.textProperty().bind(focusedWindowName);
@@ -253,13 +332,75 @@ public class SnapshotController extends BorderPane {
                 return resources.getString("button.screenshot.save");
         }, cbCopyToClipboard.selectedProperty()));
 
-        progressDelay.visibleProperty().bind(processing);
-        progressDelay.setProgress(ProgressBar.INDETERMINATE_PROGRESS);
+        btnCaptureAll.setGraphic(IconFactory.createNode(FontAwesome.Glyph.TH_LARGE));
+
+        btnBurst.textProperty().bind(Bindings.createStringBinding(() -> {
+            if (burstCapture.get() == null)
+                return resources.getString("button.burst.start");
+            else
+                return resources.getString("button.burst.stop");
+        }, burstCapture));
+
+        btnRecord.textProperty().bind(Bindings.createStringBinding(() -> {
+            if (windowRecorder.get() == null)
+                return resources.getString("button.record.start");
+            else
+                return resources.getString("button.record.stop");
+        }, windowRecorder));
+
+        labelRegion.textProperty().bind(Bindings.createStringBinding(() -> {
+            var region = captureRegion.get();
+            return region == null ? resources.getString("region.none") : region.getDescription();
+        }, captureRegion));
+        btnPickNode.disableProperty().bind(tiledSnapshotRunning.or(focusedWindow.isNull()));
+        btnPickRectangle.disableProperty().bind(btnPickNode.disableProperty());
+        btnClearRegion.disableProperty().bind(captureRegion.isNull());
+
+        // Only list the output directory while the gallery is visible
+        titledGallery.setContent(gallery);
+        titledGallery.expandedProperty().addListener((v, o, n) -> updateGallery());
+        // Wait until typing has paused before listing a new directory
+        galleryDelay.setOnFinished(e -> updateGallery());
+        tfDirectory.textProperty().addListener((v, o, n) -> galleryDelay.playFromStart());
+
+        // Delayed captures are queued, and the window is only hidden just before a screenshot is taken
+        paneQueue.setCenter(new CaptureQueueView(captureQueue));
+        captureQueue.hideWindowProperty().addListener((v, o, n) -> {
+            var scene = getScene();
+            if (scene != null && scene.getWindow() != null)
+                scene.getWindow().setOpacity(n ? 0.0 : 1.0);
+        });
+
+        progressTiled.visibleProperty().bind(tiledSnapshotRunning);
+        progressTiled.managedProperty().bind(progressTiled.visibleProperty());
+        progressTiled.setProgress(ProgressBar.INDETERMINATE_PROGRESS);
+    }
+
+    private void updateGallery() {
+        if (!titledGallery.isExpanded())
+            return;
+        var text = tfDirectory.getText();
+        Path dir = null;
+        try {
+            if (text != null && !text.isBlank())
+                dir = Path.of(text);
+        } catch (InvalidPathException e) {
+            logger.debug("Invalid directory: {}", e.getMessage());
+        }
+        gallery.setDirectory(dir);
+    }
+
+    /**
+     * List the output directory again after new files have been written, if the gallery is visible.
+     */
+    private void reloadGallery() {
+        if (titledGallery.isExpanded() && galleryDelay.getStatus() != Animation.Status.RUNNING)
+            gallery.reload();
     }
 
     // We only want to track stages, but not our window (or windows we own)
     private boolean isFocusTrackedWindow(Window window) {
-        if (window instanceof PopupWindow)
+        if (window instanceof PopupWindow || RegionSelector.isOverlay(window))
             return false;
         var scene = getScene();
         if (scene != null) {
@@ -272,6 +413,49 @@ public class SnapshotController extends BorderPane {
     }
 
 
+    @FXML
+    private void promptToPickNode() {
+        promptForRegion(RegionSelector::selectNode);
+    }
+
+    @FXML
+    private void promptToPickRectangle() {
+        promptForRegion(RegionSelector::selectRectangle);
+    }
+
+    private void promptForRegion(Function<Window, CompletableFuture<CaptureRegion>> selector) {
+        var win = focusedWindow.getValue();
+        if (win == null || win == getScene().getWindow())
+            return;
+        if (win instanceof Stage stage)
+            stage.toFront();
+        selector.apply(win).whenComplete((region, throwable) -> {
+            if (region != null)
+                captureRegion.set(region);
+            else
+                logger.debug("No region selected");
+        });
+    }
+
+    @FXML
+    private void clearRegion() {
+        captureRegion.set(null);
+    }
+
+    /**
+     * Get the region to capture for a window, or null if the whole window should be captured.
+     */
+    private CaptureRegion getCaptureRegion(Window win) {
+        var region = captureRegion.get();
+        if (region == null || region.window() != win)
+            return null;
+        if (!region.isValid()) {
+            captureRegion.set(null);
+            return null;
+        }
+        return region;
+    }
+
     @FXML
     private void promptForDirectory() {
         File dirCurrent = null;
@@ -312,6 +496,230 @@ public class SnapshotController extends BorderPane {
         }
     }
 
+    @FXML
+    private void toggleBurst() {
+        var burst = burstCapture.get();
+        if (burst != null) {
+            burst.stop();
+            return;
+        }
+        var win = focusedWindow.getValue();
+        if (win == null || win == getScene().getWindow())
+            return;
+        var file = new File(tfDirectory.getText(), NamePattern.expand(tfName.getText(), win));
+        var format = comboFormat.getValue();
+        boolean uniqueName = cbUniqueName.isSelected();
+        double scale = spinnerScale.getValue() == null ? 1 : spinnerScale.getValue();
+        int nFrames = spinnerBurstFrames.getValue() == null ? 0 : spinnerBurstFrames.getValue();
+        double interval = spinnerBurstInterval.getValue() == null ? 1 : spinnerBurstInterval.getValue();
+        BurstCapture.FrameWriter writer;
+        String destination;
+        if (cbArchive.isSelected()) {
+            var archive = getArchive(file);
+            var metadata = createMetadata(win, cbBurstScreenshot.isSelected(), scale, null);
+            writer = (img, frame) -> {
+                var frameMetadata = new LinkedHashMap<>(metadata);
+                frameMetadata.put("frame", Integer.toString(frame));
+                var name = SnapshotWriter.appendToName(file, String.format("-%04d", frame)).getName();
+                SnapshotWriter.writeToArchive(img, archive, name, format, uniqueName, frameMetadata, null);
+                return CompletableFuture.completedFuture(archive.getPath().toFile());
+            };
+            destination = archive.getPath().toString();
+        } else {
+            writer = (img, frame) -> SnapshotWriter.writeBehind(img, SnapshotWriter.appendToName(file, String.format("-%04d", frame)), format, uniqueName, null);
+            destination = file.getParentFile() == null ? "" : file.getParentFile().getAbsolutePath();
+        }
+        burst = new BurstCapture(win, cbBurstScreenshot.isSelected(), scale, Duration.seconds(interval), nFrames,
+                BURST_BUFFER_COUNT, pipeline, writer,
+                cbBurstChangesOnly.isSelected() ? SnapshotPreferences.createChangeDetector() : null);
+        burstCapture.set(burst);
+        burst.start().whenComplete((b, throwable) -> {
+            burstCapture.set(null);
+            showBurstSummary(b, destination);
+        });
+    }
+
+    @FXML
+    private void toggleRecording() {
+        var recorder = windowRecorder.get();
+        if (recorder != null) {
+            recorder.stop();
+            return;
+        }
+        var win = focusedWindow.getValue();
+        if (win == null || win == getScene().getWindow())
+            return;
+        var file = new File(tfDirectory.getText(), NamePattern.expand(tfName.getText(), win));
+        if (GeneralTools.getExtension(file).isPresent())
+            file = new File(file.getParentFile(), GeneralTools.getNameWithoutExtension(file));
+        file = new File(file.getParentFile(), file.getName() + ".png");
+        var outputFile = SnapshotWriter.reserve(file, cbUniqueName.isSelected());
+        double scale = spinnerScale.getValue() == null ? 1 : spinnerScale.getValue();
+        int nFrames = spinnerBurstFrames.getValue() == null ? 0 : spinnerBurstFrames.getValue();
+        double interval = spinnerBurstInterval.getValue() == null ? 1 : spinnerBurstInterval.getValue();
+        recorder = new WindowRecorder(win, cbBurstScreenshot.isSelected(), scale, Duration.seconds(interval), nFrames,
+                outputFile.toPath());
+        windowRecorder.set(recorder);
+        var currentRecorder = recorder;
+        recorder.start().whenComplete((path, throwable) -> Platform.runLater(() -> {
+            SnapshotWriter.release(outputFile, throwable == null);
+            windowRecorder.set(null);
+            int nDropped = currentRecorder.droppedProperty().get();
+            if (throwable != null) {
+                handleWriteError(outputFile, throwable);
+                return;
+            }
+            reloadGallery();
+            if (nDropped > 0)
+                Dialogs.showWarningNotification(
+                        resources.getString("snapshot"),
+                        MessageFormat.format(resources.getString("snapshot.recordingDropped"), outputFile.getAbsolutePath(), nDropped)
+                );
+            else
+                Dialogs.showInfoNotification(
+                        resources.getString("snapshot"),
+                        MessageFormat.format(resources.getString("snapshot.writtenTo"), outputFile.getAbsolutePath())
+                );
+        }));
+    }
+
+    private void showBurstSummary(BurstCapture burst, String dir) {
+        int nWritten = burst.writtenProperty().get();
+        int nDropped = burst.droppedProperty().get();
+        int nFailed = burst.failedProperty().get();
+        if (nWritten > 0)
+            reloadGallery();
+        if (nFailed > 0) {
+            Dialogs.showErrorNotification(
+                    resources.getString("snapshot.error"),
+                    MessageFormat.format(resources.getString("snapshot.burstFailed"), nFailed, dir)
+            );
+        }
+        if (burst.isWatching()) {
+            int nUnchanged = burst.unchangedProperty().get();
+            Dialogs.showInfoNotification(
+                    resources.getString("snapshot"),
+                    MessageFormat.format(resources.getString("snapshot.watchComplete"), nWritten, dir, nUnchanged, nDropped)
+            );
+        } else if (nDropped > 0) {
+            Dialogs.showWarningNotification(
+                    resources.getString("snapshot"),
+                    MessageFormat.format(resources.getString("snapshot.burstDropped"), nWritten, dir, nDropped)
+            );
+        } else {
+            Dialogs.showInfoNotification(
+                    resources.getString("snapshot"),
+                    MessageFormat.format(resources.getString("snapshot.burstComplete"), nWritten, dir)
+            );
+        }
+    }
+
+    /**
+     * Snapshot several windows at once, either writing them to a new folder or combining them into one image.
+     */
+    @FXML
+    private void captureAllWindows() {
+        var windows = windowListener.getTrackedWindows();
+        if (windows.isEmpty()) {
+            Dialogs.showWarningNotification(resources.getString("snapshot"), resources.getString("captureAll.noWindows"));
+            return;
+        }
+        var selected = promptToSelectWindows(windows);
+        if (selected.isEmpty())
+            return;
+        double scale = spinnerScale.getValue() == null ? 1 : spinnerScale.getValue();
+        // Capture all windows together, so they show a consistent state
+        var captured = MultiWindowCapture.captureAll(selected, false, scale);
+        if (captured.isEmpty())
+            return;
+        // Read the pixels here, while we are on the FX thread, and return the rendered images to the pool
+        var titles = captured.stream().map(MultiWindowCapture.CapturedWindow::title).toList();
+        var images = captured.stream().map(c -> c.image().readPixels()).toList();
+        captured.forEach(c -> c.image().recycle());
+        if (cbCopyToClipboard.isSelected()) {
+            var sheet = MultiWindowCapture.createContactSheet(images, MultiWindowCapture.DEFAULT_GAP);
+            images.forEach(PixelBufferPool::release);
+            try {
+                copyToClipboard(CapturedImage.of(sheet), new CaptureStats("Contact sheet of " + captured.size() + " windows"));
+            } catch (RejectedExecutionException e) {
+                Dialogs.showWarningNotification(
+                        resources.getString("snapshot.error"),
+                        resources.getString("snapshot.busy")
+                );
+                logger.warn("Unable to copy snapshots: {}", e.getMessage());
+            }
+            return;
+        }
+        var file = new File(tfDirectory.getText(), NamePattern.expand(tfName.getText(), focusedWindow.getValue()));
+        var format = comboFormat.getValue();
+        boolean uniqueName = cbUniqueName.isSelected();
+        CompletableFuture<File> future;
+        try {
+            if (contactSheetProperty.get()) {
+                future = pipeline.submit(() -> SnapshotWriter.write(
+                        MultiWindowCapture.createContactSheet(images, MultiWindowCapture.DEFAULT_GAP),
+                        file, format, uniqueName));
+            } else {
+                var name = GeneralTools.getExtension(file).isPresent() ? GeneralTools.getNameWithoutExtension(file) : file.getName();
+                var ext = GeneralTools.getExtension(file).orElse("");
+                var folder = SnapshotWriter.reserve(new File(file.getParentFile(), name), uniqueName);
+                future = pipeline.submit(() -> SnapshotWriter.writeAll(images, titles, folder, ext, format))
+                        .whenComplete((f, t) -> SnapshotWriter.release(folder, t == null));
+            }
+        } catch (RejectedExecutionException e) {
+            Dialogs.showWarningNotification(
+                    resources.getString("snapshot.error"),
+                    resources.getString("snapshot.busy")
+            );
+            logger.warn("Unable to write snapshots: {}", e.getMessage());
+            images.forEach(PixelBufferPool::release);
+            return;
+        }
+        future.whenComplete((outputFile, throwable) -> images.forEach(PixelBufferPool::release));
+        future.whenComplete((outputFile, throwable) -> Platform.runLater(() -> {
+            if (throwable == null) {
+                reloadGallery();
+                Dialogs.showInfoNotification(
+                        resources.getString("snapshot"),
+                        MessageFormat.format(resources.getString("snapshot.allWrittenTo"), images.size(), outputFile.getAbsolutePath())
+                );
+            } else
+                handleWriteError(file, throwable);
+        }));
+    }
+
+    /**
+     * Prompt the user to choose which windows should be captured.
+     * @return the selected windows, or an empty list if the dialog was cancelled
+     */
+    private List<Window> promptToSelectWindows(List<Window> windows) {
+        Map<Window, CheckBox> checkboxes = new LinkedHashMap<>();
+        var pane = new VBox(5);
+        for (var window : windows) {
+            var cb = new CheckBox(getWindowName(window).getValue());
+            cb.setSelected(true);
+            checkboxes.put(window, cb);
+            pane.getChildren().add(cb);
+        }
+        var cbContactSheet = new CheckBox(resources.getString("captureAll.contactSheet.label"));
+        cbContactSheet.setSelected(contactSheetProperty.get());
+        cbContactSheet.setDisable(cbCopyToClipboard.isSelected());
+        pane.getChildren().addAll(new Separator(), cbContactSheet);
+        if (Dialogs.builder()
+                .title(resources.getString("captureAll.title"))
+                .owner(getScene().getWindow())
+                .content(pane)
+                .buttons(ButtonType.OK, ButtonType.CANCEL)
+                .showAndWait()
+                .orElse(ButtonType.CANCEL) != ButtonType.OK)
+            return List.of();
+        contactSheetProperty.set(cbContactSheet.isSelected());
+        return checkboxes.entrySet().stream()
+                .filter(e -> e.getValue().isSelected())
+                .map(Map.Entry::getKey)
+                .toList();
+    }
+
     @FXML
     private void captureSnapshot() {
         doCapture(false);
@@ -325,137 +733,328 @@ public class SnapshotController extends BorderPane {
 
     private void doCapture(boolean doScreenshot) {
         var file = cbCopyToClipboard.isSelected() ? null : new File(tfDirectory.getText(), tfName.getText());
+        var settings = getCaptureSettings();
         Integer delay = spinnerDelay.getValue();
         if (delay != null && delay > 0) {
-            // Ideally we'd show progress... this is the lazy way
-            processing.set(true);
-            var window = getScene().getWindow();
-            window.setOpacity(0.0);
             Window winToSnapshot = cbDelayWindow.isSelected() ? focusedWindow.getValue() : null;
-            CompletableFuture.delayedExecutor(delay, TimeUnit.SECONDS, Platform::runLater)
-                    .execute(() -> {
-                        var win = winToSnapshot == null ? focusedWindow.getValue() : winToSnapshot;
-                        snapshotWindow(win, file, doScreenshot);
-                        processing.set(false);
-                        window.setOpacity(1.0);
-                    });
+            var description = MessageFormat.format(
+                    resources.getString(doScreenshot ? "queue.screenshot" : "queue.snapshot"),
+                    winToSnapshot == null ? resources.getString("queue.activeWindow") : getWindowName(winToSnapshot).getValue(),
+                    file == null ? resources.getString("queue.clipboard") : settings.format().toString());
+            // Screenshots may include the snapshot window, so it is hidden just before they are taken
+            captureQueue.submit(description, TimeUnit.SECONDS.toMillis(delay), doScreenshot, progress -> {
+                var win = winToSnapshot == null ? focusedWindow.getValue() : winToSnapshot;
+                return snapshotWindow(win, file, doScreenshot, settings, progress);
+            });
         } else {
-            snapshotFocusedWindow(file, doScreenshot);
+            snapshotWindow(focusedWindow.getValue(), file, doScreenshot, settings, null);
         }
     }
 
-    private void snapshotFocusedWindow(File file, boolean doScreenshot) {
-        var win = focusedWindow.getValue();
-        snapshotWindow(win, file, doScreenshot);
+    /**
+     * Settings for a capture, read from the controls when the capture is requested so that queued captures
+     * aren't affected by later changes.
+     */
+    private record CaptureSettings(SnapshotFormat format, double scale, String extraScales, boolean uniqueName,
+                                   boolean archive, boolean tiled, boolean pyramid) {}
+
+    private CaptureSettings getCaptureSettings() {
+        return new CaptureSettings(
+                comboFormat.getValue(),
+                spinnerScale.getValue() == null ? 1 : spinnerScale.getValue(),
+                tfExtraScales.getText(),
+                cbUniqueName.isSelected(),
+                cbArchive.isSelected(),
+                cbTiled.isSelected(),
+                cbPyramid.isSelected());
     }
 
-    private void snapshotWindow(Window win, File file, boolean doScreenshot) {
+    /**
+     * Capture a window, and then write it to a file or copy it to the clipboard.
+     * Rendering and readback happen immediately, but encoding and writing happen in the background.
+     * @param win the window to capture
+     * @param file the requested output file, or null to copy to the clipboard
+     * @param doScreenshot true to make a screenshot, false to make a snapshot
+     * @param settings the capture settings
+     * @param progress consumer to report the fraction of the capture that is complete, or null
+     * @return a future that completes once the capture has been written or copied, or completes exceptionally
+     *         if it could not be made
+     */
+    private CompletableFuture<?> snapshotWindow(Window win, File file, boolean doScreenshot, CaptureSettings settings,
+                                                DoubleConsumer progress) {
         var currentWin = getScene().getWindow();
-        if (win != null && win != currentWin) {
+        if (win == null || win == currentWin) {
+            logger.debug("No window available to capture");
+            return CompletableFuture.failedFuture(new IllegalStateException("No window available to capture"));
+        }
+        if (file != null)
+            file = new File(file.getParentFile(), NamePattern.expand(file.getName(), win));
+        try {
+            if (!doScreenshot && file != null && settings.tiled())
+                return snapshotWindowTiled(win, file, settings, progress);
+            var region = getCaptureRegion(win);
+            double scale = settings.scale();
+            // Render once at the largest scale, and derive any smaller sizes from that
+            var scales = doScreenshot || file == null || settings.archive() ?
+                    List.of(scale) : getOutputScales(scale, settings.extraScales());
+            double renderScale = scales.stream().mapToDouble(Double::doubleValue).max().orElse(scale);
+            var description = (doScreenshot ? "Screenshot of " : "Snapshot of ") + getWindowName(win).getValue();
+            if (region != null)
+                description += " (" + region.getDescription() + ")";
+            if (scales.size() > 1)
+                description += " (" + scales.size() + " scales)";
+            var stats = new CaptureStats(description);
+            if (progress != null) {
+                stats.setStageListener(stage -> progress.accept(getProgress(stage)));
+                stats.setEncodeProgressListener(fraction -> progress.accept(getEncodeProgress(fraction)));
+            }
+            CapturedImage captured;
+            try (var timer = stats.start(CaptureStats.Stage.RENDER)) {
+                if (region != null)
+                    captured = doScreenshot ? WindowCapture.screenshot(region) : WindowCapture.snapshot(region, renderScale);
+                else
+                    captured = doScreenshot ? WindowCapture.screenshot(win) : WindowCapture.snapshot(win, renderScale);
+            }
+            if (file == null)
+                return copyToClipboard(captured, stats);
+            // Read the pixels here, while we are on the FX thread
+            BufferedImage img;
+            try (var timer = stats.start(CaptureStats.Stage.READBACK)) {
+                img = captured.readPixels();
+            }
+            captured.recycle();
+            // Encoding & writing can happen in the background
+            var format = settings.format();
+            boolean uniqueName = settings.uniqueName();
+            var requestedFile = file;
+            if (settings.archive())
+                return writeToArchive(img, getArchive(file), file.getName(), createMetadata(win, doScreenshot, scale, region),
+                        settings, stats);
+            return pipeline.submit(() -> SnapshotWriter.writeScaled(img, renderScale, scales, requestedFile, format, uniqueName, stats)
+                            .get(0))
+                    .whenComplete((outputFile, throwable) -> PixelBufferPool.release(img))
+                    .whenComplete((outputFile, throwable) -> Platform.runLater(() -> {
+                        if (throwable == null) {
+                            completeStats(stats);
+                            reloadGallery();
+                            Dialogs.showInfoNotification(
+                                    resources.getString("snapshot"),
+                                    MessageFormat.format(resources.getString("snapshot.writtenTo"), outputFile.getAbsolutePath())
+                            );
+                        } else
+                            handleWriteError(requestedFile, throwable);
+                    }));
+        } catch (RejectedExecutionException e) {
+            Dialogs.showWarningNotification(
+                    resources.getString("snapshot.error"),
+                    resources.getString("snapshot.busy")
+            );
+            logger.warn("Unable to write snapshot: {}", e.getMessage());
+            return CompletableFuture.failedFuture(e);
+        }
+    }
+
+    /**
+     * Get the approximate fraction of a capture that is complete once a stage has finished.
+     * Encoding usually dominates, and writing finishes last because it happens behind encoding.
+     */
+    private static double getProgress(CaptureStats.Stage stage) {
+        return switch (stage) {
+            case RENDER -> 0.2;
+            case READBACK, CONVERT -> 0.3;
+            case ENCODE -> 0.9;
+            case WRITE, CLIPBOARD -> 0.95;
+        };
+    }
+
+    /**
+     * Get the approximate fraction of a capture that is complete part-way through encoding, for encoders that
+     * report their progress.
+     */
+    private static double getEncodeProgress(double fraction) {
+        double start = getProgress(CaptureStats.Stage.CONVERT);
+        return start + fraction * (getProgress(CaptureStats.Stage.ENCODE) - start);
+    }
+
+    /**
+     * Get the scales at which a snapshot should be written, starting with the main scale and followed by any
+     * valid extra scales (in the same range as the scale spinner).
+     */
+    private static List<Double> getOutputScales(double scale, String extraScales) {
+        var scales = new ArrayList<Double>();
+        scales.add(scale);
+        if (extraScales == null)
+            return scales;
+        for (var item : extraScales.split("[,;\\s]+")) {
+            if (item.isBlank())
+                continue;
             try {
-                // We need JavaFX image for clipboard or BufferedImage for saving
-                // For simplicity, just generate both for now
-                BufferedImage img = null;
-                Image image = null;
-                if (doScreenshot) {
-                    var rect = new Rectangle2D.Double(
-                            win.getX(),
-                            win.getY(),
-                            win.getWidth(),
-                            win.getHeight()
-                    );
-                    // Need to use AWT Robot for correct colors on Mac
-                    if (GeneralTools.isMac()) {
-                        try {
-                            img = new Robot().createScreenCapture(rect.getBounds());
-                            image = SwingFXUtils.toFXImage(img, null);
-                        } catch (AWTException e) {
-                            logger.warn("Unable to capture screenshot using AWT - falling back to JavaFX (colors may differ)", e);
+                double extra = Double.parseDouble(item.strip());
+                if (extra >= 0.25 && extra <= 16 && !scales.contains(extra))
+                    scales.add(extra);
+                else
+                    logger.debug("Ignoring extra scale {}", item);
+            } catch (NumberFormatException e) {
+                logger.warn("Ignoring invalid extra scale '{}'", item);
+            }
+        }
+        return scales;
+    }
+
+    /**
+     * Append a snapshot to an archive in the background, releasing the image once it has been written.
+     * @return a future that completes once the snapshot has been written
+     * @throws RejectedExecutionException if too many writes are pending
+     */
+    private CompletableFuture<?> writeToArchive(BufferedImage img, SnapshotArchive archive, String name,
+                                                Map<String, String> metadata, CaptureSettings settings,
+                                                CaptureStats stats) throws RejectedExecutionException {
+        var format = settings.format();
+        boolean uniqueName = settings.uniqueName();
+        return pipeline.submit(() -> SnapshotWriter.writeToArchive(img, archive, name, format, uniqueName, metadata, stats))
+                .whenComplete((entry, throwable) -> PixelBufferPool.release(img))
+                .whenComplete((entry, throwable) -> Platform.runLater(() -> {
+                    if (throwable == null) {
+                        completeStats(stats);
+                        Dialogs.showInfoNotification(
+                                resources.getString("snapshot"),
+                                MessageFormat.format(resources.getString("snapshot.archivedTo"), entry.name(), archive.getPath())
+                        );
+                    } else
+                        handleWriteError(archive.getPath().toFile(), throwable);
+                }));
+    }
+
+    /**
+     * Get the archive in the output directory of a file.
+     */
+    private static SnapshotArchive getArchive(File file) {
+        var dir = file.getAbsoluteFile().getParentFile();
+        return SnapshotArchive.get(new File(dir, SnapshotArchive.DEFAULT_NAME).toPath());
+    }
+
+    /**
+     * Create the metadata stored with a snapshot in an archive.
+     * This must be called from the JavaFX application thread.
+     */
+    private static Map<String, String> createMetadata(Window win, boolean doScreenshot, double scale, CaptureRegion region) {
+        var metadata = new LinkedHashMap<String, String>();
+        metadata.put("window", getWindowName(win).getValue());
+        metadata.put("type", doScreenshot ? "screenshot" : "snapshot");
+        if (!doScreenshot)
+            metadata.put("scale", Double.toString(scale));
+        if (region != null)
+            metadata.put("region", region.getDescription());
+        metadata.put("image", NamePattern.getImageName());
+        return metadata;
+    }
+
+    /**
+     * Copy a captured image to the system clipboard.
+     * Small images are copied directly as pixels, while large images are encoded in the background and copied
+     * as a PNG file.
+     * @param captured the captured image
+     * @param stats statistics for the capture
+     * @return a future that completes once the image has been copied
+     * @throws RejectedExecutionException if a large image could not be encoded because too many writes are pending
+     */
+    private CompletableFuture<?> copyToClipboard(CapturedImage captured, CaptureStats stats) throws RejectedExecutionException {
+        // Only create the representation we need: a JavaFX image for the clipboard,
+        // or a BufferedImage for encoding
+        if (!ClipboardTransfer.shouldCopyAsFile(captured.getWidth(), captured.getHeight())) {
+            Image fxImage;
+            try (var timer = stats.start(CaptureStats.Stage.CONVERT)) {
+                fxImage = captured.getFXImage();
+            }
+            try (var timer = stats.start(CaptureStats.Stage.CLIPBOARD)) {
+                Clipboard.getSystemClipboard().setContent(Map.of(DataFormat.IMAGE, fxImage));
+            }
+            completeStats(stats);
+            return CompletableFuture.completedFuture(null);
+        }
+        BufferedImage img;
+        try (var timer = stats.start(CaptureStats.Stage.READBACK)) {
+            img = captured.readPixels();
+        }
+        captured.recycle();
+        return pipeline.submit(() -> ClipboardTransfer.encode(img, stats))
+                .whenComplete((encoded, throwable) -> PixelBufferPool.release(img))
+                .whenComplete((encoded, throwable) -> Platform.runLater(() -> {
+                    if (throwable == null) {
+                        try (var timer = stats.start(CaptureStats.Stage.CLIPBOARD)) {
+                            ClipboardTransfer.setContent(encoded);
                         }
+                        completeStats(stats);
+                        Dialogs.showInfoNotification(
+                                resources.getString("snapshot"),
+                                MessageFormat.format(resources.getString("snapshot.copiedAsFile"), encoded.file().getAbsolutePath())
+                        );
+                    } else {
+                        Dialogs.showErrorMessage(
+                                resources.getString("snapshot.error"),
+                                resources.getString("snapshot.unableToCopy")
+                        );
+                        logger.error("Unable to copy snapshot to clipboard", throwable);
                     }
-                    // Need to use JavaFX Robot for Windows & Linux
-                    if (image == null) {
-                        image = new javafx.scene.robot.Robot().getScreenCapture(null,
-                                new javafx.geometry.Rectangle2D(rect.getX(), rect.getY(), rect.getWidth(), rect.getHeight()));
-                        img = SwingFXUtils.fromFXImage(image, null);
-                    }
-                } else {
-                    double scale = spinnerScale.getValue() == null ? 1 : spinnerScale.getValue();
-                    if (scale == 1.0 || scale <= 0.0)
-                        image = win.getScene().snapshot(null);
-                    else {
-                        var node = win.getScene().getRoot();
-                        var params = new SnapshotParameters();
-                        params.setTransform(new Scale(scale, scale));
-                        image = node.snapshot(params, null);
-                    }
-                    img = SwingFXUtils.fromFXImage(image, null);
-                }
-                if (file == null) {
-                    Clipboard.getSystemClipboard().setContent(Map.of(DataFormat.IMAGE, image));
-                    return;
-                }
-
-                if (GeneralTools.getExtension(file).isPresent()) {
-                    file = confirmFile(file);
-                    ImageWriterTools.writeImage(img, file.getAbsolutePath());
-                } else {
-                    var format = comboFormat.getValue();
-                    var quality = format.getJpegQuality();
-                    file = new File(file.getParentFile(), file.getName() + format.getExtension());
-                    file = confirmFile(file);
-                    if (quality >= 0)
-                        writeJpegWithQuality(img, file, quality);
-                    else
-                        ImageIO.write(img, format.getFormatName(), file);
-                }
+                }));
+    }
+
+    /**
+     * Write a snapshot by rendering it tile-by-tile to a TIFF file.
+     * This is needed for very large snapshots, which could not otherwise be held in memory.
+     * @param win the window to snapshot
+     * @param file the requested output file
+     * @param settings the capture settings
+     * @return a future that completes once the snapshot has been written
+     */
+    private CompletableFuture<?> snapshotWindowTiled(Window win, File file, CaptureSettings settings, DoubleConsumer progress) {
+        double scale = settings.scale();
+        var ext = GeneralTools.getExtension(file).orElse("").toLowerCase();
+        if (!ext.equals(".tif") && !ext.equals(".tiff"))
+            file = new File(file.getParentFile(), file.getName() + ".tif");
+        var outputFile = SnapshotWriter.reserve(file, settings.uniqueName());
+        var region = getCaptureRegion(win);
+        var tiledSnapshot = new TiledSnapshot(
+                region == null ? win.getScene().getRoot() : region.getRenderNode(),
+                region == null ? null : region.rectangle(),
+                scale, outputFile.toPath(), settings.pyramid(), TiledSnapshot.DEFAULT_TILE_SIZE);
+        tiledSnapshotRunning.set(true);
+        progressTiled.progressProperty().bind(tiledSnapshot.progressProperty());
+        if (progress != null)
+            tiledSnapshot.progressProperty().addListener((v, o, n) -> progress.accept(n.doubleValue()));
+        return tiledSnapshot.start().whenComplete((path, throwable) -> Platform.runLater(() -> {
+            SnapshotWriter.release(outputFile, throwable == null);
+            progressTiled.progressProperty().unbind();
+            progressTiled.setProgress(ProgressBar.INDETERMINATE_PROGRESS);
+            tiledSnapshotRunning.set(false);
+            if (throwable == null) {
+                reloadGallery();
                 Dialogs.showInfoNotification(
                         resources.getString("snapshot"),
-                        MessageFormat.format(resources.getString("snapshot.writtenTo"), file.getAbsolutePath())
+                        MessageFormat.format(resources.getString("snapshot.writtenTo"), outputFile.getAbsolutePath())
                 );
-            } catch (IOException e) {
-                Dialogs.showErrorMessage(
-                        resources.getString("snapshot.error"),
-                        MessageFormat.format(resources.getString("snapshot.unableToWrite"), file.getAbsolutePath())
-                );
-                logger.error("Unable to take snapshot of current window", e);
-            }
-        }
+            } else
+                handleWriteError(outputFile, throwable);
+        }));
     }
 
     /**
-     * Ensure a file is unique, if necessary.
-     * @param file the input file
-     * @return the input file, or a unique file with a related name in the same directory
+     * Record the statistics for a completed capture, and show them in the stats label.
      */
-    private File confirmFile(File file) {
-        if (!cbUniqueName.isSelected() || !file.exists())
-            return file;
-        var file2 = file;
-        int ind = 0;
-        var root = GeneralTools.getNameWithoutExtension(file);
-        var ext = GeneralTools.getExtension(file).orElse("");
-        while (file2.exists()) {
-            ind++;
-            file2 = new File(file.getParent(), root + "-" + ind + ext);
-        }
-        return file2;
-    }
-    
-
-    private void writeJpegWithQuality(BufferedImage img, File file, float quality) throws IOException {
-        var jpegWriter = ImageIO.getImageWritersByFormatName("jpeg").next();
-        var jpgWriteParam = jpegWriter.getDefaultWriteParam();
-        jpgWriteParam.setCompressionMode(ImageWriteParam.MODE_EXPLICIT);
-        jpgWriteParam.setCompressionQuality(quality);
-        // Need to delete existing file
-        if (file.exists() && file.isFile())
-            file.delete();
-        try (var stream = ImageIO.createImageOutputStream(file)) {
-            jpegWriter.setOutput(stream);
-            img = BufferedImageTools.ensureBufferedImageType(img, BufferedImage.TYPE_INT_RGB); // Can't have alpha
-            jpegWriter.write(null, new IIOImage(img, null, null), jpgWriteParam);
-        }
+    private void completeStats(CaptureStats stats) {
+        stats.complete();
+        labelStats.setText(stats.toSummaryString());
+        labelStats.getTooltip().setText(stats.toDetailedString());
+    }
+
+    private void handleWriteError(File file, Throwable throwable) {
+        if (throwable instanceof CompletionException && throwable.getCause() != null)
+            throwable = throwable.getCause();
+        Dialogs.showErrorMessage(
+                resources.getString("snapshot.error"),
+                MessageFormat.format(resources.getString("snapshot.unableToWrite"), file.getAbsolutePath())
+        );
+        logger.error("Unable to take snapshot of current window", throwable);
     }
 
 }
@@ -45,6 +45,8 @@ public class SnapshotExtension implements QuPathExtension {
 		}
 		isInstalled = true;
 		addMenuItem(qupath);
+		SnapshotPreferences.installPreferences(qupath);
+		CaptureServer.install();
 	}
 
 	/**
@@ -0,0 +1,74 @@
+package qupath.ext.snapshots.ui;
+
+/**
+ * Image formats that can be used when writing snapshots.
+ * The format is only used if the output file name doesn't already have an image extension (e.g. .png or .jpg).
+ */
+public enum SnapshotFormat {
+    PNG, JPEG_HIGH, JPEG_MEDIUM, JPEG_LOW, QOI, TIFF_LZW, TIFF_DEFLATE;
+
+    /**
+     * Get the name of the format.
+     * @return the format name
+     */
+    public String getFormatName() {
+        return switch(this) {
+            case PNG -> "PNG";
+            case QOI -> "QOI";
+            case TIFF_LZW, TIFF_DEFLATE -> "TIFF";
+            default -> "JPEG";
+        };
+    }
+
+    /**
+     * Get the default file extension for the format, including the dot.
+     * @return the file extension
+     */
+    public String getExtension() {
+        return switch(this) {
+            case PNG -> ".png";
+            case QOI -> ".qoi";
+            case TIFF_LZW, TIFF_DEFLATE -> ".tif";
+            default -> ".jpg";
+        };
+    }
+
+    /**
+     * Get the JPEG compression quality for the format.
+     * @return the quality between 0 and 1, or -1 if this is not a JPEG format
+     */
+    public float getJpegQuality() {
+        return switch(this) {
+            case JPEG_HIGH -> 0.9f;
+            case JPEG_MEDIUM -> 0.75f;
+            case JPEG_LOW -> 0.5f;
+            default -> -1f;
+        };
+    }
+
+    /**
+     * Get the compression to use when writing a TIFF.
+     * @return the compression, or null if this is not a TIFF format
+     */
+    TiledTiffWriter.Compression getTiffCompression() {
+        return switch(this) {
+            case TIFF_LZW -> TiledTiffWriter.Compression.LZW;
+            case TIFF_DEFLATE -> TiledTiffWriter.Compression.DEFLATE;
+            default -> null;
+        };
+    }
+
+    @Override
+    public String toString() {
+        return switch(this) {
+            case PNG -> "PNG";
+            case JPEG_HIGH -> "JPEG (high)";
+            case JPEG_MEDIUM -> "JPEG (medium)";
+            case JPEG_LOW -> "JPEG (low)";
+            case QOI -> "QOI (fast lossless)";
+            case TIFF_LZW -> "TIFF (LZW)";
+            case TIFF_DEFLATE -> "TIFF (Deflate)";
+        };
+    }
+
+}
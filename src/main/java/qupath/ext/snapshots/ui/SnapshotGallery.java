@@ -0,0 +1,401 @@
+package qupath.ext.snapshots.ui;
+
+import javafx.application.Platform;
+import javafx.embed.swing.SwingFXUtils;
+import javafx.geometry.Insets;
+import javafx.geometry.Pos;
+import javafx.scene.control.Button;
+import javafx.scene.control.Label;
+import javafx.scene.control.ListCell;
+import javafx.scene.control.ListView;
+import javafx.scene.image.Image;
+import javafx.scene.image.ImageView;
+import javafx.scene.input.MouseButton;
+import javafx.scene.layout.BorderPane;
+import javafx.scene.layout.HBox;
+import javafx.scene.layout.Priority;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import qupath.lib.common.GeneralTools;
+import qupath.lib.common.ThreadTools;
+import qupath.lib.gui.tools.GuiTools;
+
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReader;
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.text.MessageFormat;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.ResourceBundle;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Gallery of the snapshots in a directory, shown as a list of thumbnails.
+ * <p>
+ * Output directories can contain tens of thousands of images, so nothing here is done on the JavaFX application
+ * thread except updating the list: the directory is listed in the background, and thumbnails are only decoded
+ * for the cells that are currently visible (since the list is virtualized).
+ * Thumbnails are read with subsampling (and from the smallest suitable level of a pyramidal TIFF), so the
+ * full-resolution image is never decoded, and kept in a cache that is limited by size.
+ * Thumbnail requests are cancelled when their cell is reused for a different file, so that scrolling quickly
+ * through a large directory doesn't leave a long queue of thumbnails that are no longer needed.
+ */
+class SnapshotGallery extends BorderPane {
+
+    private static final Logger logger = LoggerFactory.getLogger(SnapshotGallery.class);
+
+    private static final ResourceBundle resources = ResourceBundle.getBundle("qupath.ext.snapshots.ui.strings");
+
+    /**
+     * Maximum width and height of a thumbnail, in pixels.
+     */
+    static final int THUMBNAIL_SIZE = 96;
+
+    /**
+     * Maximum total size of cached thumbnails, in bytes.
+     */
+    static final long MAX_CACHE_BYTES = 64L * 1024 * 1024;
+
+    /**
+     * Extensions of files that can be shown; other formats (e.g. QOI) can't be read by ImageIO.
+     */
+    private static final Set<String> EXTENSIONS = Set.of(".png", ".jpg", ".jpeg", ".tif", ".tiff", ".bmp", ".gif");
+
+    private static final ThumbnailCache cache = new ThumbnailCache(MAX_CACHE_BYTES);
+
+    private static final ExecutorService loader = Executors.newFixedThreadPool(2,
+            ThreadTools.createThreadFactory("snapshot-thumbnails-", true));
+
+    private final ListView<Path> listView = new ListView<>();
+    private final Label labelCount = new Label();
+    private final Label placeholder = new Label();
+
+    private Path directory;
+
+    // Used to ignore listings that complete after the directory has changed
+    private int generation = 0;
+
+    /**
+     * Create a new, empty gallery.
+     */
+    SnapshotGallery() {
+        listView.setCellFactory(v -> new ThumbnailCell());
+        // A fixed cell size avoids needing to measure cells, which helps with very long lists
+        listView.setFixedCellSize(THUMBNAIL_SIZE + 8);
+        listView.setPlaceholder(placeholder);
+        listView.setPrefHeight(300);
+        listView.setOnMouseClicked(e -> {
+            var path = listView.getSelectionModel().getSelectedItem();
+            if (path != null && e.getButton() == MouseButton.PRIMARY && e.getClickCount() == 2)
+                GuiTools.browseURI(path.toUri());
+        });
+        var btnRefresh = new Button(resources.getString("gallery.refresh"));
+        btnRefresh.setOnAction(e -> refresh());
+        labelCount.setMaxWidth(Double.MAX_VALUE);
+        HBox.setHgrow(labelCount, Priority.ALWAYS);
+        var top = new HBox(5, labelCount, btnRefresh);
+        top.setAlignment(Pos.CENTER_LEFT);
+        top.setPadding(new Insets(0, 0, 5, 0));
+        setTop(top);
+        setCenter(listView);
+    }
+
+    /**
+     * Show the snapshots in a directory, listing it again even if it hasn't changed.
+     * This must be called from the JavaFX application thread.
+     * @param directory the directory, or null to show nothing
+     */
+    void setDirectory(Path directory) {
+        this.directory = directory;
+        reload();
+    }
+
+    /**
+     * List the current directory again, and discard any cached thumbnails (in case files have been replaced).
+     * This must be called from the JavaFX application thread.
+     */
+    void refresh() {
+        cache.clear();
+        reload();
+    }
+
+    /**
+     * List the current directory again, to include any new snapshots.
+     * This must be called from the JavaFX application thread.
+     */
+    void reload() {
+        int current = ++generation;
+        var dir = directory;
+        labelCount.setText("");
+        if (dir == null) {
+            listView.getItems().clear();
+            placeholder.setText(resources.getString("gallery.empty"));
+            return;
+        }
+        placeholder.setText(resources.getString("gallery.loading"));
+        CompletableFuture.supplyAsync(() -> listImages(dir)).whenComplete((paths, throwable) -> Platform.runLater(() -> {
+            if (current != generation)
+                return;
+            var items = paths;
+            if (throwable != null) {
+                logger.warn("Unable to list {}: {}", dir, throwable.getMessage());
+                items = List.of();
+            }
+            listView.getItems().setAll(items);
+            placeholder.setText(resources.getString("gallery.empty"));
+            labelCount.setText(MessageFormat.format(resources.getString("gallery.count"), items.size()));
+        }));
+    }
+
+    /**
+     * List the images in a directory, newest first (assuming that names include a timestamp or counter).
+     * Names are compared so that numbers are sorted by their value, e.g. 'snapshot-10' comes after 'snapshot-9'.
+     * File attributes aren't read, since this can be slow for large directories on network storage.
+     */
+    private static List<Path> listImages(Path dir) {
+        var paths = new ArrayList<Path>();
+        if (!Files.isDirectory(dir))
+            return paths;
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(dir, SnapshotGallery::isImage)) {
+            stream.forEach(paths::add);
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+        paths.sort(Comparator.comparing((Path p) -> p.getFileName().toString(), SnapshotGallery::compareNames).reversed());
+        return paths;
+    }
+
+    /**
+     * Compare names so that sequences of digits are compared by their numeric value, and other characters
+     * are compared ignoring case.
+     */
+    static int compareNames(String name1, String name2) {
+        int i1 = 0, i2 = 0;
+        int n1 = name1.length(), n2 = name2.length();
+        while (i1 < n1 && i2 < n2) {
+            char c1 = name1.charAt(i1);
+            char c2 = name2.charAt(i2);
+            if (Character.isDigit(c1) && Character.isDigit(c2)) {
+                // Skip leading zeros, then a longer number is larger - otherwise compare digit by digit
+                int start1 = i1, start2 = i2;
+                while (start1 < n1 - 1 && name1.charAt(start1) == '0' && Character.isDigit(name1.charAt(start1 + 1)))
+                    start1++;
+                while (start2 < n2 - 1 && name2.charAt(start2) == '0' && Character.isDigit(name2.charAt(start2 + 1)))
+                    start2++;
+                int end1 = start1, end2 = start2;
+                while (end1 < n1 && Character.isDigit(name1.charAt(end1)))
+                    end1++;
+                while (end2 < n2 && Character.isDigit(name2.charAt(end2)))
+                    end2++;
+                int cmp = Integer.compare(end1 - start1, end2 - start2);
+                for (int k = 0; cmp == 0 && k < end1 - start1; k++)
+                    cmp = Character.compare(name1.charAt(start1 + k), name2.charAt(start2 + k));
+                if (cmp != 0)
+                    return cmp;
+                i1 = end1;
+                i2 = end2;
+            } else {
+                int cmp = Character.compare(Character.toLowerCase(c1), Character.toLowerCase(c2));
+                if (cmp != 0)
+                    return cmp;
+                i1++;
+                i2++;
+            }
+        }
+        if (i1 < n1 || i2 < n2)
+            return Integer.compare(n1 - i1, n2 - i2);
+        // Names that only differ in case or leading zeros still need a consistent order
+        return name1.compareTo(name2);
+    }
+
+    private static boolean isImage(Path path) {
+        var name = path.getFileName().toString();
+        if (name.startsWith("."))
+            return false;
+        var ext = GeneralTools.getExtension(name).orElse("").toLowerCase(Locale.ROOT);
+        return EXTENSIONS.contains(ext);
+    }
+
+    /**
+     * Read a thumbnail without decoding the full-resolution image.
+     * For images with several resolution levels, the smallest level that is at least as large as the thumbnail
+     * is used, and then rows and columns are skipped using subsampling.
+     * @param path the image file
+     * @param size the maximum width and height of the thumbnail
+     * @return the thumbnail, or null if the image could not be read
+     * @throws IOException if the file could not be read
+     */
+    static BufferedImage readThumbnail(Path path, int size) throws IOException {
+        try (var stream = ImageIO.createImageInputStream(path.toFile())) {
+            if (stream == null)
+                return null;
+            var readers = ImageIO.getImageReaders(stream);
+            if (!readers.hasNext())
+                return null;
+            ImageReader reader = readers.next();
+            try {
+                reader.setInput(stream, false, true);
+                int index = chooseImageIndex(reader, size);
+                int width = reader.getWidth(index);
+                int height = reader.getHeight(index);
+                int subsampling = Math.max(1, Math.max(width, height) / size);
+                var param = reader.getDefaultReadParam();
+                param.setSourceSubsampling(subsampling, subsampling, 0, 0);
+                return resize(reader.read(index, param), size);
+            } finally {
+                reader.dispose();
+            }
+        }
+    }
+
+    /**
+     * Choose the smallest image that is at least as large as the thumbnail, assuming that any images after the
+     * first are reduced-resolution versions of it (as written by {@link TiledTiffWriter}).
+     */
+    private static int chooseImageIndex(ImageReader reader, int size) throws IOException {
+        int n = reader.getNumImages(false);
+        if (n <= 1)
+            return 0;
+        int index = 0;
+        double aspectRatio = reader.getWidth(0) / (double)reader.getHeight(0);
+        for (int i = 1; i < n; i++) {
+            int width = reader.getWidth(i);
+            int height = reader.getHeight(i);
+            if (Math.abs(width / (double)height - aspectRatio) > 0.05 || Math.max(width, height) < size)
+                break;
+            index = i;
+        }
+        return index;
+    }
+
+    /**
+     * Resize an image so that it fits within a square, if it is larger; subsampling only reduces the size by
+     * integer factors, so may give an image that is up to twice as large as required.
+     */
+    private static BufferedImage resize(BufferedImage img, int size) {
+        if (img == null || (img.getWidth() <= size && img.getHeight() <= size))
+            return img;
+        double scale = size / (double)Math.max(img.getWidth(), img.getHeight());
+        int width = Math.max(1, (int)Math.round(img.getWidth() * scale));
+        int height = Math.max(1, (int)Math.round(img.getHeight() * scale));
+        var resized = new BufferedImage(width, height, BufferedImage.TYPE_INT_ARGB);
+        Graphics2D g2d = resized.createGraphics();
+        g2d.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+        g2d.drawImage(img, 0, 0, width, height, null);
+        g2d.dispose();
+        return resized;
+    }
+
+    private Future<?> requestThumbnail(Path path, ThumbnailCell cell) {
+        return loader.submit(() -> {
+            Image image;
+            try {
+                var img = readThumbnail(path, THUMBNAIL_SIZE);
+                if (img == null)
+                    return;
+                image = SwingFXUtils.toFXImage(img, null);
+            } catch (IOException | RuntimeException e) {
+                logger.debug("Unable to read thumbnail for {}: {}", path, e.getMessage());
+                return;
+            }
+            cache.put(path, image);
+            Platform.runLater(() -> {
+                if (path.equals(cell.getItem()))
+                    cell.view.setImage(image);
+            });
+        });
+    }
+
+
+    private class ThumbnailCell extends ListCell<Path> {
+
+        private final ImageView view = new ImageView();
+
+        private Future<?> request;
+
+        private ThumbnailCell() {
+            view.setFitWidth(THUMBNAIL_SIZE);
+            view.setFitHeight(THUMBNAIL_SIZE);
+            view.setPreserveRatio(true);
+        }
+
+        @Override
+        protected void updateItem(Path item, boolean empty) {
+            super.updateItem(item, empty);
+            // The cell may have been reused for a different file
+            if (request != null) {
+                request.cancel(false);
+                request = null;
+            }
+            if (empty || item == null) {
+                setText(null);
+                setGraphic(null);
+                view.setImage(null);
+                return;
+            }
+            setText(item.getFileName().toString());
+            setGraphic(view);
+            var thumbnail = cache.get(item);
+            view.setImage(thumbnail);
+            if (thumbnail == null)
+                request = requestThumbnail(item, this);
+        }
+
+    }
+
+
+    /**
+     * Cache of thumbnails, discarding the least recently used once the total size exceeds a limit.
+     */
+    private static class ThumbnailCache {
+
+        private final long maxBytes;
+        private final Map<Path, Image> map = new LinkedHashMap<>(16, 0.75f, true);
+        private long totalBytes = 0L;
+
+        private ThumbnailCache(long maxBytes) {
+            this.maxBytes = maxBytes;
+        }
+
+        private synchronized Image get(Path path) {
+            return map.get(path);
+        }
+
+        private synchronized void put(Path path, Image image) {
+            var previous = map.put(path, image);
+            if (previous != null)
+                totalBytes -= bytes(previous);
+            totalBytes += bytes(image);
+            var iterator = map.values().iterator();
+            while (totalBytes > maxBytes && iterator.hasNext()) {
+                totalBytes -= bytes(iterator.next());
+                iterator.remove();
+            }
+        }
+
+        private synchronized void clear() {
+            map.clear();
+            totalBytes = 0L;
+        }
+
+        private static long bytes(Image image) {
+            return (long)image.getWidth() * (long)image.getHeight() * Integer.BYTES;
+        }
+
+    }
+
+}
@@ -0,0 +1,145 @@
+package qupath.ext.snapshots.ui;
+
+import javafx.beans.property.BooleanProperty;
+import javafx.beans.property.DoubleProperty;
+import javafx.beans.property.IntegerProperty;
+import javafx.beans.property.ObjectProperty;
+import qupath.fx.prefs.controlsfx.PropertyItemBuilder;
+import qupath.lib.gui.QuPathGUI;
+import qupath.lib.gui.prefs.PathPrefs;
+
+import java.util.Arrays;
+import java.util.ResourceBundle;
+
+/**
+ * Persistent preferences for the snapshot extension that are shown in QuPath's preference pane,
+ * rather than in the snapshot window itself.
+ */
+final class SnapshotPreferences {
+
+    private static final ResourceBundle resources = ResourceBundle.getBundle("qupath.ext.snapshots.ui.strings");
+
+    private static final IntegerProperty pngCompressionLevel = PathPrefs.createPersistentPreference(
+            "ext.snapshots.pngCompressionLevel", 6);
+
+    private static final ObjectProperty<ParallelPngWriter.Strategy> pngStrategy = PathPrefs.createPersistentPreference(
+            "ext.snapshots.pngStrategy", ParallelPngWriter.Strategy.DEFAULT, ParallelPngWriter.Strategy.class);
+
+    private static final IntegerProperty clipboardFileMegapixels = PathPrefs.createPersistentPreference(
+            "ext.snapshots.clipboardFileMegapixels", 16);
+
+    private static final DoubleProperty changeThreshold = PathPrefs.createPersistentPreference(
+            "ext.snapshots.changeThreshold", 0.1);
+
+    private static final BooleanProperty syncWrites = PathPrefs.createPersistentPreference(
+            "ext.snapshots.syncWrites", false);
+
+    private static final BooleanProperty serverEnabled = PathPrefs.createPersistentPreference(
+            "ext.snapshots.serverEnabled", false);
+
+    private static final IntegerProperty serverPort = PathPrefs.createPersistentPreference(
+            "ext.snapshots.serverPort", 8765);
+
+    private SnapshotPreferences() {
+        throw new AssertionError("Cannot instantiate this class");
+    }
+
+    /**
+     * Add the preferences to QuPath's preference pane.
+     * @param qupath the QuPath GUI
+     */
+    static void installPreferences(QuPathGUI qupath) {
+        var category = resources.getString("prefs.category");
+        var items = qupath.getPreferencePane().getPropertySheet().getItems();
+        items.add(new PropertyItemBuilder<>(pngCompressionLevel, Integer.class)
+                .name(resources.getString("prefs.pngCompressionLevel.label"))
+                .category(category)
+                .description(resources.getString("prefs.pngCompressionLevel.description"))
+                .build());
+        items.add(new PropertyItemBuilder<>(pngStrategy, ParallelPngWriter.Strategy.class)
+                .propertyType(PropertyItemBuilder.PropertyType.CHOICE)
+                .choices(Arrays.asList(ParallelPngWriter.Strategy.values()))
+                .name(resources.getString("prefs.pngStrategy.label"))
+                .category(category)
+                .description(resources.getString("prefs.pngStrategy.description"))
+                .build());
+        items.add(new PropertyItemBuilder<>(clipboardFileMegapixels, Integer.class)
+                .name(resources.getString("prefs.clipboardFileMegapixels.label"))
+                .category(category)
+                .description(resources.getString("prefs.clipboardFileMegapixels.description"))
+                .build());
+        items.add(new PropertyItemBuilder<>(changeThreshold, Double.class)
+                .name(resources.getString("prefs.changeThreshold.label"))
+                .category(category)
+                .description(resources.getString("prefs.changeThreshold.description"))
+                .build());
+        items.add(new PropertyItemBuilder<>(syncWrites, Boolean.class)
+                .name(resources.getString("prefs.syncWrites.label"))
+                .category(category)
+                .description(resources.getString("prefs.syncWrites.description"))
+                .build());
+        items.add(new PropertyItemBuilder<>(serverEnabled, Boolean.class)
+                .name(resources.getString("prefs.serverEnabled.label"))
+                .category(category)
+                .description(resources.getString("prefs.serverEnabled.description"))
+                .build());
+        items.add(new PropertyItemBuilder<>(serverPort, Integer.class)
+                .name(resources.getString("prefs.serverPort.label"))
+                .category(category)
+                .description(resources.getString("prefs.serverPort.description"))
+                .build());
+    }
+
+    /**
+     * Get the number of pixels above which images are copied to the clipboard as a PNG file,
+     * rather than as raw pixels.
+     * @return the number of pixels, or {@link Long#MAX_VALUE} if images should always be copied as raw pixels
+     */
+    static long getClipboardFileThreshold() {
+        int megapixels = clipboardFileMegapixels.get();
+        return megapixels <= 0 ? Long.MAX_VALUE : megapixels * 1_000_000L;
+    }
+
+    /**
+     * Create a detector for changes between frames, using the current threshold.
+     * @return a new change detector
+     */
+    static ChangeDetector createChangeDetector() {
+        return new ChangeDetector(changeThreshold.get() / 100.0);
+    }
+
+    /**
+     * Check whether written files should be synced to the storage device before they become visible.
+     * @return true if files should be synced
+     */
+    static boolean isSyncWrites() {
+        return syncWrites.get();
+    }
+
+    /**
+     * Get the property indicating whether the local capture server should be running.
+     * @return the property
+     * @see CaptureServer
+     */
+    static BooleanProperty serverEnabledProperty() {
+        return serverEnabled;
+    }
+
+    /**
+     * Get the property giving the port used by the local capture server.
+     * @return the property
+     * @see CaptureServer
+     */
+    static IntegerProperty serverPortProperty() {
+        return serverPort;
+    }
+
+    /**
+     * Create a PNG writer using the current preferences.
+     * @return a new PNG writer
+     */
+    static ParallelPngWriter createPngWriter() {
+        return new ParallelPngWriter(pngCompressionLevel.get(), pngStrategy.get());
+    }
+
+}
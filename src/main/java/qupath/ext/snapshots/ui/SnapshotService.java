@@ -0,0 +1,424 @@
+package qupath.ext.snapshots.ui;
+
+import javafx.application.Platform;
+import javafx.scene.Node;
+import javafx.stage.Stage;
+import javafx.stage.Window;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import qupath.lib.common.GeneralTools;
+import qupath.lib.gui.QuPathGUI;
+import qupath.lib.gui.images.stores.TileListener;
+import qupath.lib.gui.viewer.QuPathViewer;
+import qupath.lib.projects.Project;
+import qupath.lib.projects.ProjectImageEntry;
+
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+
+/**
+ * Scripting API to capture snapshots without using the snapshot window.
+ * <p>
+ * Windows, the active viewer or any node can be captured, and images in a project can be captured in a batch.
+ * Rendering always happens on the JavaFX application thread, but the methods here can be called from any
+ * thread (e.g. from a script); encoding and writing happen in the background.
+ * <p>
+ * For example, in a Groovy script:
+ * <pre>{@code
+ * def service = new qupath.ext.snapshots.ui.SnapshotService()
+ * service.setScale(2.0)
+ * service.captureViewer(new File("/path/to/viewer.png")).join()
+ * service.captureAllWindows(new File("/path/to/figure"), false).join()
+ * service.captureProject(getProject(), new File("/path/to/qc"))
+ * }</pre>
+ */
+public class SnapshotService {
+
+    private static final Logger logger = LoggerFactory.getLogger(SnapshotService.class);
+
+    /**
+     * Default time to wait for the viewer to stop loading tiles before a batch capture, in milliseconds.
+     */
+    public static final long DEFAULT_SETTLE_MILLIS = 500L;
+
+    /**
+     * Default maximum time to wait for the viewer to finish rendering a new image, in milliseconds.
+     */
+    public static final long DEFAULT_RENDER_TIMEOUT_MILLIS = 30_000L;
+
+    /**
+     * Pipeline shared by all services, so that creating a service (e.g. each time a script is run) doesn't create
+     * more threads.
+     */
+    private static final CapturePipeline pipeline = CapturePipeline.createDefault();
+
+    private SnapshotFormat format = SnapshotFormat.PNG;
+    private double scale = 1.0;
+    private boolean uniqueNames = true;
+    private long settleMillis = DEFAULT_SETTLE_MILLIS;
+    private long renderTimeoutMillis = DEFAULT_RENDER_TIMEOUT_MILLIS;
+
+    /**
+     * Create a new service, using PNG format at the original scale, without overwriting existing files.
+     */
+    public SnapshotService() {}
+
+    /**
+     * Set the format used for files that don't have an extension.
+     * @param format the format
+     */
+    public void setFormat(SnapshotFormat format) {
+        this.format = format == null ? SnapshotFormat.PNG : format;
+    }
+
+    /**
+     * Get the format used for files that don't have an extension.
+     * @return the format
+     */
+    public SnapshotFormat getFormat() {
+        return format;
+    }
+
+    /**
+     * Set the scale at which windows and nodes are rendered.
+     * @param scale the scale factor, where 1.0 is the original size
+     */
+    public void setScale(double scale) {
+        if (!(scale > 0))
+            throw new IllegalArgumentException("Scale must be greater than 0");
+        this.scale = scale;
+    }
+
+    /**
+     * Get the scale at which windows and nodes are rendered.
+     * @return the scale factor
+     */
+    public double getScale() {
+        return scale;
+    }
+
+    /**
+     * Set whether a number should be added to output file names to avoid overwriting existing files.
+     * @param uniqueNames true if existing files should not be overwritten
+     */
+    public void setUniqueNames(boolean uniqueNames) {
+        this.uniqueNames = uniqueNames;
+    }
+
+    /**
+     * Get whether a number is added to output file names to avoid overwriting existing files.
+     * @return true if existing files are not overwritten
+     */
+    public boolean getUniqueNames() {
+        return uniqueNames;
+    }
+
+    /**
+     * Set how long to wait for the viewer during a batch capture.
+     * @param settleMillis the time that must pass without any new tiles being loaded before capturing
+     * @param timeoutMillis the maximum time to wait for rendering to finish; if this is exceeded, the image is
+     *                      captured anyway
+     */
+    public void setRenderWait(long settleMillis, long timeoutMillis) {
+        this.settleMillis = Math.max(0, settleMillis);
+        this.renderTimeoutMillis = Math.max(this.settleMillis, timeoutMillis);
+    }
+
+    /**
+     * Capture the window with the specified title.
+     * @param title the title of the window
+     * @param file the output file
+     * @return a future that completes with the file that was written (which may differ from the requested file
+     *         if unique names are used)
+     * @throws IllegalArgumentException if no showing window has the specified title
+     */
+    public CompletableFuture<File> captureWindow(String title, File file) {
+        return capture(() -> {
+            var window = findWindow(title);
+            return window == null ? null : readPixels(WindowCapture.snapshot(window, scale));
+        }, file, "No window found with title '" + title + "'");
+    }
+
+    /**
+     * Capture the active viewer in QuPath.
+     * @param file the output file
+     * @return a future that completes with the file that was written
+     * @throws IllegalArgumentException if there is no active viewer
+     */
+    public CompletableFuture<File> captureViewer(File file) {
+        return capture(() -> {
+            var viewer = getViewer();
+            return viewer == null ? null : readPixels(WindowCapture.snapshot(viewer.getView(), scale));
+        }, file, "No active viewer found");
+    }
+
+    /**
+     * Capture a node.
+     * @param node the node to capture
+     * @param file the output file
+     * @return a future that completes with the file that was written
+     */
+    public CompletableFuture<File> captureNode(Node node, File file) {
+        return capture(() -> readPixels(WindowCapture.snapshot(node, scale)), file, "No node provided");
+    }
+
+    /**
+     * Capture all showing windows together, so that they show a consistent state.
+     * @param file the output folder, or the output file if a contact sheet is written
+     * @param contactSheet if true, combine the windows into a single image; otherwise, write each window to a
+     *                     separate file in the folder, named according to its title
+     * @return a future that completes with the folder or file that was written
+     * @throws IllegalArgumentException if no windows are showing
+     * @see #captureAllWindows(Collection, File, boolean)
+     */
+    public CompletableFuture<File> captureAllWindows(File file, boolean contactSheet) {
+        return captureAllWindows(null, file, contactSheet);
+    }
+
+    /**
+     * Capture several windows together, so that they show a consistent state.
+     * Rendering happens in a single call on the JavaFX application thread, and the files are then encoded and
+     * written concurrently in the background.
+     * @param windows the windows to capture, or null to capture all showing windows; windows that are not
+     *                showing are skipped
+     * @param file the output folder, or the output file if a contact sheet is written; if the folder name has an
+     *             extension, this is used for each file in it
+     * @param contactSheet if true, combine the windows into a single image; otherwise, write each window to a
+     *                     separate file in the folder, named according to its title
+     * @return a future that completes with the folder or file that was written
+     * @throws IllegalArgumentException if none of the windows are showing
+     */
+    public CompletableFuture<File> captureAllWindows(Collection<? extends Window> windows, File file, boolean contactSheet) {
+        if (!Platform.isFxApplicationThread()) {
+            try {
+                pipeline.awaitCapacity();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return CompletableFuture.failedFuture(e);
+            }
+        }
+        var captured = callOnFxThread(() -> {
+            var list = MultiWindowCapture.captureAll(windows == null ? getShowingWindows() : List.copyOf(windows), false, scale);
+            var images = list.stream().map(c -> readPixels(c.image())).toList();
+            return new CapturedWindows(list.stream().map(MultiWindowCapture.CapturedWindow::title).toList(), images);
+        });
+        if (captured.images().isEmpty())
+            throw new IllegalArgumentException("No windows found to capture");
+        var images = captured.images();
+        if (contactSheet) {
+            var sheet = MultiWindowCapture.createContactSheet(images, MultiWindowCapture.DEFAULT_GAP);
+            images.forEach(PixelBufferPool::release);
+            return submitWrite(sheet, file);
+        }
+        var format = this.format;
+        var ext = GeneralTools.getExtension(file).orElse("");
+        var name = ext.isEmpty() ? file.getName() : GeneralTools.getNameWithoutExtension(file);
+        var folder = SnapshotWriter.reserve(new File(file.getParentFile(), name), uniqueNames);
+        return submit(() -> SnapshotWriter.writeAll(images, captured.titles(), folder, ext, format))
+                .whenComplete((f, t) -> {
+                    SnapshotWriter.release(folder, t == null);
+                    images.forEach(PixelBufferPool::release);
+                });
+    }
+
+    /**
+     * Titles and pixels of windows that were captured together.
+     */
+    private record CapturedWindows(List<String> titles, List<BufferedImage> images) {}
+
+    /**
+     * Open each image of a project in the active viewer and capture it.
+     * @param project the project
+     * @param directory the output directory; files are named according to the image names, with the extension
+     *                  of the format
+     * @return the files that were written
+     * @throws IOException if any image could not be captured
+     * @throws InterruptedException if the thread was interrupted while waiting
+     * @see #captureProject(Collection, File)
+     */
+    public List<File> captureProject(Project<BufferedImage> project, File directory) throws IOException, InterruptedException {
+        return captureProject(project.getImageList(), directory);
+    }
+
+    /**
+     * Open each image in the active viewer and capture it.
+     * <p>
+     * After an image is opened, this waits until the viewer has stopped loading tiles before capturing.
+     * Each capture is encoded and written in the background while the next image is loaded.
+     * This must not be called from the JavaFX application thread.
+     * Note that QuPath may prompt to save changes when switching images.
+     * @param entries the project images to capture
+     * @param directory the output directory; files are named according to the image names, with the extension
+     *                  of the format
+     * @return the files that were written
+     * @throws IOException if any image could not be opened or written; the other images are still captured
+     * @throws InterruptedException if the thread was interrupted while waiting
+     */
+    public List<File> captureProject(Collection<? extends ProjectImageEntry<BufferedImage>> entries, File directory)
+            throws IOException, InterruptedException {
+        if (Platform.isFxApplicationThread())
+            throw new IllegalStateException("Batch capture cannot be run on the JavaFX application thread");
+        var qupath = QuPathGUI.getInstance();
+        if (qupath == null)
+            throw new IllegalStateException("Batch capture requires the QuPath user interface");
+
+        List<CompletableFuture<File>> futures = new ArrayList<>();
+        List<String> failed = new ArrayList<>();
+        for (var entry : entries) {
+            var name = entry.getImageName();
+            boolean opened = callOnFxThread(() -> qupath.openImageEntry(entry));
+            if (!opened) {
+                logger.warn("Unable to open {}", name);
+                failed.add(name);
+                continue;
+            }
+            var viewer = callOnFxThread(qupath::getViewer);
+            waitForRendering(viewer);
+            var img = callOnFxThread(() -> readPixels(WindowCapture.snapshot(viewer.getView(), scale)));
+            // Image names usually have an extension (e.g. '.svs') that mustn't be used to choose the writer;
+            // the format's extension is added when writing, so that its own encoder is used
+            var file = new File(directory, NamePattern.sanitize(GeneralTools.stripExtension(name)));
+            pipeline.awaitCapacity();
+            futures.add(submitWrite(img, file));
+        }
+
+        List<File> written = new ArrayList<>();
+        for (var future : futures) {
+            try {
+                written.add(future.join());
+            } catch (CompletionException e) {
+                logger.error("Unable to write snapshot", e.getCause());
+                failed.add(e.getCause() == null ? e.getMessage() : e.getCause().getMessage());
+            }
+        }
+        if (!failed.isEmpty())
+            throw new IOException(failed.size() + " image(s) could not be captured: " + String.join(", ", failed));
+        return written;
+    }
+
+    private CompletableFuture<File> capture(Supplier<BufferedImage> capture, File file, String missingMessage) {
+        if (!Platform.isFxApplicationThread()) {
+            try {
+                pipeline.awaitCapacity();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return CompletableFuture.failedFuture(e);
+            }
+        }
+        var img = callOnFxThread(capture::get);
+        if (img == null)
+            throw new IllegalArgumentException(missingMessage);
+        return submitWrite(img, file);
+    }
+
+    /**
+     * Read the pixels of a captured image into a pooled buffer, and return the captured image to the pool.
+     * The result should be released once it has been written.
+     */
+    private static BufferedImage readPixels(CapturedImage captured) {
+        var img = captured.readPixels();
+        captured.recycle();
+        return img;
+    }
+
+    private CompletableFuture<File> submitWrite(BufferedImage img, File file) {
+        var format = this.format;
+        boolean uniqueNames = this.uniqueNames;
+        return submit(() -> SnapshotWriter.write(img, file, format, uniqueNames))
+                .whenComplete((f, t) -> PixelBufferPool.release(img));
+    }
+
+    /**
+     * Submit a task to the pipeline, waiting for capacity if it is busy (unless called from the JavaFX
+     * application thread).
+     */
+    private static <T> CompletableFuture<T> submit(Callable<T> task) {
+        while (true) {
+            try {
+                return pipeline.submit(task);
+            } catch (RejectedExecutionException e) {
+                // Another thread took the capacity we waited for - we can only wait again if not on the FX thread
+                if (Platform.isFxApplicationThread())
+                    throw e;
+                try {
+                    pipeline.awaitCapacity();
+                } catch (InterruptedException e2) {
+                    Thread.currentThread().interrupt();
+                    return CompletableFuture.failedFuture(e2);
+                }
+            }
+        }
+    }
+
+    /**
+     * Wait until the viewer has stopped receiving new tiles, and then for it to repaint.
+     */
+    private void waitForRendering(QuPathViewer viewer) throws InterruptedException {
+        var store = viewer.getImageRegionStore();
+        long start = System.currentTimeMillis();
+        var lastTile = new AtomicLong(start);
+        TileListener<BufferedImage> listener = (serverPath, region, tile) ->
+                lastTile.set(System.currentTimeMillis());
+        store.addTileListener(listener);
+        try {
+            while (true) {
+                long now = System.currentTimeMillis();
+                if (now - lastTile.get() >= settleMillis)
+                    break;
+                if (now - start >= renderTimeoutMillis) {
+                    logger.warn("Viewer still rendering after {} ms - capturing anyway", renderTimeoutMillis);
+                    break;
+                }
+                Thread.sleep(Math.max(10, Math.min(50, settleMillis)));
+            }
+        } finally {
+            store.removeTileListener(listener);
+        }
+        // Make sure any repaint triggered by the last tile has been processed
+        callOnFxThread(() -> {
+            viewer.repaintEntireImage();
+            return null;
+        });
+        callOnFxThread(() -> null);
+    }
+
+    private static List<Window> getShowingWindows() {
+        return Window.getWindows().stream().filter(w -> w instanceof Stage && w.isShowing()).toList();
+    }
+
+    private static Window findWindow(String title) {
+        for (var window : Window.getWindows()) {
+            if (window.isShowing() && window instanceof Stage stage && title.equals(stage.getTitle()))
+                return window;
+        }
+        return null;
+    }
+
+    private static QuPathViewer getViewer() {
+        var qupath = QuPathGUI.getInstance();
+        return qupath == null ? null : qupath.getViewer();
+    }
+
+    private static <T> T callOnFxThread(Supplier<T> supplier) {
+        if (Platform.isFxApplicationThread())
+            return supplier.get();
+        try {
+            return CompletableFuture.supplyAsync(supplier, Platform::runLater).join();
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof RuntimeException re)
+                throw re;
+            throw e;
+        }
+    }
+
+}
@@ -0,0 +1,479 @@
+package qupath.ext.snapshots.ui;
+
+import qupath.lib.common.GeneralTools;
+import qupath.lib.common.ThreadTools;
+import qupath.lib.images.writers.ImageWriterTools;
+
+import javax.imageio.ImageIO;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.function.DoubleConsumer;
+import java.util.zip.Deflater;
+
+/**
+ * Static methods to encode and write snapshots, shared by the user interface and {@link SnapshotService}.
+ * <p>
+ * Output names are chosen using a shared {@link FileNameIndex}, so that snapshots written concurrently from
+ * different places never use the same file.
+ */
+final class SnapshotWriter {
+
+    /**
+     * Maximum total size of encoded files waiting to be written, in bytes.
+     */
+    private static final long MAX_PENDING_BYTES = 256L * 1024 * 1024;
+
+    /**
+     * Maximum number of files that may be synced to storage together.
+     */
+    private static final int MAX_SYNC_GROUP_SIZE = 32;
+
+    private static final JpegEncoder jpegEncoder = new JpegEncoder();
+
+    /**
+     * Threads used to encode several snapshots concurrently.
+     * These are kept separate from the common pool, since encoding blocks while waiting for the sink - and the
+     * common pool is also used to compress PNG strips and downsample images.
+     */
+    private static final ExecutorService encoders = Executors.newFixedThreadPool(
+            Math.max(1, Math.min(4, Runtime.getRuntime().availableProcessors() / 2)),
+            ThreadTools.createThreadFactory("snapshot-encoder-", true));
+
+    /**
+     * Sink used to write all files in the background, without exposing partially-written files.
+     */
+    private static final FileSink sink = new FileSink(MAX_PENDING_BYTES, MAX_SYNC_GROUP_SIZE, SnapshotPreferences::isSyncWrites);
+
+    /**
+     * Index used to choose unique output names, including for files still being written in the background.
+     */
+    private static final FileNameIndex nameIndex = new FileNameIndex();
+
+    private SnapshotWriter() {
+        throw new AssertionError("Cannot instantiate this class");
+    }
+
+    /**
+     * Reserve an output file, which will not be returned again until it is released.
+     * @param file the requested file
+     * @param uniqueName whether the name must be unique
+     * @return the file to write
+     * @see FileNameIndex#reserve(File, boolean)
+     */
+    static File reserve(File file, boolean uniqueName) {
+        return nameIndex.reserve(file, uniqueName);
+    }
+
+    /**
+     * Release a file previously returned by {@link #reserve(File, boolean)}.
+     * @param file the file
+     * @param written true if the file was written successfully
+     */
+    static void release(File file, boolean written) {
+        nameIndex.release(file, written);
+    }
+
+    /**
+     * Create a hidden temporary file next to a target file, for writers that stream directly to a file.
+     * @param target the target file
+     * @return the temporary file
+     * @throws IOException if the file could not be created
+     * @see #commit(Path, Path)
+     */
+    static Path createTempFile(Path target) throws IOException {
+        return sink.createTempFile(target);
+    }
+
+    /**
+     * Rename a complete temporary file to its target, after any earlier writes, so that a partially-written file
+     * is never visible under the target name.
+     * @param temp the temporary file, created with {@link #createTempFile(Path)}
+     * @param target the target file, which is replaced if it already exists
+     * @return a future that completes when the target file has been written
+     */
+    static CompletableFuture<Path> commit(Path temp, Path target) {
+        return sink.commit(temp, target, null);
+    }
+
+    /**
+     * Encode and write a snapshot.
+     * This is intended to be called from a background thread.
+     * @param img the image to write
+     * @param file the requested output file, possibly without an extension
+     * @param format the format to use if the file has no image extension (e.g. .png, .jpg or .tif)
+     * @param uniqueName whether to ensure the output file name is unique
+     * @return the file that was written
+     * @throws IOException if the image could not be written
+     */
+    static File write(BufferedImage img, File file, SnapshotFormat format, boolean uniqueName) throws IOException {
+        return write(img, file, format, uniqueName, null);
+    }
+
+    /**
+     * Encode and write a snapshot, optionally recording statistics.
+     * This is intended to be called from a background thread, and returns once the file has been written.
+     * @param img the image to write
+     * @param file the requested output file, possibly without an extension
+     * @param format the format to use if the file has no image extension (e.g. .png, .jpg or .tif)
+     * @param uniqueName whether to ensure the output file name is unique
+     * @param stats statistics to update with the encode and write stages; may be null
+     * @return the file that was written
+     * @throws IOException if the image could not be written
+     */
+    static File write(BufferedImage img, File file, SnapshotFormat format, boolean uniqueName,
+                      CaptureStats stats) throws IOException {
+        try {
+            return writeBehind(img, file, format, uniqueName, stats).join();
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof IOException ioe)
+                throw ioe;
+            throw e;
+        }
+    }
+
+    /**
+     * Encode a snapshot on the current thread, and write it to the file in the background.
+     * The image can be reused as soon as this returns.
+     * This is intended to be called from a background thread, since it blocks if too many files are waiting to
+     * be written.
+     * @param img the image to write
+     * @param file the requested output file, possibly without an extension
+     * @param format the format to use if the file has no image extension (e.g. .png, .jpg or .tif)
+     * @param uniqueName whether to ensure the output file name is unique
+     * @param stats statistics to update with the encode and write stages; may be null
+     * @return a future that completes with the file once it has been written
+     * @throws IOException if the image could not be encoded
+     * @see FileSink
+     */
+    static CompletableFuture<File> writeBehind(BufferedImage img, File file, SnapshotFormat format, boolean uniqueName,
+                                               CaptureStats stats) throws IOException {
+        boolean hasExtension = hasImageExtension(file);
+        if (!hasExtension)
+            file = new File(file.getParentFile(), file.getName() + format.getExtension());
+        var outputFile = nameIndex.reserve(file, uniqueName);
+        return writeReserved(img, outputFile, hasExtension, format, stats);
+    }
+
+    /**
+     * Encode and write a snapshot at several scales, deriving each from a single image rendered at the largest
+     * scale, so that the scene only needs to be rendered once.
+     * <p>
+     * The file for the first scale is named as requested, and the others add the scale as a suffix to the
+     * chosen name (e.g. {@code snapshot-3-0.5x.png}), so that any counter is the same for all of them.
+     * This is intended to be called from a background thread, and returns once all files have been written.
+     * @param img the image, rendered at {@code renderScale}
+     * @param renderScale the scale at which the image was rendered
+     * @param scales the scales to write, which must not be larger than {@code renderScale}
+     * @param file the requested output file for the first scale, possibly without an extension
+     * @param format the format to use if the file has no image extension (e.g. .png, .jpg or .tif)
+     * @param uniqueName whether to ensure the output file names are unique
+     * @param stats statistics to update with the downsample, encode and write stages, and the total size of all
+     *              files; may be null
+     * @return the files that were written, in the same order as the scales
+     * @throws IOException if any image could not be written
+     */
+    static List<File> writeScaled(BufferedImage img, double renderScale, List<Double> scales, File file,
+                                  SnapshotFormat format, boolean uniqueName, CaptureStats stats) throws IOException {
+        boolean hasExtension = hasImageExtension(file);
+        if (!hasExtension)
+            file = new File(file.getParentFile(), file.getName() + format.getExtension());
+        File firstFile = null;
+        var futures = new ArrayList<CompletableFuture<File>>();
+        for (double scale : scales) {
+            File outputFile;
+            if (firstFile == null) {
+                outputFile = nameIndex.reserve(file, uniqueName);
+                firstFile = outputFile;
+            } else {
+                var suffix = "-" + GeneralTools.formatNumber(Locale.ROOT, scale, 3) + "x";
+                outputFile = nameIndex.reserve(appendToName(firstFile, suffix), uniqueName);
+            }
+            BufferedImage scaled;
+            try {
+                scaled = downsample(img, renderScale / scale, stats);
+            } catch (RuntimeException e) {
+                nameIndex.release(outputFile, false);
+                throw e;
+            }
+            try {
+                futures.add(writeReserved(scaled, outputFile, hasExtension, format, stats));
+            } finally {
+                // Encoding is complete, so the downsampled image can be reused
+                if (scaled != img)
+                    PixelBufferPool.release(scaled);
+            }
+        }
+        var files = new ArrayList<File>();
+        try {
+            for (var future : futures)
+                files.add(future.join());
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof IOException ioe)
+                throw ioe;
+            throw e;
+        }
+        return files;
+    }
+
+    /**
+     * Downsample an image, or return it unchanged if the downsample factor is (approximately) 1.
+     */
+    private static BufferedImage downsample(BufferedImage img, double downsample, CaptureStats stats) {
+        if (Math.abs(downsample - 1) < 1e-6)
+            return img;
+        try (var timer = stats == null ? null : stats.start(CaptureStats.Stage.CONVERT)) {
+            return Downsampler.downsample(img, downsample);
+        }
+    }
+
+    /**
+     * Encode a snapshot to a file that has already been reserved, and write it in the background.
+     * The file is released once it has been written, or if encoding fails.
+     */
+    private static CompletableFuture<File> writeReserved(BufferedImage img, File outputFile, boolean hasExtension,
+                                                         SnapshotFormat format, CaptureStats stats) throws IOException {
+        CompletableFuture<?> future;
+        try {
+            future = encode(img, outputFile, hasExtension, format, stats);
+        } catch (IOException | RuntimeException e) {
+            nameIndex.release(outputFile, false);
+            throw e;
+        } catch (InterruptedException e) {
+            nameIndex.release(outputFile, false);
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting to write " + outputFile);
+        }
+        return future.handle((path, throwable) -> {
+            nameIndex.release(outputFile, throwable == null);
+            if (throwable != null)
+                throw throwable instanceof CompletionException ce ? ce : new CompletionException(throwable);
+            return outputFile;
+        });
+    }
+
+    private static CompletableFuture<?> encode(BufferedImage img, File file, boolean hasExtension, SnapshotFormat format,
+                                               CaptureStats stats) throws IOException, InterruptedException {
+        var path = file.toPath();
+        if (isPng(file))
+            return sink.write(path, createTimedEncoder(img, SnapshotFormat.PNG, stats), stats);
+        else if (isQoi(file))
+            return sink.write(path, createTimedEncoder(img, SnapshotFormat.QOI, stats), stats);
+        else if (!hasExtension && format.getTiffCompression() != null)
+            return writeTiff(img, path, format.getTiffCompression(), stats);
+        else if (!hasExtension && format.getJpegQuality() >= 0)
+            return writeJpegWithQuality(img, path, format, stats);
+        else if (!hasExtension)
+            return sink.write(path, createTimedEncoder(img, format, stats), stats);
+        else {
+            // The writer is chosen according to the extension, which is retained by the temporary file
+            var temp = sink.createTempFile(path);
+            try (var timer = stats == null ? null : stats.start(CaptureStats.Stage.ENCODE)) {
+                ImageWriterTools.writeImage(img, temp.toString());
+                if (stats != null)
+                    stats.addOutputBytes(Files.size(temp));
+            } catch (IOException | RuntimeException e) {
+                Files.deleteIfExists(temp);
+                throw e;
+            }
+            return sink.commit(temp, path, stats);
+        }
+    }
+
+    /**
+     * Create an encoder that records the time it takes as {@link CaptureStats.Stage#ENCODE}, and reports its
+     * progress if it can measure it.
+     */
+    private static FileSink.Encoder createTimedEncoder(BufferedImage img, SnapshotFormat format, CaptureStats stats) {
+        if (stats == null)
+            return createEncoder(img, format, null);
+        var encoder = createEncoder(img, format, stats::reportEncodeProgress);
+        return stream -> {
+            try (var timer = stats.start(CaptureStats.Stage.ENCODE)) {
+                encoder.encode(stream);
+            }
+        };
+    }
+
+    /**
+     * Encode a snapshot and append it to an archive, rather than writing a separate file.
+     * This is intended to be called from a background thread.
+     * @param img the image to write
+     * @param archive the archive
+     * @param name the requested entry name; any extension is replaced by that of the format
+     * @param format the format to use
+     * @param uniqueName whether to ensure the entry name is unique within the archive
+     * @param metadata metadata to store with the entry
+     * @param stats statistics to update with the encode and write stages; may be null
+     * @return the entry that was written
+     * @throws IOException if the image could not be written
+     * @see SnapshotArchive
+     */
+    static SnapshotArchive.Entry writeToArchive(BufferedImage img, SnapshotArchive archive, String name,
+                                                SnapshotFormat format, boolean uniqueName,
+                                                Map<String, String> metadata, CaptureStats stats) throws IOException {
+        var ext = GeneralTools.getExtension(name).orElse("");
+        name = name.substring(0, name.length() - ext.length()) + format.getExtension();
+        var values = new LinkedHashMap<>(metadata);
+        values.put("width", Integer.toString(img.getWidth()));
+        values.put("height", Integer.toString(img.getHeight()));
+        return archive.append(name, uniqueName, createTimedEncoder(img, format, stats), values, stats);
+    }
+
+    /**
+     * Encode an image to a stream, rather than writing it to a file.
+     * @param img the image
+     * @param format the format
+     * @param stream the stream; this is not closed
+     * @throws IOException if the image could not be encoded
+     */
+    static void encode(BufferedImage img, SnapshotFormat format, OutputStream stream) throws IOException {
+        createEncoder(img, format, null).encode(stream);
+    }
+
+    /**
+     * Create an encoder for an image in the specified format.
+     * The progress is only reported by encoders that can measure it, and may be null.
+     */
+    private static FileSink.Encoder createEncoder(BufferedImage img, SnapshotFormat format, DoubleConsumer progress) {
+        var compression = format.getTiffCompression();
+        float quality = format.getJpegQuality();
+        if (compression != null) {
+            // The TIFF writer needs random access, so write to a temporary file and copy it
+            return stream -> {
+                var temp = Files.createTempFile("snapshot-", ".tif");
+                try {
+                    TiledTiffWriter.write(img, temp, compression, Deflater.BEST_SPEED, true, progress);
+                    Files.copy(temp, stream);
+                } finally {
+                    Files.deleteIfExists(temp);
+                }
+            };
+        } else if (quality >= 0) {
+            return stream -> jpegEncoder.write(img, stream, quality, progress);
+        } else if (format == SnapshotFormat.QOI) {
+            return stream -> QoiWriter.write(img, stream, progress);
+        } else if (format == SnapshotFormat.PNG) {
+            return stream -> SnapshotPreferences.createPngWriter().write(img, stream, progress);
+        } else {
+            return stream -> {
+                if (!ImageIO.write(img, format.getFormatName(), stream))
+                    throw new IOException("No writer found for " + format.getFormatName());
+            };
+        }
+    }
+
+    /**
+     * Append a suffix to the name of a file, before any extension.
+     * @param file the file
+     * @param suffix the suffix to append
+     * @return a file in the same directory, with the suffix added
+     */
+    static File appendToName(File file, String suffix) {
+        var ext = GeneralTools.getExtension(file).orElse("");
+        var root = ext.isEmpty() ? file.getName() : GeneralTools.getNameWithoutExtension(file);
+        return new File(file.getParentFile(), root + suffix + ext);
+    }
+
+    /**
+     * Check whether a file name ends with an extension that can be used to choose the writer.
+     * Other extensions (e.g. '.svs' from an image name or window title) are treated as part of the name.
+     */
+    private static boolean hasImageExtension(File file) {
+        var ext = GeneralTools.getExtension(file).orElse("").toLowerCase(Locale.ROOT);
+        if (ext.isEmpty())
+            return false;
+        return isQoi(file) || ImageIO.getImageWritersBySuffix(ext.substring(1)).hasNext();
+    }
+
+    private static boolean isPng(File file) {
+        return ".png".equalsIgnoreCase(GeneralTools.getExtension(file).orElse(""));
+    }
+
+    private static boolean isQoi(File file) {
+        return ".qoi".equalsIgnoreCase(GeneralTools.getExtension(file).orElse(""));
+    }
+
+    /**
+     * Write a tiled TIFF, compressing tiles in parallel.
+     * The fastest deflate level is used, since these formats are intended for speed rather than size.
+     * The TIFF writer needs random access, so writes to a temporary file that is committed by the sink.
+     */
+    private static CompletableFuture<?> writeTiff(BufferedImage img, Path path, TiledTiffWriter.Compression compression,
+                                                  CaptureStats stats) throws IOException {
+        var temp = sink.createTempFile(path);
+        try (var timer = stats == null ? null : stats.start(CaptureStats.Stage.ENCODE)) {
+            TiledTiffWriter.write(img, temp, compression, Deflater.BEST_SPEED, true,
+                    stats == null ? null : stats::reportEncodeProgress);
+            if (stats != null)
+                stats.addOutputBytes(Files.size(temp));
+        } catch (IOException | RuntimeException e) {
+            Files.deleteIfExists(temp);
+            throw e;
+        }
+        return sink.commit(temp, path, stats);
+    }
+
+    private static CompletableFuture<?> writeJpegWithQuality(BufferedImage img, Path path, SnapshotFormat format,
+                                                             CaptureStats stats) throws IOException, InterruptedException {
+        if (stats != null) {
+            try (var timer = stats.start(CaptureStats.Stage.CONVERT)) {
+                img = JpegEncoder.toRGB(img);
+            }
+        }
+        return sink.write(path, createTimedEncoder(img, format, stats), stats);
+    }
+
+    /**
+     * Write several snapshots to a folder concurrently, naming each file according to its window title.
+     * This is intended to be called from a background thread.
+     * @param images the images to write
+     * @param titles the titles of the images, used to name the files
+     * @param folder the output folder, which is created if necessary
+     * @param ext the file extension, or an empty string to use the default extension of the format
+     * @param format the format to use if no extension is given
+     * @return the folder
+     * @throws IOException if any image could not be written
+     */
+    static File writeAll(List<BufferedImage> images, List<String> titles, File folder,
+                                       String ext, SnapshotFormat format) throws IOException {
+        Files.createDirectories(folder.toPath());
+        var futures = new ArrayList<CompletableFuture<File>>();
+        for (int i = 0; i < images.size(); i++) {
+            var img = images.get(i);
+            // Always add an extension, since window titles often contain dots - but only an explicit extension
+            // should choose the writer, so that the format's own encoder (and quality or compression) is used
+            boolean hasExtension = !ext.isEmpty();
+            var file = new File(folder, NamePattern.sanitize(titles.get(i)) + (hasExtension ? ext : format.getExtension()));
+            futures.add(CompletableFuture.supplyAsync(() -> {
+                try {
+                    return writeReserved(img, nameIndex.reserve(file, true), hasExtension, format, null).join();
+                } catch (IOException e) {
+                    throw new CompletionException(e);
+                }
+            }, encoders));
+        }
+        try {
+            CompletableFuture.allOf(futures.toArray(CompletableFuture[]::new)).join();
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof IOException ioe)
+                throw ioe;
+            throw e;
+        }
+        return folder;
+    }
+
+}
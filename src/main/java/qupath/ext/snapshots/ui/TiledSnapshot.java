@@ -0,0 +1,331 @@
+package qupath.ext.snapshots.ui;
+
+import javafx.application.Platform;
+import javafx.beans.property.ReadOnlyDoubleProperty;
+import javafx.beans.property.ReadOnlyDoubleWrapper;
+import javafx.geometry.BoundingBox;
+import javafx.geometry.Rectangle2D;
+import javafx.scene.Node;
+import javafx.scene.SnapshotParameters;
+import javafx.scene.image.PixelFormat;
+import javafx.scene.image.WritableImage;
+import javafx.scene.transform.Scale;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import qupath.lib.common.ThreadTools;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Render a node tile-by-tile and stream the tiles to a (possibly pyramidal) TIFF file.
+ * <p>
+ * This makes it possible to create snapshots at resolutions far beyond what could be held in memory
+ * as a single image. Tiles are rendered on the JavaFX application thread using a viewport, while compression,
+ * downsampling and writing happen in the background.
+ * Only a small number of tiles are held in memory at any time: rendering pauses until earlier tiles have been
+ * written, and tiles are rendered in Z-order so that each lower-resolution tile can be written as soon as
+ * all its higher-resolution tiles are available.
+ */
+class TiledSnapshot {
+
+    private static final Logger logger = LoggerFactory.getLogger(TiledSnapshot.class);
+
+    /**
+     * Default tile size, in pixels.
+     */
+    static final int DEFAULT_TILE_SIZE = 512;
+
+    private final Node node;
+    private final Rectangle2D region;
+    private final double scale;
+    private final Path path;
+    private final boolean pyramid;
+    private final int tileSize;
+
+    private final ReadOnlyDoubleWrapper progress = new ReadOnlyDoubleWrapper(0);
+
+    private final CompletableFuture<Path> future = new CompletableFuture<>();
+
+    // Tiles are written to a temporary file, which is only renamed to the output path once it is complete
+    private Path temp;
+
+    private final Map<Long, PartialTile> partialTiles = new HashMap<>();
+
+    // The following fields are only accessed on the JavaFX application thread
+    private TiledTiffWriter writer;
+    private ExecutorService pool;
+    private int maxInFlight;
+    private SnapshotParameters params;
+    private WritableImage tileImage;
+    private Rectangle2D bounds;
+    private int[] tileOrder;
+    private int nextTile = 0;
+    private int nInFlight = 0;
+    private int nCompleted = 0;
+
+    /**
+     * Create a tiled snapshot.
+     * @param node the node to render, typically the root of a scene
+     * @param scale the scale factor to apply when rendering
+     * @param path the output path
+     * @param pyramid whether to include reduced-resolution levels
+     * @param tileSize the size of each rendered tile; must be a multiple of 16
+     */
+    TiledSnapshot(Node node, double scale, Path path, boolean pyramid, int tileSize) {
+        this(node, null, scale, path, pyramid, tileSize);
+    }
+
+    /**
+     * Create a tiled snapshot of part of a node.
+     * @param node the node to render, typically the root of a scene
+     * @param region the region to render in the parent coordinates of the node, or null to render the whole node
+     * @param scale the scale factor to apply when rendering
+     * @param path the output path
+     * @param pyramid whether to include reduced-resolution levels
+     * @param tileSize the size of each rendered tile; must be a multiple of 16
+     */
+    TiledSnapshot(Node node, Rectangle2D region, double scale, Path path, boolean pyramid, int tileSize) {
+        this.node = node;
+        this.region = region;
+        this.scale = scale <= 0 ? 1.0 : scale;
+        this.path = path;
+        this.pyramid = pyramid;
+        this.tileSize = tileSize;
+    }
+
+    /**
+     * Start rendering.
+     * This must be called from the JavaFX application thread.
+     * @return a future that completes with the output path, once the file has been fully written
+     */
+    CompletableFuture<Path> start() {
+        if (!Platform.isFxApplicationThread())
+            throw new IllegalStateException("Tiled snapshots must be started on the JavaFX application thread");
+        if (pool != null)
+            throw new IllegalStateException("Tiled snapshot has already been started");
+        try {
+            var transform = new Scale(scale, scale);
+            var transformed = transform.transform(region == null ? node.getBoundsInParent() :
+                    new BoundingBox(region.getMinX(), region.getMinY(), region.getWidth(), region.getHeight()));
+            bounds = new Rectangle2D(transformed.getMinX(), transformed.getMinY(),
+                    transformed.getWidth(), transformed.getHeight());
+            int width = (int)Math.ceil(bounds.getWidth());
+            int height = (int)Math.ceil(bounds.getHeight());
+            int nLevels = pyramid ? TiledTiffWriter.computePyramidLevels(width, height, tileSize) : 1;
+            temp = SnapshotWriter.createTempFile(path);
+            writer = new TiledTiffWriter(temp, width, height, tileSize, nLevels, TiledTiffWriter.Compression.DEFLATE, 6);
+            logger.debug("Writing tiled snapshot {}x{} ({} levels, BigTIFF={}) to {}",
+                    width, height, nLevels, writer.isBigTiff(), path);
+
+            params = new SnapshotParameters();
+            params.setTransform(transform);
+            tileImage = new WritableImage(tileSize, tileSize);
+            tileOrder = createZOrder(writer.nTilesX(0), writer.nTilesY(0));
+
+            int nThreads = Math.max(1, Math.min(4, Runtime.getRuntime().availableProcessors() / 2));
+            maxInFlight = nThreads * 2;
+            pool = Executors.newFixedThreadPool(nThreads, ThreadTools.createThreadFactory("snapshot-tiles-", true));
+            renderTiles();
+        } catch (Exception e) {
+            fail(e);
+        }
+        return future;
+    }
+
+    /**
+     * Progress of the snapshot, between 0 and 1.
+     * This is only updated on the JavaFX application thread.
+     * @return the progress property
+     */
+    ReadOnlyDoubleProperty progressProperty() {
+        return progress.getReadOnlyProperty();
+    }
+
+    private void renderTiles() {
+        while (!future.isDone() && nInFlight < maxInFlight && nextTile < tileOrder.length) {
+            int ind = tileOrder[nextTile++];
+            int tx = ind % writer.nTilesX(0);
+            int ty = ind / writer.nTilesX(0);
+            params.setViewport(new Rectangle2D(
+                    bounds.getMinX() + tx * tileSize,
+                    bounds.getMinY() + ty * tileSize,
+                    tileSize, tileSize));
+            node.snapshot(params, tileImage);
+            int[] pixels = new int[tileSize * tileSize];
+            tileImage.getPixelReader().getPixels(0, 0, tileSize, tileSize,
+                    PixelFormat.getIntArgbInstance(), pixels, 0, tileSize);
+            nInFlight++;
+            CompletableFuture.runAsync(() -> {
+                        try {
+                            writeTile(0, tx, ty, pixels);
+                        } catch (IOException e) {
+                            throw new RuntimeException(e);
+                        }
+                    }, pool)
+                    .whenComplete((v, t) -> Platform.runLater(() -> handleTileComplete(t)));
+        }
+    }
+
+    private void handleTileComplete(Throwable t) {
+        nInFlight--;
+        if (future.isDone())
+            return;
+        if (t != null) {
+            fail(t);
+            return;
+        }
+        nCompleted++;
+        progress.set(nCompleted / (double)tileOrder.length);
+        if (nCompleted == tileOrder.length) {
+            CompletableFuture.runAsync(() -> {
+                try {
+                    writer.close();
+                } catch (IOException e) {
+                    throw new RuntimeException(e);
+                }
+            }, pool).thenCompose(v -> SnapshotWriter.commit(temp, path))
+                    .whenComplete((v, t2) -> Platform.runLater(() -> {
+                        pool.shutdown();
+                        if (t2 == null)
+                            future.complete(path);
+                        else
+                            fail(t2);
+                    }));
+        } else {
+            renderTiles();
+        }
+    }
+
+    private void fail(Throwable t) {
+        while (t.getCause() != null && (t instanceof RuntimeException))
+            t = t.getCause();
+        future.completeExceptionally(t);
+        if (pool != null)
+            pool.shutdownNow();
+        if (writer != null) {
+            try {
+                writer.close();
+            } catch (IOException e) {
+                logger.debug("Error closing TIFF writer: {}", e.getMessage());
+            }
+        }
+        try {
+            if (temp != null)
+                Files.deleteIfExists(temp);
+        } catch (IOException e) {
+            logger.warn("Unable to delete incomplete snapshot {}", temp, e);
+        }
+    }
+
+    /**
+     * Write a tile, then add it to the next resolution level (if needed) - writing that level's tile
+     * recursively once it is complete.
+     */
+    private void writeTile(int level, int tx, int ty, int[] pixels) throws IOException {
+        writer.writeTile(level, tx, ty, pixels);
+        if (level + 1 >= writer.nLevels())
+            return;
+
+        int px = tx / 2;
+        int py = ty / 2;
+        long key = ((long)(level + 1) << 48) | ((long)py << 24) | px;
+        PartialTile parent;
+        synchronized (partialTiles) {
+            parent = partialTiles.computeIfAbsent(key, k -> new PartialTile(level + 1, px, py));
+        }
+        boolean complete = parent.addChild(pixels, tx % 2, ty % 2);
+        if (complete) {
+            synchronized (partialTiles) {
+                partialTiles.remove(key);
+            }
+            writeTile(level + 1, px, py, parent.pixels);
+        }
+    }
+
+
+    /**
+     * Create an array of tile indices in Z-order (Morton order), so that groups of 2x2 tiles are always
+     * rendered consecutively.
+     */
+    private static int[] createZOrder(int nTilesX, int nTilesY) {
+        int n = Math.max(nTilesX, nTilesY);
+        int side = Integer.highestOneBit(n);
+        if (side < n)
+            side *= 2;
+        int[] order = new int[nTilesX * nTilesY];
+        int count = 0;
+        for (int i = 0; i < side * side; i++) {
+            int x = compactBits(i);
+            int y = compactBits(i >> 1);
+            if (x < nTilesX && y < nTilesY)
+                order[count++] = y * nTilesX + x;
+        }
+        return order;
+    }
+
+    private static int compactBits(int v) {
+        v &= 0x55555555;
+        v = (v | (v >> 1)) & 0x33333333;
+        v = (v | (v >> 2)) & 0x0F0F0F0F;
+        v = (v | (v >> 4)) & 0x00FF00FF;
+        v = (v | (v >> 8)) & 0x0000FFFF;
+        return v;
+    }
+
+
+    /**
+     * A lower-resolution tile that is created by downsampling up to 4 higher-resolution tiles.
+     */
+    private class PartialTile {
+
+        private final int[] pixels = new int[tileSize * tileSize];
+        private int remaining;
+
+        private PartialTile(int level, int tx, int ty) {
+            int nx = writer.nTilesX(level - 1);
+            int ny = writer.nTilesY(level - 1);
+            int cols = Math.min(2, nx - tx * 2);
+            int rows = Math.min(2, ny - ty * 2);
+            remaining = cols * rows;
+        }
+
+        /**
+         * Downsample a child tile into the appropriate quadrant.
+         * @return true if all children have now been added
+         */
+        private boolean addChild(int[] child, int qx, int qy) {
+            int half = tileSize / 2;
+            for (int y = 0; y < half; y++) {
+                int rowOut = (qy * half + y) * tileSize + qx * half;
+                int row1 = (y * 2) * tileSize;
+                int row2 = row1 + tileSize;
+                for (int x = 0; x < half; x++) {
+                    int x2 = x * 2;
+                    pixels[rowOut + x] = average(child[row1 + x2], child[row1 + x2 + 1],
+                            child[row2 + x2], child[row2 + x2 + 1]);
+                }
+            }
+            synchronized (this) {
+                remaining--;
+                return remaining == 0;
+            }
+        }
+
+        private static int average(int v1, int v2, int v3, int v4) {
+            int a = (((v1 >>> 24) + (v2 >>> 24) + (v3 >>> 24) + (v4 >>> 24) + 2) >> 2);
+            int r = ((((v1 >> 16) & 0xff) + ((v2 >> 16) & 0xff) + ((v3 >> 16) & 0xff) + ((v4 >> 16) & 0xff) + 2) >> 2);
+            int g = ((((v1 >> 8) & 0xff) + ((v2 >> 8) & 0xff) + ((v3 >> 8) & 0xff) + ((v4 >> 8) & 0xff) + 2) >> 2);
+            int b = (((v1 & 0xff) + (v2 & 0xff) + (v3 & 0xff) + (v4 & 0xff) + 2) >> 2);
+            return (a << 24) | (r << 16) | (g << 8) | b;
+        }
+
+    }
+
+}
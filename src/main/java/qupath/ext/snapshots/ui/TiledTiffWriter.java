@@ -0,0 +1,507 @@
+package qupath.ext.snapshots.ui;
+
+import java.awt.image.BufferedImage;
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.DoubleConsumer;
+import java.util.zip.Deflater;
+
+/**
+ * Minimal streaming writer for tiled RGB TIFF images, with optional reduced-resolution levels.
+ * <p>
+ * Tiles can be written in any order (and from any thread); only the tile offsets are retained in memory,
+ * and the image file directories are written when the writer is closed.
+ * A BigTIFF is written automatically if the uncompressed image might exceed the limits of a classic TIFF.
+ * <p>
+ * Each resolution level is written as a separate image file directory, with all levels after the first
+ * flagged as reduced-resolution images.
+ */
+class TiledTiffWriter implements Closeable {
+
+    /**
+     * Supported TIFF compression types.
+     */
+    enum Compression {
+        NONE(1), LZW(5), DEFLATE(8);
+
+        private final int tiffValue;
+
+        Compression(int tiffValue) {
+            this.tiffValue = tiffValue;
+        }
+    }
+
+    private static final int TYPE_ASCII = 2;
+    private static final int TYPE_SHORT = 3;
+    private static final int TYPE_LONG = 4;
+    private static final int TYPE_LONG8 = 16;
+
+    private static final String SOFTWARE = "QuPath snapshots extension";
+
+    /**
+     * Tile size used when writing a complete image with {@link #write(BufferedImage, Path, Compression, int, boolean)}.
+     */
+    static final int IMAGE_TILE_SIZE = 256;
+
+    private final FileChannel channel;
+    private final boolean bigTiff;
+    private final Compression compression;
+    private final int compressionLevel;
+    private final boolean predictor;
+    private final int tileSize;
+    private final int[] levelWidths;
+    private final int[] levelHeights;
+    private final long[][] tileOffsets;
+    private final long[][] tileByteCounts;
+
+    private long position;
+    private boolean closed = false;
+
+    /**
+     * Create a new writer, opening (and replacing) the output file.
+     * @param path the output file
+     * @param width the full-resolution image width
+     * @param height the full-resolution image height
+     * @param tileSize the tile width and height; must be a multiple of 16
+     * @param nLevels the number of resolution levels; each level is downsampled by 2 relative to the previous one
+     * @param compression the compression to use for tiles
+     * @param compressionLevel the compression level to use, if applicable (0-9)
+     * @throws IOException if the file cannot be opened
+     */
+    TiledTiffWriter(Path path, int width, int height, int tileSize, int nLevels,
+                    Compression compression, int compressionLevel) throws IOException {
+        this(path, width, height, tileSize, nLevels, compression, compressionLevel, false);
+    }
+
+    /**
+     * Create a new writer, opening (and replacing) the output file, optionally using a horizontal predictor.
+     * <p>
+     * The predictor stores the difference between each sample and the same sample of the previous pixel,
+     * which often makes LZW or Deflate compression of screen content much more effective.
+     * @param path the output file
+     * @param width the full-resolution image width
+     * @param height the full-resolution image height
+     * @param tileSize the tile width and height; must be a multiple of 16
+     * @param nLevels the number of resolution levels; each level is downsampled by 2 relative to the previous one
+     * @param compression the compression to use for tiles
+     * @param compressionLevel the compression level to use, if applicable (0-9)
+     * @param predictor whether to apply a horizontal predictor before compression; ignored if there is no compression
+     * @throws IOException if the file cannot be opened
+     */
+    TiledTiffWriter(Path path, int width, int height, int tileSize, int nLevels,
+                    Compression compression, int compressionLevel, boolean predictor) throws IOException {
+        if (width <= 0 || height <= 0)
+            throw new IllegalArgumentException("Image width and height must be > 0");
+        if (tileSize <= 0 || tileSize % 16 != 0)
+            throw new IllegalArgumentException("Tile size must be a positive multiple of 16");
+        if (nLevels < 1)
+            throw new IllegalArgumentException("Number of levels must be at least 1");
+        this.tileSize = tileSize;
+        this.compression = compression;
+        this.compressionLevel = compressionLevel;
+        this.predictor = predictor && compression != Compression.NONE;
+        this.levelWidths = new int[nLevels];
+        this.levelHeights = new int[nLevels];
+        this.tileOffsets = new long[nLevels][];
+        this.tileByteCounts = new long[nLevels][];
+        long maxBytes = 0;
+        for (int level = 0; level < nLevels; level++) {
+            levelWidths[level] = levelSize(width, level);
+            levelHeights[level] = levelSize(height, level);
+            int nTiles = nTilesX(level) * nTilesY(level);
+            tileOffsets[level] = new long[nTiles];
+            tileByteCounts[level] = new long[nTiles];
+            maxBytes += (long)nTiles * tileSize * tileSize * 3;
+        }
+        // Allow some headroom for compression overhead & directories
+        this.bigTiff = maxBytes + maxBytes / 16 + 65536 > 0xFFFFFFFFL;
+        this.channel = FileChannel.open(path,
+                StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+        writeHeader();
+    }
+
+    /**
+     * Write a complete image as a single-resolution tiled TIFF, compressing tiles in parallel using the common
+     * fork-join pool.
+     * @param img the image; any alpha channel is ignored
+     * @param path the output file
+     * @param compression the compression to use for tiles
+     * @param compressionLevel the compression level to use, if applicable (0-9)
+     * @param predictor whether to apply a horizontal predictor before compression
+     * @throws IOException if the image could not be written
+     */
+    static void write(BufferedImage img, Path path, Compression compression, int compressionLevel,
+                      boolean predictor) throws IOException {
+        write(img, path, compression, compressionLevel, predictor, null);
+    }
+
+    /**
+     * Write a complete image as a single-resolution tiled TIFF, reporting progress as each tile is written.
+     * @param img the image; any alpha channel is ignored
+     * @param path the output file
+     * @param compression the compression to use for tiles
+     * @param compressionLevel the compression level to use, if applicable (0-9)
+     * @param predictor whether to apply a horizontal predictor before compression
+     * @param progress consumer to report the fraction of tiles written, which may be called from any thread;
+     *                 may be null
+     * @throws IOException if the image could not be written
+     */
+    static void write(BufferedImage img, Path path, Compression compression, int compressionLevel,
+                      boolean predictor, DoubleConsumer progress) throws IOException {
+        int width = img.getWidth();
+        int height = img.getHeight();
+        int[] pixels = PngEncoding.getPackedPixels(img);
+        int[] argb = pixels == null ? img.getRGB(0, 0, width, height, null, 0, width) : pixels;
+        int tileSize = IMAGE_TILE_SIZE;
+        try (var writer = new TiledTiffWriter(path, width, height, tileSize, 1, compression, compressionLevel, predictor)) {
+            List<CompletableFuture<Void>> futures = new ArrayList<>();
+            int nTiles = writer.nTilesX(0) * writer.nTilesY(0);
+            var nWritten = new AtomicInteger();
+            for (int ty = 0; ty < writer.nTilesY(0); ty++) {
+                for (int tx = 0; tx < writer.nTilesX(0); tx++) {
+                    int tileX = tx;
+                    int tileY = ty;
+                    futures.add(CompletableFuture.runAsync(() -> {
+                        int[] tile = new int[tileSize * tileSize];
+                        int x = tileX * tileSize;
+                        int w = Math.min(tileSize, width - x);
+                        for (int y = tileY * tileSize, i = 0; y < Math.min(height, (tileY + 1) * tileSize); y++, i++)
+                            System.arraycopy(argb, y * width + x, tile, i * tileSize, w);
+                        try {
+                            writer.writeTile(0, tileX, tileY, tile);
+                        } catch (IOException e) {
+                            throw new CompletionException(e);
+                        }
+                        if (progress != null)
+                            progress.accept(nWritten.incrementAndGet() / (double)nTiles);
+                    }));
+                }
+            }
+            CompletableFuture.allOf(futures.toArray(CompletableFuture[]::new)).join();
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof IOException ioe)
+                throw ioe;
+            throw e;
+        }
+    }
+
+    /**
+     * Get the image size at a specified resolution level.
+     * @param fullSize the full-resolution width or height
+     * @param level the resolution level
+     * @return the width or height at the level
+     */
+    static int levelSize(int fullSize, int level) {
+        return Math.max(1, (int)Math.ceil(fullSize / Math.pow(2, level)));
+    }
+
+    /**
+     * Compute the number of levels needed for a pyramid, stopping when the lowest resolution fits within one tile.
+     * @param width the full-resolution width
+     * @param height the full-resolution height
+     * @param tileSize the tile size
+     * @return the number of levels
+     */
+    static int computePyramidLevels(int width, int height, int tileSize) {
+        int nLevels = 1;
+        while (levelSize(width, nLevels - 1) > tileSize || levelSize(height, nLevels - 1) > tileSize)
+            nLevels++;
+        return nLevels;
+    }
+
+    int getTileSize() {
+        return tileSize;
+    }
+
+    int nLevels() {
+        return levelWidths.length;
+    }
+
+    int getLevelWidth(int level) {
+        return levelWidths[level];
+    }
+
+    int getLevelHeight(int level) {
+        return levelHeights[level];
+    }
+
+    int nTilesX(int level) {
+        return (levelWidths[level] + tileSize - 1) / tileSize;
+    }
+
+    int nTilesY(int level) {
+        return (levelHeights[level] + tileSize - 1) / tileSize;
+    }
+
+    boolean isBigTiff() {
+        return bigTiff;
+    }
+
+    /**
+     * Write a tile.
+     * The pixels should be packed (A)RGB values, with a length of at least tileSize x tileSize.
+     * Any alpha values are ignored.
+     * This method is thread-safe, and tile compression can occur in parallel.
+     * @param level the resolution level
+     * @param tileX the tile column
+     * @param tileY the tile row
+     * @param argb the tile pixels
+     * @throws IOException if the tile could not be written
+     */
+    void writeTile(int level, int tileX, int tileY, int[] argb) throws IOException {
+        if (tileX < 0 || tileX >= nTilesX(level) || tileY < 0 || tileY >= nTilesY(level))
+            throw new IllegalArgumentException("Tile (" + tileX + ", " + tileY + ") is outside level " + level);
+        var bytes = encodeTile(argb);
+        int ind = tileY * nTilesX(level) + tileX;
+        long offset;
+        synchronized (this) {
+            ensureOpen();
+            offset = position;
+            position += bytes.remaining();
+        }
+        writeFully(bytes, offset);
+        synchronized (this) {
+            tileOffsets[level][ind] = offset;
+            tileByteCounts[level][ind] = bytes.limit();
+        }
+    }
+
+    private ByteBuffer encodeTile(int[] argb) {
+        int n = tileSize * tileSize;
+        byte[] rgb = new byte[n * 3];
+        for (int i = 0, j = 0; i < n; i++) {
+            int val = argb[i];
+            rgb[j++] = (byte)(val >> 16);
+            rgb[j++] = (byte)(val >> 8);
+            rgb[j++] = (byte)val;
+        }
+        if (compression == Compression.NONE)
+            return ByteBuffer.wrap(rgb);
+        if (predictor)
+            applyPredictor(rgb, tileSize);
+        if (compression == Compression.LZW)
+            return ByteBuffer.wrap(new LzwEncoder().encode(rgb, 0, rgb.length));
+        var deflater = new Deflater(compressionLevel);
+        try {
+            deflater.setInput(rgb);
+            deflater.finish();
+            byte[] output = new byte[rgb.length + rgb.length / 1000 + 64];
+            int len = 0;
+            while (!deflater.finished()) {
+                if (len == output.length)
+                    output = Arrays.copyOf(output, output.length * 2);
+                len += deflater.deflate(output, len, output.length - len);
+            }
+            return ByteBuffer.wrap(output, 0, len);
+        } finally {
+            deflater.end();
+        }
+    }
+
+    /**
+     * Apply the TIFF horizontal differencing predictor to interleaved 8-bit RGB rows, in place.
+     */
+    private static void applyPredictor(byte[] rgb, int width) {
+        int rowBytes = width * 3;
+        for (int rowStart = 0; rowStart < rgb.length; rowStart += rowBytes) {
+            // Work backwards, so that each difference uses the original value of the previous pixel
+            for (int i = rowStart + rowBytes - 1; i >= rowStart + 3; i--)
+                rgb[i] -= rgb[i - 3];
+        }
+    }
+
+    private void writeHeader() throws IOException {
+        var buffer = ByteBuffer.allocate(bigTiff ? 16 : 8).order(ByteOrder.LITTLE_ENDIAN);
+        buffer.put((byte)'I').put((byte)'I');
+        if (bigTiff) {
+            buffer.putShort((short)43);
+            buffer.putShort((short)8);
+            buffer.putShort((short)0);
+            buffer.putLong(0L);
+        } else {
+            buffer.putShort((short)42);
+            buffer.putInt(0);
+        }
+        buffer.flip();
+        writeFully(buffer, 0);
+        position = buffer.limit();
+    }
+
+    /**
+     * Write the image file directories and close the file.
+     * @throws IOException if the directories could not be written
+     */
+    @Override
+    public synchronized void close() throws IOException {
+        if (closed)
+            return;
+        closed = true;
+        try (channel) {
+            for (int level = 0; level < nLevels(); level++) {
+                for (long count : tileByteCounts[level]) {
+                    if (count == 0)
+                        throw new IOException("Missing tiles for level " + level);
+                }
+            }
+            // Write directories in reverse so that we always know the offset of the next one
+            long nextIfd = 0;
+            for (int level = nLevels() - 1; level >= 0; level--) {
+                nextIfd = writeIfd(level, nextIfd);
+            }
+            var buffer = ByteBuffer.allocate(8).order(ByteOrder.LITTLE_ENDIAN);
+            if (bigTiff)
+                buffer.putLong(nextIfd);
+            else
+                buffer.putInt((int)nextIfd);
+            buffer.flip();
+            writeFully(buffer, bigTiff ? 8 : 4);
+        }
+    }
+
+    private long writeIfd(int level, long nextIfd) throws IOException {
+        int offsetType = bigTiff ? TYPE_LONG8 : TYPE_LONG;
+        var entries = new ArrayList<IfdEntry>();
+        entries.add(new IfdEntry(254, TYPE_LONG, level == 0 ? 0 : 1));
+        entries.add(new IfdEntry(256, TYPE_LONG, levelWidths[level]));
+        entries.add(new IfdEntry(257, TYPE_LONG, levelHeights[level]));
+        entries.add(new IfdEntry(258, TYPE_SHORT, 8, 8, 8));
+        entries.add(new IfdEntry(259, TYPE_SHORT, compression.tiffValue));
+        entries.add(new IfdEntry(262, TYPE_SHORT, 2));
+        entries.add(new IfdEntry(277, TYPE_SHORT, 3));
+        entries.add(new IfdEntry(284, TYPE_SHORT, 1));
+        if (predictor)
+            entries.add(new IfdEntry(317, TYPE_SHORT, 2));
+        entries.add(IfdEntry.ascii(305, SOFTWARE));
+        entries.add(new IfdEntry(322, TYPE_LONG, tileSize));
+        entries.add(new IfdEntry(323, TYPE_LONG, tileSize));
+        entries.add(new IfdEntry(324, offsetType, tileOffsets[level]));
+        entries.add(new IfdEntry(325, offsetType, tileByteCounts[level]));
+        entries.sort(Comparator.comparingInt(IfdEntry::tag));
+
+        int inlineBytes = bigTiff ? 8 : 4;
+        long start = position + (position % 2);
+
+        // Write any values that don't fit inline first
+        long[] valueOffsets = new long[entries.size()];
+        long pos = start;
+        List<ByteBuffer> extras = new ArrayList<>();
+        for (int i = 0; i < entries.size(); i++) {
+            var entry = entries.get(i);
+            int nBytes = entry.nBytes();
+            if (nBytes > inlineBytes) {
+                var buffer = ByteBuffer.allocate(nBytes + (nBytes % 2)).order(ByteOrder.LITTLE_ENDIAN);
+                entry.putValues(buffer);
+                buffer.position(buffer.capacity());
+                buffer.flip();
+                valueOffsets[i] = pos;
+                pos += buffer.limit();
+                extras.add(buffer);
+            }
+        }
+        for (var buffer : extras) {
+            writeFully(buffer, start);
+            start += buffer.limit();
+        }
+
+        // Write the directory itself
+        long ifdOffset = pos;
+        int entrySize = bigTiff ? 20 : 12;
+        var ifd = ByteBuffer.allocate((bigTiff ? 16 : 6) + entries.size() * entrySize).order(ByteOrder.LITTLE_ENDIAN);
+        if (bigTiff)
+            ifd.putLong(entries.size());
+        else
+            ifd.putShort((short)entries.size());
+        for (int i = 0; i < entries.size(); i++) {
+            var entry = entries.get(i);
+            ifd.putShort((short)entry.tag());
+            ifd.putShort((short)entry.type());
+            if (bigTiff)
+                ifd.putLong(entry.count());
+            else
+                ifd.putInt(entry.count());
+            int valueStart = ifd.position();
+            if (entry.nBytes() > inlineBytes) {
+                if (bigTiff)
+                    ifd.putLong(valueOffsets[i]);
+                else
+                    ifd.putInt((int)valueOffsets[i]);
+            } else {
+                entry.putValues(ifd);
+            }
+            ifd.position(valueStart + inlineBytes);
+        }
+        if (bigTiff)
+            ifd.putLong(nextIfd);
+        else
+            ifd.putInt((int)nextIfd);
+        ifd.flip();
+        writeFully(ifd, ifdOffset);
+        position = ifdOffset + ifd.limit();
+        return ifdOffset;
+    }
+
+    private void writeFully(ByteBuffer buffer, long offset) throws IOException {
+        while (buffer.hasRemaining()) {
+            offset += channel.write(buffer, offset);
+        }
+    }
+
+    private void ensureOpen() throws IOException {
+        if (closed)
+            throw new IOException("TIFF writer has already been closed");
+    }
+
+
+    private record IfdEntry(int tag, int type, long[] values, byte[] bytes) {
+
+        private IfdEntry(int tag, int type, long... values) {
+            this(tag, type, values, null);
+        }
+
+        private static IfdEntry ascii(int tag, String text) {
+            var bytes = Arrays.copyOf(text.getBytes(java.nio.charset.StandardCharsets.US_ASCII), text.length() + 1);
+            return new IfdEntry(tag, TYPE_ASCII, null, bytes);
+        }
+
+        private int count() {
+            return bytes == null ? values.length : bytes.length;
+        }
+
+        private int nBytes() {
+            return switch (type) {
+                case TYPE_ASCII -> bytes.length;
+                case TYPE_SHORT -> values.length * 2;
+                case TYPE_LONG -> values.length * 4;
+                default -> values.length * 8;
+            };
+        }
+
+        private void putValues(ByteBuffer buffer) {
+            if (bytes != null) {
+                buffer.put(bytes);
+                return;
+            }
+            for (long v : values) {
+                switch (type) {
+                    case TYPE_SHORT -> buffer.putShort((short)v);
+                    case TYPE_LONG -> buffer.putInt((int)v);
+                    default -> buffer.putLong(v);
+                }
+            }
+        }
+
+    }
+
+}
@@ -0,0 +1,181 @@
+package qupath.ext.snapshots.ui;
+
+import javafx.scene.Node;
+import javafx.scene.SnapshotParameters;
+import javafx.scene.image.WritableImage;
+import javafx.scene.transform.Scale;
+import javafx.stage.Window;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import qupath.lib.common.GeneralTools;
+
+import java.awt.AWTException;
+import java.awt.Robot;
+import java.awt.geom.Rectangle2D;
+
+/**
+ * Static methods to capture the contents of a window, either by rendering its scene (a snapshot) or by
+ * grabbing the corresponding pixels from the screen (a screenshot).
+ * <p>
+ * All methods should be called from the JavaFX application thread.
+ */
+class WindowCapture {
+
+    private static final Logger logger = LoggerFactory.getLogger(WindowCapture.class);
+
+    private WindowCapture() {
+        throw new AssertionError("Cannot instantiate this class");
+    }
+
+    /**
+     * Render the scene of a window.
+     * @param win the window to render
+     * @param scale the scale factor to apply; values of 1 or lower than 0 are treated as unscaled
+     * @return the rendered image
+     */
+    static CapturedImage snapshot(Window win, double scale) {
+        return CapturedImage.of(snapshot(win, scale, null));
+    }
+
+    /**
+     * Render the scene of a window, reusing an existing image if possible.
+     * @param win the window to render
+     * @param scale the scale factor to apply; values of 1 or lower than 0 are treated as unscaled
+     * @param target an existing image to render into; this is only used if it has the expected size, otherwise
+     *               a new image is created
+     * @return the rendered image, which will be the same as the target if that could be reused
+     */
+    static WritableImage snapshot(Window win, double scale, WritableImage target) {
+        var scene = win.getScene();
+        if (scale == 1.0 || scale <= 0.0) {
+            target = getTarget(target, scene.getWidth(), scene.getHeight());
+            return scene.snapshot(target);
+        }
+        var node = scene.getRoot();
+        var params = new SnapshotParameters();
+        var transform = new Scale(scale, scale);
+        params.setTransform(transform);
+        var bounds = transform.transform(node.getBoundsInParent());
+        target = getTarget(target, bounds.getWidth(), bounds.getHeight());
+        return node.snapshot(params, target);
+    }
+
+    /**
+     * Render a node, including any transforms applied to it.
+     * @param node the node to render
+     * @param scale the scale factor to apply; values less than or equal to 0 are treated as unscaled
+     * @return the rendered image
+     */
+    static CapturedImage snapshot(Node node, double scale) {
+        var params = new SnapshotParameters();
+        var bounds = node.getBoundsInParent();
+        if (scale > 0 && scale != 1.0) {
+            var transform = new Scale(scale, scale);
+            params.setTransform(transform);
+            bounds = transform.transform(bounds);
+        }
+        WritableImage target = null;
+        if (bounds.getMinX() == Math.rint(bounds.getMinX()) && bounds.getMinY() == Math.rint(bounds.getMinY()))
+            target = getTarget(null, bounds.getWidth(), bounds.getHeight());
+        return CapturedImage.of(node.snapshot(params, target));
+    }
+
+    /**
+     * Capture the screen region occupied by a window using the JavaFX Robot, reusing an existing image if possible.
+     * <p>
+     * Note that, unlike {@link #screenshot(Window)}, this never uses the AWT Robot - and so colors may differ on macOS.
+     * @param win the window to capture
+     * @param target an existing image to write into; this is only used if it has the expected size, otherwise
+     *               a new image is created
+     * @return the captured image, which will be the same as the target if that could be reused
+     */
+    static WritableImage screenshot(Window win, WritableImage target) {
+        target = getTarget(target, win.getWidth(), win.getHeight());
+        return new javafx.scene.robot.Robot().getScreenCapture(target,
+                new javafx.geometry.Rectangle2D(win.getX(), win.getY(), win.getWidth(), win.getHeight()));
+    }
+
+    /**
+     * Get the image to use as a target, which is either the requested target (if it has the expected size),
+     * an image from the {@link PixelBufferPool}, or null if a new image should be created.
+     * Pooled images are only used for whole-pixel sizes, since otherwise rounding could give an image that is
+     * larger than needed (leaving stale pixels at the edges).
+     */
+    private static WritableImage getTarget(WritableImage target, double width, double height) {
+        if (hasSize(target, width, height))
+            return target;
+        if (width != Math.rint(width) || height != Math.rint(height))
+            return null;
+        return PixelBufferPool.acquireImage((int)width, (int)height);
+    }
+
+    private static boolean hasSize(WritableImage image, double width, double height) {
+        return image != null &&
+                image.getWidth() == Math.ceil(width) &&
+                image.getHeight() == Math.ceil(height);
+    }
+
+    /**
+     * Capture the screen region occupied by a window.
+     * @param win the window to capture
+     * @return the captured image
+     */
+    static CapturedImage screenshot(Window win) {
+        return screenshot(new javafx.geometry.Rectangle2D(win.getX(), win.getY(), win.getWidth(), win.getHeight()));
+    }
+
+    /**
+     * Capture the screen region occupied by part of a window.
+     * @param region the region to capture
+     * @return the captured image
+     */
+    static CapturedImage screenshot(CaptureRegion region) {
+        return screenshot(region.getScreenBounds());
+    }
+
+    /**
+     * Render part of a window.
+     * Only the selected node, or only the part of the scene within the selected rectangle, is rendered.
+     * @param region the region to render
+     * @param scale the scale factor to apply; values less than or equal to 0 are treated as unscaled
+     * @return the rendered image
+     */
+    static CapturedImage snapshot(CaptureRegion region, double scale) {
+        if (region.rectangle() == null)
+            return snapshot(region.node(), scale);
+        var node = region.getRenderNode();
+        var params = new SnapshotParameters();
+        if (region.window().getScene().getFill() != null)
+            params.setFill(region.window().getScene().getFill());
+        double s = scale > 0 ? scale : 1.0;
+        if (s != 1.0)
+            params.setTransform(new Scale(s, s));
+        // The viewport is given in the transformed coordinate space
+        var rect = region.rectangle();
+        params.setViewport(new javafx.geometry.Rectangle2D(
+                rect.getMinX() * s, rect.getMinY() * s, rect.getWidth() * s, rect.getHeight() * s));
+        var target = getTarget(null, params.getViewport().getWidth(), params.getViewport().getHeight());
+        return CapturedImage.of(node.snapshot(params, target));
+    }
+
+    private static CapturedImage screenshot(javafx.geometry.Rectangle2D bounds) {
+        var rect = new Rectangle2D.Double(
+                bounds.getMinX(),
+                bounds.getMinY(),
+                bounds.getWidth(),
+                bounds.getHeight()
+        );
+        // Need to use AWT Robot for correct colors on Mac
+        if (GeneralTools.isMac()) {
+            try {
+                return CapturedImage.of(new Robot().createScreenCapture(rect.getBounds()));
+            } catch (AWTException e) {
+                logger.warn("Unable to capture screenshot using AWT - falling back to JavaFX (colors may differ)", e);
+            }
+        }
+        // Need to use JavaFX Robot for Windows & Linux
+        var target = getTarget(null, bounds.getWidth(), bounds.getHeight());
+        return CapturedImage.of(new javafx.scene.robot.Robot().getScreenCapture(target, bounds));
+    }
+
+}
@@ -7,6 +7,7 @@ import javafx.beans.value.ObservableValue;
 import javafx.collections.ListChangeListener;
 import javafx.stage.Window;
 
+import java.util.List;
 import java.util.Map;
 import java.util.WeakHashMap;
 import java.util.function.Predicate;
@@ -23,13 +24,15 @@ class WindowFocusListener {
 
     private final Map<Window, FocusListener> listeners = new WeakHashMap<>();
 
+    private final ListChangeListener<Window> windowListListener = this::handleWindowListChange;
+
     /**
      * Create a new window listener.
      * @param filter optional predicate to identify which windows to include
      */
     public WindowFocusListener(Predicate<Window> filter) {
         this.filter = filter == null ? w -> true : filter;
-        Window.getWindows().addListener(this::handleWindowListChange);
+        Window.getWindows().addListener(windowListListener);
         for (var window : Window.getWindows()) {
             maybeAddListener(window);
             if (window.isFocused() && this.filter.test(window)) {
@@ -49,6 +52,28 @@ class WindowFocusListener {
         return focused;
     }
 
+    /**
+     * Get all the windows that are currently showing and accepted by the predicate.
+     * @return the tracked windows, in the order of {@link Window#getWindows()}
+     */
+    public List<Window> getTrackedWindows() {
+        return Window.getWindows().stream()
+                .filter(w -> w.isShowing() && filter.test(w))
+                .toList();
+    }
+
+
+    /**
+     * Stop tracking windows, removing all listeners so that this can be garbage collected.
+     * This should be called from the JavaFX application thread.
+     */
+    public synchronized void dispose() {
+        Window.getWindows().removeListener(windowListListener);
+        for (var entry : listeners.entrySet())
+            entry.getKey().focusedProperty().removeListener(entry.getValue());
+        listeners.clear();
+        focused.set(null);
+    }
 
     private void handleWindowListChange(ListChangeListener.Change<? extends Window> change) {
         while (change.next()) {
@@ -0,0 +1,209 @@
+package qupath.ext.snapshots.ui;
+
+import javafx.animation.Animation;
+import javafx.animation.KeyFrame;
+import javafx.animation.Timeline;
+import javafx.application.Platform;
+import javafx.beans.property.ReadOnlyIntegerProperty;
+import javafx.beans.property.ReadOnlyIntegerWrapper;
+import javafx.scene.image.PixelFormat;
+import javafx.scene.image.WritableImage;
+import javafx.stage.Window;
+import javafx.util.Duration;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import qupath.lib.common.ThreadTools;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.zip.Deflater;
+
+/**
+ * Record a window as an animated PNG.
+ * <p>
+ * Frames are captured at a fixed interval on the JavaFX application thread, and passed to an {@link ApngWriter}
+ * on a single background thread. Because the writer only encodes the parts of each frame that have changed,
+ * recording a mostly-static window is cheap.
+ * If encoding falls behind, frames are dropped rather than queued.
+ */
+class WindowRecorder {
+
+    private static final Logger logger = LoggerFactory.getLogger(WindowRecorder.class);
+
+    /**
+     * Number of pixel buffers that may be queued for encoding.
+     */
+    private static final int N_BUFFERS = 2;
+
+    private final Window window;
+    private final boolean doScreenshot;
+    private final double scale;
+    private final Duration interval;
+    private final int maxFrames;
+    private final Path path;
+
+    private final ExecutorService encoder = Executors.newSingleThreadExecutor(
+            ThreadTools.createThreadFactory("snapshot-recorder-", true));
+
+    // Only accessed on the JavaFX application thread
+    private final Deque<int[]> freeBuffers = new ArrayDeque<>();
+    private int nUnallocatedBuffers = N_BUFFERS;
+    private WritableImage image;
+    private Timeline timeline;
+    private boolean stopRequested = false;
+
+    // Only accessed on the encoder thread
+    private ApngWriter writer;
+    // Frames are written to a temporary file, which is only renamed to the output path once it is complete
+    private Path temp;
+    private IOException writeException;
+
+    private final ReadOnlyIntegerWrapper nCaptured = new ReadOnlyIntegerWrapper(0);
+    private final ReadOnlyIntegerWrapper nDropped = new ReadOnlyIntegerWrapper(0);
+
+    private final CompletableFuture<Path> future = new CompletableFuture<>();
+
+    /**
+     * Create a new recorder.
+     * @param window the window to record
+     * @param doScreenshot if true, capture screenshots; otherwise, render snapshots
+     * @param scale the scale to use for snapshots
+     * @param interval the interval between frames
+     * @param maxFrames the maximum number of frames to capture, or 0 to continue until stopped
+     * @param path the output file
+     */
+    WindowRecorder(Window window, boolean doScreenshot, double scale, Duration interval, int maxFrames, Path path) {
+        this.window = window;
+        this.doScreenshot = doScreenshot;
+        this.scale = scale;
+        this.interval = interval;
+        this.maxFrames = Math.max(0, maxFrames);
+        this.path = path;
+    }
+
+    /**
+     * Start recording.
+     * This must be called from the JavaFX application thread.
+     * @return a future that completes with the output path once recording has stopped and the file is complete
+     */
+    CompletableFuture<Path> start() {
+        if (timeline != null)
+            throw new IllegalStateException("Recording has already been started");
+        timeline = new Timeline(new KeyFrame(interval, e -> captureFrame()));
+        timeline.setCycleCount(Animation.INDEFINITE);
+        captureFrame();
+        timeline.play();
+        return future;
+    }
+
+    /**
+     * Stop recording.
+     * Frames that have already been captured will still be written.
+     */
+    void stop() {
+        if (stopRequested)
+            return;
+        stopRequested = true;
+        if (timeline != null)
+            timeline.stop();
+        // The last frame has already been read, so the image can be reused
+        PixelBufferPool.release(image);
+        image = null;
+        long endTimestamp = System.currentTimeMillis();
+        encoder.execute(() -> {
+            try {
+                if (writer != null)
+                    writer.close(endTimestamp);
+                if (writeException != null)
+                    throw writeException;
+                if (writer == null)
+                    throw new IOException("No frames were recorded");
+                logger.debug("Recorded {} distinct frames to {}", writer.nFrames(), path);
+                SnapshotWriter.commit(temp, path).whenComplete((p, t) -> {
+                    if (t == null)
+                        future.complete(path);
+                    else
+                        future.completeExceptionally(t);
+                });
+            } catch (Throwable t) {
+                deleteTemp();
+                future.completeExceptionally(t);
+            }
+        });
+        encoder.shutdown();
+    }
+
+    private void deleteTemp() {
+        if (temp == null)
+            return;
+        try {
+            Files.deleteIfExists(temp);
+        } catch (IOException e) {
+            logger.warn("Unable to delete incomplete recording {}", temp, e);
+        }
+    }
+
+    ReadOnlyIntegerProperty capturedProperty() {
+        return nCaptured.getReadOnlyProperty();
+    }
+
+    ReadOnlyIntegerProperty droppedProperty() {
+        return nDropped.getReadOnlyProperty();
+    }
+
+    private void captureFrame() {
+        if (stopRequested)
+            return;
+        if (!window.isShowing()) {
+            logger.warn("Window closed - stopping recording");
+            stop();
+            return;
+        }
+        if (freeBuffers.isEmpty() && nUnallocatedBuffers == 0) {
+            logger.debug("Unable to keep up with encoding - dropping frame");
+            nDropped.set(nDropped.get() + 1);
+            return;
+        }
+        long timestamp = System.currentTimeMillis();
+        image = doScreenshot ?
+                WindowCapture.screenshot(window, image) :
+                WindowCapture.snapshot(window, scale, image);
+        int width = (int)image.getWidth();
+        int height = (int)image.getHeight();
+        var buffer = freeBuffers.poll();
+        if (buffer == null)
+            nUnallocatedBuffers--;
+        if (buffer == null || buffer.length != width * height)
+            buffer = new int[width * height];
+        image.getPixelReader().getPixels(0, 0, width, height, PixelFormat.getIntArgbInstance(), buffer, 0, width);
+
+        var pixels = buffer;
+        encoder.execute(() -> {
+            if (writeException != null)
+                return;
+            try {
+                if (writer == null) {
+                    temp = SnapshotWriter.createTempFile(path);
+                    writer = new ApngWriter(temp, width, height, false, Deflater.DEFAULT_COMPRESSION);
+                }
+                writer.addFrame(pixels, width, height, timestamp);
+            } catch (IOException e) {
+                if (writeException == null)
+                    writeException = e;
+                Platform.runLater(this::stop);
+            } finally {
+                Platform.runLater(() -> freeBuffers.push(pixels));
+            }
+        });
+        nCaptured.set(nCaptured.get() + 1);
+        if (maxFrames > 0 && nCaptured.get() >= maxFrames)
+            stop();
+    }
+
+}
@@ -0,0 +1,287 @@
+package qupath.ext.snapshots.ui;
+
+import javafx.application.Platform;
+import javafx.scene.Scene;
+import javafx.scene.layout.StackPane;
+import javafx.scene.paint.Color;
+import javafx.scene.shape.Rectangle;
+import javafx.stage.Stage;
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+
+import javax.imageio.ImageIO;
+import java.awt.image.BufferedImage;
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.UncheckedIOException;
+import java.net.Socket;
+import java.net.URI;
+import java.net.URLEncoder;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.junit.jupiter.api.Assumptions.assumeTrue;
+
+/**
+ * Test the capture server endpoints.
+ * These require the JavaFX toolkit, and so are skipped if it can't be started (e.g. without a display) - unless the
+ * build requested the headless Monocle platform, in which case they fail.
+ */
+class CaptureServerTest {
+
+    private static final String TITLE = "Capture server test";
+
+    private static boolean toolkitAvailable;
+    private static Stage stage;
+    private static CaptureServer server;
+
+    private final HttpClient client = HttpClient.newHttpClient();
+
+    @BeforeAll
+    static void startServer() throws Exception {
+        toolkitAvailable = startToolkit();
+        if (!toolkitAvailable)
+            return;
+        callOnFxThread(() -> {
+            stage = new Stage();
+            stage.setTitle(TITLE);
+            stage.setScene(new Scene(new StackPane(new Rectangle(200, 100, Color.RED)), 200, 100));
+            stage.show();
+            try {
+                server = new CaptureServer(0);
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+            return null;
+        });
+    }
+
+    @AfterAll
+    static void stopServer() throws Exception {
+        if (!toolkitAvailable)
+            return;
+        callOnFxThread(() -> {
+            if (server != null)
+                server.stop();
+            stage.close();
+            return null;
+        });
+    }
+
+    @Test
+    void testWindows() throws Exception {
+        assumeTrue(toolkitAvailable, "JavaFX toolkit is not available");
+        var response = get("/windows");
+        assertEquals(200, response.statusCode());
+        assertTrue(response.headers().firstValue("Content-Type").orElse("").startsWith("application/json"));
+        var body = new String(response.body(), StandardCharsets.UTF_8);
+        assertTrue(body.contains("\"title\":\"" + TITLE + "\""), body);
+    }
+
+    @Test
+    void testCapture() throws Exception {
+        assumeTrue(toolkitAvailable, "JavaFX toolkit is not available");
+        var response = get("/capture?window=" + URLEncoder.encode(TITLE, StandardCharsets.UTF_8) + "&format=png");
+        assertEquals(200, response.statusCode());
+        assertEquals("image/png", response.headers().firstValue("Content-Type").orElse(null));
+        var img = ImageIO.read(new ByteArrayInputStream(response.body()));
+        assertNotNull(img);
+        assertEquals(200, img.getWidth());
+        assertEquals(100, img.getHeight());
+        assertEquals(0xffff0000, img.getRGB(100, 50));
+    }
+
+    @Test
+    void testCaptureErrors() throws Exception {
+        assumeTrue(toolkitAvailable, "JavaFX toolkit is not available");
+        assertEquals(404, get("/capture?window=missing").statusCode());
+        assertEquals(400, get("/capture?window=" + URLEncoder.encode(TITLE, StandardCharsets.UTF_8) + "&scale=100").statusCode());
+        assertEquals(400, get("/capture?format=unknown").statusCode());
+        assertEquals(404, get("/unknown").statusCode());
+        // Invalid escapes must be a client error, whether rejected by the HTTP server or when parsing the query
+        // (they can't be sent with the HTTP client, since they aren't valid in a URI)
+        int port = server.getAddress().getPort();
+        assertEquals(400, getStatus(port, "localhost:" + port, "/capture?window=100%"));
+        assertEquals(400, getStatus(port, "localhost:" + port, "/capture?window=%zz"));
+    }
+
+    @Test
+    void testStream() throws Exception {
+        assumeTrue(toolkitAvailable, "JavaFX toolkit is not available");
+        var title = "Capture server stream test";
+        var streamStage = callOnFxThread(() -> {
+            var s = new Stage();
+            s.setTitle(title);
+            s.setScene(new Scene(new StackPane(new Rectangle(100, 80, Color.BLUE)), 100, 80));
+            s.show();
+            return s;
+        });
+        try {
+            var response = getStream("/stream?window=" + URLEncoder.encode(title, StandardCharsets.UTF_8) + "&fps=20");
+            assertEquals(200, response.statusCode());
+            var contentType = response.headers().firstValue("Content-Type").orElse("");
+            assertTrue(contentType.startsWith("multipart/x-mixed-replace"), contentType);
+            var boundary = contentType.substring(contentType.indexOf("boundary=") + "boundary=".length());
+            try (var input = response.body()) {
+                for (int i = 0; i < 3; i++) {
+                    var img = readFrame(input, boundary);
+                    assertEquals(100, img.getWidth());
+                    assertEquals(80, img.getHeight());
+                    var rgb = img.getRGB(50, 40);
+                    assertTrue((rgb & 0xff) > 200 && (rgb >> 16 & 0xff) < 50, "Unexpected color " + Integer.toHexString(rgb));
+                }
+                // Closing the window should end the stream, rather than leaving the client waiting
+                callOnFxThread(() -> {
+                    streamStage.close();
+                    return null;
+                });
+                var rest = CompletableFuture.supplyAsync(() -> {
+                    try {
+                        return input.readAllBytes();
+                    } catch (IOException e) {
+                        throw new UncheckedIOException(e);
+                    }
+                }).get(10, TimeUnit.SECONDS);
+                var text = new String(rest, StandardCharsets.ISO_8859_1);
+                assertTrue(text.endsWith("--" + boundary + "--\r\n"), "Stream did not end with the closing boundary");
+            }
+        } finally {
+            callOnFxThread(() -> {
+                streamStage.close();
+                return null;
+            });
+        }
+    }
+
+    @Test
+    void testHostHeader() throws Exception {
+        assumeTrue(toolkitAvailable, "JavaFX toolkit is not available");
+        int port = server.getAddress().getPort();
+        assertEquals(200, getStatus(port, "localhost:" + port));
+        assertEquals(200, getStatus(port, "127.0.0.1:" + port));
+        // A page served from another domain that resolves to the loopback address must be rejected
+        assertEquals(403, getStatus(port, "attacker.example:" + port));
+        assertEquals(403, getStatus(port, "localhost.attacker.example"));
+        assertEquals(403, getStatus(port, null));
+    }
+
+    private HttpResponse<byte[]> get(String path) throws IOException, InterruptedException {
+        var address = server.getAddress();
+        var request = HttpRequest.newBuilder(URI.create("http://127.0.0.1:" + address.getPort() + path)).GET().build();
+        return client.send(request, HttpResponse.BodyHandlers.ofByteArray());
+    }
+
+    private HttpResponse<InputStream> getStream(String path) throws IOException, InterruptedException {
+        var address = server.getAddress();
+        var request = HttpRequest.newBuilder(URI.create("http://127.0.0.1:" + address.getPort() + path)).GET().build();
+        return client.send(request, HttpResponse.BodyHandlers.ofInputStream());
+    }
+
+    /**
+     * Read the next part of a multipart stream, and decode it as an image.
+     */
+    private static BufferedImage readFrame(InputStream input, String boundary) throws IOException {
+        var line = readLine(input);
+        // Skip the line break that ends the previous part
+        while (line.isEmpty())
+            line = readLine(input);
+        assertEquals("--" + boundary, line);
+        String contentType = null;
+        int length = -1;
+        while (!(line = readLine(input)).isEmpty()) {
+            int ind = line.indexOf(':');
+            var name = line.substring(0, ind).trim();
+            var value = line.substring(ind + 1).trim();
+            if (name.equalsIgnoreCase("Content-Type"))
+                contentType = value;
+            else if (name.equalsIgnoreCase("Content-Length"))
+                length = Integer.parseInt(value);
+        }
+        assertEquals("image/jpeg", contentType);
+        assertTrue(length > 0, "Missing Content-Length");
+        var bytes = input.readNBytes(length);
+        assertEquals(length, bytes.length, "Incomplete frame");
+        var img = ImageIO.read(new ByteArrayInputStream(bytes));
+        assertNotNull(img, "Frame is not a valid image");
+        return img;
+    }
+
+    private static String readLine(InputStream input) throws IOException {
+        var sb = new StringBuilder();
+        int c;
+        while ((c = input.read()) != '\n') {
+            if (c < 0)
+                throw new EOFException("Stream ended unexpectedly");
+            if (c != '\r')
+                sb.append((char)c);
+        }
+        return sb.toString();
+    }
+
+    private static int getStatus(int port, String host) throws IOException {
+        return getStatus(port, host, "/windows");
+    }
+
+    /**
+     * Send a request with a specific Host header and unchecked path, which can't be set using the HTTP client.
+     */
+    private static int getStatus(int port, String host, String path) throws IOException {
+        try (var socket = new Socket(server.getAddress().getAddress(), port)) {
+            var request = "GET " + path + " HTTP/1.1\r\n" +
+                    (host == null ? "" : "Host: " + host + "\r\n") +
+                    "Connection: close\r\n\r\n";
+            socket.getOutputStream().write(request.getBytes(StandardCharsets.US_ASCII));
+            socket.getOutputStream().flush();
+            var reader = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.US_ASCII));
+            var statusLine = reader.readLine();
+            assertNotNull(statusLine, "No response");
+            return Integer.parseInt(statusLine.split(" ")[1]);
+        }
+    }
+
+    private static boolean startToolkit() throws InterruptedException {
+        var latch = new CountDownLatch(1);
+        try {
+            Platform.startup(latch::countDown);
+        } catch (IllegalStateException e) {
+            // Already started
+            return true;
+        } catch (RuntimeException | UnsatisfiedLinkError e) {
+            checkNotMonocle(e);
+            return false;
+        }
+        Platform.setImplicitExit(false);
+        if (latch.await(10, TimeUnit.SECONDS))
+            return true;
+        checkNotMonocle(null);
+        return false;
+    }
+
+    /**
+     * When the build requests the headless Monocle platform it must work, otherwise the tests would silently
+     * never run.
+     */
+    private static void checkNotMonocle(Throwable cause) {
+        if ("Monocle".equals(System.getProperty("glass.platform")))
+            throw new AssertionError("Unable to start JavaFX with Monocle - check the Monocle version", cause);
+    }
+
+    private static <T> T callOnFxThread(Supplier<T> supplier) throws Exception {
+        return CompletableFuture.supplyAsync(supplier, Platform::runLater).get(10, TimeUnit.SECONDS);
+    }
+
+}
@@ -0,0 +1,116 @@
+package qupath.ext.snapshots.ui;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+class FileNameIndexTest {
+
+    @TempDir
+    Path dir;
+
+    @Test
+    void testCounterPlaceholder() throws IOException {
+        Files.createFile(dir.resolve("snap-3-a.png"));
+        var index = new FileNameIndex();
+        // The counter follows the highest one in use, wherever the placeholder is
+        assertEquals("snap-4-a.png", reserve(index, "snap-{counter}-a.png", false));
+        assertEquals("snap-5-a.png", reserve(index, "snap-{counter}-a.png", false));
+        assertEquals("1-snap.png", reserve(index, "{counter}-snap.png", false));
+        // A placeholder always gives a new name, even if overwriting is allowed
+        assertEquals("snap-6-a.png", reserve(index, "snap-{counter}-a.png", true));
+    }
+
+    @Test
+    void testCounterAppended() throws IOException {
+        Files.createFile(dir.resolve("snap.png"));
+        var index = new FileNameIndex();
+        assertEquals("snap.png", reserve(index, "snap.png", false));
+        assertEquals("snap-1.png", reserve(index, "snap.png", true));
+        assertEquals("snap-2.png", reserve(index, "snap.png", true));
+        assertEquals("other.png", reserve(index, "other.png", true));
+        assertEquals("other-1.png", reserve(index, "other.png", true));
+    }
+
+    @Test
+    void testRelease() {
+        var index = new FileNameIndex();
+        var file = index.reserve(dir.resolve("snap.png").toFile(), true);
+        assertEquals("snap.png", file.getName());
+        assertEquals("snap-1.png", reserve(index, "snap.png", true));
+        // A name that was never written can be used again
+        index.release(file, false);
+        assertEquals("snap.png", reserve(index, "snap.png", true));
+    }
+
+    @Test
+    void testConcurrentReservations() throws Exception {
+        var index = new FileNameIndex();
+        int nThreads = 8;
+        int nPerThread = 50;
+        var start = new CountDownLatch(1);
+        ExecutorService pool = Executors.newFixedThreadPool(nThreads);
+        try {
+            var futures = new ArrayList<CompletableFuture<List<String>>>();
+            for (int t = 0; t < nThreads; t++) {
+                futures.add(CompletableFuture.supplyAsync(() -> {
+                    try {
+                        start.await();
+                    } catch (InterruptedException e) {
+                        throw new RuntimeException(e);
+                    }
+                    var names = new ArrayList<String>();
+                    for (int i = 0; i < nPerThread; i++) {
+                        names.add(reserve(index, "snap.png", true));
+                        names.add(reserve(index, "burst-{counter}.png", false));
+                    }
+                    return names;
+                }, pool));
+            }
+            start.countDown();
+            var names = new HashSet<String>();
+            int count = 0;
+            for (var future : futures) {
+                var list = future.join();
+                names.addAll(list);
+                count += list.size();
+            }
+            assertEquals(count, names.size(), "Duplicate names were reserved");
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    @Test
+    void testMissedWatchEvent() throws IOException {
+        var index = new FileNameIndex();
+        // Index the directory before the files are created
+        assertEquals("first.png", reserve(index, "first.png", true));
+        // Created behind the index's back, so the result mustn't depend on the watch service having seen them
+        Files.createFile(dir.resolve("snap.png"));
+        Files.createFile(dir.resolve("snap-1.png"));
+        Files.createFile(dir.resolve("burst-1.png"));
+        assertEquals("snap-2.png", reserve(index, "snap.png", true));
+        assertEquals("burst-2.png", reserve(index, "burst-{counter}.png", false));
+    }
+
+    private String reserve(FileNameIndex index, String name, boolean uniqueName) {
+        File file = index.reserve(dir.resolve(name).toFile(), uniqueName);
+        assertEquals(dir.toFile().getAbsoluteFile(), file.getParentFile().getAbsoluteFile());
+        return file.getName();
+    }
+
+}
@@ -0,0 +1,94 @@
+package qupath.ext.snapshots.ui;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class FileSinkTest {
+
+    @TempDir
+    Path dir;
+
+    @Test
+    void testBufferedWrite() throws Exception {
+        var sink = new FileSink(1024 * 1024, 4, () -> false);
+        var target = dir.resolve("small.bin");
+        byte[] bytes = createBytes(1000);
+        assertEquals(target, sink.write(target, stream -> stream.write(bytes), null).join());
+        assertArrayEquals(bytes, Files.readAllBytes(target));
+        assertEquals(1, countFiles());
+    }
+
+    @Test
+    void testLargeWrite() throws Exception {
+        // Larger than can be buffered, so must be streamed to the temporary file as it is encoded
+        var sink = new FileSink(1024 * 1024, 4, () -> true);
+        var target = dir.resolve("large.bin");
+        byte[] chunk = createBytes(1024 * 1024 + 7);
+        int nChunks = 70;
+        var stats = new CaptureStats("Large write");
+        sink.write(target, stream -> {
+            for (int i = 0; i < nChunks; i++)
+                stream.write(chunk);
+        }, stats).join();
+        assertEquals((long)chunk.length * nChunks, Files.size(target));
+        assertEquals((long)chunk.length * nChunks, stats.getOutputBytes());
+        assertEquals(1, countFiles());
+    }
+
+    @Test
+    void testEncoderFailure() throws Exception {
+        var sink = new FileSink(1024 * 1024, 4, () -> false);
+        var target = dir.resolve("failed.bin");
+        byte[] chunk = createBytes(1024 * 1024);
+        assertThrows(IOException.class, () -> sink.write(target, stream -> {
+            // Fail after the content has been moved to a temporary file
+            for (int i = 0; i < 70; i++)
+                stream.write(chunk);
+            throw new IOException("Encoding failed");
+        }, null));
+        assertEquals(0, countFiles());
+    }
+
+    @Test
+    void testSinkSurvivesErrors() throws Exception {
+        var fail = new AtomicBoolean(true);
+        var sink = new FileSink(1024 * 1024, 4, () -> {
+            if (fail.get())
+                throw new AssertionError("Unexpected error");
+            return false;
+        });
+        var failed = sink.write(dir.resolve("first.bin"), stream -> stream.write(1), null);
+        var e = assertThrows(CompletionException.class, failed::join);
+        assertTrue(e.getCause() instanceof AssertionError);
+        fail.set(false);
+        var target = dir.resolve("second.bin");
+        assertEquals(target, sink.write(target, stream -> stream.write(2), null).join());
+        assertEquals(1, countFiles());
+    }
+
+    private long countFiles() throws IOException {
+        try (Stream<Path> files = Files.list(dir)) {
+            return files.count();
+        }
+    }
+
+    private static byte[] createBytes(int length) {
+        byte[] bytes = new byte[length];
+        for (int i = 0; i < length; i++)
+            bytes[i] = (byte)(i * 31 + i / 251);
+        return bytes;
+    }
+
+}
@@ -0,0 +1,107 @@
+package qupath.ext.snapshots.ui;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class LzwEncoderTest {
+
+    @Test
+    void testEmpty() {
+        assertArrayEquals(new byte[0], decode(new LzwEncoder().encode(new byte[0], 0, 0)));
+    }
+
+    @Test
+    void testRepetitive() {
+        byte[] data = new byte[100_000];
+        for (int i = 0; i < data.length; i++)
+            data[i] = (byte)(i / 100 % 3);
+        assertArrayEquals(data, decode(new LzwEncoder().encode(data, 0, data.length)));
+    }
+
+    @Test
+    void testOffset() {
+        byte[] data = createRandom(1000, 8);
+        var encoder = new LzwEncoder();
+        assertArrayEquals(Arrays.copyOfRange(data, 100, 600), decode(encoder.encode(data, 100, 500)));
+    }
+
+    /**
+     * Encode every length up to several times the table size, so that the table becomes full on every possible
+     * code - including the last one, when a clear code must still be written before the end-of-information code.
+     */
+    @Test
+    void testTableFullAtEveryPosition() {
+        byte[] data = createRandom(10_000, 256);
+        var encoder = new LzwEncoder();
+        for (int length = 1; length <= data.length; length++) {
+            byte[] decoded = decode(encoder.encode(data, 0, length));
+            assertEquals(length, decoded.length, "Decoded length");
+            assertArrayEquals(Arrays.copyOf(data, length), decoded, "Length " + length);
+        }
+    }
+
+    private static byte[] createRandom(int length, int nValues) {
+        var random = new Random(length);
+        byte[] data = new byte[length];
+        for (int i = 0; i < length; i++)
+            data[i] = (byte)random.nextInt(nValues);
+        return data;
+    }
+
+    /**
+     * Strict TIFF LZW decoder, which fails if the table becomes full without a clear code or if the data
+     * doesn't end with an end-of-information code.
+     */
+    private static byte[] decode(byte[] encoded) {
+        var output = new ByteArrayOutputStream();
+        byte[][] table = new byte[4096][];
+        for (int i = 0; i < 256; i++)
+            table[i] = new byte[]{(byte)i};
+        int nextCode = 258;
+        int previous = -1;
+        long bitPosition = 0;
+        while (true) {
+            // Code length increases one code 'early', as in libtiff
+            int codeBits = nextCode + 1 < 512 ? 9 : nextCode + 1 < 1024 ? 10 : nextCode + 1 < 2048 ? 11 : 12;
+            assertTrue(bitPosition + codeBits <= encoded.length * 8L, "Missing end-of-information code");
+            int code = 0;
+            for (int i = 0; i < codeBits; i++, bitPosition++) {
+                int bit = (encoded[(int)(bitPosition / 8)] >> (7 - (int)(bitPosition % 8))) & 1;
+                code = (code << 1) | bit;
+            }
+            if (code == 256) {
+                nextCode = 258;
+                previous = -1;
+                continue;
+            }
+            if (code == 257)
+                break;
+            assertTrue(nextCode < 4094, "Table is full without a clear code");
+            byte[] entry;
+            if (previous < 0) {
+                entry = table[code];
+            } else {
+                byte[] prefix = table[previous];
+                entry = code < nextCode ? table[code] : append(prefix, prefix[0]);
+                table[nextCode++] = append(prefix, entry[0]);
+            }
+            output.writeBytes(entry);
+            previous = code;
+        }
+        return output.toByteArray();
+    }
+
+    private static byte[] append(byte[] bytes, byte b) {
+        byte[] result = Arrays.copyOf(bytes, bytes.length + 1);
+        result[bytes.length] = b;
+        return result;
+    }
+
+}
@@ -0,0 +1,73 @@
+package qupath.ext.snapshots.ui;
+
+import org.junit.jupiter.api.Test;
+
+import javax.imageio.ImageIO;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.concurrent.Executors;
+import java.util.zip.Adler32;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+
+class ParallelPngWriterTest {
+
+    @Test
+    void testRGB() throws IOException {
+        var img = TestImages.create(500, 400, false);
+        for (var strategy : ParallelPngWriter.Strategy.values()) {
+            var decoded = roundTrip(new ParallelPngWriter(6, strategy), img);
+            assertEquals(3, decoded.getColorModel().getNumComponents(), "Components");
+            TestImages.assertSamePixels(img, decoded, false);
+        }
+    }
+
+    @Test
+    void testARGB() throws IOException {
+        var img = TestImages.create(500, 400, true);
+        var decoded = roundTrip(new ParallelPngWriter(6, ParallelPngWriter.Strategy.DEFAULT), img);
+        assertEquals(4, decoded.getColorModel().getNumComponents(), "Components");
+        TestImages.assertSamePixels(img, decoded, true);
+    }
+
+    @Test
+    void testManyBlocks() throws IOException {
+        // Large enough for several blocks, compressed in parallel and combined
+        var img = TestImages.create(1500, 1000, false);
+        var pool = Executors.newFixedThreadPool(4);
+        try {
+            var decoded = roundTrip(new ParallelPngWriter(1, ParallelPngWriter.Strategy.DEFAULT, pool, 4), img);
+            TestImages.assertSamePixels(img, decoded, false);
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    @Test
+    void testCombineAdler32() {
+        byte[] data = new byte[100_000];
+        for (int i = 0; i < data.length; i++)
+            data[i] = (byte)(i * 31 + i / 7);
+        int split = 12_345;
+        var first = new Adler32();
+        first.update(data, 0, split);
+        var second = new Adler32();
+        second.update(data, split, data.length - split);
+        var all = new Adler32();
+        all.update(data);
+        assertEquals(all.getValue(),
+                ParallelPngWriter.combineAdler32(first.getValue(), second.getValue(), data.length - split));
+    }
+
+    private static BufferedImage roundTrip(ParallelPngWriter writer, BufferedImage img) throws IOException {
+        var stream = new ByteArrayOutputStream();
+        writer.write(img, stream);
+        var decoded = ImageIO.read(new ByteArrayInputStream(stream.toByteArray()));
+        assertNotNull(decoded, "PNG could not be read");
+        return decoded;
+    }
+
+}
@@ -0,0 +1,112 @@
+package qupath.ext.snapshots.ui;
+
+import org.junit.jupiter.api.Test;
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+class QoiWriterTest {
+
+    @Test
+    void testRGB() throws IOException {
+        var img = TestImages.create(333, 222, false);
+        var decoded = decode(encode(img), 3);
+        TestImages.assertSamePixels(img, decoded, false);
+    }
+
+    @Test
+    void testARGB() throws IOException {
+        var img = TestImages.create(333, 222, true);
+        var decoded = decode(encode(img), 4);
+        TestImages.assertSamePixels(img, decoded, true);
+    }
+
+    @Test
+    void testOpaqueARGB() throws IOException {
+        // Images that could have alpha, but don't, should be written with 3 channels
+        var img = TestImages.create(100, 50, false);
+        var imgARGB = new BufferedImage(img.getWidth(), img.getHeight(), BufferedImage.TYPE_INT_ARGB);
+        imgARGB.getGraphics().drawImage(img, 0, 0, null);
+        var decoded = decode(encode(imgARGB), 3);
+        TestImages.assertSamePixels(imgARGB, decoded, true);
+    }
+
+    @Test
+    void testLongRuns() throws IOException {
+        // Runs are limited to 62 pixels, and must be written at the end of the image
+        var img = new BufferedImage(200, 3, BufferedImage.TYPE_INT_RGB);
+        var decoded = decode(encode(img), 3);
+        TestImages.assertSamePixels(img, decoded, false);
+    }
+
+    private static byte[] encode(BufferedImage img) throws IOException {
+        var stream = new ByteArrayOutputStream();
+        QoiWriter.write(img, stream);
+        return stream.toByteArray();
+    }
+
+    /**
+     * Decoder following the reference implementation (qoi.h).
+     */
+    private static BufferedImage decode(byte[] bytes, int expectedChannels) {
+        var buffer = ByteBuffer.wrap(bytes);
+        assertEquals(0x716f6966, buffer.getInt(), "Magic");
+        int width = buffer.getInt();
+        int height = buffer.getInt();
+        assertEquals(expectedChannels, buffer.get(), "Channels");
+        assertEquals(0, buffer.get(), "Colorspace");
+
+        var img = new BufferedImage(width, height, BufferedImage.TYPE_INT_ARGB);
+        int[] index = new int[64];
+        int r = 0, g = 0, b = 0, a = 255;
+        int run = 0;
+        int chunksEnd = bytes.length - 8;
+        for (int i = 0; i < width * height; i++) {
+            if (run > 0) {
+                run--;
+            } else if (buffer.position() < chunksEnd) {
+                int b1 = buffer.get() & 0xff;
+                if (b1 == 0xfe) {
+                    r = buffer.get() & 0xff;
+                    g = buffer.get() & 0xff;
+                    b = buffer.get() & 0xff;
+                } else if (b1 == 0xff) {
+                    r = buffer.get() & 0xff;
+                    g = buffer.get() & 0xff;
+                    b = buffer.get() & 0xff;
+                    a = buffer.get() & 0xff;
+                } else if ((b1 & 0xc0) == 0x00) {
+                    int px = index[b1];
+                    a = px >>> 24;
+                    r = (px >> 16) & 0xff;
+                    g = (px >> 8) & 0xff;
+                    b = px & 0xff;
+                } else if ((b1 & 0xc0) == 0x40) {
+                    r = (r + ((b1 >> 4) & 0x03) - 2) & 0xff;
+                    g = (g + ((b1 >> 2) & 0x03) - 2) & 0xff;
+                    b = (b + (b1 & 0x03) - 2) & 0xff;
+                } else if ((b1 & 0xc0) == 0x80) {
+                    int b2 = buffer.get() & 0xff;
+                    int vg = (b1 & 0x3f) - 32;
+                    r = (r + vg - 8 + ((b2 >> 4) & 0x0f)) & 0xff;
+                    g = (g + vg) & 0xff;
+                    b = (b + vg - 8 + (b2 & 0x0f)) & 0xff;
+                } else {
+                    run = b1 & 0x3f;
+                }
+                index[(r * 3 + g * 5 + b * 7 + a * 11) % 64] = (a << 24) | (r << 16) | (g << 8) | b;
+            }
+            img.setRGB(i % width, i / width, (a << 24) | (r << 16) | (g << 8) | b);
+        }
+        assertEquals(chunksEnd, buffer.position(), "End of chunks");
+        for (int i = 0; i < 7; i++)
+            assertEquals(0, buffer.get(), "End marker");
+        assertEquals(1, buffer.get(), "End marker");
+        return img;
+    }
+
+}
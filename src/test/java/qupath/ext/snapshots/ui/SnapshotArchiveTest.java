@@ -0,0 +1,212 @@
+package qupath.ext.snapshots.ui;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class SnapshotArchiveTest {
+
+    @TempDir
+    Path dir;
+
+    @Test
+    void testTarLayout() throws IOException {
+        var archive = SnapshotArchive.get(dir.resolve("layout.tar"));
+        var small = "small".getBytes(StandardCharsets.UTF_8);
+        var block = createData(512, 1);
+        // Larger than the stream buffer, so that it's written in more than one piece
+        var large = createData(3 * 1024 * 1024 + 17, 2);
+        archive.append("small.png", true, s -> s.write(small), Map.of("window", "Viewer 1"), null);
+        archive.append("block.png", true, s -> s.write(block), Map.of(), null);
+        archive.append("Fen\u00eatre.png", true, s -> {
+            for (byte b : Arrays.copyOf(large, 1000))
+                s.write(b);
+            s.write(large, 1000, large.length - 1000);
+        }, Map.of(), null);
+        // A name that's already used gets a counter
+        archive.append("small.png", true, s -> s.write(small), Map.of(), null);
+
+        var tarEntries = readTar(archive.getPath());
+        assertEquals(List.of("small.png", "block.png", "Fen\u00eatre.png", "small-1.png"),
+                tarEntries.stream().map(TarEntry::name).toList());
+        assertArrayEquals(small, tarEntries.get(0).data());
+        assertArrayEquals(block, tarEntries.get(1).data());
+        assertArrayEquals(large, tarEntries.get(2).data());
+        assertEquals("Viewer 1", tarEntries.get(0).pax().get(SnapshotArchive.METADATA_PREFIX + "window"));
+
+        // The index gives the same entries, and can be used to read them
+        var entries = archive.getEntries();
+        assertEquals(tarEntries.size(), entries.size());
+        for (int i = 0; i < entries.size(); i++) {
+            assertEquals(tarEntries.get(i).name(), entries.get(i).name());
+            try (var stream = archive.openStream(entries.get(i))) {
+                assertArrayEquals(tarEntries.get(i).data(), stream.readAllBytes());
+            }
+        }
+        assertEquals(Map.of("window", "Viewer 1"), entries.get(0).metadata());
+    }
+
+    @Test
+    void testFailedEntryIsRemoved() throws IOException {
+        var archive = SnapshotArchive.get(dir.resolve("failed.tar"));
+        var data = createData(1000, 3);
+        archive.append("first.png", true, s -> s.write(data), Map.of(), null);
+        long length = Files.size(archive.getPath());
+        assertThrows(IOException.class, () -> archive.append("second.png", true, s -> {
+            s.write(createData(2 * 1024 * 1024, 4));
+            throw new IOException("Encoding failed");
+        }, Map.of(), null));
+        assertEquals(length, Files.size(archive.getPath()));
+        assertEquals(1, archive.getEntries().size());
+
+        archive.append("third.png", true, s -> s.write(data), Map.of(), null);
+        assertEquals(List.of("first.png", "third.png"), readTar(archive.getPath()).stream().map(TarEntry::name).toList());
+    }
+
+    @Test
+    void testRecoverTruncatedArchive() throws IOException {
+        var archive = SnapshotArchive.get(dir.resolve("truncated.tar"));
+        for (int i = 0; i < 3; i++) {
+            var data = createData(10_000, i);
+            archive.append("entry-{counter}.png", false, s -> s.write(data), Map.of(), null);
+        }
+        var last = archive.getEntries().get(2);
+        // Simulate an interrupted write, part-way through the last entry
+        try (var channel = FileChannel.open(archive.getPath(), StandardOpenOption.WRITE)) {
+            channel.truncate(last.offset() + last.size() / 2);
+        }
+
+        assertEquals(List.of("entry-1.png", "entry-2.png"), archive.getEntries().stream().map(SnapshotArchive.Entry::name).toList());
+        assertEquals(List.of("entry-1.png", "entry-2.png"), readTar(archive.getPath()).stream().map(TarEntry::name).toList());
+        assertEquals(2, readIndexLines(archive).size());
+
+        var data = createData(100, 5);
+        archive.append("entry-{counter}.png", false, s -> s.write(data), Map.of(), null);
+        var tarEntries = readTar(archive.getPath());
+        assertEquals(List.of("entry-1.png", "entry-2.png", "entry-3.png"), tarEntries.stream().map(TarEntry::name).toList());
+        assertArrayEquals(data, tarEntries.get(2).data());
+        assertEquals(3, readIndexLines(archive).size());
+    }
+
+    @Test
+    void testRecoverDeletedArchive() throws IOException {
+        var archive = SnapshotArchive.get(dir.resolve("deleted.tar"));
+        archive.append("entry.png", true, s -> s.write(1), Map.of(), null);
+        Files.delete(archive.getPath());
+
+        assertTrue(archive.getEntries().isEmpty());
+        archive.append("entry.png", true, s -> s.write(2), Map.of(), null);
+        var tarEntries = readTar(archive.getPath());
+        assertEquals(1, tarEntries.size());
+        assertArrayEquals(new byte[] {2}, tarEntries.get(0).data());
+        assertEquals(1, readIndexLines(archive).size());
+    }
+
+    private record TarEntry(String name, Map<String, String> pax, byte[] data) {}
+
+    /**
+     * Read a tar file as tar would, checking each header and applying extended headers to the following entry.
+     */
+    private static List<TarEntry> readTar(Path path) throws IOException {
+        var bytes = Files.readAllBytes(path);
+        assertEquals(0, bytes.length % 512, "Archive length is not a whole number of blocks");
+        var entries = new ArrayList<TarEntry>();
+        Map<String, String> pax = new LinkedHashMap<>();
+        int pos = 0;
+        while (true) {
+            assertTrue(pos + 1024 <= bytes.length, "Missing end of archive marker");
+            var header = Arrays.copyOfRange(bytes, pos, pos + 512);
+            if (isZero(header)) {
+                assertTrue(isZero(Arrays.copyOfRange(bytes, pos + 512, pos + 1024)), "Incomplete end of archive marker");
+                break;
+            }
+            assertEquals("ustar", readString(header, 257, 6));
+            assertEquals(readOctal(header, 148, 8), checksum(header), "Invalid header checksum");
+            int size = (int)readOctal(header, 124, 12);
+            char type = (char)header[156];
+            var data = Arrays.copyOfRange(bytes, pos + 512, pos + 512 + size);
+            pos += 512 + (size + 511) / 512 * 512;
+            if (type == 'x') {
+                pax = parsePax(data);
+            } else {
+                assertEquals('0', type);
+                var name = pax.getOrDefault("path", readString(header, 0, 100));
+                entries.add(new TarEntry(name, pax, data));
+                pax = new LinkedHashMap<>();
+            }
+        }
+        return entries;
+    }
+
+    private static Map<String, String> parsePax(byte[] data) {
+        var map = new LinkedHashMap<String, String>();
+        int pos = 0;
+        while (pos < data.length) {
+            int space = pos;
+            while (data[space] != ' ')
+                space++;
+            int length = Integer.parseInt(new String(data, pos, space - pos, StandardCharsets.US_ASCII));
+            assertEquals('\n', data[pos + length - 1], "Invalid extended header record length");
+            var record = new String(data, space + 1, pos + length - space - 2, StandardCharsets.UTF_8);
+            int eq = record.indexOf('=');
+            map.put(record.substring(0, eq), record.substring(eq + 1));
+            pos += length;
+        }
+        return map;
+    }
+
+    private static long checksum(byte[] header) {
+        long sum = 0;
+        for (int i = 0; i < header.length; i++)
+            sum += i >= 148 && i < 156 ? ' ' : header[i] & 0xff;
+        return sum;
+    }
+
+    private static String readString(byte[] header, int offset, int length) {
+        int end = offset;
+        while (end < offset + length && header[end] != 0)
+            end++;
+        return new String(header, offset, end - offset, StandardCharsets.US_ASCII);
+    }
+
+    private static long readOctal(byte[] header, int offset, int length) {
+        return Long.parseLong(readString(header, offset, length).trim(), 8);
+    }
+
+    private static boolean isZero(byte[] block) {
+        for (byte b : block) {
+            if (b != 0)
+                return false;
+        }
+        return true;
+    }
+
+    private static List<String> readIndexLines(SnapshotArchive archive) throws IOException {
+        var indexPath = archive.getPath().resolveSibling(archive.getPath().getFileName() + SnapshotArchive.INDEX_SUFFIX);
+        return Files.readAllLines(indexPath).stream().filter(line -> !line.isBlank()).toList();
+    }
+
+    private static byte[] createData(int length, long seed) {
+        var data = new byte[length];
+        new Random(seed).nextBytes(data);
+        return data;
+    }
+
+}
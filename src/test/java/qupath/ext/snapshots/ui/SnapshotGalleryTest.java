@@ -0,0 +1,31 @@
+package qupath.ext.snapshots.ui;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+class SnapshotGalleryTest {
+
+    @Test
+    void testCompareNames() {
+        var names = new ArrayList<>(List.of(
+                "snapshot-10.png", "snapshot-9.png", "Snapshot-2.png", "snapshot-1.png", "snapshot-10a.png",
+                "snapshot-100.png", "other.png"));
+        names.sort(SnapshotGallery::compareNames);
+        assertEquals(List.of(
+                "other.png", "snapshot-1.png", "Snapshot-2.png", "snapshot-9.png", "snapshot-10.png",
+                "snapshot-10a.png", "snapshot-100.png"), names);
+    }
+
+    @Test
+    void testCompareNamesLargeNumbers() {
+        // Numbers too large for a long are still compared by value
+        var names = new ArrayList<>(List.of("x100000000000000000000", "x99999999999999999999", "x0099"));
+        names.sort(SnapshotGallery::compareNames);
+        assertEquals(List.of("x0099", "x99999999999999999999", "x100000000000000000000"), names);
+    }
+
+}
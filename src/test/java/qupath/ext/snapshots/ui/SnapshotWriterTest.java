@@ -0,0 +1,122 @@
+package qupath.ext.snapshots.ui;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import javax.imageio.ImageIO;
+import javax.imageio.plugins.tiff.TIFFDirectory;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class SnapshotWriterTest {
+
+    @TempDir
+    Path dir;
+
+    @Test
+    void testWriteAllJpegQuality() throws IOException {
+        long low = writeAllSize(SnapshotFormat.JPEG_LOW);
+        long medium = writeAllSize(SnapshotFormat.JPEG_MEDIUM);
+        long high = writeAllSize(SnapshotFormat.JPEG_HIGH);
+        assertTrue(low < medium, "Low quality (" + low + ") should be smaller than medium (" + medium + ")");
+        assertTrue(medium < high, "Medium quality (" + medium + ") should be smaller than high (" + high + ")");
+    }
+
+    @Test
+    void testWriteAllTiffCompression() throws IOException {
+        assertEquals(5, getTiffCompression(writeAll(SnapshotFormat.TIFF_LZW)));
+        assertEquals(8, getTiffCompression(writeAll(SnapshotFormat.TIFF_DEFLATE)));
+    }
+
+    @Test
+    void testWriteAllExplicitExtension() throws IOException {
+        // An explicit extension chooses the writer, even if it doesn't match the format
+        var img = TestImages.create(64, 48, false);
+        var folder = SnapshotWriter.writeAll(List.of(img), List.of("Window"), dir.resolve("explicit").toFile(),
+                ".png", SnapshotFormat.JPEG_HIGH);
+        var file = new File(folder, "Window.png");
+        assertTrue(file.exists());
+        TestImages.assertSamePixels(img, ImageIO.read(file), false);
+    }
+
+    @Test
+    void testUnknownExtensionIsPartOfName() throws IOException {
+        // Names from image names or window titles may end with an extension that no writer supports
+        var img = TestImages.create(64, 48, false);
+        var file = SnapshotWriter.write(img, dir.resolve("CMU-1.svs").toFile(), SnapshotFormat.PNG, true);
+        assertEquals("CMU-1.svs.png", file.getName());
+        TestImages.assertSamePixels(img, ImageIO.read(file), false);
+    }
+
+    @Test
+    void testEncodeProgress() throws IOException {
+        var img = TestImages.create(1200, 900, false);
+        var formats = List.of(SnapshotFormat.PNG, SnapshotFormat.QOI, SnapshotFormat.JPEG_MEDIUM, SnapshotFormat.TIFF_LZW);
+        for (var format : formats) {
+            var stats = new CaptureStats("Progress test");
+            var fractions = new ArrayList<Double>();
+            stats.setEncodeProgressListener(fraction -> {
+                synchronized (fractions) {
+                    fractions.add(fraction);
+                }
+            });
+            SnapshotWriter.write(img, dir.resolve("progress-" + format.name()).toFile(), format, true, stats);
+            // Intermediate values are reported, not only the end of encoding
+            assertTrue(fractions.size() > 2, format + " reported " + fractions);
+            assertTrue(fractions.stream().allMatch(f -> f > 0 && f <= 1), format + " reported " + fractions);
+            assertTrue(fractions.get(fractions.size() - 1) >= 0.9, format + " reported " + fractions);
+        }
+    }
+
+    @Test
+    void testEncodeProgressIsThrottled() {
+        var stats = new CaptureStats("Progress test");
+        var fractions = new ArrayList<Double>();
+        stats.setEncodeProgressListener(fractions::add);
+        for (int i = 1; i <= 10_000; i++)
+            stats.reportEncodeProgress(i / 10_000.0);
+        assertTrue(fractions.size() <= 101, "Too many updates: " + fractions.size());
+        assertEquals(1.0, fractions.get(fractions.size() - 1));
+    }
+
+    private long writeAllSize(SnapshotFormat format) throws IOException {
+        return Files.size(writeAll(format).toPath());
+    }
+
+    /**
+     * Write a single image with writeAll, using the default extension of the format, and return the file.
+     */
+    private File writeAll(SnapshotFormat format) throws IOException {
+        var img = TestImages.create(300, 200, false);
+        var folder = SnapshotWriter.writeAll(List.of(img), List.of("Viewer 1.2"), dir.resolve(format.name()).toFile(),
+                "", format);
+        var file = new File(folder, "Viewer 1.2" + format.getExtension());
+        assertTrue(file.exists(), "Missing " + file);
+        return file;
+    }
+
+    private static int getTiffCompression(File file) throws IOException {
+        try (var stream = ImageIO.createImageInputStream(file)) {
+            var reader = ImageIO.getImageReaders(stream).next();
+            try {
+                reader.setInput(stream);
+                var ifd = TIFFDirectory.createFromMetadata(reader.getImageMetadata(0));
+                // Tiles are only written by the format's own TIFF writer
+                assertNotNull(ifd.getTIFFField(322), "TIFF is not tiled");
+                return ifd.getTIFFField(259).getAsInt(0);
+            } finally {
+                reader.dispose();
+            }
+        }
+    }
+
+}
@@ -0,0 +1,69 @@
+package qupath.ext.snapshots.ui;
+
+import java.awt.image.BufferedImage;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+/**
+ * Create and compare images for tests of the encoders.
+ */
+final class TestImages {
+
+    private TestImages() {
+        throw new AssertionError("Cannot instantiate this class");
+    }
+
+    /**
+     * Create an image with flat regions, gradients and noise, so that encoders use all their code paths
+     * (e.g. runs, small differences and literal pixels).
+     * @param width the image width
+     * @param height the image height
+     * @param alpha if true, create a {@code TYPE_INT_ARGB} image with varying alpha; otherwise {@code TYPE_INT_RGB}
+     * @return the image
+     */
+    static BufferedImage create(int width, int height, boolean alpha) {
+        var img = new BufferedImage(width, height, alpha ? BufferedImage.TYPE_INT_ARGB : BufferedImage.TYPE_INT_RGB);
+        var random = new Random(42L);
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                int r, g, b;
+                if (y < height / 3) {
+                    r = g = b = ((x / 16) % 2) * 255;
+                } else if (y < 2 * height / 3) {
+                    r = x * 255 / width;
+                    g = y * 255 / height;
+                    b = (x + y) % 256;
+                } else {
+                    r = random.nextInt(256);
+                    g = random.nextInt(256);
+                    b = random.nextInt(256);
+                }
+                int a = alpha && x > width / 2 ? (x * 255 / width) : 255;
+                img.setRGB(x, y, (a << 24) | (r << 16) | (g << 8) | b);
+            }
+        }
+        return img;
+    }
+
+    /**
+     * Check that two images have the same size and pixel values.
+     * @param expected the expected image
+     * @param actual the actual image
+     * @param alpha if false, alpha values are ignored
+     */
+    static void assertSamePixels(BufferedImage expected, BufferedImage actual, boolean alpha) {
+        assertEquals(expected.getWidth(), actual.getWidth(), "Width");
+        assertEquals(expected.getHeight(), actual.getHeight(), "Height");
+        int mask = alpha ? 0xffffffff : 0x00ffffff;
+        for (int y = 0; y < expected.getHeight(); y++) {
+            for (int x = 0; x < expected.getWidth(); x++) {
+                int e = expected.getRGB(x, y) & mask;
+                int a = actual.getRGB(x, y) & mask;
+                if (e != a)
+                    assertEquals(Integer.toHexString(e), Integer.toHexString(a), "Pixel at (" + x + ", " + y + ")");
+            }
+        }
+    }
+
+}
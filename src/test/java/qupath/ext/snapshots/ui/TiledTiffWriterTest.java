@@ -0,0 +1,47 @@
+package qupath.ext.snapshots.ui;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import javax.imageio.ImageIO;
+import java.io.IOException;
+import java.nio.file.Path;
+
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+
+class TiledTiffWriterTest {
+
+    @TempDir
+    Path dir;
+
+    @Test
+    void testLzwWithPredictor() throws IOException {
+        testRoundTrip(TiledTiffWriter.Compression.LZW, true);
+    }
+
+    @Test
+    void testLzw() throws IOException {
+        testRoundTrip(TiledTiffWriter.Compression.LZW, false);
+    }
+
+    @Test
+    void testDeflateWithPredictor() throws IOException {
+        testRoundTrip(TiledTiffWriter.Compression.DEFLATE, true);
+    }
+
+    @Test
+    void testUncompressed() throws IOException {
+        testRoundTrip(TiledTiffWriter.Compression.NONE, false);
+    }
+
+    private void testRoundTrip(TiledTiffWriter.Compression compression, boolean predictor) throws IOException {
+        // Not a multiple of the tile size, so that edge tiles are padded
+        var img = TestImages.create(600, 333, false);
+        var path = dir.resolve("image.tif");
+        TiledTiffWriter.write(img, path, compression, 6, predictor);
+        var decoded = ImageIO.read(path.toFile());
+        assertNotNull(decoded, "TIFF could not be read");
+        TestImages.assertSamePixels(img, decoded, false);
+    }
+
+}